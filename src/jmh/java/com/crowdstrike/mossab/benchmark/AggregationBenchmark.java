@@ -0,0 +1,98 @@
+package com.crowdstrike.mossab.benchmark;
+
+import com.crowdstrike.mossab.model.AgeHistogram;
+import com.crowdstrike.mossab.model.PartialSummary;
+import com.crowdstrike.mossab.model.Person;
+import com.crowdstrike.mossab.processor.SummaryReducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * The aggregation behind the median and average: folding people into a summary, merging the per-file summaries (one by
+ * one, and as the fork/join tree CsvProcessor uses for long runs of files), and reading the median and average off the
+ * histogram as CsvProcessor.calculateMedianAndAverages() does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregationBenchmark {
+    // the number of per-file summaries, as with that many URLs
+    @Param({"100", "20000"})
+    private int files;
+
+    private static final int PEOPLE_PER_FILE = 1000;
+
+    private Person[] people;
+    private List<PartialSummary> summaries;
+    private PartialSummary merged;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        people = new Person[PEOPLE_PER_FILE];
+        for (int i = 0; i < people.length; i++) {
+            people[i] = new Person("First" + i, "LAST" + i, random.nextInt(1, 100));
+        }
+
+        summaries = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            PartialSummary summary = new PartialSummary();
+            for (int j = 0; j < PEOPLE_PER_FILE; j++) {
+                summary.add(random.nextInt(1, 100));
+            }
+            summaries.add(summary);
+        }
+        merged = mergeSequentially();
+    }
+
+    @Benchmark
+    public PartialSummary summarisePeople() {
+        PartialSummary summary = new PartialSummary();
+        for (Person person : people) {
+            summary.add(person);
+        }
+        return summary;
+    }
+
+    @Benchmark
+    public PartialSummary mergeSequentially() {
+        PartialSummary result = new PartialSummary();
+        for (PartialSummary summary : summaries) {
+            result.merge(summary);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public PartialSummary mergeForkJoin() {
+        return ForkJoinPool.commonPool().invoke(new SummaryReducer(summaries));
+    }
+
+    @Benchmark
+    public void medianAndAverage(Blackhole blackhole) {
+        AgeHistogram histogram = merged.getHistogram();
+        blackhole.consume(histogram.getAverage());
+        blackhole.consume(histogram.getMedian());
+        blackhole.consume(histogram.getMedianPerson());
+    }
+}
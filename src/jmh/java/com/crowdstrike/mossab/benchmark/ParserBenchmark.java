@@ -0,0 +1,70 @@
+package com.crowdstrike.mossab.benchmark;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.processor.CsvLineParser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Line parsing throughput of CsvLineParser - the parser CsvReader runs every file's bytes through - on generated files.
+ * Besides files/s, the "rows" counter gives rows/s. Run with "-prof gc" for the allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    @Param({"1000", "100000", "10000000"})
+    private int rows;
+
+    // 0 for clean files, 10 for a mix of malformed lines like file9_bad.csv's
+    @Param({"0", "10"})
+    private int malformedPercent;
+
+    // whether every person is kept (the default) or only counted per age (--streaming)
+    @Param({"true", "false"})
+    private boolean retainPeople;
+
+    private byte[] csv;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        csv = SyntheticCsv.generate(rows, malformedPercent, 42);
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Rows {
+        public long rows;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rows = 0;
+        }
+    }
+
+    @Benchmark
+    public CsvFile parse(Rows counter) throws IOException {
+        CsvFile csvFile = new CsvFile("benchmark.csv");
+        new CsvLineParser(csvFile, retainPeople, true).parse(new ByteArrayInputStream(csv));
+        counter.rows += rows;
+        return csvFile;
+    }
+}
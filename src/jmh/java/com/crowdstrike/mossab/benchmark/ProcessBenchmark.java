@@ -0,0 +1,101 @@
+package com.crowdstrike.mossab.benchmark;
+
+import com.crowdstrike.mossab.fetch.HttpBackendType;
+import com.crowdstrike.mossab.processor.CsvProcessor;
+import com.crowdstrike.mossab.processor.CsvProcessorOptions;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Whole CsvProcessor.process() runs against an in-process http server, which waits a configurable latency before
+ * answering each request - so the effect of changes to the scheduling, pipelining and merging can be measured end to
+ * end without a network in the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProcessBenchmark {
+    @Param({"200", "2000"})
+    private int urls;
+
+    @Param({"1000"})
+    private int rowsPerFile;
+
+    // how long the server waits before answering each request
+    @Param({"0", "20"})
+    private int latencyMillis;
+
+    @Param({"url-connection", "http-client"})
+    private String httpBackend;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private List<String> urlList;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        byte[] csv = SyntheticCsv.generate(rowsPerFile, 5, 42);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", exchange -> {
+            if (latencyMillis > 0) {
+                try {
+                    Thread.sleep(latencyMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/csv");
+            exchange.sendResponseHeaders(200, csv.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(csv);
+            }
+        });
+        server.start();
+
+        urlList = new ArrayList<>(urls);
+        for (int i = 0; i < urls; i++) {
+            urlList.add("http://127.0.0.1:" + server.getAddress().getPort() + "/file" + i + ".csv");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public CsvProcessor process() {
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setHttpBackend(HttpBackendType.fromOptionName(httpBackend));
+        CsvProcessor processor = new CsvProcessor(urlList, options);
+        processor.process();
+        return processor;
+    }
+}
@@ -0,0 +1,48 @@
+package com.crowdstrike.mossab.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/***
+ * Generates CSV files of people for the benchmarks, in the same shape as the files in src/data. The same seed always
+ * gives the same bytes, so runs are comparable.
+ */
+final class SyntheticCsv {
+    private static final String[] FIRST_NAMES = {"David", "Jack", "Claire", "Melanie", "Phillip", "Mikayla", "Faith", "Omar"};
+    private static final String[] LAST_NAMES = {"MERCADO", "HAHN", "WOLFE", "POWELL", "GILES", "SERRANO", "CHAVEZ", "NGUYEN"};
+    // the kinds of broken lines found in file9_bad.csv
+    private static final String[] MALFORMED = {"Melanie, POWELL, Faith, CHAVEZ, 49", "Jack, HAHN", "Claire, WOLFE, old",
+            "Omar, NGUYEN, -3", ""};
+
+    private SyntheticCsv() {
+    }
+
+    /***
+     * @param rows the number of data lines, after the header
+     * @param malformedPercent the share (0-100) of the lines that are malformed
+     */
+    static byte[] generate(int rows, int malformedPercent, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        ByteArrayOutputStream csv = new ByteArrayOutputStream(rows * 20 + 32);
+        StringBuilder line = new StringBuilder(64);
+        write(csv, line.append("fname, lname, age\n"));
+        for (int i = 0; i < rows; i++) {
+            line.setLength(0);
+            if (random.nextInt(100) < malformedPercent) {
+                line.append(MALFORMED[random.nextInt(MALFORMED.length)]);
+            } else {
+                line.append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).append(", ")
+                        .append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).append(", ")
+                        .append(random.nextInt(1, 100));
+            }
+            write(csv, line.append('\n'));
+        }
+        return csv.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream csv, StringBuilder line) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        csv.write(bytes, 0, bytes.length);
+    }
+}
@@ -1,13 +1,95 @@
 package com.crowdstrike.mossab;
 
+import com.crowdstrike.mossab.distributed.Coordinator;
+import com.crowdstrike.mossab.distributed.Worker;
+import com.crowdstrike.mossab.fetch.HttpBackendType;
 import com.crowdstrike.mossab.processor.CsvProcessor;
+import com.crowdstrike.mossab.processor.CsvProcessorOptions;
+import com.crowdstrike.mossab.processor.GroupBy;
+import com.crowdstrike.mossab.processor.MetricsFormat;
+import com.crowdstrike.mossab.processor.UrlManifest;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /***
  * The main entry point to the code. URLs are passed in as command line arguments and are passed into the CsvProcessor
  * to read the files concurrently (via ThreadPoolExecutor) and compute the median/average.
+ * <p>
+ * For more URLs than fit on a command line, --manifest=PATH reads them from a file (or stdin, with "-"), one per line.
+ * They are read as they are needed, after any URLs given as arguments.
+ * <p>
+ * With --workers=N, the run is spread over N worker JVMs started on this machine (see Coordinator): the URLs are handed
+ * out to them in shards of --shard-size=N URLs, and their partial results are merged here. The workers are started with
+ * the same options; --deadline then applies to each shard rather than to the whole run.
+ * <p>
+ * Any argument starting with "--" is treated as an option rather than a URL:
+ * <ul>
+ *     <li>--manifest=PATH: also read the URLs listed in this file, one per line ("-" for stdin)</li>
+ *     <li>--workers=N: read the URLs in N worker processes instead of in this one</li>
+ *     <li>--shard-size=N: with --workers, the number of URLs handed to a worker at a time (default 250)</li>
+ *     <li>--worker=HOST:PORT: run as a worker for the coordinator at HOST:PORT - started by the coordinator itself</li>
+ *     <li>--stream-summaries: print each file's summary as soon as it is read instead of keeping every file for the
+ *     end - for very long lists of URLs</li>
+ *     <li>--streaming: only keep per-age counts for each file instead of every parsed person</li>
+ *     <li>--off-heap-records: keep the parsed people in direct buffers, outside the heap</li>
+ *     <li>--group-by=last-name|first-name|source: also report the count, average and median age of each last name,
+ *     first name or file - names need the people kept, so not with --streaming</li>
+ *     <li>--top-groups=N: with --group-by, the number of largest groups reported (default 10)</li>
+ *     <li>--io-threads=N: number of files fetched concurrently</li>
+ *     <li>--parse-threads=N: number of files parsed concurrently (defaults to the number of cores)</li>
+ *     <li>--handoff-capacity=N: number of fetched files allowed to wait for a parse thread</li>
+ *     <li>--virtual-threads: read each file on its own virtual thread (Java 21+) instead of the thread pools</li>
+ *     <li>--max-connections=N: with virtual threads, the number of files fetched concurrently</li>
+ *     <li>--per-host-connections=N: the most files from one host that are fetched at once (default 8, negative for
+ *     no cap) - files from different hosts take turns</li>
+ *     <li>--max-in-flight=N: the most files that are fetched and parsed at once overall (defaults to the number of
+ *     fetch and parse threads, or to --max-connections with virtual threads)</li>
+ *     <li>--adaptive-concurrency: start with a few remote files at once and adapt the number to the latency and errors
+ *     seen (up to --max-in-flight), instead of always allowing --max-in-flight</li>
+ *     <li>--http-backend=url-connection|http-client: fetch with a new HttpURLConnection per file (default) or with one
+ *     shared HTTP/2-capable HttpClient</li>
+ *     <li>--mmap-threshold=BYTES: local files of at least this size are memory-mapped and parsed on all cores
+ *     (default 64MB, negative to disable)</li>
+ *     <li>--ranged-threshold=BYTES: remote files of at least this size are downloaded as several byte ranges at once,
+ *     if the server supports ranges (disabled by default)</li>
+ *     <li>--range-connections=N: number of ranges per ranged download (default 4)</li>
+ *     <li>--no-compression: don't ask http servers for gzip/deflate compressed responses</li>
+ *     <li>--cache-dir=PATH: keep each http(s) file's result on disk, and on later runs skip files the server says have
+ *     not changed</li>
+ *     <li>--cache-max-size=BYTES: the size the cache is kept under by evicting least recently used results
+ *     (default 256MB)</li>
+ *     <li>--connect-timeout=MS: how long to wait for an http connection (default 10000, 0 to wait forever)</li>
+ *     <li>--read-timeout=MS: how long to wait for a response, and for each read of its body (default 30000, 0 to wait
+ *     forever)</li>
+ *     <li>--transfer-timeout=MS: the total time one request may take, body included (no limit by default)</li>
+ *     <li>--deadline=MS: the time the whole run may take - files not read by then are reported as timed out, and the
+ *     results cover only the files that were (no limit by default)</li>
+ *     <li>--progress[=MS]: print files done, records, throughput and the average and median age so far every MS
+ *     milliseconds (default 1000) while the files are read</li>
+ *     <li>--metrics-file=PATH: write each phase's per-file timings (p50/p90/p99/max), the rows per second and the bytes
+ *     transferred to this file once the run is done</li>
+ *     <li>--metrics-format=json|prometheus: the format of the metrics file (default json)</li>
+ *     <li>--checkpoint=PATH: journal every finished file to this file, so that the run can be resumed if it dies</li>
+ *     <li>--resume: with --checkpoint, only read the files the journal doesn't have - the results are the same as
+ *     those of an uninterrupted run</li>
+ *     <li>--checkpoint-batch=N: how many journal records are written before they are synced to disk (default 100)</li>
+ *     <li>--max-attempts=N: how many times an http(s) file is requested when it fails with a 5xx, a 429 or a
+ *     connection error (default 3)</li>
+ *     <li>--retry-base-delay=MS: the wait before the first retry, doubled (with jitter) for each one after it
+ *     (default 100)</li>
+ *     <li>--retry-max-delay=MS: the longest wait between retries, even if the server asks for longer (default 10000)</li>
+ *     <li>--hedge-percentile=P: send a duplicate request for files slower to respond than this percentile (0-100) of
+ *     the requests so far, and use whichever answers first (disabled by default)</li>
+ *     <li>--require-header: give up on files that don't start with the "fname, lname, age" header</li>
+ *     <li>--require-csv-content-type: give up on http responses whose Content-Type is not CSV or plain text</li>
+ *     <li>--max-body-size=BYTES: give up on files larger than this</li>
+ *     <li>--max-malformed-ratio=R: give up on files where more than this fraction (0-1) of the first lines is
+ *     malformed</li>
+ *     <li>--malformed-ratio-lines=N: the number of first lines the malformed ratio is measured over (default 1000)</li>
+ * </ul>
  */
 public class App {
     public static void main(String[] args) {
@@ -17,17 +99,275 @@ public class App {
         }
 
         // URLs are captured as command line arguments, space separated - captured in a list and sent to processor
-        List<String> urls = Arrays.asList(args);
+        // options are pulled out of the same arguments list
+        List<String> urls = new ArrayList<>();
+        String manifestPath = null;
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        // the options are passed on as they are to any workers, which parse them the same way
+        List<String> optionArgs = new ArrayList<>();
+        int workers = 0;
+        int shardSize = Coordinator.DEFAULT_SHARD_SIZE;
+        String coordinatorAddress = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                urls.add(arg);
+                continue;
+            }
+            if (arg.startsWith("--manifest=")) {
+                manifestPath = arg.substring("--manifest=".length());
+                continue;
+            }
 
-        CsvProcessor processor = new CsvProcessor(urls);
+            try {
+                if (arg.startsWith("--workers=")) {
+                    workers = Integer.parseInt(arg.substring("--workers=".length()));
+                    if (workers < 0) {
+                        throw new IllegalArgumentException("workers must be at least 0: " + workers);
+                    }
+                    continue;
+                }
+                if (arg.startsWith("--shard-size=")) {
+                    shardSize = Integer.parseInt(arg.substring("--shard-size=".length()));
+                    if (shardSize < 1) {
+                        throw new IllegalArgumentException("shard size must be at least 1: " + shardSize);
+                    }
+                    continue;
+                }
+                if (arg.startsWith("--worker=")) {
+                    coordinatorAddress = arg.substring("--worker=".length());
+                    continue;
+                }
 
-        // where the all the heavy lifting occurs. CSVs are read and median/average is computed. Time taken is also tracked
-        processor.process();
+                if (!applyOption(arg, options)) {
+                    System.out.println("Unknown option: " + arg + " - see the App class doc for the options there are.");
+                    return;
+                }
+            } catch (IllegalArgumentException e) { // includes NumberFormatException
+                System.out.println("Invalid option: " + arg + " (" + e.getMessage() + ") - see the App class doc for the values it takes.");
+                return;
+            }
+            optionArgs.add(arg);
+        }
+
+        // a worker takes its URLs from the coordinator, not from the command line
+        if (coordinatorAddress != null) {
+            runWorker(coordinatorAddress, options);
+            return;
+        }
+
+        if (options.isResume() && options.getCheckpointFile() == null) {
+            System.out.println("--resume needs the journal to resume from, given with --checkpoint=PATH.");
+            return;
+        }
+
+        if (urls.isEmpty() && manifestPath == null) {
+            System.out.println("Please add at least 1 URL/file via the command line in addition to any options.");
+            return;
+        }
+
+        if (workers > 0) {
+            runCoordinator(urls, manifestPath, workers, shardSize, optionArgs, options);
+            return;
+        }
+
+        CsvProcessor processor;
+        if (manifestPath == null) {
+            processor = new CsvProcessor(urls, options);
+            // where the all the heavy lifting occurs. CSVs are read and median/average is computed. Time taken is also tracked
+            processor.process();
+        } else {
+            // the manifest is read lazily, line by line, as the processor has room for more files
+            try (UrlManifest manifest = UrlManifest.open(manifestPath)) {
+                processor = new CsvProcessor(concat(urls.iterator(), manifest), options);
+                processor.process();
+            } catch (IOException e) {
+                System.out.println("Could not read the URL manifest " + manifestPath + ": " + e.getMessage());
+                return;
+            }
+        }
 
         processor.printMedianAndAverageAges();
 
+        processor.printGroups();
+
         processor.printMetrics();
 
         processor.printFileSummaries();
     }
+
+    private static void runCoordinator(List<String> urls, String manifestPath, int workers, int shardSize,
+                                       List<String> optionArgs, CsvProcessorOptions options) {
+        Coordinator coordinator;
+        try (UrlManifest manifest = manifestPath == null ? null : UrlManifest.open(manifestPath)) {
+            Iterator<String> allUrls = manifest == null ? urls.iterator() : concat(urls.iterator(), manifest);
+            coordinator = new Coordinator(allUrls, workers, shardSize, optionArgs, options);
+            coordinator.run();
+        } catch (IOException e) {
+            System.out.println("Could not run the workers: " + e.getMessage());
+            return;
+        }
+
+        coordinator.printMedianAndAverageAges();
+
+        coordinator.printMetrics();
+
+        coordinator.printRejectedFiles();
+    }
+
+    private static void runWorker(String coordinatorAddress, CsvProcessorOptions options) {
+        int colon = coordinatorAddress.lastIndexOf(':');
+        try {
+            Worker.run(coordinatorAddress.substring(0, colon), Integer.parseInt(coordinatorAddress.substring(colon + 1)), options);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Worker for " + coordinatorAddress + " stopped: " + e);
+            System.exit(1);
+        }
+    }
+
+    private static Iterator<String> concat(Iterator<String> first, Iterator<String> second) {
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+
+    /***
+     * Applies a single "--option" or "--option=value" argument to the processor options.
+     * @return false if the option is not recognised
+     * @throws IllegalArgumentException if the value is not a number, or not one the option can take
+     */
+    private static boolean applyOption(String arg, CsvProcessorOptions options) {
+        int equalsIndex = arg.indexOf('=');
+        String name = equalsIndex < 0 ? arg : arg.substring(0, equalsIndex);
+        String value = equalsIndex < 0 ? "" : arg.substring(equalsIndex + 1);
+
+        switch (name) {
+            case "--streaming":
+                options.setStreaming(true);
+                return true;
+            case "--off-heap-records":
+                options.setOffHeapRecords(true);
+                return true;
+            case "--group-by":
+                options.setGroupBy(GroupBy.fromOptionName(value));
+                return true;
+            case "--top-groups":
+                options.setTopGroups(Integer.parseInt(value));
+                return true;
+            case "--io-threads":
+                options.setIoThreads(Integer.parseInt(value));
+                return true;
+            case "--parse-threads":
+                options.setParseThreads(Integer.parseInt(value));
+                return true;
+            case "--handoff-capacity":
+                options.setHandoffCapacity(Integer.parseInt(value));
+                return true;
+            case "--virtual-threads":
+                options.setVirtualThreads(true);
+                return true;
+            case "--max-connections":
+                options.setMaxConnections(Integer.parseInt(value));
+                return true;
+            case "--per-host-connections":
+                options.setPerHostConnections(Integer.parseInt(value));
+                return true;
+            case "--max-in-flight":
+                options.setMaxInFlight(Integer.parseInt(value));
+                return true;
+            case "--adaptive-concurrency":
+                options.setAdaptiveConcurrency(true);
+                return true;
+            case "--http-backend":
+                options.setHttpBackend(HttpBackendType.fromOptionName(value));
+                return true;
+            case "--mmap-threshold":
+                options.setMmapThreshold(Long.parseLong(value));
+                return true;
+            case "--ranged-threshold":
+                options.setRangedThreshold(Long.parseLong(value));
+                return true;
+            case "--range-connections":
+                options.setRangeConnections(Integer.parseInt(value));
+                return true;
+            case "--no-compression":
+                options.setCompression(false);
+                return true;
+            case "--cache-dir":
+                options.setCacheDirectory(value);
+                return true;
+            case "--cache-max-size":
+                options.setCacheMaxBytes(Long.parseLong(value));
+                return true;
+            case "--connect-timeout":
+                options.setConnectTimeoutMillis(Integer.parseInt(value));
+                return true;
+            case "--read-timeout":
+                options.setReadTimeoutMillis(Integer.parseInt(value));
+                return true;
+            case "--transfer-timeout":
+                options.setTransferTimeoutMillis(Long.parseLong(value));
+                return true;
+            case "--deadline":
+                options.setJobDeadlineMillis(Long.parseLong(value));
+                return true;
+            case "--stream-summaries":
+                options.setStreamFileSummaries(true);
+                return true;
+            case "--progress":
+                options.setProgressIntervalMillis(value.isEmpty() ? 1000 : Long.parseLong(value));
+                return true;
+            case "--metrics-file":
+                options.setMetricsFile(value);
+                return true;
+            case "--metrics-format":
+                options.setMetricsFormat(MetricsFormat.fromOptionName(value));
+                return true;
+            case "--checkpoint":
+                options.setCheckpointFile(value);
+                return true;
+            case "--resume":
+                options.setResume(true);
+                return true;
+            case "--checkpoint-batch":
+                options.setCheckpointBatchSize(Integer.parseInt(value));
+                return true;
+            case "--max-attempts":
+                options.setMaxAttempts(Integer.parseInt(value));
+                return true;
+            case "--retry-base-delay":
+                options.setRetryBaseDelayMillis(Long.parseLong(value));
+                return true;
+            case "--retry-max-delay":
+                options.setRetryMaxDelayMillis(Long.parseLong(value));
+                return true;
+            case "--hedge-percentile":
+                options.setHedgePercentile(Double.parseDouble(value));
+                return true;
+            case "--require-header":
+                options.setRequireHeader(true);
+                return true;
+            case "--require-csv-content-type":
+                options.setRequireCsvContentType(true);
+                return true;
+            case "--max-body-size":
+                options.setMaxBodySize(Long.parseLong(value));
+                return true;
+            case "--max-malformed-ratio":
+                options.setMaxMalformedRatio(Double.parseDouble(value));
+                return true;
+            case "--malformed-ratio-lines":
+                options.setMalformedRatioLines(Integer.parseInt(value));
+                return true;
+            default:
+                return false;
+        }
+    }
 }
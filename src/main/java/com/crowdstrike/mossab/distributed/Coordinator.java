@@ -0,0 +1,554 @@
+package com.crowdstrike.mossab.distributed;
+
+import com.crowdstrike.mossab.model.AgeHistogram;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.PartialSummary;
+import com.crowdstrike.mossab.model.Person;
+import com.crowdstrike.mossab.processor.CsvProcessorOptions;
+import com.crowdstrike.mossab.processor.ReaderContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Spreads a run over several local worker JVMs, for URL lists too long for the NIC and cores one JVM gets to use. The
+ * URLs are cut into shards of consecutive URLs, which are handed out over local sockets to worker processes (App with
+ * --worker) as they become free. Each worker reads its shard with its own CsvProcessor and sends back a ShardResult -
+ * a merged PartialSummary plus the rejected files - rather than any records.
+ * <p>
+ * The shard results are merged in shard order, the same order a single CsvProcessor merges its files in, so the median,
+ * average and median person are the same as those of a single-process run over the same URLs.
+ * <p>
+ * A worker that dies (its connection drops) has its shard put back to be handed to the next free worker, and a new
+ * worker is started in its place, up to as many replacements as there are workers. Should every worker be gone with
+ * shards still left, the coordinator reads them itself.
+ */
+public class Coordinator {
+    public static final int DEFAULT_SHARD_SIZE = 250;
+
+    private final Iterator<String> urls;
+    private final int workers;
+    private final int shardSize;
+    private final List<String> workerArguments;
+    private final CsvProcessorOptions options;
+
+    // everything below is guarded by the lock - the connection threads, process exits and the main thread share it
+    private final Object lock = new Object();
+    private final Deque<Shard> reassigned = new ArrayDeque<>();
+    private final Map<Integer, Shard> assigned = new HashMap<>();
+    private final Map<Integer, Shard> finished = new HashMap<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final List<Thread> connections = new ArrayList<>();
+    private int nextShardId;
+    private long nextFileIndex;
+    private int nextMerge;
+    private int liveWorkers;
+    private int launches;
+    private int workerDeaths;
+    private int reassignedShards;
+    private int localShards;
+    private boolean urlsFailed;
+
+    private final PartialSummary summary = new PartialSummary();
+    private final List<RejectedFile> rejectedFiles = new ArrayList<>();
+    private long fileCount;
+    private long readFiles;
+    private long readRecords;
+    private long timedOutFiles;
+    private long startTime;
+    private long endTime;
+    private double medianAge;
+    private double averageAge;
+    private Person medianPerson;
+
+    /***
+     * @param urls            the URLs to read, only taken from the iterator a shard at a time, as workers become free
+     * @param workers         the number of worker JVMs to start
+     * @param shardSize       the number of URLs sent to a worker at a time
+     * @param workerArguments the options the workers are started with (e.g. "--io-threads=16"), the same as the
+     *                        coordinator's own
+     * @param options         the same options, parsed - used if the coordinator ends up reading shards itself
+     */
+    public Coordinator(Iterator<String> urls, int workers, int shardSize, List<String> workerArguments, CsvProcessorOptions options) {
+        this.urls = urls;
+        this.workers = workers;
+        this.shardSize = Math.max(1, shardSize);
+        this.workerArguments = workerArguments;
+        this.options = options;
+    }
+
+    public void run() throws IOException {
+        this.startTime = System.nanoTime();
+
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> accept(server), "coordinator-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            synchronized (lock) {
+                for (int i = 0; i < workers; i++) {
+                    launch(server.getLocalPort());
+                }
+                // replacements are started as workers die, so this only ends early once none are left to start
+                while (!isDone() && liveWorkers > 0) {
+                    waitForChange();
+                }
+            }
+        }
+
+        // the connections of dead workers hand their shards back as they close - wait for that before reading them here
+        for (Thread connection : connectionsSoFar()) {
+            joinQuietly(connection);
+        }
+
+        if (!isDone()) {
+            System.out.println("No workers left - reading the remaining shards in this process.");
+            ReaderContext context = new ReaderContext(Worker.workerOptions(options));
+            try {
+                Shard shard;
+                while ((shard = nextShard(false)) != null) {
+                    synchronized (lock) {
+                        localShards++;
+                    }
+                    shardDone(shard, Worker.read(shard.urls, context));
+                }
+            } finally {
+                context.close();
+            }
+        }
+
+        this.endTime = System.nanoTime();
+
+        synchronized (lock) {
+            if (!summary.isEmpty()) {
+                AgeHistogram histogram = summary.getHistogram();
+                this.averageAge = histogram.getAverage();
+                this.medianAge = histogram.getMedian();
+                this.medianPerson = histogram.getMedianPerson();
+            }
+        }
+    }
+
+    /***
+     * Starts a worker JVM that connects back to the coordinator, unless every replacement has been used up.
+     * Called with the lock held.
+     */
+    private void launch(int port) {
+        if (launches >= workers * 2) {
+            return;
+        }
+        launches++;
+
+        Process process;
+        try {
+            process = startWorker(port);
+        } catch (IOException e) {
+            System.out.println("Could not start a worker: " + e.getMessage());
+            return;
+        }
+        processes.add(process);
+        liveWorkers++;
+        process.onExit().thenRun(() -> workerExited(port));
+    }
+
+    /***
+     * Starts App in worker mode, with the same java and classpath as this JVM, and the coordinator's options. The
+     * worker's own output is not needed (its results come over the socket), but its errors are passed on.
+     */
+    protected Process startWorker(int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("com.crowdstrike.mossab.App");
+        command.add("--worker=" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+        command.addAll(workerArguments);
+
+        return new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private void workerExited(int port) {
+        synchronized (lock) {
+            liveWorkers--;
+            if (!isDone()) {
+                // it didn't finish its work - whatever shard it had is handed back by its connection
+                workerDeaths++;
+                launch(port);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                // closed once the run is over
+                return;
+            }
+
+            Thread connection = new Thread(() -> serve(socket), "coordinator-worker");
+            connection.setDaemon(true);
+            synchronized (lock) {
+                connections.add(connection);
+            }
+            connection.start();
+        }
+    }
+
+    /***
+     * Hands shards to one worker, one at a time, until there are none left. If the worker's connection fails, its
+     * shard is put back for another worker.
+     */
+    private void serve(Socket socket) {
+        try (Socket closing = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(closing.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(closing.getOutputStream()))) {
+            if (in.readInt() != Worker.HELLO) {
+                return;
+            }
+
+            while (true) {
+                Shard shard = nextShard(true);
+                if (shard == null) {
+                    out.writeInt(Worker.NO_MORE_SHARDS);
+                    out.flush();
+                    return;
+                }
+
+                ShardResult result;
+                try {
+                    Worker.writeShard(out, shard.id, shard.urls);
+                    out.flush();
+                    result = ShardResult.readFrom(in);
+                } catch (IOException e) {
+                    reassign(shard);
+                    throw e;
+                }
+                shardDone(shard, result);
+            }
+        } catch (IOException e) {
+            // the worker is gone (or was never one) - its process exiting starts a replacement
+        }
+    }
+
+    /***
+     * @param wait whether to wait for shards handed to other workers, which may yet come back to be reassigned
+     * @return the next shard to read - a reassigned one first - or null once there are no shards left to hand out
+     */
+    private Shard nextShard(boolean wait) {
+        synchronized (lock) {
+            while (true) {
+                Shard shard = reassigned.pollFirst();
+                if (shard == null) {
+                    shard = takeShard();
+                }
+                if (shard != null) {
+                    assigned.put(shard.id, shard);
+                    return shard;
+                }
+                if (!wait || assigned.isEmpty()) {
+                    return null;
+                }
+                waitForChange();
+            }
+        }
+    }
+
+    /***
+     * Cuts the next shard off the URLs. Called with the lock held.
+     */
+    private Shard takeShard() {
+        List<String> shardUrls = new ArrayList<>(shardSize);
+        while (shardUrls.size() < shardSize && hasMoreUrls()) {
+            shardUrls.add(urls.next());
+        }
+        if (shardUrls.isEmpty()) {
+            return null;
+        }
+
+        Shard shard = new Shard(nextShardId++, nextFileIndex, shardUrls);
+        nextFileIndex += shardUrls.size();
+        return shard;
+    }
+
+    private boolean hasMoreUrls() {
+        if (urlsFailed) {
+            return false;
+        }
+        try {
+            return urls.hasNext();
+        } catch (UncheckedIOException e) {
+            // e.g. the manifest could not be read any further - the URLs taken so far are still read
+            System.out.println("Stopped taking URLs - " + e.getCause().getMessage());
+            urlsFailed = true;
+            return false;
+        }
+    }
+
+    private void reassign(Shard shard) {
+        synchronized (lock) {
+            assigned.remove(shard.id);
+            reassigned.addFirst(shard);
+            reassignedShards++;
+            lock.notifyAll();
+        }
+    }
+
+    /***
+     * Keeps the shard's result, and merges every result that is next in shard order.
+     */
+    private void shardDone(Shard shard, ShardResult result) {
+        synchronized (lock) {
+            assigned.remove(shard.id);
+            shard.result = result;
+            finished.put(shard.id, shard);
+
+            Shard next;
+            while ((next = finished.remove(nextMerge)) != null) {
+                merge(next);
+                nextMerge++;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void merge(Shard shard) {
+        ShardResult result = shard.result;
+        summary.merge(result.getSummary());
+        fileCount += result.getFileCount();
+        readFiles += result.getReadFiles();
+        readRecords += result.getReadRecords();
+        timedOutFiles += result.getTimedOutFiles();
+        for (ShardResult.RejectedFile file : result.getRejectedFiles()) {
+            rejectedFiles.add(new RejectedFile(shard.firstIndex + file.getIndex() + 1, file));
+        }
+    }
+
+    /***
+     * @return whether every shard has been read and merged
+     */
+    private boolean isDone() {
+        synchronized (lock) {
+            return reassigned.isEmpty() && assigned.isEmpty() && finished.isEmpty() && !hasMoreUrls();
+        }
+    }
+
+    private void waitForChange() {
+        try {
+            lock.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the workers", e);
+        }
+    }
+
+    private List<Thread> connectionsSoFar() {
+        synchronized (lock) {
+            return new ArrayList<>(connections);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void printMedianAndAverageAges() {
+        System.out.println("===================================");
+        System.out.println("\tMEDIAN AND AVERAGE AGES ");
+        System.out.println("===================================");
+        System.out.println();
+
+        if (timedOutFiles > 0) {
+            System.out.printf("- PARTIAL RESULT: covers an estimated %.1f%% of records (%d of %d files timed out)%n",
+                    getRecordCoverage() * 100, timedOutFiles, fileCount);
+        }
+        System.out.printf("- The average age is %.2f%n", averageAge);
+        System.out.printf("- The median age: %.2f%n", medianAge);
+        if (!summary.isEmpty()) {
+            System.out.println("- The youngest age is " + summary.getMinAge() + " and the oldest age is " + summary.getMaxAge());
+        }
+        if (medianPerson != null) {
+            System.out.println("- One person with the median age is " + medianPerson.getFirstName() + " " + medianPerson.getLastName());
+        } else {
+            System.out.println("- There is no person with the median age as the median age is an average of two ages.");
+        }
+
+        System.out.println();
+    }
+
+    public void printMetrics() {
+        long elapsedTimeNano = this.endTime - this.startTime;
+
+        System.out.println("===================================");
+        System.out.println("\t\tMETRICS");
+        System.out.println("===================================");
+        System.out.println();
+
+        System.out.println("- Time taken: " + elapsedTimeNano + " nanoseconds (" + elapsedTimeNano / 1000000 + " milliseconds)");
+        synchronized (lock) {
+            System.out.println("- Workers: " + workers + " started, " + workerDeaths + " died, " + (launches - workers) + " replacements started");
+            System.out.println("- Shards: " + nextShardId + " of up to " + shardSize + " URLs, " + reassignedShards
+                    + " reassigned from dead workers, " + localShards + " read by the coordinator itself");
+        }
+        System.out.println("- Files: " + fileCount + ", of which " + rejectedFiles.size() + " rejected");
+        System.out.println("- Malformed lines: " + summary.getMalformedCount());
+        System.out.println();
+    }
+
+    /***
+     * Prints the rejected files, in URL order, with what was wrong with each.
+     */
+    public void printRejectedFiles() {
+        System.out.println("===================================");
+        System.out.println("\tREJECTED FILES ");
+        System.out.println("===================================");
+        System.out.println();
+
+        for (RejectedFile file : rejectedFiles) {
+            System.out.println(" File #" + file.getNumber() + ":");
+            System.out.println("\tURL: " + file.getUrl());
+            System.out.println("\tStatus: " + file.getStatus().getStatusMessage());
+            System.out.println();
+        }
+    }
+
+    /***
+     * @return the fraction of all records the results cover, estimated the same way as CsvProcessor.getRecordCoverage()
+     */
+    public double getRecordCoverage() {
+        if (timedOutFiles == 0) {
+            return 1;
+        }
+        if (readRecords == 0) {
+            return 0;
+        }
+
+        double missingRecords = (double) readRecords / readFiles * timedOutFiles;
+        return readRecords / (readRecords + missingRecords);
+    }
+
+    public PartialSummary getSummary() {
+        return summary;
+    }
+
+    public double getMedianAge() {
+        return medianAge;
+    }
+
+    public double getAverageAge() {
+        return averageAge;
+    }
+
+    public Person getMedianPerson() {
+        return medianPerson;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getTimedOutFiles() {
+        return timedOutFiles;
+    }
+
+    /***
+     * @return the files left out of the results, in URL order
+     */
+    public List<RejectedFile> getRejectedFiles() {
+        return Collections.unmodifiableList(rejectedFiles);
+    }
+
+    public int getWorkerDeaths() {
+        synchronized (lock) {
+            return workerDeaths;
+        }
+    }
+
+    public int getReassignedShards() {
+        synchronized (lock) {
+            return reassignedShards;
+        }
+    }
+
+    public int getLocalShards() {
+        synchronized (lock) {
+            return localShards;
+        }
+    }
+
+    /***
+     * @return every worker process started so far, replacements included
+     */
+    public List<Process> getWorkerProcesses() {
+        synchronized (lock) {
+            return new ArrayList<>(processes);
+        }
+    }
+
+    /***
+     * A run of consecutive URLs, handed to one worker at a time.
+     */
+    private static class Shard {
+        private final int id;
+        private final long firstIndex;
+        private final List<String> urls;
+        private ShardResult result;
+
+        Shard(int id, long firstIndex, List<String> urls) {
+            this.id = id;
+            this.firstIndex = firstIndex;
+            this.urls = urls;
+        }
+    }
+
+    /***
+     * A rejected file, numbered by its place in the whole URL list (from 1, as in the file summaries).
+     */
+    public static class RejectedFile {
+        private final long number;
+        private final ShardResult.RejectedFile file;
+
+        RejectedFile(long number, ShardResult.RejectedFile file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        public long getNumber() {
+            return number;
+        }
+
+        public String getUrl() {
+            return file.getUrl();
+        }
+
+        public CsvFileStatus getStatus() {
+            return file.getStatus();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.crowdstrike.mossab.distributed;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.PartialSummary;
+import com.crowdstrike.mossab.processor.CsvProcessor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * What a worker sends back for a shard: the shard's merged PartialSummary, the counts the coverage estimate is worked
+ * out from, and the files that were rejected (left out of the summary) with their statuses. No people or lines are
+ * sent - the summary is a few KB whatever the number of files or records in the shard.
+ */
+public class ShardResult {
+    private static final int MAGIC = 0x43535653; // "CSVS"
+    private static final int VERSION = 1;
+
+    private final PartialSummary summary;
+    private final long fileCount;
+    private final long readFiles;
+    private final long readRecords;
+    private final long timedOutFiles;
+    private final List<RejectedFile> rejectedFiles;
+
+    ShardResult(PartialSummary summary, long fileCount, long readFiles, long readRecords, long timedOutFiles,
+                List<RejectedFile> rejectedFiles) {
+        this.summary = summary;
+        this.fileCount = fileCount;
+        this.readFiles = readFiles;
+        this.readRecords = readRecords;
+        this.timedOutFiles = timedOutFiles;
+        this.rejectedFiles = rejectedFiles;
+    }
+
+    /***
+     * @param processor a processor that has read the shard's URLs, keeping its files
+     */
+    public static ShardResult of(CsvProcessor processor) {
+        long readFiles = 0;
+        long readRecords = 0;
+        List<RejectedFile> rejected = new ArrayList<>();
+        List<CsvFile> files = processor.getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            CsvFile file = files.get(i);
+            if (isRead(file.getStatus())) {
+                readFiles++;
+                readRecords += file.getSummary().getCount() + file.getMalformedCount();
+            }
+            if (file.getStatus() != CsvFileStatus.PROCESSED_VALID && file.getStatus() != CsvFileStatus.PROCESSED_WITH_INVALID_INPUT) {
+                rejected.add(new RejectedFile(i, file.getUrl(), file.getStatus()));
+            }
+        }
+        return new ShardResult(processor.getSummary(), files.size(), readFiles, readRecords, processor.getTimedOutFiles(), rejected);
+    }
+
+    /***
+     * @return the result of a shard that could not be read at all: every file rejected with the status
+     */
+    public static ShardResult failed(List<String> urls, CsvFileStatus status) {
+        List<RejectedFile> rejected = new ArrayList<>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            rejected.add(new RejectedFile(i, urls.get(i), status));
+        }
+        return new ShardResult(new PartialSummary(), urls.size(), 0, 0, 0, rejected);
+    }
+
+    // the same files the CsvProcessor counts as read when estimating the record coverage
+    private static boolean isRead(CsvFileStatus status) {
+        return status == CsvFileStatus.PROCESSED_VALID || status == CsvFileStatus.PROCESSED_WITH_INVALID_INPUT
+                || status == CsvFileStatus.EMPTY;
+    }
+
+    public PartialSummary getSummary() {
+        return summary;
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getReadFiles() {
+        return readFiles;
+    }
+
+    public long getReadRecords() {
+        return readRecords;
+    }
+
+    public long getTimedOutFiles() {
+        return timedOutFiles;
+    }
+
+    /***
+     * @return the files left out of the summary, in the shard's URL order
+     */
+    public List<RejectedFile> getRejectedFiles() {
+        return Collections.unmodifiableList(rejectedFiles);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        summary.writeTo(out);
+        out.writeLong(fileCount);
+        out.writeLong(readFiles);
+        out.writeLong(readRecords);
+        out.writeLong(timedOutFiles);
+        out.writeInt(rejectedFiles.size());
+        for (RejectedFile file : rejectedFiles) {
+            out.writeInt(file.index);
+            out.writeUTF(file.url == null ? "" : file.url);
+            out.writeUTF(file.status.name());
+        }
+    }
+
+    /***
+     * @throws IOException if the input ends early or is not a shard result written by writeTo()
+     */
+    public static ShardResult readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a shard result of this version");
+        }
+        PartialSummary summary = PartialSummary.readFrom(in);
+        long fileCount = in.readLong();
+        long readFiles = in.readLong();
+        long readRecords = in.readLong();
+        long timedOutFiles = in.readLong();
+
+        int rejectedCount = in.readInt();
+        if (rejectedCount < 0 || rejectedCount > fileCount) {
+            throw new IOException("Not a shard result: " + rejectedCount + " rejected of " + fileCount + " files");
+        }
+        List<RejectedFile> rejected = new ArrayList<>(rejectedCount);
+        for (int i = 0; i < rejectedCount; i++) {
+            int index = in.readInt();
+            String url = in.readUTF();
+            try {
+                rejected.add(new RejectedFile(index, url, CsvFileStatus.valueOf(in.readUTF())));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Not a shard result: unknown file status", e);
+            }
+        }
+        return new ShardResult(summary, fileCount, readFiles, readRecords, timedOutFiles, rejected);
+    }
+
+    /***
+     * A file of the shard that was rejected - its URL and the status that says why.
+     */
+    public static class RejectedFile {
+        private final int index;
+        private final String url;
+        private final CsvFileStatus status;
+
+        RejectedFile(int index, String url, CsvFileStatus status) {
+            this.index = index;
+            this.url = url;
+            this.status = status;
+        }
+
+        /***
+         * @return the file's position in its shard, from 0
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public CsvFileStatus getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.crowdstrike.mossab.distributed;
+
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.processor.CsvProcessor;
+import com.crowdstrike.mossab.processor.CsvProcessorOptions;
+import com.crowdstrike.mossab.processor.ReaderContext;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * The worker side of coordinator mode: connects to the Coordinator, then reads each shard of URLs it is sent with its
+ * own CsvProcessor and sends back the shard's ShardResult, until the coordinator says there are no more shards. The
+ * shards of a worker share one ReaderContext, so connections, cached results and the adaptive concurrency limit carry
+ * over from one shard to the next.
+ * <p>
+ * The protocol is plain DataOutput over the socket. The worker starts with HELLO; the coordinator then sends a shard as
+ * its id, the number of URLs and the URLs, or -1 when there is nothing more to do; the worker answers every shard with
+ * its ShardResult.
+ */
+public class Worker {
+    static final int HELLO = 0x43535657; // "CSVW"
+    static final int NO_MORE_SHARDS = -1;
+
+    private Worker() {
+    }
+
+    /***
+     * Reads shards for the coordinator at host:port until it has no more. Returns normally if the coordinator goes away.
+     * @param options the options every shard is read with (the coordinator's own, passed on the command line)
+     */
+    public static void run(String host, int port, CsvProcessorOptions options) throws IOException {
+        ReaderContext context = new ReaderContext(workerOptions(options));
+        try (Socket socket = new Socket(host, port);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeInt(HELLO);
+            out.flush();
+
+            while (true) {
+                int shardId = in.readInt();
+                if (shardId == NO_MORE_SHARDS) {
+                    return;
+                }
+                List<String> urls = readUrls(in);
+                read(urls, context).writeTo(out);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // the coordinator is gone - nobody is left to send results to
+        } finally {
+            context.close();
+        }
+    }
+
+    /***
+     * Reads one shard of URLs, in this process. A shard the CsvProcessor fails on comes back with every file rejected,
+     * rather than taking the worker down - and every worker it would be reassigned to after it.
+     * @param context shared by the shards read in this process, created with workerOptions()
+     */
+    static ShardResult read(List<String> urls, ReaderContext context) {
+        try {
+            CsvProcessor processor = new CsvProcessor(urls, context);
+            processor.process();
+            return ShardResult.of(processor);
+        } catch (RuntimeException e) {
+            System.out.println("Could not read a shard of " + urls.size() + " URLs: " + e);
+            return ShardResult.failed(urls, CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+        }
+    }
+
+    /***
+     * A shard's files are only needed for their statuses, so the people are not kept, and nothing that is about the
+     * whole run (progress lines, streamed file summaries, the metrics file, the checkpoint journal) is done per shard.
+     * @return a copy of the options with those turned off - the options given are left as they are
+     */
+    static CsvProcessorOptions workerOptions(CsvProcessorOptions runOptions) {
+        CsvProcessorOptions options = runOptions.copy();
+        options.setStreaming(true);
+        options.setStreamFileSummaries(false);
+        options.setProgressIntervalMillis(-1);
+        options.setMetricsFile(null);
+        options.setCheckpointFile(null);
+        return options;
+    }
+
+    static void writeShard(DataOutputStream out, int shardId, List<String> urls) throws IOException {
+        out.writeInt(shardId);
+        out.writeInt(urls.size());
+        for (String url : urls) {
+            out.writeUTF(url);
+        }
+    }
+
+    private static List<String> readUrls(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Not a shard: " + count + " URLs");
+        }
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add(in.readUTF());
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,124 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * The status, headers and (streaming) body of an http(s) response, independent of which HttpBackend fetched it.
+ * <p>
+ * The body must be closed once it has been read - or straight away if it won't be - so that the backend can reuse the
+ * underlying connection.
+ * <p>
+ * If the response has a Content-Length, reaching the end of the body before that many bytes came is an EOFException,
+ * rather than a (silently) shorter body - the connection was dropped part way through.
+ */
+public class FetchResponse {
+    private final int statusCode;
+    private final Map<String, List<String>> headers;
+    private final InputStream body;
+
+    public FetchResponse(int statusCode, Map<String, List<String>> headers, InputStream body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body == null ? null : checkLength(body);
+    }
+
+    private InputStream checkLength(InputStream body) {
+        String contentLength = getHeader("Content-Length");
+        if (contentLength == null) {
+            return body;
+        }
+        try {
+            return new LengthCheckedInputStream(body, Long.parseLong(contentLength.trim()));
+        } catch (NumberFormatException e) {
+            return body;
+        }
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /***
+     * Header names are matched case-insensitively, as http says they should be.
+     * @return the first value of the header, or null if it is not present
+     */
+    public String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /***
+     * @return the response body, or null if there is none (e.g. some non-200 responses)
+     */
+    public InputStream getBody() {
+        return body;
+    }
+
+    /***
+     * Discards the body, e.g. after a non-200 response.
+     */
+    public void close() {
+        if (body == null) {
+            return;
+        }
+
+        try {
+            body.close();
+        } catch (IOException e) {
+            // nothing useful to do here - the connection just won't be reused
+        }
+    }
+
+    private static class LengthCheckedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LengthCheckedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                checkComplete();
+            } else {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read == -1) {
+                checkComplete();
+            } else {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            remaining -= skipped;
+            return skipped;
+        }
+
+        private void checkComplete() throws EOFException {
+            if (remaining > 0) {
+                throw new EOFException("The connection was closed with " + remaining + " bytes of the body still to come");
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/***
+ * Fetches http(s) URLs for the CsvReader. One backend instance is shared by every reader of a CsvProcessor run, which
+ * lets implementations pool connections across files.
+ * <p>
+ * Implementations apply a connect timeout and a read timeout, so that a server which stops responding (before the
+ * headers or part way through the body) fails the read with a SocketTimeoutException rather than hanging forever.
+ */
+public interface HttpBackend {
+    /***
+     * Sends a GET for the URL and returns once the status and headers have arrived. The body is streamed.
+     * @param requestHeaders extra headers to send, e.g. a Range
+     * @throws IOException if the URL is malformed or the request fails or times out
+     */
+    FetchResponse get(String url, Map<String, String> requestHeaders) throws IOException;
+
+    default FetchResponse get(String url) throws IOException {
+        return get(url, Collections.emptyMap());
+    }
+
+    /***
+     * Sends a HEAD for the URL, e.g. to find out its size before downloading it.
+     * @throws IOException if the URL is malformed or the request fails
+     */
+    FetchResponse head(String url) throws IOException;
+
+    /***
+     * Drops every request in flight, from any thread, and makes any request made after this fail without being sent.
+     * For giving up on the requests of a run whose deadline has passed. Whether a reader that is already blocked fails
+     * straight away depends on the backend - see each implementation.
+     */
+    void abort();
+
+    /***
+     * Releases any shared resources (connection pools, selector threads) once the run is over.
+     */
+    void close();
+}
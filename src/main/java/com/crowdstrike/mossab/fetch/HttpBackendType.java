@@ -0,0 +1,56 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.util.function.LongSupplier;
+
+/***
+ * The selectable HttpBackend implementations, so that the two can be compared against each other on the same URLs.
+ */
+public enum HttpBackendType {
+    URL_CONNECTION("url-connection"),
+    HTTP_CLIENT("http-client");
+
+    private final String optionName;
+
+    HttpBackendType(String optionName) {
+        this.optionName = optionName;
+    }
+
+    public String getOptionName() {
+        return optionName;
+    }
+
+    /***
+     * @param connectTimeoutMillis how long to wait for a connection to be established (0 to wait forever)
+     * @param readTimeoutMillis how long to wait for the response, and then for each read of its body (0 to wait forever)
+     */
+    public HttpBackend create(int connectTimeoutMillis, int readTimeoutMillis) {
+        return create(connectTimeoutMillis, readTimeoutMillis, () -> Long.MAX_VALUE);
+    }
+
+    /***
+     * @param timeLeftMillis the milliseconds left to finish requests in (Long.MAX_VALUE for no limit) - for a backend
+     *                       whose blocked reads can't be aborted, which caps its timeouts to it instead
+     */
+    public HttpBackend create(int connectTimeoutMillis, int readTimeoutMillis, LongSupplier timeLeftMillis) {
+        switch (this) {
+            case HTTP_CLIENT:
+                return new HttpClientBackend(connectTimeoutMillis, readTimeoutMillis);
+            case URL_CONNECTION:
+            default:
+                return new UrlConnectionBackend(connectTimeoutMillis, readTimeoutMillis, timeLeftMillis);
+        }
+    }
+
+    /***
+     * @param optionName the name used on the command line, e.g. "http-client"
+     * @throws IllegalArgumentException if no backend has that name
+     */
+    public static HttpBackendType fromOptionName(String optionName) {
+        for (HttpBackendType type : values()) {
+            if (type.optionName.equals(optionName)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown http backend: " + optionName);
+    }
+}
@@ -0,0 +1,210 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Fetches through a single shared java.net.http.HttpClient. The client is non-blocking underneath (one selector thread
+ * drives all connections) and keeps a pool of connections per host: HTTP/2 is negotiated where the server supports it,
+ * so requests to the same host are multiplexed over one connection, and HTTP/1.1 connections are kept alive and reused.
+ * Either way, files from the same few hosts stop paying for a TCP + TLS handshake each.
+ * <p>
+ * Response bodies are handed over as an InputStream that fills as bytes arrive, so a reader can parse them while they
+ * download (the staged pipeline buffers the first part of each body first - see CsvReader.fetch()).
+ * <p>
+ * The client only has a connect timeout and a timeout for the response headers. A read of the body that waits longer
+ * than the read timeout is failed by closing the stream from a timer thread, which unblocks the read. abort() drops
+ * requests the same way, and cancels the ones still waiting for their response.
+ */
+public class HttpClientBackend implements HttpBackend {
+    private final ExecutorService clientExecutor;
+    private final HttpClient client;
+    private final ScheduledExecutorService readTimer;
+    private final int readTimeoutMillis;
+    // each request from when it is sent until its body is closed - cancelling the exchange, then closing the body,
+    // drops it (a blocked read of a closed body fails, as for the read timeout)
+    private final InFlightRequests inFlight = new InFlightRequests();
+
+    /***
+     * @param connectTimeoutMillis how long to wait for a connection to be established (0 to wait forever)
+     * @param readTimeoutMillis how long to wait for the response headers, and then for each read of the body (0 to wait
+     *                          forever)
+     */
+    public HttpClientBackend(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+        // the client's own executor only runs short completion callbacks - the actual network I/O is on the selector
+        this.clientExecutor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "csv-http-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(clientExecutor);
+        if (connectTimeoutMillis > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeoutMillis));
+        }
+        this.client = builder.build();
+
+        if (readTimeoutMillis > 0) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+                Thread thread = new Thread(task, "csv-http-read-timeout");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // nearly every read finishes in time, so its cancelled timeout shouldn't linger in the queue
+            timer.setRemoveOnCancelPolicy(true);
+            this.readTimer = timer;
+        } else {
+            this.readTimer = null;
+        }
+    }
+
+    @Override
+    public FetchResponse get(String url, Map<String, String> requestHeaders) throws IOException {
+        HttpRequest.Builder request = newRequest(url).GET();
+        requestHeaders.forEach(request::header);
+
+        HttpResponse<InputStream> response = send(url, request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        InputStream received = response.body();
+        Runnable aborter = () -> closeQuietly(received);
+        try {
+            inFlight.add(aborter, url);
+        } catch (IOException e) {
+            closeQuietly(received);
+            throw e;
+        }
+        InputStream body = inFlight.track(readTimer == null ? received : new ReadTimeoutInputStream(received), aborter);
+        return new FetchResponse(response.statusCode(), response.headers().map(), body);
+    }
+
+    @Override
+    public FetchResponse head(String url) throws IOException {
+        HttpRequest request = newRequest(url).method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+
+        HttpResponse<Void> response = send(url, request, HttpResponse.BodyHandlers.discarding());
+        return new FetchResponse(response.statusCode(), response.headers().map(), null);
+    }
+
+    private HttpRequest.Builder newRequest(String url) throws IOException {
+        try {
+            HttpRequest.Builder request = HttpRequest.newBuilder(new URI(url));
+            // covers everything up to the response headers - the body is covered by ReadTimeoutInputStream
+            if (readTimeoutMillis > 0) {
+                request.timeout(Duration.ofMillis(readTimeoutMillis));
+            }
+            return request;
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // the same exception type as HttpURLConnection's, so callers can tell it apart from a failed request
+            MalformedURLException malformed = new MalformedURLException("Malformed URL: " + url);
+            malformed.initCause(e);
+            throw malformed;
+        }
+    }
+
+    private <T> HttpResponse<T> send(String url, HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        CompletableFuture<HttpResponse<T>> response = client.sendAsync(request, bodyHandler);
+        // cancelling the future aborts the exchange, and with it the join() waiting on it
+        Runnable aborter = () -> response.cancel(true);
+        try {
+            inFlight.add(aborter, url);
+        } catch (IOException e) {
+            aborter.run();
+            throw e;
+        }
+        try {
+            return response.join();
+        } catch (CancellationException e) {
+            throw new IOException("Request aborted: " + url, e);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Request failed: " + url, e.getCause());
+        } finally {
+            inFlight.remove(aborter);
+        }
+    }
+
+    private static void closeQuietly(InputStream body) {
+        try {
+            body.close();
+        } catch (IOException e) {
+            // the read fails either way
+        }
+    }
+
+    /***
+     * Fails a read that takes longer than the read timeout by closing the underlying stream, which makes the blocked
+     * read return with an exception.
+     */
+    private class ReadTimeoutInputStream extends FilterInputStream {
+        private volatile boolean timedOut;
+
+        ReadTimeoutInputStream(InputStream body) {
+            super(body);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            ScheduledFuture<?> timeout = readTimer.schedule(this::timeOut, readTimeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                if (timedOut) {
+                    SocketTimeoutException timeoutException = new SocketTimeoutException("Read timed out");
+                    timeoutException.initCause(e);
+                    throw timeoutException;
+                }
+                throw e;
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+
+        private void timeOut() {
+            timedOut = true;
+            closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void abort() {
+        inFlight.abortAll();
+    }
+
+    @Override
+    public void close() {
+        clientExecutor.shutdown();
+        if (readTimer != null) {
+            readTimer.shutdown();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * The requests of an HttpBackend that are in flight - from when they are sent until their body is closed - each with
+ * what it takes to drop it (e.g. disconnecting its connection), so that HttpBackend.abort() can drop them all from
+ * another thread.
+ */
+class InFlightRequests {
+    private final Set<Runnable> aborters = ConcurrentHashMap.newKeySet();
+    private volatile boolean aborted;
+
+    /***
+     * @param aborter drops the request, making a blocked read of it fail - called at most once, from any thread
+     * @throws IOException if abortAll() has been called already - the request shouldn't be sent at all
+     */
+    void add(Runnable aborter, String url) throws IOException {
+        aborters.add(aborter);
+        // checked after adding, so that a request is either seen by abortAll() or sees that it was called
+        if (aborted) {
+            remove(aborter);
+            throw new IOException("Requests were aborted, not sending " + url);
+        }
+    }
+
+    /***
+     * Forgets the request, once it is done with.
+     */
+    void remove(Runnable aborter) {
+        aborters.remove(aborter);
+    }
+
+    /***
+     * @return the body, removing the aborter once it is closed
+     */
+    InputStream track(InputStream body, Runnable aborter) {
+        return new FilterInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                remove(aborter);
+                super.close();
+            }
+        };
+    }
+
+    void abortAll() {
+        aborted = true;
+        for (Runnable aborter : aborters) {
+            if (aborters.remove(aborter)) {
+                aborter.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.crowdstrike.mossab.fetch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/***
+ * The original fetch implementation: a fresh HttpURLConnection per file. HTTP/1.1 only, and any connection reuse is
+ * left to the JDK's implicit keep-alive cache. The read timeout applies to every read of the socket, body included.
+ *
+ * A blocked HttpURLConnection read can't be dropped from another thread (disconnect() waits for the read to finish,
+ * and interrupting a platform thread doesn't wake it up), so abort() only stops new requests from being sent. To still
+ * give up on time, every connection's timeouts are capped to what is left of the time limit it is given - a read that
+ * is blocked when the time runs out fails with a SocketTimeoutException shortly after.
+ */
+public class UrlConnectionBackend implements HttpBackend {
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    // the milliseconds left to finish requests in, Long.MAX_VALUE for no limit
+    private final LongSupplier timeLeftMillis;
+    private volatile boolean aborted;
+
+    public UrlConnectionBackend(int connectTimeoutMillis, int readTimeoutMillis) {
+        this(connectTimeoutMillis, readTimeoutMillis, () -> Long.MAX_VALUE);
+    }
+
+    /***
+     * @param timeLeftMillis the milliseconds left to finish requests in (Long.MAX_VALUE for no limit) - checked when
+     *                       each connection is opened, capping its connect and read timeouts
+     */
+    public UrlConnectionBackend(int connectTimeoutMillis, int readTimeoutMillis, LongSupplier timeLeftMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.timeLeftMillis = timeLeftMillis;
+    }
+
+    @Override
+    public FetchResponse get(String urlString, Map<String, String> requestHeaders) throws IOException {
+        HttpURLConnection connection = openConnection(urlString);
+        for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        int responseCode = connection.getResponseCode();
+
+        // getInputStream() throws for error codes (400+), where the body (if any) is in the error stream instead
+        InputStream body = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+        return new FetchResponse(responseCode, connection.getHeaderFields(), body);
+    }
+
+    @Override
+    public FetchResponse head(String urlString) throws IOException {
+        HttpURLConnection connection = openConnection(urlString);
+        connection.setRequestMethod("HEAD");
+
+        int responseCode = connection.getResponseCode();
+        return new FetchResponse(responseCode, connection.getHeaderFields(), null);
+    }
+
+    private HttpURLConnection openConnection(String urlString) throws IOException {
+        if (aborted) {
+            throw new IOException("Requests were aborted, not sending " + urlString);
+        }
+        long timeLeft = timeLeftMillis.getAsLong();
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        connection.setConnectTimeout(cap(connectTimeoutMillis, timeLeft));
+        connection.setReadTimeout(cap(readTimeoutMillis, timeLeft));
+        return connection;
+    }
+
+    /***
+     * @param timeoutMillis the configured timeout, 0 for none
+     * @return the timeout, but no longer than timeLeft (and at least 1ms, as 0 would mean waiting forever)
+     */
+    static int cap(int timeoutMillis, long timeLeft) {
+        if (timeLeft == Long.MAX_VALUE) {
+            return timeoutMillis;
+        }
+        int limit = (int) Math.max(1, Math.min(Integer.MAX_VALUE, timeLeft));
+        return timeoutMillis == 0 ? limit : Math.min(timeoutMillis, limit);
+    }
+
+    @Override
+    public void abort() {
+        aborted = true;
+    }
+
+    @Override
+    public void close() {
+        // nothing shared to release
+    }
+}
@@ -0,0 +1,203 @@
+package com.crowdstrike.mossab.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/***
+ * A bounded, streaming aggregate of ages. Rather than holding on to every Person and sorting them to find the median,
+ * each parsed row is folded into a per-age counter (plus a running sum for the average). One sample person is kept per
+ * age bucket so that a "person with the median age" can still be reported.
+ * <p>
+ * Memory is fixed at MAX_AGE + 1 buckets regardless of how many rows are recorded, and the median is found with a
+ * single walk over the buckets - no sort needed.
+ */
+public class AgeHistogram {
+    // ages outside of [0, MAX_AGE] cannot be bucketed and are treated as invalid input by the reader
+    public static final int MAX_AGE = 150;
+
+    private final long[] counts;
+    private final Person[] samples;
+    private long count;
+    private long sum;
+
+    public AgeHistogram() {
+        this.counts = new long[MAX_AGE + 1];
+        this.samples = new Person[MAX_AGE + 1];
+    }
+
+    public static boolean isTrackable(int age) {
+        return age >= 0 && age <= MAX_AGE;
+    }
+
+    /***
+     * Folds a single person into the histogram. The first person seen for each age is kept as that bucket's sample.
+     * @param person the parsed person - age must be trackable (see isTrackable)
+     */
+    public void add(Person person) {
+        add(person.getAge());
+        offerSample(person);
+    }
+
+    /***
+     * Counts an age without a person to go with it. Pair with needsSample/offerSample to only build a Person when the
+     * bucket has no sample yet.
+     * @param age a trackable age (see isTrackable)
+     */
+    public void add(int age) {
+        counts[age]++;
+        count++;
+        sum += age;
+    }
+
+    public boolean needsSample(int age) {
+        return samples[age] == null;
+    }
+
+    /***
+     * Keeps the person as its age bucket's sample, unless the bucket already has one.
+     */
+    public void offerSample(Person person) {
+        if (samples[person.getAge()] == null) {
+            samples[person.getAge()] = person;
+        }
+    }
+
+    /***
+     * Folds another histogram into this one. Samples already present in this histogram win, which keeps the sample
+     * for each age as the first one seen when histograms are merged in file order.
+     * @param other the histogram to merge in - left untouched
+     */
+    public void merge(AgeHistogram other) {
+        for (int age = 0; age <= MAX_AGE; age++) {
+            counts[age] += other.counts[age];
+            if (samples[age] == null) {
+                samples[age] = other.samples[age];
+            }
+        }
+        count += other.count;
+        sum += other.sum;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getCount(int age) {
+        return counts[age];
+    }
+
+    public Person getSample(int age) {
+        return samples[age];
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public double getAverage() {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    /***
+     * Finds the age at the given (0-based) rank, as if all recorded ages were sorted.
+     * @param rank a rank in [0, count)
+     * @return the age at that rank
+     */
+    public int getAgeAtRank(long rank) {
+        long seen = 0;
+        for (int age = 0; age <= MAX_AGE; age++) {
+            seen += counts[age];
+            if (seen > rank) {
+                return age;
+            }
+        }
+        throw new IllegalArgumentException("Rank " + rank + " is out of bounds for " + count + " ages");
+    }
+
+    /***
+     * If the number of ages is odd, the median is the middle one. If even, it is the average of the two middle ages.
+     * @return the median age, or 0 if nothing was recorded
+     */
+    public double getMedian() {
+        if (count == 0) {
+            return 0.0;
+        }
+
+        int lower = getAgeAtRank((count - 1) / 2);
+        int upper = getAgeAtRank(count / 2);
+        return (lower + upper) / 2.0;
+    }
+
+    /***
+     * Note: this is null when the two middle ages differ (even count) - no one can have the averaged median age then,
+     * since anyone with that age would sit between the two middle ages.
+     * @return a person with the median age, or null if there is none
+     */
+    public Person getMedianPerson() {
+        if (count == 0) {
+            return null;
+        }
+
+        int lower = getAgeAtRank((count - 1) / 2);
+        int upper = getAgeAtRank(count / 2);
+        return lower == upper ? samples[lower] : null;
+    }
+
+    /***
+     * Writes the histogram in a compact binary form - only the non-empty buckets, each with its sample - so it can be
+     * stored or sent elsewhere and read back with readFrom().
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int buckets = 0;
+        for (int age = 0; age <= MAX_AGE; age++) {
+            if (counts[age] > 0 || samples[age] != null) {
+                buckets++;
+            }
+        }
+
+        out.writeInt(buckets);
+        for (int age = 0; age <= MAX_AGE; age++) {
+            if (counts[age] == 0 && samples[age] == null) {
+                continue;
+            }
+            out.writeShort(age);
+            out.writeLong(counts[age]);
+            out.writeBoolean(samples[age] != null);
+            if (samples[age] != null) {
+                out.writeUTF(samples[age].getFirstName());
+                out.writeUTF(samples[age].getLastName());
+            }
+        }
+    }
+
+    /***
+     * @throws IOException if the input ends early or is not a histogram written by writeTo()
+     */
+    public static AgeHistogram readFrom(DataInput in) throws IOException {
+        AgeHistogram histogram = new AgeHistogram();
+        int buckets = in.readInt();
+        if (buckets < 0 || buckets > MAX_AGE + 1) {
+            throw new IOException("Not a histogram: " + buckets + " buckets");
+        }
+
+        for (int i = 0; i < buckets; i++) {
+            int age = in.readShort();
+            long ageCount = in.readLong();
+            if (!isTrackable(age) || ageCount < 0) {
+                throw new IOException("Not a histogram: " + ageCount + " people aged " + age);
+            }
+            histogram.counts[age] = ageCount;
+            histogram.count += ageCount;
+            histogram.sum += age * ageCount;
+            if (in.readBoolean()) {
+                histogram.samples[age] = new Person(in.readUTF(), in.readUTF(), age);
+            }
+        }
+        return histogram;
+    }
+}
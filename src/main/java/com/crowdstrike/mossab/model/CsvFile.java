@@ -1,24 +1,95 @@
 package com.crowdstrike.mossab.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class CsvFile {
     private final String urlString;
-    private final List<Person> people;
-    private final List<String> malformedData;
+    // the people, column by column - created on the first one, so files that keep none don't pay for it
+    private PersonStore records;
+    private boolean offHeapRecords;
+    private final MalformedLineStats malformedLines;
+    private final PartialSummary summary;
     private CsvFileStatus status;
     private Integer responseCode;
+    // the http validators of the response, for revalidating a cached result on a later run
+    private String etag;
+    private String lastModified;
+    // how many times the file was requested (0 for local files), and whether a duplicate request was hedged
+    private int attempts;
+    private boolean hedged;
+    // how long the last request took to get its status and headers back, in nanoseconds (0 if never requested)
+    private long responseLatencyNanos;
+    // time spent in each phase, in nanoseconds (-1 for phases the file didn't go through), and bytes transferred
+    private final long[] phaseNanos;
+    private long transferredBytes;
 
     public CsvFile(String urlString) {
-        this.people = new ArrayList<>();
-        this.malformedData = new ArrayList<>();
+        this.malformedLines = new MalformedLineStats();
+        this.summary = new PartialSummary();
         this.status = CsvFileStatus.UNPROCESSED;
         this.urlString = urlString;
+        this.phaseNanos = new long[FilePhase.values().length];
+        Arrays.fill(this.phaseNanos, -1);
     }
 
+    /***
+     * @return a read-only view of the people, each created as it is asked for - see getRecords() for reading them
+     * without creating Person objects at all
+     */
     public List<Person> getPeople() {
-        return this.people;
+        return this.records == null ? Collections.emptyList() : this.records.asList();
+    }
+
+    /***
+     * @return the store the people are kept in, created (empty) if there are none yet
+     */
+    public PersonStore getRecords() {
+        if (this.records == null) {
+            this.records = new PersonStore(this.offHeapRecords);
+        }
+        return this.records;
+    }
+
+    public boolean hasRecords() {
+        return this.records != null && !this.records.isEmpty();
+    }
+
+    /***
+     * Keeps the people off the heap (see PersonStore). Only has an effect before the first person is added.
+     */
+    public void setOffHeapRecords(boolean offHeapRecords) {
+        this.offHeapRecords = offHeapRecords;
+    }
+
+    public boolean isOffHeapRecords() {
+        return this.offHeapRecords;
+    }
+
+    public PartialSummary getSummary() {
+        return this.summary;
+    }
+
+    /***
+     * Appends the people and malformed lines of another (partial) CsvFile to this one and merges in its summary, e.g.
+     * when one file is parsed in several chunks. If this CsvFile has no people yet, it takes over the other's, which
+     * must not be changed afterwards.
+     * @param other the part that comes after everything already in this CsvFile
+     */
+    public void merge(CsvFile other) {
+        if (other.hasRecords()) {
+            // the first part's people are taken over as they are, rather than copied (which would take twice the memory
+            // until the part is dropped) - as long as they are kept where this file keeps its people
+            if (this.records == null && other.records.isOffHeap() == this.offHeapRecords) {
+                this.records = other.records;
+            } else {
+                getRecords().addAll(other.records);
+            }
+        }
+        this.malformedLines.merge(other.malformedLines);
+        this.summary.merge(other.summary);
     }
 
     public void setStatus(CsvFileStatus newStatus) {
@@ -33,10 +104,26 @@ public class CsvFile {
         return this.urlString;
     }
 
+    /***
+     * @return the text of the sampled malformed lines - at most MalformedLineStats.MAX_SAMPLES of them, so use
+     * getMalformedCount() for how many lines were actually rejected
+     */
     public List<String> getMalformedData() {
+        List<String> malformedData = new ArrayList<>();
+        for (MalformedLine line : this.malformedLines.getSamples()) {
+            malformedData.add(line.getText());
+        }
         return malformedData;
     }
 
+    public MalformedLineStats getMalformedLines() {
+        return this.malformedLines;
+    }
+
+    public long getMalformedCount() {
+        return this.malformedLines.getCount();
+    }
+
     public void setResponseCode(int responseCode) {
         this.responseCode = responseCode;
     }
@@ -44,4 +131,67 @@ public class CsvFile {
     public Integer getResponseCode() {
         return this.responseCode;
     }
+
+    public String getEtag() {
+        return this.etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return this.lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getResponseLatencyNanos() {
+        return this.responseLatencyNanos;
+    }
+
+    public void setResponseLatencyNanos(long responseLatencyNanos) {
+        this.responseLatencyNanos = responseLatencyNanos;
+    }
+
+    public boolean isHedged() {
+        return this.hedged;
+    }
+
+    public void setHedged(boolean hedged) {
+        this.hedged = hedged;
+    }
+
+    /***
+     * Adds time to a phase - a phase gone through more than once (e.g. on retries) adds up.
+     */
+    public void addPhaseNanos(FilePhase phase, long nanos) {
+        int index = phase.ordinal();
+        this.phaseNanos[index] = Math.max(0, this.phaseNanos[index]) + nanos;
+    }
+
+    /***
+     * @return the time spent in the phase in nanoseconds, or -1 if the file didn't go through it
+     */
+    public long getPhaseNanos(FilePhase phase) {
+        return this.phaseNanos[phase.ordinal()];
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public void setTransferredBytes(long transferredBytes) {
+        this.transferredBytes = transferredBytes;
+    }
 }
@@ -16,7 +16,14 @@ public enum CsvFileStatus {
     BAD_RETURN_CODE("The return code for the URL provided was not 200."),
     PROCESSED_VALID("This file was processed and contained only valid input. Success!"),
     PROCESSED_WITH_INVALID_INPUT("This file was processed successfully but contained some invalid input. Invalid input was ignored."),
-    EMPTY("This file contained no valid data. Possibly corrupt or empty.");
+    EMPTY("This file contained no valid data. Possibly corrupt or empty."),
+    // reading was given up early on, because the file is clearly not one of our CSVs (see EarlyAbortRules)
+    ABORTED_WRONG_CONTENT_TYPE("Reading was aborted: the Content-Type of the response was not CSV or text."),
+    ABORTED_MISSING_HEADER("Reading was aborted: the file did not start with a \"fname, lname, age\" header."),
+    ABORTED_TOO_LARGE("Reading was aborted: the file was larger than the maximum body size."),
+    ABORTED_TOO_MANY_MALFORMED_LINES("Reading was aborted: too many of the first lines were malformed."),
+    // a connect/read/transfer timeout, or the job deadline passed before the file was read - none of it is in the results
+    TIMED_OUT("This file timed out before it was read completely. It is not included in the results.");
 
     private final String statusMessage;
 
@@ -0,0 +1,31 @@
+package com.crowdstrike.mossab.model;
+
+/***
+ * The phases of reading one file that are timed, so that a slow run can be pinned on DNS, the server, the network or
+ * parsing. Phases a file didn't go through (e.g. DNS for a local file) are not recorded for it.
+ */
+public enum FilePhase {
+    QUEUE_WAIT("queue_wait", "Queue wait (until a reader started on it)"),
+    DNS("dns", "DNS lookup"),
+    FIRST_BYTE("first_byte", "Time to first byte (connect included)"),
+    TRANSFER("transfer", "Body transfer"),
+    HANDOFF_WAIT("handoff_wait", "Hand-off wait (downloaded, until a parse thread took it)"),
+    PARSE("parse", "Parse (transfer included when parsed as it streams in)"),
+    TOTAL("total", "Total (from start to parsed)");
+
+    private final String metricName;
+    private final String description;
+
+    FilePhase(String metricName, String description) {
+        this.metricName = metricName;
+        this.description = description;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
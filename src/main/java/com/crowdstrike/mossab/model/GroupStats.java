@@ -0,0 +1,50 @@
+package com.crowdstrike.mossab.model;
+
+import java.util.Comparator;
+
+/***
+ * The ages of one group of people (e.g. everyone with the same last name, or everyone from the same file), reduced to
+ * the count, the sum and the median.
+ */
+public class GroupStats {
+    // largest groups first, and groups of the same size by key, so reports come out the same from run to run
+    public static final Comparator<GroupStats> LARGEST_FIRST =
+            Comparator.comparingLong(GroupStats::getCount).reversed().thenComparing(GroupStats::getKey);
+
+    private final String key;
+    private final long count;
+    private final long sum;
+    private final double median;
+
+    public GroupStats(String key, long count, long sum, double median) {
+        this.key = key;
+        this.count = count;
+        this.sum = sum;
+        this.median = median;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public double getAverage() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public double getMedian() {
+        return median;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d people, average age %.2f, median age %.2f", key, count, getAverage(), median);
+    }
+}
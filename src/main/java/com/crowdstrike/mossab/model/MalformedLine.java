@@ -0,0 +1,28 @@
+package com.crowdstrike.mossab.model;
+
+/***
+ * A sampled rejected line: where it starts in the file, why it was rejected, and its (possibly truncated) text.
+ */
+public class MalformedLine {
+    private final long byteOffset;
+    private final MalformedReason reason;
+    private final String text;
+
+    public MalformedLine(long byteOffset, MalformedReason reason, String text) {
+        this.byteOffset = byteOffset;
+        this.reason = reason;
+        this.text = text;
+    }
+
+    public long getByteOffset() {
+        return byteOffset;
+    }
+
+    public MalformedReason getReason() {
+        return reason;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
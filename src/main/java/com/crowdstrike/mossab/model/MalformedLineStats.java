@@ -0,0 +1,116 @@
+package com.crowdstrike.mossab.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * Fixed-size diagnostics about the lines rejected from a file: a counter per MalformedReason, plus the first few
+ * rejected lines as a sample. However much garbage a file holds (an HTML error page, a binary blob...), this never
+ * grows beyond MAX_SAMPLES lines of at most MAX_SAMPLE_LENGTH bytes each.
+ */
+public class MalformedLineStats {
+    public static final int MAX_SAMPLES = 5;
+    // sampled lines are cut to this many bytes
+    public static final int MAX_SAMPLE_LENGTH = 200;
+
+    private final long[] counts;
+    private final List<MalformedLine> samples;
+
+    public MalformedLineStats() {
+        this.counts = new long[MalformedReason.values().length];
+        this.samples = new ArrayList<>(MAX_SAMPLES);
+    }
+
+    public void count(MalformedReason reason) {
+        counts[reason.ordinal()]++;
+    }
+
+    /***
+     * Lets the caller skip building the text of a line that would not be kept anyway.
+     */
+    public boolean wantsSample() {
+        return samples.size() < MAX_SAMPLES;
+    }
+
+    public void offerSample(MalformedLine line) {
+        if (wantsSample()) {
+            samples.add(line);
+        }
+    }
+
+    /***
+     * Adds the other stats' counts to these, and fills any free sample slots with its samples.
+     * @param other the stats for lines that come after these ones
+     */
+    public void merge(MalformedLineStats other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        for (MalformedLine line : other.samples) {
+            offerSample(line);
+        }
+    }
+
+    public long getCount(MalformedReason reason) {
+        return counts[reason.ordinal()];
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    public List<MalformedLine> getSamples() {
+        return Collections.unmodifiableList(samples);
+    }
+
+    /***
+     * Writes the counts and samples in a compact binary form, to be read back with readFrom().
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(counts.length);
+        for (long count : counts) {
+            out.writeLong(count);
+        }
+
+        out.writeInt(samples.size());
+        for (MalformedLine line : samples) {
+            out.writeLong(line.getByteOffset());
+            out.writeUTF(line.getReason().name());
+            out.writeUTF(line.getText());
+        }
+    }
+
+    /***
+     * @throws IOException if the input ends early or is not written by writeTo() (of this version of MalformedReason)
+     */
+    public static MalformedLineStats readFrom(DataInput in) throws IOException {
+        MalformedLineStats stats = new MalformedLineStats();
+        if (in.readInt() != stats.counts.length) {
+            throw new IOException("Malformed line counts were written for different reasons");
+        }
+        for (int i = 0; i < stats.counts.length; i++) {
+            stats.counts[i] = in.readLong();
+        }
+
+        int sampleCount = in.readInt();
+        for (int i = 0; i < sampleCount; i++) {
+            long byteOffset = in.readLong();
+            MalformedReason reason;
+            try {
+                reason = MalformedReason.valueOf(in.readUTF());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown malformed line reason", e);
+            }
+            stats.offerSample(new MalformedLine(byteOffset, reason, in.readUTF()));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,22 @@
+package com.crowdstrike.mossab.model;
+
+/***
+ * Why a line of a file was rejected, with a pretty printable description for the file summaries.
+ */
+public enum MalformedReason {
+    WRONG_FIELD_COUNT("wrong number of fields"),
+    NON_NUMERIC_AGE("age is not a whole number"),
+    OUT_OF_RANGE_AGE("age is outside of 0-" + AgeHistogram.MAX_AGE),
+    ENCODING_ERROR("not valid UTF-8 text"),
+    LINE_TOO_LONG("line is too long to be a person");
+
+    private final String description;
+
+    MalformedReason(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,167 @@
+package com.crowdstrike.mossab.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/***
+ * Dictionary encoding for names: every distinct name is stored once, as its UTF-8 bytes, and given an int id. A file
+ * of a million people with a few thousand distinct names then keeps a few thousand names rather than two million
+ * Strings - the people only hold the ids (see PersonStore).
+ * <p>
+ * Names are interned straight from the bytes they were parsed from, so no String is created to look one up. The bytes
+ * can be kept off-heap (in a direct buffer), where they don't add to the heap or to the GC's work.
+ * <p>
+ * Not thread-safe - a dictionary belongs to the one PersonStore being filled by one parser.
+ */
+public class NameDictionary {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final boolean offHeap;
+    private ByteBuffer bytes;
+    // name id -> where its bytes start (and end, at offsets[id + 1]) and its hash
+    private int[] offsets = new int[INITIAL_CAPACITY + 1];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private int size;
+    // open addressing, linear probing: id + 1 of the name in each slot, 0 for an empty slot
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    public NameDictionary(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.bytes = allocate(1024);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /***
+     * @return the id of the name in bytes [from, to), added to the dictionary if it isn't in it yet
+     */
+    public int intern(byte[] source, int from, int to) {
+        return intern(ByteBuffer.wrap(source), from, to);
+    }
+
+    /***
+     * Same as intern(byte[], int, int), for names read in place from a buffer - e.g. a memory-mapped file. The
+     * buffer's position and limit are left alone, [from, to) are absolute indexes.
+     */
+    public int intern(ByteBuffer source, int from, int to) {
+        int hash = hash(source, from, to);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                return add(source, from, to, hash, slot);
+            }
+            if (hashes[id] == hash && equalBytes(id, source, from, to)) {
+                return id;
+            }
+        }
+    }
+
+    public int intern(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return intern(utf8, 0, utf8.length);
+    }
+
+    private int add(ByteBuffer source, int from, int to, int hash, int slot) {
+        int length = to - from;
+        int start = offsets[size];
+        if (bytes.capacity() - start < length) {
+            ByteBuffer grown = allocate(Math.max(bytes.capacity() * 2, start + length));
+            grown.put(0, bytes, 0, start);
+            bytes = grown;
+        }
+        bytes.put(start, source, from, length);
+
+        if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            offsets = Arrays.copyOf(offsets, hashes.length + 1);
+        }
+        int id = size++;
+        hashes[id] = hash;
+        offsets[id + 1] = start + length;
+        table[slot] = id + 1;
+
+        // kept at most half full, so probes stay short
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    private boolean equalBytes(int id, ByteBuffer source, int from, int to) {
+        int start = offsets[id];
+        if (offsets[id + 1] - start != to - from) {
+            return false;
+        }
+        for (int i = 0; i < to - from; i++) {
+            if (bytes.get(start + i) != source.get(from + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer source, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + source.get(i);
+        }
+        // spread the bits, as HashMap does, since the table is indexed by the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+    /***
+     * Interns every name of another dictionary, straight from its bytes.
+     * @return the id in this dictionary of each id of the other one
+     */
+    public int[] internAll(NameDictionary other) {
+        int[] mapping = new int[other.size];
+        for (int id = 0; id < other.size; id++) {
+            mapping[id] = intern(other.bytes, other.offsets[id], other.offsets[id + 1]);
+        }
+        return mapping;
+    }
+
+    /***
+     * @return the name with the given id
+     */
+    public String get(int id) {
+        int start = offsets[id];
+        byte[] name = new byte[offsets[id + 1] - start];
+        bytes.get(start, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /***
+     * @return the number of distinct names
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /***
+     * @return roughly how many bytes the dictionary takes up, on and off the heap together
+     */
+    public long estimatedBytes() {
+        return bytes.capacity() + 4L * (offsets.length + hashes.length + table.length);
+    }
+}
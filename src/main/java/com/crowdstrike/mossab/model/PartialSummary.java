@@ -0,0 +1,123 @@
+package com.crowdstrike.mossab.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/***
+ * A compact, mergeable summary of the people read from one file (or from several files once merged). Holds the count,
+ * sum, min/max and age distribution (with one median-candidate sample per age) via an AgeHistogram, plus how many lines
+ * were rejected as malformed.
+ * <p>
+ * merge() is associative, so summaries can be combined in any grouping (e.g. a parallel tree reduction) and give the
+ * same result as combining them one by one - as long as the left-to-right order of the files is kept, even the median
+ * person sample is the same.
+ */
+public class PartialSummary {
+    private final AgeHistogram histogram;
+    private int minAge;
+    private int maxAge;
+    private long malformedCount;
+
+    public PartialSummary() {
+        this(new AgeHistogram());
+    }
+
+    private PartialSummary(AgeHistogram histogram) {
+        this.histogram = histogram;
+        this.minAge = Integer.MAX_VALUE;
+        this.maxAge = Integer.MIN_VALUE;
+    }
+
+    public void add(Person person) {
+        add(person.getAge());
+        histogram.offerSample(person);
+    }
+
+    /***
+     * Counts an age without a person to go with it - see AgeHistogram.add(int).
+     */
+    public void add(int age) {
+        histogram.add(age);
+        minAge = Math.min(minAge, age);
+        maxAge = Math.max(maxAge, age);
+    }
+
+    public boolean needsSample(int age) {
+        return histogram.needsSample(age);
+    }
+
+    public void offerSample(Person person) {
+        histogram.offerSample(person);
+    }
+
+    public void addMalformed() {
+        malformedCount++;
+    }
+
+    /***
+     * Folds another summary into this one, leaving the other summary untouched.
+     * @param other the summary to the "right" of this one, in file order
+     */
+    public void merge(PartialSummary other) {
+        histogram.merge(other.histogram);
+        minAge = Math.min(minAge, other.minAge);
+        maxAge = Math.max(maxAge, other.maxAge);
+        malformedCount += other.malformedCount;
+    }
+
+    public AgeHistogram getHistogram() {
+        return histogram;
+    }
+
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    public long getSum() {
+        return histogram.getSum();
+    }
+
+    public boolean isEmpty() {
+        return histogram.isEmpty();
+    }
+
+    /***
+     * @return the youngest age seen, or 0 if the summary is empty
+     */
+    public int getMinAge() {
+        return isEmpty() ? 0 : minAge;
+    }
+
+    /***
+     * @return the oldest age seen, or 0 if the summary is empty
+     */
+    public int getMaxAge() {
+        return isEmpty() ? 0 : maxAge;
+    }
+
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /***
+     * Writes the summary in a compact binary form (see AgeHistogram.writeTo()), to be read back with readFrom().
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        histogram.writeTo(out);
+        out.writeInt(minAge);
+        out.writeInt(maxAge);
+        out.writeLong(malformedCount);
+    }
+
+    /***
+     * @throws IOException if the input ends early or is not a summary written by writeTo()
+     */
+    public static PartialSummary readFrom(DataInput in) throws IOException {
+        PartialSummary summary = new PartialSummary(AgeHistogram.readFrom(in));
+        summary.minAge = in.readInt();
+        summary.maxAge = in.readInt();
+        summary.malformedCount = in.readLong();
+        return summary;
+    }
+}
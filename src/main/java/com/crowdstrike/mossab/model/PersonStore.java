@@ -0,0 +1,185 @@
+package com.crowdstrike.mossab.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/***
+ * The people of a file kept column by column rather than as Person objects: an int column of ages, and int columns of
+ * first and last name ids into NameDictionaries that hold each distinct name once, as UTF-8. A person costs 12 bytes
+ * (plus the names the first time they appear) instead of a Person, two Strings and their byte arrays - some 80-100
+ * bytes - so several times more people fit in the same heap. With offHeap, the columns and names live in direct
+ * buffers and take up no heap at all.
+ * <p>
+ * Rows keep the order they were added in. Person objects are only created when a row is asked for (see getPerson()
+ * and asList()); queries over the ages (see RecordQueries) never create them.
+ * <p>
+ * Not thread-safe - a store is filled by one parser, and read once the file is done.
+ */
+public class PersonStore {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final boolean offHeap;
+    private final NameDictionary firstNames;
+    private final NameDictionary lastNames;
+    private IntBuffer ages;
+    private IntBuffer firstNameIds;
+    private IntBuffer lastNameIds;
+    private int size;
+
+    public PersonStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.firstNames = new NameDictionary(offHeap);
+        this.lastNames = new NameDictionary(offHeap);
+        this.ages = allocate(INITIAL_CAPACITY);
+        this.firstNameIds = allocate(INITIAL_CAPACITY);
+        this.lastNameIds = allocate(INITIAL_CAPACITY);
+    }
+
+    private IntBuffer allocate(int capacity) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(capacity);
+    }
+
+    private IntBuffer grow(IntBuffer column) {
+        // by half again rather than doubling, so a full store wastes at most a third of its columns
+        IntBuffer grown = allocate(column.capacity() + (column.capacity() >> 1));
+        column.position(0).limit(size);
+        grown.put(column);
+        grown.clear();
+        return grown;
+    }
+
+    /***
+     * Adds a person straight from the bytes of a parsed line, without creating any Strings.
+     * @param line the bytes the names are in, as UTF-8 - [firstFrom, firstTo) and [lastFrom, lastTo), already trimmed
+     */
+    public void add(byte[] line, int firstFrom, int firstTo, int lastFrom, int lastTo, int age) {
+        add(ByteBuffer.wrap(line), firstFrom, firstTo, lastFrom, lastTo, age);
+    }
+
+    /***
+     * Same as add(byte[], ...), for a line read in place from a buffer, at absolute indexes.
+     */
+    public void add(ByteBuffer line, int firstFrom, int firstTo, int lastFrom, int lastTo, int age) {
+        addRow(firstNames.intern(line, firstFrom, firstTo), lastNames.intern(line, lastFrom, lastTo), age);
+    }
+
+    public void add(Person person) {
+        addRow(firstNames.intern(person.getFirstName()), lastNames.intern(person.getLastName()), person.getAge());
+    }
+
+    private void addRow(int firstNameId, int lastNameId, int age) {
+        if (size == ages.capacity()) {
+            ages = grow(ages);
+            firstNameIds = grow(firstNameIds);
+            lastNameIds = grow(lastNameIds);
+        }
+        ages.put(size, age);
+        firstNameIds.put(size, firstNameId);
+        lastNameIds.put(size, lastNameId);
+        size++;
+    }
+
+    /***
+     * Appends every person of another store, after the ones already in this one. Names are re-interned once per
+     * distinct name of the other store, not once per person.
+     */
+    public void addAll(PersonStore other) {
+        int[] firstNameMapping = firstNames.internAll(other.firstNames);
+        int[] lastNameMapping = lastNames.internAll(other.lastNames);
+        for (int row = 0; row < other.size; row++) {
+            addRow(firstNameMapping[other.firstNameIds.get(row)], lastNameMapping[other.lastNameIds.get(row)], other.ages.get(row));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getAge(int row) {
+        checkRow(row);
+        return ages.get(row);
+    }
+
+    public int getFirstNameId(int row) {
+        checkRow(row);
+        return firstNameIds.get(row);
+    }
+
+    public int getLastNameId(int row) {
+        checkRow(row);
+        return lastNameIds.get(row);
+    }
+
+    public NameDictionary getFirstNames() {
+        return firstNames;
+    }
+
+    public NameDictionary getLastNames() {
+        return lastNames;
+    }
+
+    /***
+     * @return the person in the row, created for the call
+     */
+    public Person getPerson(int row) {
+        checkRow(row);
+        return new Person(firstNames.get(firstNameIds.get(row)), lastNames.get(lastNameIds.get(row)), ages.get(row));
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+
+    /***
+     * Copies the ages into the array, from the given position on.
+     */
+    public void copyAges(int[] destination, int position) {
+        IntBuffer view = ages.duplicate();
+        view.position(0).limit(size);
+        view.get(destination, position, size);
+    }
+
+    /***
+     * @return a read-only view of the people, which creates each Person as it is asked for
+     */
+    public List<Person> asList() {
+        return new PeopleList();
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /***
+     * @return roughly how many bytes the store takes up, on and off the heap together, spare capacity included
+     */
+    public long estimatedBytes() {
+        return (long) Integer.BYTES * (ages.capacity() + firstNameIds.capacity() + lastNameIds.capacity())
+                + firstNames.estimatedBytes() + lastNames.estimatedBytes();
+    }
+
+    private class PeopleList extends AbstractList<Person> implements RandomAccess {
+        @Override
+        public Person get(int index) {
+            return getPerson(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
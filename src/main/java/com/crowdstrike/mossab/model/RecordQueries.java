@@ -0,0 +1,182 @@
+package com.crowdstrike.mossab.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/***
+ * Order statistics over the ages of the people kept in PersonStores - the median, any percentile, the k oldest, and
+ * someone of a given age - found by selection (quickselect) in O(n) rather than by sorting everyone in O(n log n).
+ * <p>
+ * Each query works on a copy of the age column (4 bytes a person), as selection reorders what it works on; names are
+ * only looked up, and Person objects only created, for the people a query actually returns.
+ */
+public class RecordQueries {
+    private final List<PersonStore> stores;
+    private final int size;
+
+    /***
+     * @param stores the stores in file order - "first" and ties below are in this order
+     */
+    public RecordQueries(List<PersonStore> stores) {
+        this.stores = stores;
+        long total = 0;
+        for (PersonStore store : stores) {
+            total += store.size();
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many people to query at once: " + total);
+        }
+        this.size = (int) total;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /***
+     * @return the median age, the average of the two middle ages for an even count (as AgeHistogram.getMedian()), or
+     * 0 if there is nobody
+     */
+    public double getMedianAge() {
+        if (size == 0) {
+            return 0;
+        }
+        int[] ages = copyAges();
+        int middle = size / 2;
+        int upper = select(ages, middle);
+        if (size % 2 == 1) {
+            return upper;
+        }
+        // everything before the middle is now at most the upper middle age, so the lower one is the largest of them
+        int lower = Integer.MIN_VALUE;
+        for (int i = 0; i < middle; i++) {
+            lower = Math.max(lower, ages[i]);
+        }
+        return (lower + upper) / 2.0;
+    }
+
+    /***
+     * @param percentile 0-100
+     * @return the nearest-rank percentile age: the smallest age at least that percentage of the people are at or below
+     */
+    public int getPercentileAge(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        int rank = (int) Math.ceil(percentile / 100 * size);
+        return getAgeAtRank(Math.max(rank, 1) - 1);
+    }
+
+    /***
+     * @param rank 0-based, in ascending order of age
+     */
+    public int getAgeAtRank(int rank) {
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " of " + size);
+        }
+        return select(copyAges(), rank);
+    }
+
+    /***
+     * @return the k oldest people, oldest first - people of the same age in file order
+     */
+    public List<Person> getOldest(int k) {
+        k = Math.min(Math.max(k, 0), size);
+        List<Person> oldest = new ArrayList<>(k);
+        if (k == 0) {
+            return oldest;
+        }
+
+        // the youngest age that makes the cut, and how many older than it are in - the rest of the k are that age
+        int[] ages = copyAges();
+        int threshold = select(ages, size - k);
+        int older = 0;
+        for (int i = size - k + 1; i < size; i++) {
+            if (ages[i] > threshold) {
+                older++;
+            }
+        }
+        int atThreshold = k - older;
+
+        for (PersonStore store : stores) {
+            for (int row = 0; row < store.size() && oldest.size() < k; row++) {
+                int age = store.getAge(row);
+                if (age > threshold || (age == threshold && atThreshold-- > 0)) {
+                    oldest.add(store.getPerson(row));
+                }
+            }
+        }
+        // only the k picked are sorted - the sort is stable, so same-age people stay in file order
+        oldest.sort(Comparator.comparingInt(Person::getAge).reversed());
+        return oldest;
+    }
+
+    /***
+     * @return the first person (in file order) of the given age, or null if there is nobody that age
+     */
+    public Person findPersonOfAge(int age) {
+        for (PersonStore store : stores) {
+            for (int row = 0; row < store.size(); row++) {
+                if (store.getAge(row) == age) {
+                    return store.getPerson(row);
+                }
+            }
+        }
+        return null;
+    }
+
+    private int[] copyAges() {
+        int[] ages = new int[size];
+        int position = 0;
+        for (PersonStore store : stores) {
+            store.copyAges(ages, position);
+            position += store.size();
+        }
+        return ages;
+    }
+
+    /***
+     * Quickselect, partitioning three ways around a random pivot - ages repeat a lot, and a two-way partition degrades
+     * towards quadratic on many equal values. A fixed seed keeps the work the same from run to run.
+     * <p>
+     * Reorders the array so that everything before the rank is at most, and everything after it at least, the age at it.
+     * @return the age at the 0-based rank, as if the array were sorted
+     */
+    static int select(int[] ages, int rank) {
+        SplittableRandom random = new SplittableRandom(rank);
+        int lo = 0;
+        int hi = ages.length - 1;
+        while (lo < hi) {
+            int pivot = ages[lo + random.nextInt(hi - lo + 1)];
+            // [lo, lt) < pivot, [lt, i) == pivot, (gt, hi] > pivot
+            int lt = lo;
+            int i = lo;
+            int gt = hi;
+            while (i <= gt) {
+                if (ages[i] < pivot) {
+                    swap(ages, lt++, i++);
+                } else if (ages[i] > pivot) {
+                    swap(ages, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            if (rank < lt) {
+                hi = lt - 1;
+            } else if (rank > gt) {
+                lo = gt + 1;
+            } else {
+                return pivot;
+            }
+        }
+        return ages[rank];
+    }
+
+    private static void swap(int[] ages, int i, int j) {
+        int age = ages[i];
+        ages[i] = ages[j];
+        ages[j] = age;
+    }
+}
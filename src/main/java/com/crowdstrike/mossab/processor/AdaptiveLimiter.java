@@ -0,0 +1,181 @@
+package com.crowdstrike.mossab.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/***
+ * Keeps adjusting how many remote files may be fetched at once, instead of relying on one fixed number that is too low
+ * for some environments and overloads the servers in others. It works like TCP congestion control (AIMD):
+ * <ul>
+ *     <li>while files complete without trouble, the limit grows by about one per "window" of limit completions</li>
+ *     <li>when a server pushes back (429, 5xx, a retry or a timeout), the limit is halved</li>
+ *     <li>when response latency inflates - the recent average is well above the long-running one, a sign that requests
+ *     are queueing somewhere - the limit is cut back by a tenth</li>
+ *     <li>if a window's throughput (completions per second) fell after the limit was raised, the raise is undone</li>
+ * </ul>
+ * At most one decrease happens per window, so that the effects of the last decrease are seen before the next. The limit
+ * stays between 1 and the maximum (the scheduler's global cap). Changes are recorded, so the metrics can show how the
+ * limit moved over the run.
+ */
+public class AdaptiveLimiter {
+    static final int INITIAL_LIMIT = 4;
+    // how far the short-term latency may rise above the long-term one before it counts as inflated
+    static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SHORT_ALPHA = 0.3;
+    private static final double LONG_ALPHA = 0.02;
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final double LATENCY_BACKOFF_RATIO = 0.9;
+    private static final int MAX_PRINTED_CHANGES = 12;
+
+    private final int maxLimit;
+    private final LongSupplier clock;
+    private final long startTime;
+    private double limit;
+
+    private double shortLatency = -1;
+    private double longLatency = -1;
+
+    private long samples;
+    // decreases are allowed again from this sample on
+    private long nextDecreaseAt;
+    // the current window of completions, for throughput
+    private long windowEnd;
+    private long windowStartTime;
+    private double windowStartLimit;
+    private int windowCompletions;
+    private double lastThroughput = -1;
+    private boolean raisedInWindow;
+
+    private final List<long[]> changes = new ArrayList<>();
+    private int minSeen;
+    private int maxSeen;
+
+    public AdaptiveLimiter(int maxLimit) {
+        this(maxLimit, System::nanoTime);
+    }
+
+    /***
+     * @param clock the time in nanoseconds, as System.nanoTime() would give it
+     */
+    AdaptiveLimiter(int maxLimit, LongSupplier clock) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+        this.windowStartTime = startTime;
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.minSeen = getLimit();
+        this.maxSeen = getLimit();
+        this.windowEnd = getLimit();
+        this.windowStartLimit = limit;
+        changes.add(new long[]{0, getLimit()});
+    }
+
+    /***
+     * @return the number of remote files that may be in flight at the moment
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /***
+     * Feeds the outcome of one completed remote file into the limit.
+     * @param responseLatencyNanos how long its response took to arrive, or 0 if unknown
+     * @param overloaded whether the server pushed back (429, 5xx, a retry or a timeout)
+     * @param limited whether the limit was reached while it was in flight - the limit is only raised if it was being
+     *                used, otherwise it would grow without ever having been tested
+     */
+    public synchronized void onSample(long responseLatencyNanos, boolean overloaded, boolean limited) {
+        samples++;
+        windowCompletions++;
+
+        if (responseLatencyNanos > 0) {
+            shortLatency = shortLatency < 0 ? responseLatencyNanos : SHORT_ALPHA * responseLatencyNanos + (1 - SHORT_ALPHA) * shortLatency;
+            longLatency = longLatency < 0 ? responseLatencyNanos : LONG_ALPHA * responseLatencyNanos + (1 - LONG_ALPHA) * longLatency;
+        }
+
+        if (overloaded) {
+            decrease(BACKOFF_RATIO);
+        } else if (shortLatency > LATENCY_TOLERANCE * longLatency) {
+            decrease(LATENCY_BACKOFF_RATIO);
+        } else if (limited && limit < maxLimit) {
+            // +1 per window of limit completions
+            setLimit(Math.min(maxLimit, limit + 1.0 / limit));
+            raisedInWindow = true;
+        }
+
+        if (samples >= windowEnd) {
+            endWindow();
+        }
+    }
+
+    private void decrease(double ratio) {
+        if (samples < nextDecreaseAt) {
+            return;
+        }
+        setLimit(Math.max(1, limit * ratio));
+        nextDecreaseAt = samples + getLimit();
+        raisedInWindow = false;
+    }
+
+    private void endWindow() {
+        long now = clock.getAsLong();
+        double throughput = windowCompletions * 1e9 / Math.max(1, now - windowStartTime);
+
+        // more in flight and yet fewer completions per second - more concurrency isn't helping
+        if (raisedInWindow && lastThroughput > 0 && throughput < lastThroughput * 0.9) {
+            setLimit(Math.min(limit, windowStartLimit));
+        }
+
+        lastThroughput = throughput;
+        raisedInWindow = false;
+        windowCompletions = 0;
+        windowStartTime = now;
+        windowStartLimit = limit;
+        windowEnd = samples + getLimit();
+    }
+
+    private void setLimit(double newLimit) {
+        int before = getLimit();
+        limit = newLimit;
+        int after = getLimit();
+        if (after != before) {
+            changes.add(new long[]{(clock.getAsLong() - startTime) / 1_000_000, after});
+            minSeen = Math.min(minSeen, after);
+            maxSeen = Math.max(maxSeen, after);
+        }
+    }
+
+    /***
+     * @return every change of the limit as {milliseconds since the start, new limit}, starting with the initial limit
+     */
+    public synchronized List<long[]> getChanges() {
+        return new ArrayList<>(changes);
+    }
+
+    /***
+     * Prints the limit over the run, as part of CsvProcessor.printMetrics(). Long histories are thinned out evenly.
+     */
+    public synchronized void printMetrics() {
+        System.out.println("- Adaptive concurrency: limit ended at " + getLimit() + " (ranged " + minSeen + "-" + maxSeen
+                + ", at most " + maxLimit + ", " + (changes.size() - 1) + " changes)");
+
+        StringBuilder timeline = new StringBuilder();
+        int step = Math.max(1, (changes.size() + MAX_PRINTED_CHANGES - 1) / MAX_PRINTED_CHANGES);
+        for (int i = 0; i < changes.size(); i += step) {
+            appendChange(timeline, changes.get(i));
+        }
+        // the final limit is always shown
+        if ((changes.size() - 1) % step != 0) {
+            appendChange(timeline, changes.get(changes.size() - 1));
+        }
+        System.out.println("\t- Limit over time: " + timeline);
+    }
+
+    private static void appendChange(StringBuilder timeline, long[] change) {
+        if (timeline.length() > 0) {
+            timeline.append(", ");
+        }
+        timeline.append(change[0]).append("ms=").append(change[1]);
+    }
+}
@@ -0,0 +1,272 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.MalformedLineStats;
+import com.crowdstrike.mossab.model.PartialSummary;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/***
+ * An append-only journal of the files a run has finished, so that a run that dies part way (OOM, deploy, kill) can be
+ * resumed rather than started over. Each finished file is one record: its place in the URL list, its URL, status and
+ * response details, and its summary and malformed line stats - what the results and the file summaries are made from,
+ * not the people.
+ * <p>
+ * Records are written as they complete but only flushed and synced to disk in batches (every batch of records, or
+ * every second, whichever comes first), so a run doesn't pay for an fsync per file. A crash loses at most the last
+ * batch, and those files are simply read again.
+ * <p>
+ * Each record is framed with its length and a CRC32, so a record torn by a crash is detected on replay - the journal
+ * is cut back to the last whole record, and appended to from there.
+ */
+public class CheckpointJournal implements Closeable {
+    private static final int MAGIC = 0x4353564A; // "CSVJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+    private static final long SYNC_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int batchSize;
+    // the files replayed from an earlier run, by index, until they are taken by restore()
+    private final Map<Integer, CsvFile> replayed;
+    private final int replayedCount;
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private int batchRecords;
+    private long lastSync = System.nanoTime();
+    private long appended;
+    private long syncs;
+    private boolean failed;
+
+    private CheckpointJournal(Path path, FileChannel channel, int batchSize, Map<Integer, CsvFile> replayed) {
+        this.path = path;
+        this.channel = channel;
+        this.batchSize = Math.max(1, batchSize);
+        this.replayed = replayed;
+        this.replayedCount = replayed.size();
+    }
+
+    /***
+     * Opens the journal for a run.
+     * @param resume whether to replay the files already in the journal (see restore()), rather than start it afresh
+     * @param batchSize the number of records written before they are synced to disk
+     */
+    public static CheckpointJournal open(Path path, boolean resume, int batchSize) throws IOException {
+        Map<Integer, CsvFile> replayed = new HashMap<>();
+        long validLength = 0;
+        if (resume && Files.exists(path)) {
+            validLength = replay(path, replayed);
+        }
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (validLength < HEADER_LENGTH) {
+                // a new journal (or one not worth keeping) starts with just the header
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                channel.force(false);
+                replayed.clear();
+            } else {
+                // anything after the last whole record is a record torn by a crash
+                channel.truncate(validLength);
+            }
+            channel.position(channel.size());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new CheckpointJournal(path, channel, batchSize, replayed);
+    }
+
+    /***
+     * Reads every whole record of the journal into the map.
+     * @return the length of the journal up to the end of its last whole record (0 if it is not a journal at all)
+     */
+    private static long replay(Path path, Map<Integer, CsvFile> replayed) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return 0;
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+
+            long validLength = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                        return validLength;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        return validLength;
+                    }
+                } catch (EOFException e) {
+                    return validLength;
+                }
+
+                try {
+                    readRecord(new DataInputStream(new ByteArrayInputStream(record)), replayed);
+                } catch (IOException | IllegalArgumentException e) {
+                    // whole, but not a record this version can read - nothing after it is trusted either
+                    return validLength;
+                }
+                validLength += 4 + record.length + 4;
+            }
+        }
+    }
+
+    private static void readRecord(DataInputStream in, Map<Integer, CsvFile> replayed) throws IOException {
+        int index = in.readInt();
+        CsvFile csvFile = new CsvFile(in.readBoolean() ? in.readUTF() : null);
+        csvFile.setStatus(CsvFileStatus.valueOf(in.readUTF()));
+        int responseCode = in.readInt();
+        if (responseCode >= 0) {
+            csvFile.setResponseCode(responseCode);
+        }
+        csvFile.setAttempts(in.readInt());
+        csvFile.setHedged(in.readBoolean());
+        csvFile.setTransferredBytes(in.readLong());
+        csvFile.getSummary().merge(PartialSummary.readFrom(in));
+        csvFile.getMalformedLines().merge(MalformedLineStats.readFrom(in));
+        replayed.put(index, csvFile);
+    }
+
+    /***
+     * @return the file at this index as the earlier run finished it, or null if it didn't (or the URL there has since
+     * changed) - each file is only handed out once
+     */
+    public CsvFile restore(int index, String url) {
+        CsvFile csvFile = replayed.remove(index);
+        if (csvFile == null || (url == null ? csvFile.getUrl() != null : !url.equals(csvFile.getUrl()))) {
+            return null;
+        }
+        return csvFile;
+    }
+
+    /***
+     * @return whether the file's outcome is final - one that a resumed run should not read again. Timed out files are
+     * not: they were given up on, not finished, so they are read again on resume.
+     */
+    public static boolean isFinished(CsvFile csvFile) {
+        return csvFile.getStatus() != CsvFileStatus.UNPROCESSED && csvFile.getStatus() != CsvFileStatus.TIMED_OUT;
+    }
+
+    /***
+     * Adds the finished file to the journal. A journal that can't be written to is given up on (and says so) - the
+     * run itself goes on, it just can't be resumed past that point.
+     */
+    public void append(int index, CsvFile csvFile) {
+        if (failed || !isFinished(csvFile)) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(index);
+            out.writeBoolean(csvFile.getUrl() != null);
+            if (csvFile.getUrl() != null) {
+                out.writeUTF(csvFile.getUrl());
+            }
+            out.writeUTF(csvFile.getStatus().name());
+            out.writeInt(csvFile.getResponseCode() == null ? -1 : csvFile.getResponseCode());
+            out.writeInt(csvFile.getAttempts());
+            out.writeBoolean(csvFile.isHedged());
+            out.writeLong(csvFile.getTransferredBytes());
+            csvFile.getSummary().writeTo(out);
+            csvFile.getMalformedLines().writeTo(out);
+
+            CRC32 crc = new CRC32();
+            crc.update(record.toByteArray());
+            DataOutputStream framed = new DataOutputStream(batch);
+            framed.writeInt(record.size());
+            record.writeTo(framed);
+            framed.writeInt((int) crc.getValue());
+            batchRecords++;
+            appended++;
+
+            if (batchRecords >= batchSize || System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS) {
+                sync();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /***
+     * Writes the records appended since the last sync, and syncs them to disk.
+     */
+    public void sync() {
+        if (failed || batchRecords == 0) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            batch.reset();
+            batchRecords = 0;
+            lastSync = System.nanoTime();
+            syncs++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        System.out.println("Could not write the checkpoint journal " + path + " - no longer checkpointing: " + e.getMessage());
+        failed = true;
+    }
+
+    /***
+     * @return how many finished files were read back from the journal of an earlier run
+     */
+    public int getReplayedCount() {
+        return replayedCount;
+    }
+
+    public long getAppended() {
+        return appended;
+    }
+
+    public long getSyncs() {
+        return syncs;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+}
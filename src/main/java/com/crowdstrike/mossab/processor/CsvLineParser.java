@@ -0,0 +1,484 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.AgeHistogram;
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.MalformedLine;
+import com.crowdstrike.mossab.model.MalformedLineStats;
+import com.crowdstrike.mossab.model.MalformedReason;
+import com.crowdstrike.mossab.model.PartialSummary;
+import com.crowdstrike.mossab.model.Person;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/***
+ * Parses "fname, lname, age" CSV rows straight from raw bytes into a CsvFile.
+ * <p>
+ * Going through a Reader, readLine(), split(",") and trim() creates a String per line, a String per field and an
+ * array per line - tens of millions of short-lived objects for a 10M row file. Instead, this scans the bytes for line
+ * terminators and commas, and parses the age as an int directly from the bytes. Strings are only created for what is
+ * actually kept: names when the person is retained or becomes an age bucket's sample, and the text of malformed lines.
+ * <p>
+ * Line and field handling matches the previous readLine()/split(",")/trim()/parseInt() behaviour:
+ * <ul>
+ *     <li>lines end at "\n", "\r" or "\r\n", and a last line without a terminator still counts</li>
+ *     <li>trailing empty fields are ignored, like split(",") drops them ("a, b, 30,," is a valid row)</li>
+ *     <li>anything other than exactly 3 fields is malformed (e.g. rows with extra fields in file9_bad.csv)</li>
+ *     <li>the age must be an optionally signed integer once surrounding whitespace is trimmed</li>
+ * </ul>
+ * Text must be UTF-8: lines that are not valid UTF-8 are rejected, as are lines over MAX_LINE_LENGTH bytes, so a binary
+ * blob without any line terminator can't make the parser hold on to more than that. Rejected lines are counted by
+ * reason in the CsvFile's MalformedLineStats, with their byte offset in the file for the sampled ones.
+ * <p>
+ * Bytes can be fed in arbitrary chunks (see feed()), so lines may span chunks. They can also be fed as a ByteBuffer, which
+ * is scanned in place - a memory-mapped file is parsed without copying it onto the heap; only a line that spans two
+ * feeds is copied, to join its halves.
+ * <p>
+ * With EarlyAbortRules set, the parser stops as soon as a rule is broken (see getAbortStatus()) and ignores anything
+ * fed after that, so the caller can stop reading.
+ */
+public class CsvLineParser {
+    // returned by parseAge when the field is not an integer
+    static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+
+    // no "fname, lname, age" row comes anywhere near this, so anything longer is rejected without being buffered whole
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final CsvFile csvFile;
+    private final PartialSummary summary;
+    private final MalformedLineStats malformedLines;
+    private final boolean retainPeople;
+    private boolean headerPending;
+
+    // a line that started in an earlier chunk and hasn't ended yet
+    private byte[] carry = new byte[256];
+    private ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+    private int carryLength;
+    // the position in the file of the next byte to be fed, and of the start of the current line
+    private long streamOffset;
+    private long lineOffset;
+
+    private final long startOffset;
+    private EarlyAbortRules abortRules;
+    private CsvFileStatus abortStatus;
+    // data lines (so not the header) parsed so far, and how many of them were malformed
+    private long linesParsed;
+    private long malformedParsed;
+    // the last chunk ended with '\r', so a '\n' at the start of the next one belongs to that same line ending
+    private boolean skipLineFeed;
+
+    /***
+     * @param csvFile receives the people (if retained), malformed lines and summary counts
+     * @param retainPeople whether accepted people are added to the CsvFile's records, or only summarised
+     * @param skipHeader whether the first line is a header rather than data
+     */
+    public CsvLineParser(CsvFile csvFile, boolean retainPeople, boolean skipHeader) {
+        this(csvFile, retainPeople, skipHeader, 0);
+    }
+
+    /***
+     * For parsing part of a file.
+     * @param startOffset the position in the file of the first byte that will be fed, so that malformed lines are
+     * reported at their offset in the whole file
+     */
+    public CsvLineParser(CsvFile csvFile, boolean retainPeople, boolean skipHeader, long startOffset) {
+        this.csvFile = csvFile;
+        this.summary = csvFile.getSummary();
+        this.malformedLines = csvFile.getMalformedLines();
+        this.retainPeople = retainPeople;
+        this.headerPending = skipHeader;
+        this.streamOffset = startOffset;
+        this.lineOffset = startOffset;
+        this.startOffset = startOffset;
+    }
+
+    /***
+     * Turns on checking the content rules (header, body size, malformed ratio) while parsing.
+     */
+    public void setAbortRules(EarlyAbortRules abortRules) {
+        this.abortRules = abortRules;
+    }
+
+    /***
+     * @return the status for the broken rule if parsing was aborted, otherwise null
+     */
+    public CsvFileStatus getAbortStatus() {
+        return abortStatus;
+    }
+
+    /***
+     * @return true while the abort rules still need to see more lines to decide about the file, i.e. while the header
+     * hasn't been checked or the malformed ratio hasn't been measured over its lines yet
+     */
+    public boolean isScreening() {
+        if (abortRules == null || abortStatus != null) {
+            return false;
+        }
+        return (headerPending && abortRules.isRequireHeader())
+                || (abortRules.isMalformedRatioChecked() && linesParsed < abortRules.getMalformedRatioLines());
+    }
+
+    /***
+     * Reads the input to the end and parses every line in it.
+     */
+    public void parse(InputStream input) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        while (abortStatus == null && (read = input.read(buffer)) != -1) {
+            feed(buffer, 0, read);
+        }
+        finish();
+    }
+
+    /***
+     * Parses all complete lines in the chunk. A line left unterminated at the end of the chunk is held on to until a
+     * later chunk (or finish()) completes it.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        feed(ByteBuffer.wrap(data), offset, length);
+    }
+
+    /***
+     * Same as feed(byte[], int, int), scanning the buffer in place. [offset, offset + length) are absolute indexes, and
+     * the buffer's position and limit are left alone.
+     */
+    public void feed(ByteBuffer data, int offset, int length) {
+        if (abortStatus != null) {
+            return;
+        }
+        if (abortRules != null && abortRules.getMaxBodySize() >= 0 && streamOffset + length - startOffset > abortRules.getMaxBodySize()) {
+            abortStatus = CsvFileStatus.ABORTED_TOO_LARGE;
+            return;
+        }
+
+        int end = offset + length;
+        int position = offset;
+        // data[i] is at file position base + i
+        long base = streamOffset - offset;
+        streamOffset += length;
+
+        if (skipLineFeed && position < end) {
+            if (data.get(position) == '\n') {
+                position++;
+                lineOffset++;
+            }
+            skipLineFeed = false;
+        }
+
+        int lineStart = position;
+        for (int i = position; i < end; i++) {
+            byte b = data.get(i);
+            if (b != '\n' && b != '\r') {
+                continue;
+            }
+
+            if (carryLength > 0) {
+                appendToCarry(data, lineStart, i);
+                parseLine(carryBuffer, 0, carryLength);
+                carryLength = 0;
+            } else {
+                parseLine(data, lineStart, i);
+            }
+            if (abortStatus != null) {
+                return;
+            }
+
+            if (b == '\r') {
+                if (i + 1 < end) {
+                    if (data.get(i + 1) == '\n') {
+                        i++;
+                    }
+                } else {
+                    skipLineFeed = true;
+                }
+            }
+            lineStart = i + 1;
+            lineOffset = base + lineStart;
+        }
+
+        if (lineStart < end) {
+            appendToCarry(data, lineStart, end);
+        }
+    }
+
+    /***
+     * Parses the last line, if the input did not end with a line terminator.
+     */
+    public void finish() {
+        if (abortStatus != null) {
+            return;
+        }
+        if (carryLength > 0) {
+            parseLine(carryBuffer, 0, carryLength);
+            carryLength = 0;
+        }
+
+        // a short file is judged on all of its lines
+        if (abortStatus == null && abortRules != null && abortRules.isMalformedRatioChecked() && linesParsed > 0
+                && linesParsed < abortRules.getMalformedRatioLines()) {
+            checkMalformedRatio();
+        }
+    }
+
+    private void appendToCarry(ByteBuffer data, int from, int to) {
+        // one byte over the maximum is enough to know the line is too long, the rest of it is dropped
+        int length = Math.min(to - from, MAX_LINE_LENGTH + 1 - carryLength);
+        if (carryLength + length > carry.length) {
+            byte[] grown = new byte[Math.min(MAX_LINE_LENGTH + 1, Math.max(carry.length * 2, carryLength + length))];
+            System.arraycopy(carry, 0, grown, 0, carryLength);
+            carry = grown;
+            carryBuffer = ByteBuffer.wrap(carry);
+        }
+        data.get(from, carry, carryLength, length);
+        carryLength += length;
+    }
+
+    /***
+     * Parses one line, without its terminator, and records it as a person or as malformed. The header line is only
+     * checked against the abort rules.
+     */
+    private void parseLine(ByteBuffer line, int start, int end) {
+        if (headerPending) {
+            headerPending = false;
+            if (abortRules != null && abortRules.isRequireHeader()
+                    && !EarlyAbortRules.isExpectedHeader(string(line, start, end))) {
+                abortStatus = CsvFileStatus.ABORTED_MISSING_HEADER;
+            }
+            return;
+        }
+
+        linesParsed++;
+        parseDataLine(line, start, end);
+
+        if (abortRules != null && abortRules.isMalformedRatioChecked() && linesParsed == abortRules.getMalformedRatioLines()) {
+            checkMalformedRatio();
+        }
+    }
+
+    private void checkMalformedRatio() {
+        if ((double) malformedParsed / linesParsed > abortRules.getMaxMalformedRatio()) {
+            abortStatus = CsvFileStatus.ABORTED_TOO_MANY_MALFORMED_LINES;
+        }
+    }
+
+    /***
+     * Parses a line that is not the header into a person, or rejects it as malformed.
+     */
+    private void parseDataLine(ByteBuffer line, int start, int end) {
+        if (end - start > MAX_LINE_LENGTH) {
+            addMalformed(MalformedReason.LINE_TOO_LONG, line, start, end);
+            return;
+        }
+        if (!isValidUtf8(line, start, end)) {
+            addMalformed(MalformedReason.ENCODING_ERROR, line, start, end);
+            return;
+        }
+
+        // trailing empty fields are dropped, the same way split(",") does
+        int fieldsEnd = end;
+        while (fieldsEnd > start && line.get(fieldsEnd - 1) == ',') {
+            fieldsEnd--;
+        }
+
+        // this assumes that the CSVs are comma-delimited
+        // if there are more or fewer than 2 commas/delimiters, the line is malformed and ignored when calculating median/avg
+        int firstComma = indexOfComma(line, start, fieldsEnd);
+        int secondComma = firstComma < 0 ? -1 : indexOfComma(line, firstComma + 1, fieldsEnd);
+        if (secondComma < 0 || indexOfComma(line, secondComma + 1, fieldsEnd) >= 0) {
+            addMalformed(MalformedReason.WRONG_FIELD_COUNT, line, start, end);
+            return;
+        }
+
+        // if the age is not a number, or cannot possibly be a real age, then the line is malformed
+        int age = parseAge(line, secondComma + 1, fieldsEnd);
+        if (age == NOT_A_NUMBER) {
+            addMalformed(MalformedReason.NON_NUMERIC_AGE, line, start, end);
+            return;
+        }
+        if (!AgeHistogram.isTrackable(age)) {
+            addMalformed(MalformedReason.OUT_OF_RANGE_AGE, line, start, end);
+            return;
+        }
+
+        summary.add(age);
+
+        // retained people go into the columns as bytes - names are only turned into Strings for a sample
+        if (retainPeople) {
+            int firstFrom = trimStart(line, start, firstComma);
+            int lastFrom = trimStart(line, firstComma + 1, secondComma);
+            csvFile.getRecords().add(line, firstFrom, trimEnd(line, firstFrom, firstComma),
+                    lastFrom, trimEnd(line, lastFrom, secondComma), age);
+        }
+        if (summary.needsSample(age)) {
+            summary.offerSample(new Person(trimmedString(line, start, firstComma), trimmedString(line, firstComma + 1, secondComma), age));
+        }
+    }
+
+    private void addMalformed(MalformedReason reason, ByteBuffer line, int start, int end) {
+        malformedLines.count(reason);
+        summary.addMalformed();
+        malformedParsed++;
+
+        // only the first few rejected lines are kept as a sample, and only their first few hundred bytes
+        if (malformedLines.wantsSample()) {
+            int length = Math.min(end - start, MalformedLineStats.MAX_SAMPLE_LENGTH);
+            malformedLines.offerSample(new MalformedLine(lineOffset, reason, string(line, start, start + length)));
+        }
+    }
+
+    private static int indexOfComma(ByteBuffer line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line.get(i) == ',') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /***
+     * The equivalent of Integer.parseInt(field.trim()), without creating the field String.
+     * @return the value, or NOT_A_NUMBER if the trimmed field is not an int
+     */
+    static int parseAge(byte[] line, int from, int to) {
+        return parseAge(ByteBuffer.wrap(line), from, to);
+    }
+
+    private static int parseAge(ByteBuffer line, int from, int to) {
+        from = trimStart(line, from, to);
+        to = trimEnd(line, from, to);
+
+        boolean negative = false;
+        if (from < to && (line.get(from) == '-' || line.get(from) == '+')) {
+            negative = line.get(from) == '-';
+            from++;
+        }
+
+        if (from == to) {
+            return NOT_A_NUMBER;
+        }
+        // leading zeros don't count towards the length (e.g. "00000000030"), but the last digit stays even if it is one
+        while (from < to - 1 && line.get(from) == '0') {
+            from++;
+        }
+        // more digits than any int has
+        if (to - from > 10) {
+            return NOT_A_NUMBER;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_A_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return NOT_A_NUMBER;
+        }
+        return (int) value;
+    }
+
+    /***
+     * Checks that the bytes are well-formed UTF-8 (no stray continuation bytes, truncated or overlong sequences, or
+     * surrogates) without decoding them. Plain ASCII - nearly every line - only costs one comparison per byte.
+     */
+    static boolean isValidUtf8(byte[] line, int from, int to) {
+        return isValidUtf8(ByteBuffer.wrap(line), from, to);
+    }
+
+    private static boolean isValidUtf8(ByteBuffer line, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int b = line.get(i) & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+
+            int length;
+            int minCodePoint;
+            if (b >= 0xC2 && b <= 0xDF) {
+                length = 2;
+                minCodePoint = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                length = 3;
+                minCodePoint = 0x800;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                length = 4;
+                minCodePoint = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + length > to) {
+                return false;
+            }
+
+            int codePoint = b & (0xFF >> (length + 1));
+            for (int j = 1; j < length; j++) {
+                int continuation = line.get(i + j) & 0xFF;
+                if ((continuation & 0xC0) != 0x80) {
+                    return false;
+                }
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+            }
+            if (codePoint < minCodePoint || codePoint > Character.MAX_CODE_POINT || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                return false;
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    private static String trimmedString(ByteBuffer line, int from, int to) {
+        from = trimStart(line, from, to);
+        return string(line, from, trimEnd(line, from, to));
+    }
+
+    /***
+     * @return the bytes [from, to) decoded as UTF-8 - copied out first when the buffer isn't backed by an array
+     */
+    private static String string(ByteBuffer line, int from, int to) {
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        line.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /***
+     * @return where the field [from, to) starts once trimmed
+     */
+    private static int trimStart(ByteBuffer line, int from, int to) {
+        while (from < to && isTrimmable(line.get(from))) {
+            from++;
+        }
+        return from;
+    }
+
+    /***
+     * @return where the field [from, to) ends once trimmed
+     */
+    private static int trimEnd(ByteBuffer line, int from, int to) {
+        while (to > from && isTrimmable(line.get(to - 1))) {
+            to--;
+        }
+        return to;
+    }
+
+    /***
+     * Same as String.trim(): anything at or below a space. Bytes of multi-byte UTF-8 characters are negative as
+     * (signed) bytes, so they are masked to be compared as unsigned.
+     */
+    private static boolean isTrimmable(byte b) {
+        return (b & 0xFF) <= ' ';
+    }
+}
@@ -1,102 +1,470 @@
 package com.crowdstrike.mossab.processor;
 
+import com.crowdstrike.mossab.model.AgeHistogram;
 import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.GroupStats;
+import com.crowdstrike.mossab.model.MalformedLine;
+import com.crowdstrike.mossab.model.MalformedLineStats;
+import com.crowdstrike.mossab.model.MalformedReason;
+import com.crowdstrike.mossab.model.PartialSummary;
 import com.crowdstrike.mossab.model.Person;
-
+import com.crowdstrike.mossab.model.PersonStore;
+import com.crowdstrike.mossab.model.RecordQueries;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class CsvProcessor {
-    private final List<String> urls;
-    private final List<Person> people;
+    // with fewer files ready to merge than this, merging their summaries on the calling thread is cheaper than forking
+    static final int PARALLEL_REDUCTION_THRESHOLD = 64;
+    // how many times the files allowed in flight may be started but not yet merged
+    static final int ADMISSION_WINDOW_FACTOR = 4;
+    // how long the readers still running at the deadline are given to stop, once their requests have been dropped
+    static final long ABORT_WAIT_MILLIS = 2000;
+
+    private final Iterator<String> urls;
+    // the number of URLs, or -1 if they are streamed in and not known up front
+    private final int totalFiles;
+    private final CsvProcessorOptions options;
+    // the context of a processor that shares it with others (e.g. every shard of a worker), or null to have one per run
+    private final ReaderContext sharedContext;
     private final List<CsvFile> files;
-    private ThreadPoolExecutor executorService;
+    private PartialSummary summary;
+    private ReaderExecutor readerExecutor;
+    private HostScheduler scheduler;
+    private TransferStats transferStats;
+    private ResultCache resultCache;
+    private RequestHedger hedger;
+    private ProgressReporter progress;
+    private FileMetrics fileMetrics;
+    private CheckpointJournal checkpoint;
+    private long restoredFiles;
     private long endTime;
     private long startTime;
     private double medianAge;
     private double averageAge;
     private Person medianPerson;
+    // counted as files are merged, so that they are known even when the files are not kept
+    private long fileCount;
+    private long timedOutFiles;
+    private long readFiles;
+    private long readRecords;
+    private long retries;
+    private long retriedFiles;
+    private boolean urlsFailed;
+    // with a group report asked for: a group per file, built as files are merged, so it holds whether or not they are
+    // kept - and how many merged files (and people) have no people kept to group by name (restored from the checkpoint
+    // journal or the result cache)
+    private List<GroupStats> sourceGroups;
+    private long filesWithoutRecords;
+    private long peopleWithoutRecords;
 
     public CsvProcessor(List<String> urls) {
+        this(urls, new CsvProcessorOptions());
+    }
+
+    public CsvProcessor(List<String> urls, CsvProcessorOptions options) {
+        this(urls.iterator(), urls.size(), options, null);
+    }
+
+    /***
+     * @param context a context shared with other processors, read with its options - its connections, caches and
+     *                adaptive limit carry over from one processor to the next (and so do its transfer and hedging
+     *                counts), and it is left open for them
+     */
+    public CsvProcessor(List<String> urls, ReaderContext context) {
+        this(urls.iterator(), urls.size(), context.getOptions(), context);
+    }
+
+    /***
+     * @param urls the URLs (or local files) to read, which are only taken from the iterator as there is room to start
+     *             reading them - e.g. a UrlManifest
+     */
+    public CsvProcessor(Iterator<String> urls, CsvProcessorOptions options) {
+        this(urls, -1, options, null);
+    }
+
+    private CsvProcessor(Iterator<String> urls, int totalFiles, CsvProcessorOptions options, ReaderContext sharedContext) {
         this.urls = urls;
-        this.people = new ArrayList<>();
+        this.totalFiles = totalFiles;
+        this.options = options;
+        this.sharedContext = sharedContext;
         this.files = new ArrayList<>();
+        this.summary = new PartialSummary();
     }
 
     public void process() {
-        // a thread pool to be used for concurrency
-        executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
-
-        // used to store all the results of the executed tasks/threads
-        List<Future<CsvFile>> csvFileFutures = new ArrayList<>();
+        // bounded fetch and parse thread pools to be used for concurrency - thread count does not grow with the URL count
+        // (or one virtual thread per file, capped by a number of concurrent connections, if asked for and available)
+        readerExecutor = createReaderExecutor();
+        // one http backend (and range download pool) for the whole run, so connections to the same host can be shared
+        // (or for every run sharing the context)
+        ReaderContext context = sharedContext != null ? sharedContext : new ReaderContext(options);
+        // readers are started host by host (in turns, and no more than a few per host at once) rather than in list order
+        // and the number of remote files in flight keeps adapting to how the servers cope, up to the global cap
+        AdaptiveLimiter limiter = options.isAdaptiveConcurrency() ? context.getAdaptiveLimiter(getMaxInFlight()) : null;
+        scheduler = new HostScheduler(readerExecutor, options.getPerHostConnections(), getMaxInFlight(), limiter);
+
+        this.transferStats = context.getTransferStats();
+        this.resultCache = context.getResultCache();
+        this.hedger = context.getHedger();
+
+        // the index of every file that completes, in the order they complete
+        BlockingQueue<Integer> completions = new LinkedBlockingQueue<>();
 
         // used to calculate the elapsed time.
         // nano time is used because discrepancies can occur when using `currentTimeMillis` - best avoided
         this.startTime = System.nanoTime();
-
-        // for each URL, a task is submitted to the thread pool executor to execute on a new/available thread
-        // this allows each file to be read and parsed in parallel
-        for (String url : urls) {
-            // CsvReader does the parsing in parallel and returns a CsvFile object, which has a list of people,
-            // a list of malformed lines that were not included in number crunching, and the status of the process for
-            // that file. This is returned as a Future to be used when the parallelization is completed
-            Future<CsvFile> future = executorService.submit(new CsvReader(url));
-            csvFileFutures.add(future);
-        }
-
-        // for each future, the resultant CsvFile is stored, in case we want to do something with them later on
-        // the list of people from each file is aggregated into one big person list to do the
-        for (Future<CsvFile> csvFileFuture : csvFileFutures) {
-            try {
-                CsvFile csvFile = csvFileFuture.get();
-
-                this.files.add(csvFile);
-                people.addAll(csvFile.getPeople());
-            } catch (InterruptedException | ExecutionException e) {
-                System.out.println("A thread was interrupted or something otherwise went wrong during concurrent execution.");
-                throw new RuntimeException(e);
-            }
+        this.progress = new ProgressReporter(totalFiles, options.getProgressIntervalMillis());
+        this.fileMetrics = new FileMetrics();
+        if (options.isStreamFileSummaries()) {
+            printFileSummariesHeader();
         }
 
+        // finished files are journaled as they complete, so that a run that dies part way can be resumed
+        this.checkpoint = openCheckpoint();
+
+        // URLs are taken one at a time, only while fewer than the admission window of files are read but not yet merged
+        // - so memory stays the same whether there are 10 URLs or 100K of them (e.g. streamed in from a manifest)
+        readFiles(context, completions);
+        closeCheckpoint();
+
         // to calculate elapsed time
         // note: the instructions readme states "the clock time spent reading all the data files"
-        // so I've put this here rather than at the end of the method to exclude the time taken to sort and calculate
+        // so I've put this here rather than at the end of the method to exclude the time taken to calculate
         // the medians. this ensures only the time spent reading the data files is included.
         this.endTime = System.nanoTime();
 
-        // executor service is no longer needed at this point. should be shut down
+        // the executors are no longer needed at this point. should be shut down
         // if we wanted to do another round of input or if we needed it again in the future in some way, i would leave
         // it open to new tasks
-        executorService.shutdown();
-
-        // necessary in order to obtain the median age+person. O(nlogn) where n is the total number of people in all files
-        people.sort(Comparator.comparingInt(Person::getAge));
+        scheduler.shutdown();
+        if (sharedContext == null) {
+            context.close();
+        }
 
         // calculates and stores the median and averages for later retrieval/printing
-        if (!this.people.isEmpty()) {
+        if (!this.summary.isEmpty()) {
             this.calculateMedianAndAverages();
         }
+
+        if (options.getMetricsFile() != null) {
+            writeMetricsFile();
+        }
     }
 
-    private void calculateMedianAndAverages() {
-        // java streams makes this elegant
-        this.averageAge = this.people.stream().mapToInt(Person::getAge).average().orElse(0.0);
-
-        // if the number of people is odd, then the median is the middle index
-        // if the number of people is even, then the median is the average of the two middle indexes
-        int middleIndex = this.people.size() / 2;
-        if (this.people.size() % 2 == 0) {
-            this.medianAge = (this.people.get(middleIndex - 1).getAge() + this.people.get(middleIndex).getAge()) / 2.0;
+    /***
+     * @return the checkpoint journal, replayed if resuming, or null if there is none (or it can't be opened - the run
+     * goes ahead without it)
+     */
+    private CheckpointJournal openCheckpoint() {
+        if (options.getCheckpointFile() == null) {
+            return null;
+        }
+        try {
+            CheckpointJournal journal = CheckpointJournal.open(Paths.get(options.getCheckpointFile()), options.isResume(),
+                    options.getCheckpointBatchSize());
+            if (options.isResume()) {
+                System.out.println("Resuming: " + journal.getReplayedCount() + " finished files replayed from " + options.getCheckpointFile());
+            }
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not open the checkpoint journal " + options.getCheckpointFile() + " - " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void closeCheckpoint() {
+        if (this.checkpoint == null) {
+            return;
+        }
+        try {
+            this.checkpoint.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the checkpoint journal " + options.getCheckpointFile() + " - " + e.getMessage());
+        }
+    }
+
+    /***
+     * Writes the per-file metrics to the metrics file, in the chosen format. A failure to write it is printed, but
+     * doesn't fail the run - the results are still there.
+     */
+    private void writeMetricsFile() {
+        try (Writer out = Files.newBufferedWriter(Paths.get(options.getMetricsFile()), StandardCharsets.UTF_8)) {
+            if (options.getMetricsFormat() == MetricsFormat.PROMETHEUS) {
+                fileMetrics.writePrometheus(out, this.endTime - this.startTime);
+            } else {
+                fileMetrics.writeJson(out, this.endTime - this.startTime);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not write the metrics file " + options.getMetricsFile() + " - " + e.getMessage());
+        }
+    }
+
+    /***
+     * Starts a reader for each URL as the admission window allows, and takes the files as they complete, until all are
+     * done or the job deadline passes. Results are handled as soon as they complete rather than in list order, so a slow
+     * URL doesn't hold up the rest. Each file's summary is merged into the overall summary as soon as every file before
+     * it is done too: the summaries are still merged in file order (which decides the person reported with the median
+     * age), just not all at the end - the merge overlaps with the reading of other files.
+     * <p>
+     * Files not done by the job deadline (and URLs not started by then) are recorded as TIMED_OUT.
+     */
+    private void readFiles(ReaderContext context, BlockingQueue<Integer> completions) {
+        Deadline jobDeadline = context.getJobDeadline();
+        int admissionWindow = getAdmissionWindow();
+        // the files started but not yet merged, by index - at most the admission window of them
+        Map<Integer, String> started = new HashMap<>();
+        Map<Integer, CompletableFuture<CsvFile>> running = new HashMap<>();
+        Map<Integer, CsvFile> done = new HashMap<>();
+        int submitted = 0;
+        int merged = 0;
+
+        try {
+            while (true) {
+                // for each URL, a fetch is queued on the I/O stage, followed by a parse on the parse stage once it is
+                // downloaded - this allows files to be read and parsed in parallel
+                while (submitted - merged < admissionWindow && !jobDeadline.isExpired() && hasMoreUrls()) {
+                    String url = urls.next();
+                    // a file the journal says an earlier run finished is taken as it was, not read again
+                    CsvFile restored = checkpoint == null ? null : checkpoint.restore(submitted, url);
+                    if (restored != null) {
+                        int index = submitted++;
+                        started.put(index, url);
+                        done.put(index, restored);
+                        restoredFiles++;
+                        progress.fileDone(restored);
+                        merged = mergeReady(done, started, merged);
+                        continue;
+                    }
+                    // CsvReader does the parsing in parallel and returns a CsvFile object, which has a summary of the
+                    // people, the malformed lines that were not included in number crunching, and the status of the
+                    // process for that file
+                    CompletableFuture<CsvFile> future = scheduler.submit(new CsvReader(url, context));
+                    int index = submitted++;
+                    started.put(index, url);
+                    running.put(index, future);
+                    future.whenComplete((csvFile, failure) -> completions.add(index));
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                long wait = Math.min(jobDeadline.remainingMillis(), progress.millisUntilNextReport());
+                Integer index = wait == Long.MAX_VALUE ? completions.take() : completions.poll(wait, TimeUnit.MILLISECONDS);
+                if (index == null) {
+                    if (jobDeadline.isExpired()) {
+                        break;
+                    }
+                    progress.reportIfDue();
+                    continue;
+                }
+
+                CsvFile csvFile;
+                try {
+                    csvFile = running.remove(index).get();
+                    if (checkpoint != null) {
+                        checkpoint.append(index, csvFile);
+                    }
+                } catch (CancellationException e) {
+                    // the scheduler cancels a reader the executor rejected - it was never read, so it is not journaled
+                    // either, and a resumed run tries it again
+                    csvFile = notRead(started.get(index));
+                }
+                done.put(index, csvFile);
+                progress.fileDone(csvFile);
+                merged = mergeReady(done, started, merged);
+                progress.reportIfDue();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("A thread was interrupted or something otherwise went wrong during concurrent execution.");
+            throw new RuntimeException(e);
+        }
+
+        // once the job deadline has passed, files that aren't done are given up on and the results cover the rest
+        if (!running.isEmpty()) {
+            awaitAborted(context, running.values());
+        }
+        for (Map.Entry<Integer, CompletableFuture<CsvFile>> entry : running.entrySet()) {
+            done.put(entry.getKey(), timedOut(started.get(entry.getKey())));
+        }
+        merged = mergeReady(done, started, merged);
+        // URLs that were never started are listed as timed out too, so that every URL is accounted for
+        while (hasMoreUrls()) {
+            done.put(merged, timedOut(urls.next()));
+            merged = mergeReady(done, started, merged);
+        }
+    }
+
+    /***
+     * Drops the http requests of the readers still running at the deadline, and waits (a little) for the readers to
+     * notice - so they are done before the context is closed, rather than still writing to it afterwards. A reader
+     * that can't be stopped that way (e.g. parsing a big local file) is waited for up to ABORT_WAIT_MILLIS.
+     */
+    private static void awaitAborted(ReaderContext context, Collection<CompletableFuture<CsvFile>> readers) {
+        context.abortInFlight();
+        try {
+            CompletableFuture.allOf(readers.toArray(new CompletableFuture<?>[0])).get(ABORT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // their results are not used either way
+        }
+    }
+
+    /***
+     * @return whether there is another URL to read - a URL list that can't be read any further (e.g. a manifest on a
+     * failing disk) ends the list, and the results cover the URLs read up to then
+     */
+    private boolean hasMoreUrls() {
+        if (this.urlsFailed) {
+            return false;
+        }
+        try {
+            return urls.hasNext();
+        } catch (UncheckedIOException e) {
+            System.out.println("Stopped taking URLs - " + e.getMessage() + ": "
+                    + e.getCause().getMessage());
+            this.urlsFailed = true;
+            return false;
+        }
+    }
+
+    private static CsvFile notRead(String url) {
+        CsvFile notRead = new CsvFile(url);
+        notRead.setStatus(CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+        return notRead;
+    }
+
+    private static CsvFile timedOut(String url) {
+        CsvFile timedOut = new CsvFile(url);
+        timedOut.setStatus(CsvFileStatus.TIMED_OUT);
+        return timedOut;
+    }
+
+    /***
+     * Merges the files from the given index on, up to the first file that isn't done yet, and lets them go.
+     * @return the index of the first file not merged
+     */
+    private int mergeReady(Map<Integer, CsvFile> done, Map<Integer, String> started, int from) {
+        List<CsvFile> ready = new ArrayList<>();
+        for (int i = from; done.containsKey(i); i++) {
+            ready.add(done.remove(i));
+            started.remove(i);
+        }
+
+        // a long run of files can become ready at once (e.g. when a slow first file finally completes) - with thousands
+        // of them, the merge is spread across cores as a fork/join tree reduction
+        if (ready.size() >= PARALLEL_REDUCTION_THRESHOLD) {
+            List<PartialSummary> summaries = new ArrayList<>(ready.size());
+            for (CsvFile file : ready) {
+                summaries.add(file.getSummary());
+            }
+            this.summary.merge(ForkJoinPool.commonPool().invoke(new SummaryReducer(summaries)));
         } else {
-            this.medianAge = this.people.get(middleIndex).getAge();
+            for (CsvFile file : ready) {
+                this.summary.merge(file.getSummary());
+            }
+        }
+
+        for (CsvFile file : ready) {
+            countFile(file);
+            // either printed now and dropped, or kept (in list order) in case we want to do something with them later on
+            if (options.isStreamFileSummaries()) {
+                printFileSummary(this.fileCount, file);
+            } else {
+                this.files.add(file);
+            }
+        }
+        return from + ready.size();
+    }
+
+    /***
+     * Adds the file to the counts the metrics are printed from, which don't need the files to be kept.
+     */
+    private void countFile(CsvFile file) {
+        this.fileCount++;
+        if (options.getGroupBy() != null) {
+            GroupStats sourceGroup = GroupAggregator.bySource(file);
+            if (sourceGroup != null) {
+                if (this.sourceGroups == null) {
+                    this.sourceGroups = new ArrayList<>();
+                }
+                this.sourceGroups.add(sourceGroup);
+            }
+            if (!options.isStreaming() && !file.getSummary().isEmpty() && !file.hasRecords()) {
+                this.filesWithoutRecords++;
+                this.peopleWithoutRecords += file.getSummary().getCount();
+            }
+        }
+        this.fileMetrics.record(file);
+        if (file.getAttempts() > 1) {
+            this.retries += file.getAttempts() - 1;
+            this.retriedFiles++;
         }
+        if (file.getStatus() == CsvFileStatus.TIMED_OUT) {
+            this.timedOutFiles++;
+        } else if (file.getStatus() == CsvFileStatus.PROCESSED_VALID || file.getStatus() == CsvFileStatus.PROCESSED_WITH_INVALID_INPUT
+                || file.getStatus() == CsvFileStatus.EMPTY) {
+            this.readRecords += file.getSummary().getCount() + file.getMalformedCount();
+            this.readFiles++;
+        }
+    }
+
+    /***
+     * @return the most files that may be started but not yet merged - several times the files allowed in flight, so
+     * that the scheduler has files of other hosts to choose from when one host is at its cap
+     */
+    int getAdmissionWindow() {
+        return ADMISSION_WINDOW_FACTOR * getMaxInFlight();
+    }
+
+    private ReaderExecutor createReaderExecutor() {
+        if (options.isVirtualThreads()) {
+            if (VirtualThreadExecutor.isSupported()) {
+                return new VirtualThreadExecutor(options.getMaxConnections());
+            }
+            System.out.println("Virtual threads need Java 21 or newer - falling back to the fetch/parse thread pools.");
+        }
+
+        return new FetchParsePipeline(options.getIoThreads(), options.getParseThreads(), options.getHandoffCapacity());
+    }
+
+    private int getMaxInFlight() {
+        if (options.getMaxInFlight() > 0) {
+            return options.getMaxInFlight();
+        }
+        // enough to keep every thread of the executor busy, which is what it was before there was a scheduler
+        return readerExecutor instanceof VirtualThreadExecutor ? options.getMaxConnections() : options.getIoThreads() + options.getParseThreads();
+    }
+
+    private void calculateMedianAndAverages() {
+        AgeHistogram histogram = this.summary.getHistogram();
+
+        // the histogram keeps a running sum and a count per age, so no sort is needed: the median is found by walking
+        // the (bounded) age buckets. O(MAX_AGE) rather than O(nlogn) where n is the total number of people in all files
+        this.averageAge = histogram.getAverage();
+
+        // if the number of people is odd, then the median is the middle age
+        // if the number of people is even, then the median is the average of the two middle ages
+        this.medianAge = histogram.getMedian();
 
         // Get a person with the median age.
         // Note: this may be null in the case of an even number of people wherein no one in the list has the
         // averaged median age.
-        this.medianPerson = people.stream().filter(p -> p.getAge() == medianAge).findFirst().orElse(null);
+        this.medianPerson = histogram.getMedianPerson();
     }
 
     public void printMedianAndAverageAges() {
@@ -105,8 +473,16 @@ public class CsvProcessor {
         System.out.println("===================================");
         System.out.println();
 
+        // a result that is missing files has to say so, or it reads like the real thing
+        if (getTimedOutFiles() > 0) {
+            System.out.printf("- PARTIAL RESULT: covers an estimated %.1f%% of records (%d of %d files timed out)%n",
+                    getRecordCoverage() * 100, getTimedOutFiles(), this.fileCount);
+        }
         System.out.printf("- The average age is %.2f%n", averageAge);
         System.out.printf("- The median age: %.2f%n", medianAge);
+        if (!summary.isEmpty()) {
+            System.out.println("- The youngest age is " + summary.getMinAge() + " and the oldest age is " + summary.getMaxAge());
+        }
         if (medianPerson != null) {
             System.out.println("- One person with the median age is " + medianPerson.getFirstName() + " " + medianPerson.getLastName());
         } else {
@@ -116,29 +492,101 @@ public class CsvProcessor {
         System.out.println();
     }
 
+    /***
+     * Prints the largest groups of the group report, if one was asked for (see CsvProcessorOptions.setGroupBy()).
+     */
+    public void printGroups() {
+        GroupBy groupBy = options.getGroupBy();
+        if (groupBy == null) {
+            return;
+        }
+
+        System.out.println("===================================");
+        System.out.println("\tGROUPS BY " + groupBy.getOptionName().replace('-', ' ').toUpperCase());
+        System.out.println("===================================");
+        System.out.println();
+
+        if (groupBy.needsRecords() && options.isStreaming()) {
+            System.out.println("- Grouping by " + groupBy.getOptionName() + " needs the people kept, which streaming doesn't do.");
+            System.out.println();
+            return;
+        }
+        if (groupBy.needsRecords() && options.isStreamFileSummaries()) {
+            System.out.println("- Grouping by " + groupBy.getOptionName() + " needs the files kept, which streaming the file summaries doesn't do.");
+            System.out.println();
+            return;
+        }
+        // their people are in the overall ages, but there are no names to group them by
+        if (groupBy.needsRecords() && this.filesWithoutRecords > 0) {
+            System.out.println("- PARTIAL RESULT: " + this.peopleWithoutRecords + " people from " + this.filesWithoutRecords
+                    + " files restored from the checkpoint journal or result cache have no names kept, and are left out of the groups");
+        }
+
+        long startNanos = System.nanoTime();
+        List<GroupStats> groups = getGroups(groupBy);
+        List<GroupStats> top = GroupAggregator.top(groups, options.getTopGroups());
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        System.out.println("- " + groups.size() + " groups (aggregated in " + elapsedMillis + " milliseconds), the " + top.size() + " largest:");
+        for (GroupStats group : top) {
+            System.out.println("\t- " + group);
+        }
+        System.out.println();
+    }
+
+    /***
+     * Prints a summary of every file. With streamed file summaries, they were already printed as the files were read,
+     * and this does nothing.
+     */
     public void printFileSummaries() {
+        if (options.isStreamFileSummaries()) {
+            return;
+        }
+
+        printFileSummariesHeader();
+        for (int i = 0; i < this.files.size(); i++) {
+            printFileSummary(i + 1, this.files.get(i));
+        }
+    }
+
+    private static void printFileSummariesHeader() {
         System.out.println("===================================");
         System.out.println("\tFILE SUMMARIES ");
         System.out.println("===================================");
         System.out.println();
+    }
 
-        for (int i = 0; i < this.files.size(); i++) {
-            CsvFile file = this.files.get(i);
-            System.out.println(" File #" + (i + 1) + ":");
-            System.out.println("\tURL: " + file.getUrl());
-            System.out.println("\tStatus: " + file.getStatus().getStatusMessage());
-            if (file.getResponseCode() != null) {
-                System.out.println("\tResponse code: " + file.getResponseCode());
-            }
-            if (!file.getPeople().isEmpty()) {
-                System.out.println("\tNumber of people in file (accepted): " + file.getPeople().size());
-            }
+    private static void printFileSummary(long number, CsvFile file) {
+        System.out.println(" File #" + number + ":");
+        System.out.println("\tURL: " + file.getUrl());
+        System.out.println("\tStatus: " + file.getStatus().getStatusMessage());
+        if (file.getResponseCode() != null) {
+            System.out.println("\tResponse code: " + file.getResponseCode());
+        }
+        if (file.getAttempts() > 0) {
+            System.out.println("\tAttempts: " + file.getAttempts() + (file.isHedged() ? " (hedged)" : ""));
+        }
+        if (!file.getSummary().isEmpty()) {
+            System.out.println("\tNumber of people in file (accepted): " + file.getSummary().getCount());
+        }
+
+        if (file.getMalformedCount() > 0) {
+            printMalformedLines(file.getMalformedLines());
+        }
 
-            if (!file.getMalformedData().isEmpty()) {
-                System.out.println("\tNumber of malformed lines / invalid input (rejected): " + file.getMalformedData().size());
+        System.out.println();
+    }
+
+    private static void printMalformedLines(MalformedLineStats malformedLines) {
+        System.out.println("\tNumber of malformed lines / invalid input (rejected): " + malformedLines.getCount());
+        for (MalformedReason reason : MalformedReason.values()) {
+            if (malformedLines.getCount(reason) > 0) {
+                System.out.println("\t\t- " + reason.getDescription() + ": " + malformedLines.getCount(reason));
             }
+        }
 
-            System.out.println();
+        System.out.println("\tFirst rejected lines:");
+        for (MalformedLine line : malformedLines.getSamples()) {
+            System.out.println("\t\t- at byte " + line.getByteOffset() + " (" + line.getReason().getDescription() + "): " + line.getText());
         }
     }
 
@@ -154,15 +602,90 @@ public class CsvProcessor {
 
         System.out.println("- Time taken: " + elapsedTimeNano + " nanoseconds (" + elapsedTimeMillis + " milliseconds)");
 
-        // java does a good job of keeping this information handy within the executor service internals
-        System.out.println("- Max # of threads used: " + this.executorService.getLargestPoolSize());
+        this.readerExecutor.printMetrics();
+        this.scheduler.printMetrics();
+        System.out.println("- HTTP backend: " + this.options.getHttpBackend().getOptionName());
+        printTransferStats();
+        printRetryStats();
+        if (getTimedOutFiles() > 0) {
+            System.out.println("- Timed out: " + getTimedOutFiles() + " of " + this.fileCount + " files"
+                    + String.format(" (results cover an estimated %.1f%% of records)", getRecordCoverage() * 100));
+        }
+        if (this.resultCache != null) {
+            System.out.println("- Result cache: " + this.resultCache.getHits() + " hits (not modified), " + this.resultCache.getMisses()
+                    + " misses, " + this.resultCache.getEvictions() + " evicted");
+        }
+        if (this.checkpoint != null) {
+            System.out.println("- Checkpoint: " + this.restoredFiles + " files restored from the journal, " + this.checkpoint.getAppended()
+                    + " appended in " + this.checkpoint.getSyncs() + " synced batches");
+        }
+        this.fileMetrics.printMetrics();
         System.out.println();
     }
 
+    private void printTransferStats() {
+        long transferred = this.transferStats.getTransferredBytes();
+        long uncompressed = this.transferStats.getUncompressedBytes();
+        System.out.println("- Bytes read: " + transferred + " as transferred, " + uncompressed + " uncompressed");
+
+        // only worth a ratio if anything was actually compressed
+        if (this.transferStats.getCompressedFiles() > 0 && transferred > 0) {
+            System.out.println("- Compressed files: " + this.transferStats.getCompressedFiles()
+                    + String.format(" (%.1fx less to transfer overall)", (double) uncompressed / transferred));
+        }
+    }
+
+    private void printRetryStats() {
+        System.out.println("- Retries: " + this.retries + " (of " + this.retriedFiles + " files)");
+
+        if (this.hedger.isEnabled()) {
+            System.out.println("- Hedged requests: " + this.hedger.getHedges() + " sent, " + this.hedger.getHedgeWins()
+                    + " answered before the original");
+        }
+    }
+
+    /***
+     * @return how many files timed out (or were not read before the job deadline), and so are missing from the results
+     */
+    public long getTimedOutFiles() {
+        return this.timedOutFiles;
+    }
+
+    /***
+     * The fraction of all records that the results are computed over. The records of a file that timed out are not
+     * known, so each is assumed to have as many as the average file that was read.
+     * @return 1 if nothing timed out, otherwise an estimate between 0 and 1
+     */
+    public double getRecordCoverage() {
+        if (this.timedOutFiles == 0) {
+            return 1;
+        }
+        if (this.readRecords == 0) {
+            return 0;
+        }
+
+        double missingRecords = (double) this.readRecords / this.readFiles * this.timedOutFiles;
+        return this.readRecords / (this.readRecords + missingRecords);
+    }
+
+    /***
+     * @return the files read, in URL order - empty if their summaries were streamed out instead of kept
+     */
     public List<CsvFile> getFiles() {
         return files;
     }
 
+    /***
+     * @return how many files (URLs) there were, whether or not they were kept
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public PartialSummary getSummary() {
+        return summary;
+    }
+
     public double getMedianAge() {
         return medianAge;
     }
@@ -175,7 +698,103 @@ public class CsvProcessor {
         return medianPerson;
     }
 
+    /***
+     * @return queries (percentiles, the oldest people, ...) over everyone kept from the files read, in URL order -
+     * nobody if the files were read streaming, or their summaries streamed out
+     */
+    public RecordQueries getRecordQueries() {
+        return new RecordQueries(getRecordStores());
+    }
+
+    /***
+     * @return a group for each last name, first name or file of the people kept from the files read, in no particular
+     * order (see GroupAggregator) - names are aggregated on as many threads as there are parse threads. Files whose
+     * people were not kept (see getFilesWithoutRecords()) are only in the groups by file.
+     */
+    public List<GroupStats> getGroups(GroupBy groupBy) {
+        if (groupBy == GroupBy.SOURCE) {
+            // built as the files were merged when a group report was asked for, so streamed out files are in it too
+            if (options.getGroupBy() != null) {
+                return this.sourceGroups == null ? new ArrayList<>() : this.sourceGroups;
+            }
+            return GroupAggregator.bySource(files);
+        }
+        GroupAggregator aggregator = new GroupAggregator(options.getParseThreads());
+        return groupBy == GroupBy.LAST_NAME ? aggregator.byLastName(getRecordStores()) : aggregator.byFirstName(getRecordStores());
+    }
+
+    private List<PersonStore> getRecordStores() {
+        List<PersonStore> stores = new ArrayList<>();
+        for (CsvFile file : files) {
+            if (file.hasRecords()) {
+                stores.add(file.getRecords());
+            }
+        }
+        return stores;
+    }
+
+    /***
+     * @return the executor of the I/O (fetch) stage, which has one thread per concurrently fetched file - or null if
+     * the files were not read through the fetch/parse pipeline
+     */
     public ThreadPoolExecutor getExecutorService() {
-        return executorService;
+        FetchParsePipeline pipeline = getPipeline();
+        return pipeline == null ? null : pipeline.getIoExecutor();
+    }
+
+    public FetchParsePipeline getPipeline() {
+        return readerExecutor instanceof FetchParsePipeline ? (FetchParsePipeline) readerExecutor : null;
+    }
+
+    public HostScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ReaderExecutor getReaderExecutor() {
+        return readerExecutor;
+    }
+
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    /***
+     * @return the running totals kept while the files completed
+     */
+    public ProgressReporter getProgress() {
+        return progress;
+    }
+
+    /***
+     * @return with a group report asked for, how many files with people in them had none kept to group by name -
+     * restored from the checkpoint journal or the result cache, which only keep the summaries
+     */
+    public long getFilesWithoutRecords() {
+        return filesWithoutRecords;
+    }
+
+    /***
+     * @return how many files were taken from the checkpoint journal instead of being read
+     */
+    public long getRestoredFiles() {
+        return restoredFiles;
+    }
+
+    /***
+     * @return the per-file timings, sizes and rates of the last run
+     */
+    public FileMetrics getFileMetrics() {
+        return fileMetrics;
+    }
+
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /***
+     * @return the result cache used by the last run, or null if results were not cached
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
     }
 }
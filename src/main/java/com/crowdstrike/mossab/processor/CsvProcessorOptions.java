@@ -0,0 +1,455 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.fetch.HttpBackendType;
+
+/***
+ * Knobs for a CsvProcessor run. A plain `new CsvProcessor(urls)` uses the defaults, so only the options that need
+ * changing have to be set.
+ * Setters throw an IllegalArgumentException for values that can't work (e.g. no threads at all), rather than leaving
+ * the run to hang or crash on them.
+ * <p>
+ * By default every person is kept, on the heap, and files are read on a pipeline of 16 fetch threads and a parse
+ * thread per core, at most 8 files from one host at once. Http bodies are asked for compressed, connecting times out
+ * after 10s and waiting for a response (or for each read of its body) after 30s, and failed requests are made up to 3
+ * times. Local files of 64MB or more are memory-mapped and parsed on all cores. Nothing is cached, hedged, journaled,
+ * aborted early or cut off by a deadline. Whatever the options, ages outside [0, AgeHistogram.MAX_AGE] are malformed.
+ */
+public class CsvProcessorOptions implements Cloneable {
+    // when streaming, readers only fold rows into per-file age histograms and do not keep Person objects around
+    private boolean streaming;
+    // keep the parsed people (their age and name columns, and the names) in direct buffers instead of on the heap
+    private boolean offHeapRecords;
+    // what to group people by for the group report (null for no report), and how many of the largest groups it shows
+    private GroupBy groupBy;
+    private int topGroups = 10;
+    // threads (and so maximum in-flight fetches) in the I/O stage of the pipeline
+    private int ioThreads = 16;
+    // threads in the parse stage of the pipeline - parsing is CPU bound, so one per core
+    private int parseThreads = Runtime.getRuntime().availableProcessors();
+    // fetched bodies that may wait for a parse thread before fetch threads are held back
+    private int handoffCapacity = 2 * Runtime.getRuntime().availableProcessors();
+    // run each reader on its own virtual thread instead of the fetch/parse pipeline (needs Java 21+ at runtime)
+    private boolean virtualThreads;
+    // with virtual threads, the cap on concurrently open connections
+    private int maxConnections = 1000;
+    // the most files from one host that are fetched at once (negative for no cap)
+    private int perHostConnections = 8;
+    // the most files that are fetched and parsed at once overall (negative to fill every fetch/parse thread, or every
+    // virtual thread connection)
+    private int maxInFlight = -1;
+    // keep adjusting the number of remote files in flight to the observed latency and errors (up to maxInFlight) - off
+    // by default, since it starts well below maxInFlight and a run of a few quick files never gets to grow it
+    private boolean adaptiveConcurrency = false;
+    // which http implementation fetches http(s) URLs
+    private HttpBackendType httpBackend = HttpBackendType.URL_CONNECTION;
+    // local files at least this many bytes are memory-mapped and parsed on all cores (negative to never do so)
+    private long mmapThreshold = 64L * 1024 * 1024;
+    // remote files at least this many bytes are downloaded as concurrent byte ranges (negative to never do so)
+    private long rangedThreshold = -1;
+    // how many ranges a ranged download is split into, which is also the number of range download threads
+    private int rangeConnections = 4;
+    // ask http servers for a gzip/deflate compressed body
+    private boolean compression = true;
+    // directory of the on-disk result cache for http(s) files, or null to not cache
+    private String cacheDirectory;
+    // the cache's entries are evicted (least recently used first) once they add up to more than this many bytes
+    private long cacheMaxBytes = 256L * 1024 * 1024;
+    // how long to wait for an http connection to be established (0 to wait forever)
+    private int connectTimeoutMillis = 10_000;
+    // how long to wait for an http response, and then for each read of its body (0 to wait forever)
+    private int readTimeoutMillis = 30_000;
+    // the total time one http request may take, body included (negative for no limit)
+    private long transferTimeoutMillis = -1;
+    // the time the whole run may take - files not read by then are reported as timed out (negative for no limit)
+    private long jobDeadlineMillis = -1;
+    // how often a progress line is printed while files complete (negative to never print one)
+    private long progressIntervalMillis = -1;
+    // print each file's summary as soon as it is merged and let the file go, instead of keeping every file until the end
+    private boolean streamFileSummaries;
+    // where the per-file timings, sizes and rates are written once the run is done (null to not write them)
+    private String metricsFile;
+    // the format the metrics file is written in
+    private MetricsFormat metricsFormat = MetricsFormat.JSON;
+    // the journal each finished file is appended to, so an interrupted run can be resumed (null for no journal)
+    private String checkpointFile;
+    // replay the checkpoint journal and only read the files it doesn't have, instead of starting it afresh
+    private boolean resume;
+    // how many journal records are written before they are synced to disk (they are at least every second too)
+    private int checkpointBatchSize = 100;
+    // how many times an http(s) file is requested before a retryable failure (5xx, 429, connection reset) is final
+    private int maxAttempts = 3;
+    // the wait before the first retry, doubled for every retry after it (with random jitter)
+    private long retryBaseDelayMillis = 100;
+    // the longest wait between retries, including waits asked for with Retry-After
+    private long retryMaxDelayMillis = 10_000;
+    // requests slower than this latency percentile (0-100) of the completed ones get a duplicate request (negative to never)
+    private double hedgePercentile = -1;
+    // early abort: give up on files that don't start with the "fname, lname, age" header
+    private boolean requireHeader;
+    // early abort: give up on http responses whose Content-Type is not CSV or plain text
+    private boolean requireCsvContentType;
+    // early abort: give up on files larger than this many bytes (negative for no limit)
+    private long maxBodySize = -1;
+    // early abort: give up on files where more than this fraction of the first lines is malformed (negative to never)
+    private double maxMalformedRatio = -1;
+    // how many lines the malformed ratio is measured over
+    private int malformedRatioLines = 1000;
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isOffHeapRecords() {
+        return offHeapRecords;
+    }
+
+    public void setOffHeapRecords(boolean offHeapRecords) {
+        this.offHeapRecords = offHeapRecords;
+    }
+
+    public GroupBy getGroupBy() {
+        return groupBy;
+    }
+
+    public void setGroupBy(GroupBy groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    public int getTopGroups() {
+        return topGroups;
+    }
+
+    public void setTopGroups(int topGroups) {
+        requireAtLeast("top groups", topGroups, 0);
+        this.topGroups = topGroups;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        requireAtLeast("io threads", ioThreads, 1);
+        this.ioThreads = ioThreads;
+    }
+
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    public void setParseThreads(int parseThreads) {
+        requireAtLeast("parse threads", parseThreads, 1);
+        this.parseThreads = parseThreads;
+    }
+
+    public int getHandoffCapacity() {
+        return handoffCapacity;
+    }
+
+    public void setHandoffCapacity(int handoffCapacity) {
+        requireAtLeast("handoff capacity", handoffCapacity, 1);
+        this.handoffCapacity = handoffCapacity;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        requireAtLeast("max connections", maxConnections, 1);
+        this.maxConnections = maxConnections;
+    }
+
+    public HttpBackendType getHttpBackend() {
+        return httpBackend;
+    }
+
+    public void setHttpBackend(HttpBackendType httpBackend) {
+        this.httpBackend = httpBackend;
+    }
+
+    public long getMmapThreshold() {
+        return mmapThreshold;
+    }
+
+    public void setMmapThreshold(long mmapThreshold) {
+        this.mmapThreshold = mmapThreshold;
+    }
+
+    public long getRangedThreshold() {
+        return rangedThreshold;
+    }
+
+    public void setRangedThreshold(long rangedThreshold) {
+        this.rangedThreshold = rangedThreshold;
+    }
+
+    public int getRangeConnections() {
+        return rangeConnections;
+    }
+
+    public void setRangeConnections(int rangeConnections) {
+        requireAtLeast("range connections", rangeConnections, 1);
+        this.rangeConnections = rangeConnections;
+    }
+
+    public boolean isRequireHeader() {
+        return requireHeader;
+    }
+
+    public void setRequireHeader(boolean requireHeader) {
+        this.requireHeader = requireHeader;
+    }
+
+    public boolean isRequireCsvContentType() {
+        return requireCsvContentType;
+    }
+
+    public void setRequireCsvContentType(boolean requireCsvContentType) {
+        this.requireCsvContentType = requireCsvContentType;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public void setMaxBodySize(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    public double getMaxMalformedRatio() {
+        return maxMalformedRatio;
+    }
+
+    public void setMaxMalformedRatio(double maxMalformedRatio) {
+        if (maxMalformedRatio > 1 || Double.isNaN(maxMalformedRatio)) {
+            throw new IllegalArgumentException("max malformed ratio must be at most 1, or negative to never check it: " + maxMalformedRatio);
+        }
+        this.maxMalformedRatio = maxMalformedRatio;
+    }
+
+    public int getMalformedRatioLines() {
+        return malformedRatioLines;
+    }
+
+    public void setMalformedRatioLines(int malformedRatioLines) {
+        requireAtLeast("malformed ratio lines", malformedRatioLines, 1);
+        this.malformedRatioLines = malformedRatioLines;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public void setCacheMaxBytes(long cacheMaxBytes) {
+        requireAtLeast("cache max size", cacheMaxBytes, 0);
+        this.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        requireAtLeast("connect timeout", connectTimeoutMillis, 0);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        requireAtLeast("read timeout", readTimeoutMillis, 0);
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public long getTransferTimeoutMillis() {
+        return transferTimeoutMillis;
+    }
+
+    public void setTransferTimeoutMillis(long transferTimeoutMillis) {
+        this.transferTimeoutMillis = transferTimeoutMillis;
+    }
+
+    public long getJobDeadlineMillis() {
+        return jobDeadlineMillis;
+    }
+
+    public void setJobDeadlineMillis(long jobDeadlineMillis) {
+        this.jobDeadlineMillis = jobDeadlineMillis;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    public void setProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+    }
+
+    public boolean isStreamFileSummaries() {
+        return streamFileSummaries;
+    }
+
+    public void setStreamFileSummaries(boolean streamFileSummaries) {
+        this.streamFileSummaries = streamFileSummaries;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public void setMetricsFile(String metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    public MetricsFormat getMetricsFormat() {
+        return metricsFormat;
+    }
+
+    public void setMetricsFormat(MetricsFormat metricsFormat) {
+        this.metricsFormat = metricsFormat;
+    }
+
+    public String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public void setCheckpointFile(String checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public int getCheckpointBatchSize() {
+        return checkpointBatchSize;
+    }
+
+    public void setCheckpointBatchSize(int checkpointBatchSize) {
+        requireAtLeast("checkpoint batch size", checkpointBatchSize, 1);
+        this.checkpointBatchSize = checkpointBatchSize;
+    }
+
+    public int getPerHostConnections() {
+        return perHostConnections;
+    }
+
+    public void setPerHostConnections(int perHostConnections) {
+        requireNotZero("per host connections", perHostConnections);
+        this.perHostConnections = perHostConnections;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        requireNotZero("max in flight", maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        requireAtLeast("max attempts", maxAttempts, 1);
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getRetryBaseDelayMillis() {
+        return retryBaseDelayMillis;
+    }
+
+    public void setRetryBaseDelayMillis(long retryBaseDelayMillis) {
+        requireAtLeast("retry base delay", retryBaseDelayMillis, 0);
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    public long getRetryMaxDelayMillis() {
+        return retryMaxDelayMillis;
+    }
+
+    public void setRetryMaxDelayMillis(long retryMaxDelayMillis) {
+        requireAtLeast("retry max delay", retryMaxDelayMillis, 0);
+        this.retryMaxDelayMillis = retryMaxDelayMillis;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile > 100 || Double.isNaN(hedgePercentile)) {
+            throw new IllegalArgumentException("hedge percentile must be at most 100, or negative to never hedge: " + hedgePercentile);
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    private static void requireAtLeast(String name, long value, long min) {
+        if (value < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ": " + value);
+        }
+    }
+
+    // for the options where a negative value turns the limit off, but 0 would stop everything
+    private static void requireNotZero(String name, long value) {
+        if (value == 0) {
+            throw new IllegalArgumentException(name + " must not be 0 (negative for no limit)");
+        }
+    }
+
+    /***
+     * @return a copy of these options, which can be changed without changing these
+     */
+    public CsvProcessorOptions copy() {
+        try {
+            return (CsvProcessorOptions) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,23 +1,85 @@
 package com.crowdstrike.mossab.processor;
 
+import com.crowdstrike.mossab.fetch.FetchResponse;
+import com.crowdstrike.mossab.fetch.HttpBackend;
 import com.crowdstrike.mossab.model.CsvFile;
 import com.crowdstrike.mossab.model.CsvFileStatus;
-import com.crowdstrike.mossab.model.Person;
+import com.crowdstrike.mossab.model.FilePhase;
 
 import java.io.*;
-import java.net.*;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 /***
  * This is the individual task that reads in a file concurrently. This class is passed in to the ThreadPoolExecutor
  * in the CsvProcessor, and returns a CsvFile with the status of the result, as well as all the people and malformed
  * data within the file.
+ * <p>
+ * Every accepted person is folded into the CsvFile's PartialSummary. When people are not retained (streaming mode), the
+ * summary is all that is kept, so memory per file no longer grows with the number of rows.
  */
 public class CsvReader implements Callable<CsvFile> {
+    // how much of a body the fetch stage buffers before handing the rest over to the parse stage as a stream
+    static final int MAX_BUFFERED_BODY = 8 * 1024 * 1024;
+
     private final String urlString;
+    private final ReaderContext context;
+    private final CsvProcessorOptions options;
+    private final HttpBackend httpBackend;
+    private final EarlyAbortRules abortRules;
+    private final TransferStats transferStats;
+    private final ResultCache resultCache;
+    private final RetryPolicy retryPolicy;
+    private final RequestHedger hedger;
+    private final Deadline jobDeadline;
+    // when the current request has to be done by - its transfer timeout, or the job deadline if that comes first
+    private Deadline requestDeadline = Deadline.none();
+    // a file is counted as a cache miss once, however many attempts it takes
+    private boolean missRecorded;
+    // for the phase timings: when the reader was created (queued), started, and done fetching, in System.nanoTime()
+    private final long createdNanos = System.nanoTime();
+    private long startedNanos;
+    private long fetchedNanos;
+    // the bytes transferred for this file, over all attempts
+    private final LongAdder fileBytes = new LongAdder();
 
     public CsvReader(String urlString) {
+        this(urlString, new ReaderContext(new CsvProcessorOptions()));
+    }
+
+    /***
+     * @param context what is shared between all readers of a run - the options (e.g. whether people are retained or
+     *                only summarised), the http backend used to fetch http(s) URLs, etc.
+     */
+    public CsvReader(String urlString, ReaderContext context) {
         this.urlString = urlString;
+        this.context = context;
+        this.options = context.getOptions();
+        this.httpBackend = context.getHttpBackend();
+        this.abortRules = context.getAbortRules();
+        this.transferStats = context.getTransferStats();
+        this.resultCache = context.getResultCache();
+        this.retryPolicy = context.getRetryPolicy();
+        this.hedger = context.getHedger();
+        this.jobDeadline = context.getJobDeadline();
+    }
+
+    String getUrl() {
+        return urlString;
     }
 
     /***
@@ -30,104 +92,576 @@ public class CsvReader implements Callable<CsvFile> {
     @Override
     public CsvFile call() {
         // initialization of the CsvFile object that will contain and return all necessary data/info
+        CsvFile csvFile = newCsvFile();
+        started(csvFile);
+
+        // still queued when the job ran out of time - not even started
+        if (jobDeadline.isExpired()) {
+            csvFile.setStatus(CsvFileStatus.TIMED_OUT);
+            return finished(csvFile);
+        }
+
+        readSource(csvFile);
+
+        return finished(csvFile);
+    }
+
+    private CsvFile newCsvFile() {
         CsvFile csvFile = new CsvFile(urlString);
+        csvFile.setOffHeapRecords(options.isOffHeapRecords());
+        return csvFile;
+    }
 
-        // sanity checking the URL string for null or empty
-        // if so, set proper status and return, as no data can be retrieved
-        if (urlString == null || urlString.isEmpty()) {
-            csvFile.setStatus(CsvFileStatus.NULL_OR_EMPTY_URL);
-            return csvFile;
+    private void started(CsvFile csvFile) {
+        startedNanos = System.nanoTime();
+        csvFile.addPhaseNanos(FilePhase.QUEUE_WAIT, startedNanos - createdNanos);
+    }
+
+    private CsvFile finished(CsvFile csvFile) {
+        csvFile.addPhaseNanos(FilePhase.TOTAL, System.nanoTime() - startedNanos);
+        csvFile.setTransferredBytes(csvFile.getTransferredBytes() + fileBytes.sum());
+        return csvFile;
+    }
+
+    /***
+     * The I/O half of call(), used by the staged pipeline. For http(s), the response body is downloaded here so that
+     * parsing doesn't have to wait on the network - up to MAX_BUFFERED_BODY bytes of it. A larger body is handed over
+     * with the rest of the response still open, and the parse stage reads that part as it parses: the parse threads
+     * then do wait on the network, but a handed-over file never holds more than MAX_BUFFERED_BODY in memory, and the
+     * bounded hand-off queue caps how many such files there are. Local files are left to be opened by the parse stage,
+     * as reading from disk does not block in the same way.
+     * <p>
+     * The abort rules are checked as the body arrives (the first lines are screened by a throwaway parser), so the
+     * download of a garbage response is cut off early instead of only being rejected by the parse stage.
+     * <p>
+     * Compressed bodies are kept compressed until the parse stage, which decompresses them as it parses - that is CPU
+     * work, and the buffered body stays several times smaller.
+     * <p>
+     * If the connection fails while the body is being downloaded, the whole request is retried (see request()).
+     *
+     * @return the fetched body, or a FetchedFile with the failure status already set on its CsvFile
+     */
+    FetchedFile fetch() {
+        CsvFile csvFile = newCsvFile();
+        started(csvFile);
+        FetchedFile fetchedFile = fetch(csvFile);
+        fetchedNanos = System.nanoTime();
+        return fetchedFile;
+    }
+
+    private FetchedFile fetch(CsvFile csvFile) {
+        if (jobDeadline.isExpired()) {
+            csvFile.setStatus(CsvFileStatus.TIMED_OUT);
+            return new FetchedFile(csvFile, null, null);
         }
 
-        // reader can either be an InputStreamReader in the case of http(s) or FileReader in the case of file://
-        Reader reader;
+        // a file downloaded in ranges is parsed as the ranges arrive, so it is already done (status is set)
+        if (!isHttp() || downloadRanged(csvFile)) {
+            return new FetchedFile(csvFile, null, null);
+        }
+
+        while (true) {
+            FetchResponse response = request(csvFile);
+            if (response == null) {
+                return new FetchedFile(csvFile, null, null);
+            }
 
-        if (urlString.startsWith("http://") || urlString.startsWith("https://")) {
             try {
-                // open HttpURLConnection and set the reader to be used later
-                URL url = new URL(urlString);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-                // since this is http(s), I store the response code since that is relevant info we'd want to know
-                int responseCode = connection.getResponseCode();
-                csvFile.setResponseCode(responseCode);
-
-                // if we don't get a 200, nothing to be done - set status and return
-                if (responseCode != HttpURLConnection.HTTP_OK) {
-                    csvFile.setStatus(CsvFileStatus.BAD_RETURN_CODE);
-                    return csvFile;
+                return download(response, csvFile);
+            } catch (IOException e) {
+                if (!retryRead(e, csvFile)) {
+                    csvFile.setStatus(failureStatus(e));
+                    return new FetchedFile(csvFile, null, null);
                 }
+            }
+        }
+    }
 
-                reader = new InputStreamReader(connection.getInputStream());
-            } catch (IOException e) { // making sure to catch exceptions properly and mark statuses accordingly
-                // in production code, these sorts of exceptions would be logged throughout (e.g. logger.log(e.getMessage()))
-                csvFile.setStatus(CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
-                return csvFile;
+    /***
+     * Buffers the body of a 200 response (up to MAX_BUFFERED_BODY bytes), cutting it off as soon as the abort rules
+     * reject it.
+     * @throws IOException if the connection fails while reading
+     */
+    private FetchedFile download(FetchResponse response, CsvFile csvFile) throws IOException {
+        String contentEncoding = response.getHeader("Content-Encoding");
+
+        // the screen reads plain text only, so compressed bodies are screened by the parse stage once decompressed
+        CsvLineParser screen = null;
+        if (abortRules.screensLines() && !Decompression.isCompressed(contentEncoding, urlString)) {
+            screen = new CsvLineParser(new CsvFile(urlString), false, true);
+            screen.setAbortRules(abortRules);
+        }
+
+        long transferStart = System.nanoTime();
+        InputStream body = requestDeadline.guard(transferStats.countTransferred(response.getBody(), fileBytes), urlString);
+        boolean handedOver = false;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = body.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+
+                if (abortRules.getMaxBodySize() >= 0 && buffer.size() > abortRules.getMaxBodySize()) {
+                    csvFile.setStatus(CsvFileStatus.ABORTED_TOO_LARGE);
+                    return new FetchedFile(csvFile, null, null);
+                }
+                // once the first lines have passed, the rest is left to the parse stage
+                if (screen != null && screen.isScreening()) {
+                    screen.feed(chunk, 0, read);
+                    if (screen.getAbortStatus() != null) {
+                        csvFile.setStatus(screen.getAbortStatus());
+                        return new FetchedFile(csvFile, null, null);
+                    }
+                }
+                // the parse stage reads the rest itself - that much of a body has long stopped being worth buffering
+                if (buffer.size() >= MAX_BUFFERED_BODY) {
+                    handedOver = true;
+                    return new FetchedFile(csvFile, buffer.toByteArray(), body, contentEncoding);
+                }
+            }
+            return new FetchedFile(csvFile, buffer.toByteArray(), contentEncoding);
+        } finally {
+            if (!handedOver) {
+                body.close();
+            }
+            csvFile.addPhaseNanos(FilePhase.TRANSFER, System.nanoTime() - transferStart);
+        }
+    }
+
+    /***
+     * The CPU half of call(), used by the staged pipeline. Parses whatever fetch() produced.
+     * @param fetchedFile the output of fetch()
+     * @return the CsvFile with people, malformed data and status filled in
+     */
+    CsvFile parse(FetchedFile fetchedFile) {
+        CsvFile csvFile = fetchedFile.getCsvFile();
+        csvFile.addPhaseNanos(FilePhase.HANDOFF_WAIT, System.nanoTime() - fetchedNanos);
+
+        // the fetch already failed - status was set there
+        if (csvFile.getStatus() != CsvFileStatus.UNPROCESSED) {
+            return finished(csvFile);
+        }
+
+        if (fetchedFile.getBody() != null) {
+            long parseStart = System.nanoTime();
+            InputStream body = new ByteArrayInputStream(fetchedFile.getBody());
+            if (fetchedFile.getRest() != null) {
+                body = new SequenceInputStream(body, fetchedFile.getRest());
+            }
+            try {
+                processStream(decode(body, fetchedFile.getContentEncoding()), csvFile);
+            } catch (IOException e) { // the first part is parsed already, so a failure now isn't retried either
+                csvFile.setStatus(failureStatus(e));
+            } finally {
+                closeQuietly(body);
             }
+            csvFile.addPhaseNanos(FilePhase.PARSE, System.nanoTime() - parseStart);
         } else {
+            readSource(csvFile);
+        }
+        return finished(csvFile);
+    }
+
+    private boolean isHttp() {
+        return urlString != null && (urlString.startsWith("http://") || urlString.startsWith("https://"));
+    }
+
+    /***
+     * Opens and parses the file or URL - very large remote files are downloaded in concurrent ranges, large local files
+     * are memory-mapped and parsed in parallel chunks, and anything else is streamed. A stream from an http(s) URL that
+     * fails part way through is requested and parsed again from the start, if there are attempts left.
+     */
+    private void readSource(CsvFile csvFile) {
+        if (downloadRanged(csvFile)) {
+            return;
+        }
+
+        Path largeLocalFile = largeLocalFile();
+        if (largeLocalFile != null) {
+            long parseStart = System.nanoTime();
+            processMapped(largeLocalFile, csvFile);
+            csvFile.addPhaseNanos(FilePhase.PARSE, System.nanoTime() - parseStart);
+            return;
+        }
+
+        while (true) {
+            InputStream input = open(csvFile);
+            if (input == null) {
+                return;
+            }
+
+            // the body is parsed as it comes in, so the transfer is part of the parse phase here
+            long parseStart = System.nanoTime();
             try {
-                File file = new File(urlString);
-                reader = new FileReader(file);
-            } catch (FileNotFoundException e) {
-                csvFile.setStatus(CsvFileStatus.FILE_NOT_FOUND);
-                return csvFile;
+                processStream(input, csvFile);
+                return;
+            } catch (IOException e) {
+                if (!isHttp() || !retryRead(e, csvFile)) {
+                    csvFile.setStatus(failureStatus(e));
+                    return;
+                }
+            } finally {
+                csvFile.addPhaseNanos(FilePhase.PARSE, System.nanoTime() - parseStart);
             }
         }
+    }
 
-        // a BufferedReader is created from the reader, regardless of file or http, and contents are consumed
-        BufferedReader bufferedReader = new BufferedReader(reader);
-        processReader(bufferedReader, csvFile);
+    /***
+     * Decides whether a response body that failed part way through is worth requesting again, and if so waits first.
+     * @return true if the file should be requested again
+     */
+    private boolean retryRead(IOException e, CsvFile csvFile) {
+        return retryPolicy.isRetryable(e) && retryPolicy.hasAttemptsLeft(csvFile.getAttempts())
+                && retryPolicy.backOff(csvFile.getAttempts(), -1, jobDeadline);
+    }
 
-        return csvFile;
+    /***
+     * @return TIMED_OUT if the failure was a timeout of any kind (connect, read, transfer or job deadline), otherwise
+     * IO_EXCEPTION_RETRIEVING_FILE
+     */
+    private static CsvFileStatus failureStatus(IOException e) {
+        if (e instanceof SocketTimeoutException || e instanceof HttpTimeoutException) {
+            return CsvFileStatus.TIMED_OUT;
+        }
+        return CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE;
     }
 
     /***
-     * Generic method to process CSV files regardless of http or file.
-     * @param reader takes in a reader streaming in the contents of the csv
-     * @param csvFile uses the CsvFile object to store the processed/parsed csv info (people, malformed data, status)
+     * If ranged downloads are turned on, checks the size of the file and whether the server supports ranges with a
+     * HEAD request. Large enough files are then downloaded and parsed in ranges.
+     * @return true if the file was handled here (including failing to download it), false if it should be read as a
+     * single stream instead
      */
-    private void processReader(BufferedReader reader, CsvFile csvFile) {
+    private boolean downloadRanged(CsvFile csvFile) {
+        ExecutorService rangeExecutor = context.getRangeExecutor();
+        // a range of a compressed file can't be decompressed on its own
+        if (rangeExecutor == null || !isHttp() || Decompression.isCompressed(null, urlString)) {
+            return false;
+        }
+        // a file with a cached result is revalidated with a conditional GET instead, which is all it takes if unchanged
+        if (resultCache != null && resultCache.contains(urlString)) {
+            return false;
+        }
+
+        long contentLength;
+        try {
+            FetchResponse probe = httpBackend.head(urlString);
+            String length = probe.getHeader("Content-Length");
+            // a response the abort rules reject is left to the single-stream path to reject (and report)
+            if (probe.getStatusCode() != HttpURLConnection.HTTP_OK || length == null
+                    || !"bytes".equalsIgnoreCase(probe.getHeader("Accept-Ranges")) || abortRules.checkResponse(probe) != null) {
+                return false;
+            }
+            contentLength = Long.parseLong(length.trim());
+            csvFile.setEtag(probe.getHeader("ETag"));
+            csvFile.setLastModified(probe.getHeader("Last-Modified"));
+        } catch (IOException | NumberFormatException e) {
+            // the regular single-stream path will report any real problem with the URL
+            return false;
+        }
+
+        if (contentLength <= 0 || contentLength < options.getRangedThreshold()) {
+            return false;
+        }
+
+        // the ranges are parsed as they arrive, so this is transfer and parse in one
+        long transferStart = System.nanoTime();
         try {
-            reader.readLine(); // to skip header
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // here I debated whether to use a library like Jackson or Apache Commons CSV to read in the
-                // CSVs, but I opted for writing my own code for two reasons
-                // 1) to reduce dependencies as much as possible
-                // 2) to have more fine-grained flexibility and control over the implementation of the process
-
-                // this assumes that the CSVs are comma-delimited
-                // this could be a faulty assumption depending on how new/other CSVs are created, but seems
-                // to be a fair assumption for now. this would need to be expanded to accommodate more delimiter types
-                // if the csv were to be different
-                String[] personInfo = line.split(",");
-                // if there are more than 2 commas/delimiters, the line is malformed and ignored when calculating median/avg
-                if (personInfo.length != 3) {
-                    csvFile.getMalformedData().add(line);
+            RangedCsvDownloader downloader = new RangedCsvDownloader(urlString, httpBackend, rangeExecutor,
+                    options.getRangeConnections(), !options.isStreaming(), retryPolicy);
+            downloader.setAbortRules(abortRules);
+            if (!downloader.download(csvFile, contentLength, jobDeadline)) {
+                return false;
+            }
+            if (downloader.getAbortStatus() != null) {
+                csvFile.setResponseCode(HttpURLConnection.HTTP_OK);
+                csvFile.setStatus(downloader.getAbortStatus());
+                return true;
+            }
+        } catch (IOException e) {
+            csvFile.setStatus(failureStatus(e));
+            return true;
+        } finally {
+            csvFile.addPhaseNanos(FilePhase.TRANSFER, System.nanoTime() - transferStart);
+        }
+
+        transferStats.addUncompressed(contentLength);
+        csvFile.setTransferredBytes(csvFile.getTransferredBytes() + contentLength);
+        csvFile.setResponseCode(HttpURLConnection.HTTP_OK);
+        setParsedStatus(csvFile);
+        return true;
+    }
+
+    /***
+     * @return the path of the local file if it is at least the memory-mapping threshold in size, otherwise null
+     */
+    private Path largeLocalFile() {
+        // a compressed file has to be decompressed front to back, so it can't be split up
+        if (urlString == null || urlString.isEmpty() || isHttp() || options.getMmapThreshold() < 0 || Decompression.isCompressed(null, urlString)) {
+            return null;
+        }
+
+        try {
+            Path path = Paths.get(urlString);
+            return Files.isRegularFile(path) && Files.size(path) >= options.getMmapThreshold() ? path : null;
+        } catch (InvalidPathException | IOException e) {
+            // not something that can be mapped - the regular path will report why it can't be read either
+            return null;
+        }
+    }
+
+    /***
+     * Opens the file or URL for reading.
+     * @param csvFile receives the response code, and the failure status if the source can't be opened
+     * @return the (decompressed) contents of the csv, or null if it could not be opened (status is set on csvFile)
+     */
+    private InputStream open(CsvFile csvFile) {
+        // sanity checking the URL string for null or empty
+        // if so, set proper status and return, as no data can be retrieved
+        if (urlString == null || urlString.isEmpty()) {
+            csvFile.setStatus(CsvFileStatus.NULL_OR_EMPTY_URL);
+            return null;
+        }
+
+        // the stream either comes from the http backend in the case of http(s) or a FileInputStream for files
+        // either way, it is decompressed on the fly if the response or file is compressed
+        if (isHttp()) {
+            FetchResponse response = request(csvFile);
+            if (response == null) {
+                return null;
+            }
+
+            try {
+                InputStream body = requestDeadline.guard(transferStats.countTransferred(response.getBody(), fileBytes), urlString);
+                return decode(body, response.getHeader("Content-Encoding"));
+            } catch (IOException e) {
+                response.close();
+                csvFile.setStatus(CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+                return null;
+            }
+        }
+
+        InputStream file;
+        try {
+            file = new FileInputStream(new File(urlString));
+        } catch (FileNotFoundException e) {
+            csvFile.setStatus(CsvFileStatus.FILE_NOT_FOUND);
+            return null;
+        }
+
+        try {
+            return decode(jobDeadline.guard(transferStats.countTransferred(file, fileBytes), urlString), null);
+        } catch (IOException e) {
+            closeQuietly(file);
+            csvFile.setStatus(CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+            return null;
+        }
+    }
+
+    /***
+     * Sends the GET for an http(s) URL and checks the response. If the result cache has the URL, the GET is made
+     * conditional, and a 304 Not Modified response fills in the CsvFile from the cache.
+     * <p>
+     * Failures that may well go away by themselves (5xx, 429, connection resets) are retried after a backoff, up to the
+     * policy's maximum number of attempts and the job deadline. The attempts are counted on the CsvFile. Each attempt
+     * starts the clock of the transfer timeout, which covers reading the body too.
+     * @param csvFile receives the response code and validators, and the status if the response is not to be read
+     * @return the 200 response, with its body still to be read, or null (status is set on csvFile)
+     */
+    private FetchResponse request(CsvFile csvFile) {
+        Map<String, String> requestHeaders = new HashMap<>();
+        // servers that can compress the CSV are asked to, as it shrinks the download several times over
+        if (options.isCompression()) {
+            requestHeaders.put("Accept-Encoding", Decompression.ACCEPT_ENCODING);
+        }
+        ResultCache.Entry cached = resultCache == null ? null : resultCache.lookup(urlString);
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                requestHeaders.put("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                requestHeaders.put("If-Modified-Since", cached.getLastModified());
+            }
+        }
+
+        resolveHost(csvFile);
+
+        while (true) {
+            int attempt = csvFile.getAttempts() + 1;
+            csvFile.setAttempts(attempt);
+            requestDeadline = Deadline.after(options.getTransferTimeoutMillis()).earlier(jobDeadline);
+
+            FetchResponse response;
+            long sent = System.nanoTime();
+            try {
+                response = hedger.get(httpBackend, urlString, requestHeaders, csvFile);
+                csvFile.setResponseLatencyNanos(System.nanoTime() - sent);
+                csvFile.addPhaseNanos(FilePhase.FIRST_BYTE, csvFile.getResponseLatencyNanos());
+            } catch (IOException e) { // making sure to catch exceptions properly and mark statuses accordingly
+                if (retryPolicy.isRetryable(e) && retryPolicy.hasAttemptsLeft(attempt) && retryPolicy.backOff(attempt, -1, jobDeadline)) {
                     continue;
                 }
+                // in production code, these sorts of exceptions would be logged throughout (e.g. logger.log(e.getMessage()))
+                csvFile.setStatus(failureStatus(e));
+                return null;
+            }
+
+            // since this is http(s), I store the response code since that is relevant info we'd want to know
+            int responseCode = response.getStatusCode();
+            csvFile.setResponseCode(responseCode);
 
-                // if the age is not a number, then the line is malformed
-                try {
-                    int age = Integer.parseInt(personInfo[2].trim());
-                    Person person = new Person(personInfo[0].trim(), personInfo[1].trim(), age);
-                    csvFile.getPeople().add(person);
-                } catch (NumberFormatException nfe) {
-                    csvFile.getMalformedData().add(line);
+            // unchanged since the cached result was stored - no body to download or parse
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                response.close();
+                cached.restoreInto(csvFile);
+                resultCache.recordHit();
+                return null;
+            }
+
+            // the server is overloaded or having a bad moment - wait (as long as it asked to, if it did) and ask again
+            if (retryPolicy.isRetryable(responseCode) && retryPolicy.hasAttemptsLeft(attempt)) {
+                long retryAfter = RetryPolicy.parseRetryAfter(response.getHeader("Retry-After"));
+                response.close();
+                if (retryPolicy.backOff(attempt, retryAfter, jobDeadline)) {
+                    continue;
                 }
+                csvFile.setStatus(CsvFileStatus.BAD_RETURN_CODE);
+                return null;
+            }
+
+            if (resultCache != null && !missRecorded) {
+                resultCache.recordMiss();
+                missRecorded = true;
+            }
+
+            // if we don't get a 200, nothing to be done - set status and return
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                response.close();
+                csvFile.setStatus(CsvFileStatus.BAD_RETURN_CODE);
+                return null;
             }
 
-            // set statuses after processing
-            if (!csvFile.getMalformedData().isEmpty()) {
-                csvFile.setStatus(CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
-            } else if (!csvFile.getPeople().isEmpty()) {
-                csvFile.setStatus(CsvFileStatus.PROCESSED_VALID);
-            } else {
-                csvFile.setStatus(CsvFileStatus.EMPTY);
+            // clearly not a CSV (or far too big) going by the headers - hang up before reading any of the body
+            CsvFileStatus rejected = abortRules.checkResponse(response);
+            if (rejected != null) {
+                response.close();
+                csvFile.setStatus(rejected);
+                return null;
             }
+
+            csvFile.setEtag(response.getHeader("ETag"));
+            csvFile.setLastModified(response.getHeader("Last-Modified"));
+            return response;
+        }
+    }
+
+    /***
+     * Looks up the host's address ahead of the request, to time the DNS lookup on its own - neither http backend says
+     * how long its own took. The JVM caches the address, so the request then doesn't look it up again.
+     */
+    private void resolveHost(CsvFile csvFile) {
+        long start = System.nanoTime();
+        try {
+            String host = new URI(urlString).getHost();
+            if (host != null) {
+                InetAddress.getAllByName(host);
+            }
+        } catch (URISyntaxException | UnknownHostException e) {
+            // the request itself reports what is wrong with the URL or host
+        }
+        csvFile.addPhaseNanos(FilePhase.DNS, System.nanoTime() - start);
+    }
+
+    /***
+     * Decompresses the body or file if need be, and counts its uncompressed bytes.
+     * @param transferred the stream of bytes as they were transferred (already being counted as such)
+     * @param contentEncoding the Content-Encoding of the response, or null for a local file
+     * @throws IOException if the compression is not supported or the data is not what it claims to be
+     */
+    private InputStream decode(InputStream transferred, String contentEncoding) throws IOException {
+        if (!Decompression.isCompressed(contentEncoding, urlString)) {
+            return transferStats.countUncompressed(transferred);
+        }
+
+        transferStats.addCompressedFile();
+        return transferStats.countUncompressed(Decompression.decode(transferred, contentEncoding, urlString));
+    }
+
+    private static void closeQuietly(InputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // already failing - nothing more to report
+        }
+    }
+
+    /***
+     * Generic method to process CSV files regardless of http or file.
+     * @param input takes in a stream of the raw contents of the csv - closed once consumed
+     * @param csvFile uses the CsvFile object to store the processed/parsed csv info (people, malformed data, status)
+     * @throws IOException if reading fails part way through, in which case nothing has been added to csvFile
+     */
+    private void processStream(InputStream input, CsvFile csvFile) throws IOException {
+        // here I debated whether to use a library like Jackson or Apache Commons CSV to read in the
+        // CSVs, but I opted for writing my own code for two reasons
+        // 1) to reduce dependencies as much as possible
+        // 2) to have more fine-grained flexibility and control over the implementation of the process
+        // the parser works on the raw bytes, regardless of file or http, rather than decoding every line to a String
+        // rows are parsed into a scratch CsvFile first, so an aborted (or failed, and then retried) file adds nothing to
+        // the results
+        CsvFile parsed = newCsvFile();
+        CsvLineParser parser = new CsvLineParser(parsed, !options.isStreaming(), true);
+        parser.setAbortRules(abortRules);
+
+        // on abort the parser stops reading, and closing the stream early drops the connection
+        try (InputStream body = input) {
+            parser.parse(body);
+        }
+
+        if (parser.getAbortStatus() != null) {
+            csvFile.setStatus(parser.getAbortStatus());
+            return;
+        }
+        csvFile.merge(parsed);
+
+        setParsedStatus(csvFile);
+    }
+
+    private void processMapped(Path path, CsvFile csvFile) {
+        try {
+            MappedCsvParser parser = new MappedCsvParser(path, !options.isStreaming());
+            parser.setAbortRules(abortRules);
+            parser.parse(csvFile);
+            if (parser.getAbortStatus() != null) {
+                csvFile.setStatus(parser.getAbortStatus());
+                return;
+            }
+            long size = Files.size(path);
+            transferStats.addUncompressed(size);
+            csvFile.setTransferredBytes(csvFile.getTransferredBytes() + size);
         } catch (IOException e) {
             csvFile.setStatus(CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+            return;
+        }
+
+        setParsedStatus(csvFile);
+    }
+
+    private void setParsedStatus(CsvFile csvFile) {
+        // set statuses after processing
+        if (csvFile.getMalformedCount() > 0) {
+            csvFile.setStatus(CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+        } else if (!csvFile.getSummary().isEmpty()) {
+            csvFile.setStatus(CsvFileStatus.PROCESSED_VALID);
+        } else {
+            csvFile.setStatus(CsvFileStatus.EMPTY);
+        }
+
+        // the complete result of an http(s) file can be reused on a later run, if the file hasn't changed by then
+        // (not once the job is out of time: the run reports the file as timed out, and may be closing the cache)
+        if (resultCache != null && isHttp() && !jobDeadline.isExpired()) {
+            resultCache.store(csvFile);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package com.crowdstrike.mossab.processor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * A point in time after which reading should stop: the total transfer time allowed for one request, or the deadline of
+ * the whole job. A stream wrapped with guard() fails with a DeadlineExceededException on the first read after the
+ * deadline. A read that is already blocked is not interrupted by this - that is what the http backend's read timeout
+ * is for - so a stalled transfer is stopped at most one read timeout after its deadline. Once the job deadline has
+ * passed, the CsvProcessor doesn't wait for that: it drops the requests still in flight (see
+ * ReaderContext.abortInFlight()), and the url-connection backend, whose reads can't be dropped, caps its timeouts to
+ * the time left in the job.
+ */
+public class Deadline {
+    private static final Deadline NONE = new Deadline(0, false);
+
+    private final long expiresAtNanos;
+    private final boolean set;
+
+    private Deadline(long expiresAtNanos, boolean set) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.set = set;
+    }
+
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /***
+     * @param millis from now, or negative for no deadline
+     */
+    public static Deadline after(long millis) {
+        return millis < 0 ? NONE : new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    /***
+     * @return whichever of the two deadlines comes first
+     */
+    public Deadline earlier(Deadline other) {
+        if (!other.set) {
+            return this;
+        }
+        if (!set) {
+            return other;
+        }
+        // compared as a difference, as nanoTime may wrap around
+        return expiresAtNanos - other.expiresAtNanos <= 0 ? this : other;
+    }
+
+    public boolean isSet() {
+        return set;
+    }
+
+    public boolean isExpired() {
+        return set && System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /***
+     * @return the milliseconds left (0 once expired), or Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingMillis() {
+        if (!set) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()));
+    }
+
+    /***
+     * @param what the thing being read, for the exception message
+     * @return the stream, failing reads once the deadline has passed
+     */
+    public InputStream guard(InputStream input, String what) {
+        return set ? new GuardedInputStream(input, what) : input;
+    }
+
+    private class GuardedInputStream extends FilterInputStream {
+        private final String what;
+
+        GuardedInputStream(InputStream input, String what) {
+            super(input);
+            this.what = what;
+        }
+
+        private void check() throws DeadlineExceededException {
+            if (isExpired()) {
+                throw new DeadlineExceededException("Deadline passed while reading " + what);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            check();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            check();
+            return super.read(buffer, offset, length);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.crowdstrike.mossab.processor;
+
+import java.net.SocketTimeoutException;
+
+/***
+ * Thrown when a transfer runs past its Deadline. Like any other timeout the file ends up TIMED_OUT, but unlike a read
+ * timeout it is never retried - there is no time left to retry in.
+ */
+public class DeadlineExceededException extends SocketTimeoutException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,159 @@
+package com.crowdstrike.mossab.processor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/***
+ * Turns a compressed body or file into the plain CSV bytes the parser reads, using only what java.util.zip offers:
+ * <ul>
+ *     <li>http responses with a gzip or deflate Content-Encoding</li>
+ *     <li>files (local or remote) named .gz, .zip (the first file in the archive) or .zz/.deflate</li>
+ * </ul>
+ * zstd, brotli, xz and bzip2 would all need an outside library, so files in those formats are refused with an
+ * IOException rather than parsed as garbage - and those encodings are never asked for in Accept-Encoding.
+ */
+public final class Decompression {
+    // what the CsvReader asks http servers for
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String[] UNSUPPORTED_EXTENSIONS = {".zst", ".br", ".xz", ".bz2"};
+
+    private Decompression() {
+    }
+
+    /***
+     * @param contentEncoding the Content-Encoding of the response, or null for a local file
+     * @param name the URL or file name, whose extension says whether the file itself is compressed
+     * @return whether the bytes of the body/file are compressed
+     */
+    public static boolean isCompressed(String contentEncoding, String name) {
+        return !isIdentity(contentEncoding) || fileFormat(name) != null;
+    }
+
+    /***
+     * Wraps the raw input in whatever decompression the Content-Encoding (or, without one, the file name) calls for.
+     * @throws IOException if the encoding or file format is not supported, or the input does not start the way the
+     * format says it should
+     */
+    public static InputStream decode(InputStream raw, String contentEncoding, String name) throws IOException {
+        if (!isIdentity(contentEncoding)) {
+            InputStream decoded;
+            switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+                case "gzip":
+                case "x-gzip":
+                    decoded = new GZIPInputStream(raw, BUFFER_SIZE);
+                    break;
+                case "deflate":
+                    decoded = inflate(raw);
+                    break;
+                default:
+                    throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+            }
+
+            // servers disagree on whether a .gz file sent with "Content-Encoding: gzip" is gzipped once or twice, so
+            // a second layer is only unwrapped if the bytes actually start like one
+            return ".gz".equals(fileFormat(name)) ? gunzipIfGzipped(decoded) : decoded;
+        }
+
+        String format = fileFormat(name);
+        if (format == null) {
+            return raw;
+        }
+        switch (format) {
+            case ".gz":
+                return new GZIPInputStream(raw, BUFFER_SIZE);
+            case ".zip":
+                return firstZipEntry(raw);
+            case ".zz":
+            case ".deflate":
+                return inflate(raw);
+            default:
+                throw new IOException("Reading " + format + " files needs a library this program does not include: " + name);
+        }
+    }
+
+    private static InputStream gunzipIfGzipped(InputStream input) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(input, 2);
+        byte[] magic = new byte[2];
+        int read = pushback.readNBytes(magic, 0, 2);
+        pushback.unread(magic, 0, read);
+
+        boolean gzipped = read == 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B;
+        return gzipped ? new GZIPInputStream(pushback, BUFFER_SIZE) : pushback;
+    }
+
+    private static boolean isIdentity(String contentEncoding) {
+        return contentEncoding == null || contentEncoding.trim().isEmpty() || contentEncoding.trim().equalsIgnoreCase("identity");
+    }
+
+    /***
+     * @return the compressed format's extension (lower case), or null for an uncompressed file
+     */
+    private static String fileFormat(String name) {
+        if (name == null) {
+            return null;
+        }
+
+        // the query string of a URL is not part of the file name
+        int queryIndex = name.indexOf('?');
+        String path = (queryIndex < 0 ? name : name.substring(0, queryIndex)).toLowerCase(Locale.ROOT);
+        for (String extension : new String[]{".gz", ".zip", ".zz", ".deflate"}) {
+            if (path.endsWith(extension)) {
+                return extension;
+            }
+        }
+        for (String extension : UNSUPPORTED_EXTENSIONS) {
+            if (path.endsWith(extension)) {
+                return extension;
+            }
+        }
+        return null;
+    }
+
+    /***
+     * "deflate" is meant to be zlib-wrapped, but some servers send a raw deflate stream - the first two bytes tell which.
+     */
+    private static InputStream inflate(InputStream raw) throws IOException {
+        PushbackInputStream input = new PushbackInputStream(raw, 2);
+        byte[] header = new byte[2];
+        int read = input.readNBytes(header, 0, 2);
+        input.unread(header, 0, read);
+
+        int cmf = header[0] & 0xFF;
+        int flg = header[1] & 0xFF;
+        boolean zlib = read == 2 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+
+        // an Inflater handed to InflaterInputStream is not released by it, so the stream ends it on close
+        Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(input, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static InputStream firstZipEntry(InputStream raw) throws IOException {
+        ZipInputStream zip = new ZipInputStream(raw);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                return zip;
+            }
+        }
+        // an empty archive reads as an empty file
+        return zip;
+    }
+}
@@ -0,0 +1,126 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.fetch.FetchResponse;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+
+import java.util.Locale;
+
+/***
+ * The rules for giving up on a file as soon as it is clearly not one of our CSVs - an HTML error page, a JSON API
+ * response, a huge binary - rather than downloading and parsing all of it. All rules are off by default.
+ * <ul>
+ *     <li>the response's Content-Type must be CSV or plain text (or a compressed file), if it has one</li>
+ *     <li>the response's Content-Length, and the number of bytes actually read, must not exceed the maximum body size</li>
+ *     <li>the first line must be the "fname, lname, age" header</li>
+ *     <li>the fraction of malformed lines among the first N lines must not exceed the maximum ratio</li>
+ * </ul>
+ * Response rules are checked by the CsvReader before reading the body, the others by the CsvLineParser while parsing.
+ * Memory-mapped files are checked on their first chunk, before the other chunks are parsed (see MappedCsvParser), and
+ * files downloaded in ranges on their first range (see RangedCsvDownloader).
+ */
+public class EarlyAbortRules {
+    // including the types compressed CSV files (e.g. file.csv.gz) are served as
+    private static final String[] CSV_CONTENT_TYPES = {"text/csv", "text/plain", "application/csv", "text/comma-separated-values",
+            "application/gzip", "application/x-gzip", "application/zip"};
+    private static final String[] HEADER_FIELDS = {"fname", "lname", "age"};
+
+    private final boolean requireHeader;
+    private final boolean requireCsvContentType;
+    private final long maxBodySize;
+    private final double maxMalformedRatio;
+    private final int malformedRatioLines;
+
+    public EarlyAbortRules(CsvProcessorOptions options) {
+        this.requireHeader = options.isRequireHeader();
+        this.requireCsvContentType = options.isRequireCsvContentType();
+        this.maxBodySize = options.getMaxBodySize();
+        this.maxMalformedRatio = options.getMaxMalformedRatio();
+        this.malformedRatioLines = options.getMalformedRatioLines();
+    }
+
+    /***
+     * Checks the status line and headers of a response, before any of the body is read.
+     * @return the status to abort with, or null if the response may be read
+     */
+    public CsvFileStatus checkResponse(FetchResponse response) {
+        String contentType = response.getHeader("Content-Type");
+        if (requireCsvContentType && contentType != null && !isCsvContentType(contentType)) {
+            return CsvFileStatus.ABORTED_WRONG_CONTENT_TYPE;
+        }
+
+        String contentLength = response.getHeader("Content-Length");
+        if (maxBodySize >= 0 && contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxBodySize) {
+                    return CsvFileStatus.ABORTED_TOO_LARGE;
+                }
+            } catch (NumberFormatException e) {
+                // a nonsense length is left to the byte count while reading
+            }
+        }
+        return null;
+    }
+
+    private static boolean isCsvContentType(String contentType) {
+        // e.g. "text/csv; charset=utf-8"
+        int parametersIndex = contentType.indexOf(';');
+        String mediaType = (parametersIndex < 0 ? contentType : contentType.substring(0, parametersIndex)).trim().toLowerCase(Locale.ROOT);
+        for (String csvContentType : CSV_CONTENT_TYPES) {
+            if (csvContentType.equals(mediaType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /***
+     * @return true if the header line has exactly the fields fname, lname and age (ignoring case, whitespace and
+     * trailing empty fields)
+     */
+    static boolean isExpectedHeader(String header) {
+        // a byte order mark is not part of the first field
+        String[] fields = (header.startsWith("\uFEFF") ? header.substring(1) : header).split(",");
+        if (fields.length != HEADER_FIELDS.length) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (!fields[i].trim().equalsIgnoreCase(HEADER_FIELDS[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isRequireHeader() {
+        return requireHeader;
+    }
+
+    /***
+     * @return the maximum number of bytes in a file, or a negative number for no limit
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /***
+     * @return whether the malformed ratio is checked at all
+     */
+    public boolean isMalformedRatioChecked() {
+        return maxMalformedRatio >= 0 && malformedRatioLines > 0;
+    }
+
+    public double getMaxMalformedRatio() {
+        return maxMalformedRatio;
+    }
+
+    public int getMalformedRatioLines() {
+        return malformedRatioLines;
+    }
+
+    /***
+     * @return whether any of the rules that look at the first lines of the file are on
+     */
+    public boolean screensLines() {
+        return requireHeader || isMalformedRatioChecked();
+    }
+}
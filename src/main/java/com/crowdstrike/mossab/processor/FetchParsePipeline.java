@@ -0,0 +1,102 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * A two-stage pipeline that replaces one-thread-per-URL. Each CsvReader is split in two:
+ * <ol>
+ *     <li>an I/O stage with a fixed number of threads, so at most that many fetches are ever in flight</li>
+ *     <li>a parse stage sized to the number of cores, so parsing is not competing with threads blocked on the network</li>
+ * </ol>
+ * Fetched bodies are handed from one stage to the other through a bounded queue. When the parsers fall behind and the
+ * queue is full, fetch threads block until there is room again (backpressure), which caps how many downloaded bodies
+ * sit in memory at once at roughly ioThreads + handoffCapacity + parseThreads. No body is buffered past
+ * CsvReader.MAX_BUFFERED_BODY either: the rest of a larger one is read by the parse stage, off the open connection.
+ * <p>
+ * The total number of threads is ioThreads + parseThreads, no matter how many URLs are submitted.
+ */
+public class FetchParsePipeline implements ReaderExecutor {
+    private final ThreadPoolExecutor ioExecutor;
+    private final ThreadPoolExecutor parseExecutor;
+
+    public FetchParsePipeline(int ioThreads, int parseThreads, int handoffCapacity) {
+        // fetch tasks waiting for an I/O thread are just CsvReaders (a URL each), so that queue can be unbounded
+        this.ioExecutor = new ThreadPoolExecutor(ioThreads, ioThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new StageThreadFactory("csv-fetch"));
+
+        // parse tasks each hold a whole body, so this is the queue that has to be bounded
+        this.parseExecutor = new ThreadPoolExecutor(parseThreads, parseThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(handoffCapacity), new StageThreadFactory("csv-parse"), new BlockingHandoff());
+    }
+
+    /***
+     * Schedules the fetch of reader's URL on the I/O stage, followed by its parse on the parse stage.
+     * @return a future completing with the parsed CsvFile
+     */
+    @Override
+    public CompletableFuture<CsvFile> submit(CsvReader reader) {
+        return CompletableFuture.supplyAsync(reader::fetch, ioExecutor).thenApplyAsync(reader::parse, parseExecutor);
+    }
+
+    @Override
+    public void shutdown() {
+        ioExecutor.shutdown();
+        parseExecutor.shutdown();
+    }
+
+    @Override
+    public void printMetrics() {
+        // java does a good job of keeping this information handy within the executor service internals
+        System.out.println("- Max # of fetch threads used: " + ioExecutor.getLargestPoolSize());
+        System.out.println("- Max # of parse threads used: " + parseExecutor.getLargestPoolSize());
+    }
+
+    public ThreadPoolExecutor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    public ThreadPoolExecutor getParseExecutor() {
+        return parseExecutor;
+    }
+
+    /***
+     * Instead of rejecting a parse task when the hand-off queue is full, the submitting (fetch) thread waits for room.
+     */
+    private static class BlockingHandoff implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The parse stage has been shut down");
+            }
+
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the parse stage", e);
+            }
+        }
+    }
+
+    /***
+     * Names the threads of each stage, which makes thread dumps of a stuck run a lot easier to read.
+     */
+    private static class StageThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        StageThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+
+import java.io.InputStream;
+
+/***
+ * What the fetch (I/O) stage of the pipeline hands over to the parse (CPU) stage: the CsvFile being built up, and the
+ * downloaded (possibly still compressed) body. The body is null for local files (opened by the parse stage) and for fetches that failed, in which
+ * case the CsvFile already carries the failure status.
+ * <p>
+ * A body too large to buffer whole is handed over as its first part plus the rest of the response, still open, for the
+ * parse stage to read as it parses.
+ */
+class FetchedFile {
+    private final CsvFile csvFile;
+    private final byte[] body;
+    private final InputStream rest;
+    private final String contentEncoding;
+
+    /***
+     * @param contentEncoding the Content-Encoding the body is still in, if any
+     */
+    FetchedFile(CsvFile csvFile, byte[] body, String contentEncoding) {
+        this(csvFile, body, null, contentEncoding);
+    }
+
+    /***
+     * @param rest the part of the body that wasn't buffered, or null if the body is all there - closed by the parse stage
+     */
+    FetchedFile(CsvFile csvFile, byte[] body, InputStream rest, String contentEncoding) {
+        this.csvFile = csvFile;
+        this.body = body;
+        this.rest = rest;
+        this.contentEncoding = contentEncoding;
+    }
+
+    CsvFile getCsvFile() {
+        return csvFile;
+    }
+
+    byte[] getBody() {
+        return body;
+    }
+
+    InputStream getRest() {
+        return rest;
+    }
+
+    String getContentEncoding() {
+        return contentEncoding;
+    }
+}
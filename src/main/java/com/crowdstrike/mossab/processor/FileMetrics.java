@@ -0,0 +1,181 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.FilePhase;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/***
+ * Aggregates the per-file timings of a run into histograms: the time spent in every phase (see FilePhase), the bytes
+ * transferred and the rows per second of each file. They are printed as part of the metrics, and can be written out
+ * for other tools, as JSON or in the Prometheus text format.
+ * <p>
+ * Files are added one at a time by the CsvProcessor as it merges them, so only the histograms are kept - not the files.
+ */
+public class FileMetrics {
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final Map<FilePhase, PercentileHistogram> phases = new EnumMap<>(FilePhase.class);
+    private final Map<CsvFileStatus, Long> statuses = new EnumMap<>(CsvFileStatus.class);
+    private final PercentileHistogram transferredBytes = new PercentileHistogram();
+    private final PercentileHistogram rowsPerSecond = new PercentileHistogram();
+
+    public FileMetrics() {
+        for (FilePhase phase : FilePhase.values()) {
+            phases.put(phase, new PercentileHistogram());
+        }
+    }
+
+    public void record(CsvFile csvFile) {
+        for (FilePhase phase : FilePhase.values()) {
+            long nanos = csvFile.getPhaseNanos(phase);
+            if (nanos >= 0) {
+                phases.get(phase).record(nanos);
+            }
+        }
+        statuses.merge(csvFile.getStatus(), 1L, Long::sum);
+
+        if (csvFile.getTransferredBytes() > 0) {
+            transferredBytes.record(csvFile.getTransferredBytes());
+        }
+        long rows = csvFile.getSummary().getCount() + csvFile.getMalformedCount();
+        long total = csvFile.getPhaseNanos(FilePhase.TOTAL);
+        if (rows > 0 && total > 0) {
+            rowsPerSecond.record(Math.round(rows * 1e9 / total));
+        }
+    }
+
+    public PercentileHistogram getPhase(FilePhase phase) {
+        return phases.get(phase);
+    }
+
+    public PercentileHistogram getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    public PercentileHistogram getRowsPerSecond() {
+        return rowsPerSecond;
+    }
+
+    /***
+     * Prints the phase timings as p50/p90/p99/max, as part of CsvProcessor.printMetrics().
+     */
+    public void printMetrics() {
+        System.out.println("- Per-file timings (p50 / p90 / p99 / max):");
+        for (FilePhase phase : FilePhase.values()) {
+            PercentileHistogram histogram = phases.get(phase);
+            if (histogram.getCount() > 0) {
+                System.out.println("\t- " + phase.getDescription() + ": " + millis(histogram, 50) + " / " + millis(histogram, 90)
+                        + " / " + millis(histogram, 99) + " / " + String.format(Locale.ROOT, "%.1f", histogram.getMax() / 1e6)
+                        + " ms (" + histogram.getCount() + " files)");
+            }
+        }
+        if (rowsPerSecond.getCount() > 0) {
+            System.out.println("\t- Rows per second: " + rowsPerSecond.getPercentile(50) + " / " + rowsPerSecond.getPercentile(90)
+                    + " / " + rowsPerSecond.getPercentile(99) + " / " + rowsPerSecond.getMax());
+        }
+        if (transferredBytes.getCount() > 0) {
+            System.out.println("\t- Bytes transferred: " + transferredBytes.getPercentile(50) + " / " + transferredBytes.getPercentile(90)
+                    + " / " + transferredBytes.getPercentile(99) + " / " + transferredBytes.getMax());
+        }
+    }
+
+    private static String millis(PercentileHistogram histogram, double percentile) {
+        return String.format(Locale.ROOT, "%.1f", histogram.getPercentile(percentile) / 1e6);
+    }
+
+    /***
+     * Writes the metrics as one JSON object. Times are in milliseconds.
+     * @param elapsedNanos the wall clock time of the whole run
+     */
+    public void writeJson(Writer out, long elapsedNanos) throws IOException {
+        out.write("{\n");
+        out.write("  \"elapsed_ms\": " + format(elapsedNanos / 1e6) + ",\n");
+
+        out.write("  \"files\": {");
+        String separator = "";
+        for (Map.Entry<CsvFileStatus, Long> status : statuses.entrySet()) {
+            out.write(separator + "\"" + status.getKey().name().toLowerCase(Locale.ROOT) + "\": " + status.getValue());
+            separator = ", ";
+        }
+        out.write("},\n");
+
+        out.write("  \"phases_ms\": {\n");
+        separator = "";
+        for (FilePhase phase : FilePhase.values()) {
+            if (phases.get(phase).getCount() > 0) {
+                out.write(separator + "    \"" + phase.getMetricName() + "\": " + json(phases.get(phase), 1e6));
+                separator = ",\n";
+            }
+        }
+        out.write("\n  },\n");
+        out.write("  \"rows_per_second\": " + json(rowsPerSecond, 1) + ",\n");
+        out.write("  \"transferred_bytes\": " + json(transferredBytes, 1) + "\n");
+        out.write("}\n");
+    }
+
+    private static String json(PercentileHistogram histogram, double unit) {
+        StringBuilder json = new StringBuilder("{\"count\": ").append(histogram.getCount());
+        for (double percentile : PERCENTILES) {
+            json.append(", \"p").append((int) percentile).append("\": ").append(format(histogram.getPercentile(percentile) / unit));
+        }
+        return json.append(", \"max\": ").append(format(histogram.getMax() / unit))
+                .append(", \"mean\": ").append(format(histogram.getMean() / unit))
+                .append(", \"sum\": ").append(format(histogram.getSum() / unit)).append("}").toString();
+    }
+
+    /***
+     * Writes the metrics in the Prometheus text exposition format, as summaries (times in seconds).
+     * @param elapsedNanos the wall clock time of the whole run
+     */
+    public void writePrometheus(Writer out, long elapsedNanos) throws IOException {
+        out.write("# HELP csv_run_duration_seconds Wall clock time of the run.\n");
+        out.write("# TYPE csv_run_duration_seconds gauge\n");
+        out.write("csv_run_duration_seconds " + format(elapsedNanos / 1e9) + "\n");
+
+        out.write("# HELP csv_files Files read, by final status.\n");
+        out.write("# TYPE csv_files gauge\n");
+        for (Map.Entry<CsvFileStatus, Long> status : statuses.entrySet()) {
+            out.write("csv_files{status=\"" + status.getKey().name().toLowerCase(Locale.ROOT) + "\"} " + status.getValue() + "\n");
+        }
+
+        out.write("# HELP csv_file_phase_seconds Time spent by each file in each phase of being read.\n");
+        out.write("# TYPE csv_file_phase_seconds summary\n");
+        for (FilePhase phase : FilePhase.values()) {
+            if (phases.get(phase).getCount() > 0) {
+                writeSummary(out, "csv_file_phase_seconds", "phase=\"" + phase.getMetricName() + "\",", phases.get(phase), 1e9);
+            }
+        }
+
+        out.write("# HELP csv_file_rows_per_second Rows (people and malformed lines) read per second, per file.\n");
+        out.write("# TYPE csv_file_rows_per_second summary\n");
+        writeSummary(out, "csv_file_rows_per_second", "", rowsPerSecond, 1);
+
+        out.write("# HELP csv_file_transferred_bytes Bytes transferred per file, retries included.\n");
+        out.write("# TYPE csv_file_transferred_bytes summary\n");
+        writeSummary(out, "csv_file_transferred_bytes", "", transferredBytes, 1);
+    }
+
+    private static void writeSummary(Writer out, String name, String labels, PercentileHistogram histogram, double unit) throws IOException {
+        for (double percentile : PERCENTILES) {
+            out.write(name + "{" + labels + "quantile=\"" + format(percentile / 100) + "\"} " + format(histogram.getPercentile(percentile) / unit) + "\n");
+        }
+        out.write(name + "{" + labels + "quantile=\"1\"} " + format(histogram.getMax() / unit) + "\n");
+        String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.write(name + "_sum" + plainLabels + " " + format(histogram.getSum() / unit) + "\n");
+        out.write(name + "_count" + plainLabels + " " + histogram.getCount() + "\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        // e.g. 0.5 rather than 0.500000
+        return String.format(Locale.ROOT, "%.6f", value).replaceAll("0+$", "").replaceAll("\\.$", "");
+    }
+}
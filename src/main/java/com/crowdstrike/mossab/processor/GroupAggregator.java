@@ -0,0 +1,268 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.AgeHistogram;
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.GroupStats;
+import com.crowdstrike.mossab.model.NameDictionary;
+import com.crowdstrike.mossab.model.PersonStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/***
+ * Groups the people kept by a run (see PersonStore) by first or last name, and gives the count, average and median age
+ * of every group. Files can be grouped too (see bySource()), from their summaries alone.
+ * <p>
+ * Names are grouped by their dictionary ids, so no row is ever turned into a String or boxed:
+ * <ol>
+ *     <li>the file dictionaries are merged into one, once per distinct name, giving each file a local-to-global id
+ *     mapping</li>
+ *     <li>the rows are split into chunks, and each thread aggregates the chunks it takes into its own partial: a count
+ *     and a sum array indexed by global id - the dictionaries already did the hashing, so the partial "map" is a pair of
+ *     arrays, and there is one per thread (12 bytes a name each) however many chunks there are</li>
+ *     <li>the partials are merged in parallel, each thread owning a range of the ids, so no locking is needed</li>
+ *     <li>for the medians, every age is copied (2 bytes a person) into one array, grouped by id, and each group's
+ *     slice is sorted - a counting sort for big groups</li>
+ * </ol>
+ */
+public class GroupAggregator {
+    // rows aggregated by one task - enough to be worth a task, few enough for one big file to spread over the cores
+    static final int CHUNK_ROWS = 1 << 18;
+
+    private final int threads;
+
+    public GroupAggregator(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public List<GroupStats> byLastName(List<PersonStore> stores) {
+        return byName(stores, true);
+    }
+
+    public List<GroupStats> byFirstName(List<PersonStore> stores) {
+        return byName(stores, false);
+    }
+
+    /***
+     * @return a group for each file that has people in it, keyed by its URL, in file order
+     */
+    public static List<GroupStats> bySource(List<CsvFile> files) {
+        List<GroupStats> groups = new ArrayList<>();
+        for (CsvFile file : files) {
+            GroupStats group = bySource(file);
+            if (group != null) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /***
+     * @return the file's group, keyed by its URL and made from its summary - or null if it has nobody in it
+     */
+    public static GroupStats bySource(CsvFile file) {
+        AgeHistogram histogram = file.getSummary().getHistogram();
+        if (histogram.isEmpty()) {
+            return null;
+        }
+        return new GroupStats(file.getUrl(), histogram.getCount(), histogram.getSum(), histogram.getMedian());
+    }
+
+    /***
+     * @return the n largest groups, largest first (see GroupStats.LARGEST_FIRST)
+     */
+    public static List<GroupStats> top(List<GroupStats> groups, int n) {
+        List<GroupStats> sorted = new ArrayList<>(groups);
+        sorted.sort(GroupStats.LARGEST_FIRST);
+        return sorted.subList(0, Math.min(Math.max(n, 0), sorted.size()));
+    }
+
+    /***
+     * @return a group per distinct name, in no particular order
+     */
+    private List<GroupStats> byName(List<PersonStore> stores, boolean lastName) {
+        // 1) one dictionary for all files, first, so that every partial can be indexed by the same (global) ids - it
+        // only touches each file's distinct names, so it isn't worth splitting
+        NameDictionary names = new NameDictionary(false);
+        List<Chunk> chunks = new ArrayList<>();
+        for (PersonStore store : stores) {
+            int[] toGlobal = names.internAll(lastName ? store.getLastNames() : store.getFirstNames());
+            for (int from = 0; from < store.size(); from += CHUNK_ROWS) {
+                chunks.add(new Chunk(store, lastName, toGlobal, from, Math.min(store.size(), from + CHUNK_ROWS)));
+            }
+        }
+        int groupCount = names.size();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // 2) per-thread aggregation: each thread takes chunks until there are none left, into its own partial
+            int partials = Math.max(1, Math.min(threads, chunks.size()));
+            int[][] counts = new int[partials][];
+            long[][] sums = new long[partials][];
+            // which partial each chunk went into, so that its ages are later written to that partial's positions
+            int[] owners = new int[chunks.size()];
+            AtomicInteger nextChunk = new AtomicInteger();
+            runAll(executor, partials, partial -> {
+                counts[partial] = new int[groupCount];
+                sums[partial] = new long[groupCount];
+                for (int chunk = nextChunk.getAndIncrement(); chunk < chunks.size(); chunk = nextChunk.getAndIncrement()) {
+                    owners[chunk] = partial;
+                    chunks.get(chunk).aggregate(counts[partial], sums[partial]);
+                }
+            });
+
+            // 3) parallel merge, each task owning a range of the ids - and only visiting those
+            long[] groupCounts = new long[groupCount];
+            long[] groupSums = new long[groupCount];
+            int ranges = Math.min(threads, Math.max(1, groupCount));
+            runAll(executor, ranges, range -> {
+                for (int group = rangeStart(range, ranges, groupCount); group < rangeStart(range + 1, ranges, groupCount); group++) {
+                    for (int partial = 0; partial < partials; partial++) {
+                        groupCounts[group] += counts[partial][group];
+                        groupSums[group] += sums[partial][group];
+                    }
+                }
+            });
+            Arrays.fill(sums, null);
+
+            // 4) every age in one array, grouped: where each group starts, then (in place of its counts) where each
+            // partial writes its ages of each group
+            int[] groupStarts = new int[groupCount + 1];
+            long total = 0;
+            for (int group = 0; group < groupCount; group++) {
+                total += groupCounts[group];
+                if (total > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("Too many people to group at once: more than " + (Integer.MAX_VALUE - 8));
+                }
+                groupStarts[group + 1] = (int) total;
+            }
+            runAll(executor, ranges, range -> {
+                for (int group = rangeStart(range, ranges, groupCount); group < rangeStart(range + 1, ranges, groupCount); group++) {
+                    int position = groupStarts[group];
+                    for (int partial = 0; partial < partials; partial++) {
+                        int count = counts[partial][group];
+                        counts[partial][group] = position;
+                        position += count;
+                    }
+                }
+            });
+            short[] ages = new short[(int) total];
+            runAll(executor, partials, partial -> {
+                for (int chunk = 0; chunk < chunks.size(); chunk++) {
+                    if (owners[chunk] == partial) {
+                        chunks.get(chunk).scatter(ages, counts[partial]);
+                    }
+                }
+            });
+            Arrays.fill(counts, null);
+
+            double[] medians = new double[groupCount];
+            runAll(executor, ranges, range -> {
+                for (int group = rangeStart(range, ranges, groupCount); group < rangeStart(range + 1, ranges, groupCount); group++) {
+                    medians[group] = median(ages, groupStarts[group], groupStarts[group + 1]);
+                }
+            });
+
+            List<GroupStats> groups = new ArrayList<>(groupCount);
+            for (int group = 0; group < groupCount; group++) {
+                groups.add(new GroupStats(names.get(group), groupCounts[group], groupSums[group], medians[group]));
+            }
+            return groups;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static int rangeStart(int range, int ranges, int size) {
+        return (int) ((long) size * range / ranges);
+    }
+
+    /***
+     * @return the median of the ages in [from, to), which are sorted in the process - the average of the two middle
+     * ages for an even count, as AgeHistogram.getMedian()
+     */
+    static double median(short[] ages, int from, int to) {
+        if (from == to) {
+            return 0;
+        }
+        Arrays.sort(ages, from, to);
+        int middle = from + (to - from) / 2;
+        if ((to - from) % 2 == 1) {
+            return ages[middle];
+        }
+        return (ages[middle - 1] + ages[middle]) / 2.0;
+    }
+
+    /***
+     * Runs task(0) to task(count - 1) on the executor, and waits for all of them.
+     */
+    private static void runAll(ExecutorService executor, int count, IntConsumer task) {
+        List<Callable<Void>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            tasks.add(() -> {
+                task.accept(index);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while grouping", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Grouping failed", e.getCause());
+        }
+    }
+
+    /***
+     * A range of the rows of one store - the unit of work handed to the aggregating threads.
+     */
+    private static class Chunk {
+        private final PersonStore store;
+        private final boolean lastName;
+        // the global id of each of the store's name ids
+        private final int[] toGlobal;
+        private final int from;
+        private final int to;
+
+        private Chunk(PersonStore store, boolean lastName, int[] toGlobal, int from, int to) {
+            this.store = store;
+            this.lastName = lastName;
+            this.toGlobal = toGlobal;
+            this.from = from;
+            this.to = to;
+        }
+
+        private int group(int row) {
+            return toGlobal[lastName ? store.getLastNameId(row) : store.getFirstNameId(row)];
+        }
+
+        private void aggregate(int[] counts, long[] sums) {
+            for (int row = from; row < to; row++) {
+                int group = group(row);
+                counts[group]++;
+                sums[group] += store.getAge(row);
+            }
+        }
+
+        /***
+         * @param positions where the next age of each group goes - moved on past each age written
+         */
+        private void scatter(short[] ages, int[] positions) {
+            for (int row = from; row < to; row++) {
+                ages[positions[group(row)]++] = (short) store.getAge(row);
+            }
+        }
+    }
+}
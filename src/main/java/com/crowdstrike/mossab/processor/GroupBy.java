@@ -0,0 +1,41 @@
+package com.crowdstrike.mossab.processor;
+
+/***
+ * What people can be grouped by for the group report (see GroupAggregator).
+ */
+public enum GroupBy {
+    LAST_NAME("last-name"),
+    FIRST_NAME("first-name"),
+    // the file (URL) the people were read from
+    SOURCE("source");
+
+    private final String optionName;
+
+    GroupBy(String optionName) {
+        this.optionName = optionName;
+    }
+
+    public String getOptionName() {
+        return optionName;
+    }
+
+    /***
+     * @return whether grouping needs the people themselves kept (so not a streaming run), not just each file's summary
+     */
+    public boolean needsRecords() {
+        return this != SOURCE;
+    }
+
+    /***
+     * @param optionName the name used on the command line, e.g. "last-name"
+     * @throws IllegalArgumentException if nothing can be grouped by that name
+     */
+    public static GroupBy fromOptionName(String optionName) {
+        for (GroupBy groupBy : values()) {
+            if (groupBy.optionName.equals(optionName)) {
+                return groupBy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown group by: " + optionName);
+    }
+}
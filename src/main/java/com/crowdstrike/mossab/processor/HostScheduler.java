@@ -0,0 +1,369 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/***
+ * Decides the order in which CsvReaders are handed to the ReaderExecutor, instead of handing them over in the order the
+ * URLs were given. URLs are grouped by host (host and port), and a reader is only started while both:
+ * <ul>
+ *     <li>fewer than the global cap of files are in flight, and</li>
+ *     <li>fewer than the per-host cap of files from its host are in flight.</li>
+ * </ul>
+ * Whenever a slot frees up, hosts take turns (round robin) in starting their next file. So a list dominated by one host
+ * neither hammers that host with every connection at once, nor keeps the other hosts' files waiting behind it - and a
+ * slow host only ever ties up its own per-host share of the slots.
+ * <p>
+ * Local files have no host to overload, so they share one group that is only subject to the global cap.
+ * <p>
+ * With an AdaptiveLimiter, remote files are further held to its limit, which it keeps adjusting to how the servers
+ * respond - every finished remote file is fed back into it.
+ * <p>
+ * Readers that free a slot are replaced from the scheduler's own thread. Replacing them from the thread that finished
+ * the reader would deadlock: starting a reader can block on a full hand-off queue that only that thread drains.
+ */
+public class HostScheduler {
+    static final String LOCAL_FILES = "(local files)";
+
+    private final ReaderExecutor executor;
+    private final int perHostCap;
+    private final int globalCap;
+    private final Executor dispatcher;
+    private final AdaptiveLimiter limiter;
+
+    // hosts in the order they were first seen, and the ones with files waiting, in the order they get their next turn
+    private final Map<String, HostQueue> hosts = new LinkedHashMap<>();
+    private final Deque<HostQueue> turns = new ArrayDeque<>();
+    private int inFlight;
+    private int remoteInFlight;
+    private boolean shutdown;
+
+    /***
+     * @param executor runs the readers once they are started
+     * @param perHostCap the most files from one host that may be in flight at once (negative for no cap)
+     * @param globalCap the most files that may be in flight at once overall
+     * @param limiter adapts the number of remote files in flight, or null to only apply the caps
+     */
+    public HostScheduler(ReaderExecutor executor, int perHostCap, int globalCap, AdaptiveLimiter limiter) {
+        this(executor, perHostCap, globalCap, limiter, Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "csv-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /***
+     * @param dispatcher runs the starting of readers once others finish
+     */
+    HostScheduler(ReaderExecutor executor, int perHostCap, int globalCap, AdaptiveLimiter limiter, Executor dispatcher) {
+        this.executor = executor;
+        this.perHostCap = perHostCap;
+        this.globalCap = Math.max(1, globalCap);
+        this.limiter = limiter;
+        this.dispatcher = dispatcher;
+    }
+
+    /***
+     * Queues the reader behind the other files of its host, and starts it as soon as the caps allow.
+     * @return a future completing with the parsed CsvFile
+     */
+    public CompletableFuture<CsvFile> submit(CsvReader reader) {
+        CompletableFuture<CsvFile> result = new CompletableFuture<>();
+        synchronized (this) {
+            String host = hostOf(reader.getUrl());
+            HostQueue queue = hosts.computeIfAbsent(host, HostQueue::new);
+            queue.waiting.add(new Waiting(reader, result));
+            queue.files++;
+            if (queue.waiting.size() == 1) {
+                turns.add(queue);
+            }
+        }
+        dispatch();
+        return result;
+    }
+
+    /***
+     * Starts as many waiting readers as the caps allow, giving each host a turn in order.
+     */
+    private void dispatch() {
+        List<Runnable> starts = new ArrayList<>();
+        synchronized (this) {
+            while (!shutdown && inFlight < globalCap) {
+                HostQueue next = nextTurn();
+                if (next == null) {
+                    break;
+                }
+
+                Waiting waiting = next.waiting.poll();
+                if (!next.waiting.isEmpty()) {
+                    turns.add(next);
+                }
+                inFlight++;
+                if (!next.isLocal()) {
+                    remoteInFlight++;
+                }
+                next.inFlight++;
+                next.peakInFlight = Math.max(next.peakInFlight, next.inFlight);
+                starts.add(() -> start(next, waiting));
+            }
+        }
+
+        // handed to the executor outside the lock - its submit may block (e.g. waiting for room in a queue)
+        for (Runnable start : starts) {
+            start.run();
+        }
+    }
+
+    /***
+     * @return the first host in turn order that has room under its cap (taken out of the turn order), or null
+     */
+    private HostQueue nextTurn() {
+        boolean remoteAllowed = limiter == null || remoteInFlight < limiter.getLimit();
+        for (int i = turns.size(); i > 0; i--) {
+            HostQueue queue = turns.poll();
+            if (queue.isLocal() || (remoteAllowed && (perHostCap < 0 || queue.inFlight < perHostCap))) {
+                return queue;
+            }
+            // at its cap - it keeps its place in line, behind the hosts that can go now
+            turns.add(queue);
+        }
+        return null;
+    }
+
+    private void start(HostQueue queue, Waiting waiting) {
+        long startTime = System.nanoTime();
+        CompletableFuture<CsvFile> running;
+        try {
+            running = executor.submit(waiting.reader);
+        } catch (RejectedExecutionException e) { // shut down in the meantime
+            // never started, so it gives back the slots dispatch() took for it
+            synchronized (this) {
+                inFlight--;
+                if (!queue.isLocal()) {
+                    remoteInFlight--;
+                }
+                queue.inFlight--;
+            }
+            waiting.result.cancel(false);
+            return;
+        }
+
+        running.whenComplete((csvFile, failure) -> {
+            long elapsed = System.nanoTime() - startTime;
+            synchronized (this) {
+                if (!queue.isLocal() && limiter != null) {
+                    limiter.onSample(csvFile == null ? 0 : csvFile.getResponseLatencyNanos(), isOverloaded(csvFile),
+                            remoteInFlight >= limiter.getLimit());
+                }
+                inFlight--;
+                if (!queue.isLocal()) {
+                    remoteInFlight--;
+                }
+                queue.finished(csvFile, elapsed);
+            }
+
+            if (failure != null) {
+                waiting.result.completeExceptionally(failure);
+            } else {
+                waiting.result.complete(csvFile);
+            }
+            try {
+                dispatcher.execute(this::dispatch);
+            } catch (RejectedExecutionException e) {
+                // shut down - nothing more is started
+            }
+        });
+    }
+
+    /***
+     * @return true if the server pushed back on the file: it was retried, timed out, or ended on a 429 or a 5xx
+     */
+    private static boolean isOverloaded(CsvFile csvFile) {
+        if (csvFile == null) {
+            return false;
+        }
+        Integer responseCode = csvFile.getResponseCode();
+        return csvFile.getAttempts() > 1 || csvFile.getStatus() == CsvFileStatus.TIMED_OUT
+                || (responseCode != null && (responseCode == 429 || responseCode >= 500));
+    }
+
+    /***
+     * Stops starting readers (any still waiting are cancelled) and shuts the executor down.
+     */
+    public void shutdown() {
+        List<Waiting> cancelled = new ArrayList<>();
+        synchronized (this) {
+            shutdown = true;
+            for (HostQueue queue : turns) {
+                cancelled.addAll(queue.waiting);
+                queue.waiting.clear();
+            }
+            turns.clear();
+        }
+        for (Waiting waiting : cancelled) {
+            waiting.result.cancel(false);
+        }
+        if (dispatcher instanceof ExecutorService) {
+            ((ExecutorService) dispatcher).shutdown();
+        }
+        executor.shutdown();
+    }
+
+    /***
+     * Prints throughput and latency per host, as part of CsvProcessor.printMetrics().
+     */
+    public synchronized void printMetrics() {
+        System.out.println("- Per-host caps: " + (perHostCap < 0 ? "none" : perHostCap + " files") + " per host, "
+                + globalCap + " files overall");
+        for (HostQueue queue : hosts.values()) {
+            System.out.println("\t- " + queue.host + ": " + queue.completed + " of " + queue.files + " files, "
+                    + queue.failed + " failed, " + String.format("%.1f", queue.getRecordsPerSecond()) + " records/s, "
+                    + "latency avg " + queue.getAverageLatencyMillis() + " ms / max " + queue.maxLatencyNanos / 1_000_000
+                    + " ms, at most " + queue.peakInFlight + " at once");
+        }
+        if (limiter != null) {
+            limiter.printMetrics();
+        }
+    }
+
+    /***
+     * @return the adaptive limiter, or null if concurrency is not adapted
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    /***
+     * @return the per-host statistics, keyed by host (and port), in the order the hosts were first seen
+     */
+    public synchronized Map<String, HostQueue> getHosts() {
+        return new LinkedHashMap<>(hosts);
+    }
+
+    /***
+     * @return "host:port" for http(s) URLs, or LOCAL_FILES for anything else
+     */
+    static String hostOf(String url) {
+        if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return LOCAL_FILES;
+        }
+
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                return LOCAL_FILES;
+            }
+            int port = uri.getPort() >= 0 ? uri.getPort() : (url.startsWith("https://") ? 443 : 80);
+            return uri.getHost().toLowerCase(Locale.ROOT) + ":" + port;
+        } catch (URISyntaxException e) {
+            // fails as soon as it is read - no point in holding it back behind any host
+            return LOCAL_FILES;
+        }
+    }
+
+    private static class Waiting {
+        private final CsvReader reader;
+        private final CompletableFuture<CsvFile> result;
+
+        Waiting(CsvReader reader, CompletableFuture<CsvFile> result) {
+            this.reader = reader;
+            this.result = result;
+        }
+    }
+
+    /***
+     * The files of one host still waiting to start, and how the ones that ran went. Guarded by the scheduler's lock.
+     */
+    public static class HostQueue {
+        private final String host;
+        private final Deque<Waiting> waiting = new ArrayDeque<>();
+        private int files;
+        private int inFlight;
+        private int peakInFlight;
+        private int completed;
+        private int failed;
+        private long records;
+        private long totalLatencyNanos;
+        private long maxLatencyNanos;
+        // the wall clock span over which the host had files in flight, for its throughput
+        private long firstStart = -1;
+        private long lastFinish;
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+
+        private void finished(CsvFile csvFile, long latencyNanos) {
+            inFlight--;
+            completed++;
+            long now = System.nanoTime();
+            if (firstStart < 0) {
+                firstStart = now - latencyNanos;
+            } else {
+                firstStart = Math.min(firstStart, now - latencyNanos);
+            }
+            lastFinish = now;
+            totalLatencyNanos += latencyNanos;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+
+            if (csvFile == null) {
+                failed++;
+                return;
+            }
+            CsvFileStatus status = csvFile.getStatus();
+            if (status != CsvFileStatus.PROCESSED_VALID && status != CsvFileStatus.PROCESSED_WITH_INVALID_INPUT
+                    && status != CsvFileStatus.EMPTY) {
+                failed++;
+            }
+            records += csvFile.getSummary().getCount() + csvFile.getMalformedCount();
+        }
+
+        private boolean isLocal() {
+            return host.equals(LOCAL_FILES);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getCompleted() {
+            return completed;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getPeakInFlight() {
+            return peakInFlight;
+        }
+
+        public long getAverageLatencyMillis() {
+            return completed == 0 ? 0 : totalLatencyNanos / completed / 1_000_000;
+        }
+
+        public double getRecordsPerSecond() {
+            long span = lastFinish - firstStart;
+            return completed == 0 || span <= 0 ? 0 : records * 1e9 / span;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/***
+ * Parses a large local CSV file on all cores. The file is memory-mapped and split into chunks that each end on a line
+ * boundary, the chunks are parsed in parallel on the fork/join pool (each with its own CsvLineParser), and the results
+ * are merged back together in file order - so people, malformed lines and the median sample come out exactly as if the
+ * file had been read front to back by a single thread.
+ * <p>
+ * Each chunk is scanned in place, straight from the mapping (see CsvLineParser.feed(ByteBuffer, ...)), so the file's
+ * bytes are never copied onto the heap - only the names of the people kept, and the odd line sampled as malformed.
+ * <p>
+ * With EarlyAbortRules set, the first chunk is parsed on its own with the rules checked, and the others are only
+ * started once it passes - so a file that breaks a rule costs at most one chunk. The malformed ratio is measured over
+ * the first N lines, or over all of the first chunk's lines if it has fewer than that.
+ */
+public class MappedCsvParser {
+    // smallest chunk worth handing to another thread
+    static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    // chunks are mapped one at a time, and a single mapping can't be over 2GB
+    static final long MAX_CHUNK_SIZE = 256 * 1024 * 1024;
+
+    private final Path path;
+    private final boolean retainPeople;
+    private final long chunkSize;
+    private EarlyAbortRules abortRules;
+    private CsvFileStatus abortStatus;
+
+    /***
+     * Uses a chunk size that gives every core a few chunks to work on, which evens out chunks that parse slower.
+     */
+    public MappedCsvParser(Path path, boolean retainPeople) {
+        this(path, retainPeople, 0);
+    }
+
+    /***
+     * @param chunkSize the approximate size of each chunk in bytes, or 0 to choose one from the file size
+     */
+    MappedCsvParser(Path path, boolean retainPeople, long chunkSize) {
+        this.path = path;
+        this.retainPeople = retainPeople;
+        this.chunkSize = chunkSize;
+    }
+
+    /***
+     * Turns on checking the content rules (body size, header, malformed ratio) - see the class doc.
+     */
+    public void setAbortRules(EarlyAbortRules abortRules) {
+        this.abortRules = abortRules;
+    }
+
+    /***
+     * @return the status for the broken rule if parsing was aborted (and nothing was added to the CsvFile), otherwise
+     * null
+     */
+    public CsvFileStatus getAbortStatus() {
+        return abortStatus;
+    }
+
+    static long chooseChunkSize(long fileSize) {
+        long perChunk = fileSize / (4L * ForkJoinPool.getCommonPoolParallelism());
+        return Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, perChunk));
+    }
+
+    /***
+     * Parses the whole file into the CsvFile (people, malformed lines and summary - not the status), unless it breaks
+     * one of the abort rules (see getAbortStatus()).
+     */
+    public void parse(CsvFile csvFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the whole body is there to be measured up front
+            if (abortRules != null && abortRules.getMaxBodySize() >= 0 && channel.size() > abortRules.getMaxBodySize()) {
+                abortStatus = CsvFileStatus.ABORTED_TOO_LARGE;
+                return;
+            }
+
+            List<long[]> chunks = splitIntoChunks(channel);
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            boolean offHeapRecords = csvFile.isOffHeapRecords();
+            if (abortRules == null || !abortRules.screensLines() || chunks.size() <= 1) {
+                CsvFile parsed = pool.invoke(new ChunkTask(channel, chunks, 0, chunks.size(), offHeapRecords));
+                // a single chunk is screened too - an aborted file adds nothing
+                if (abortStatus != null) {
+                    return;
+                }
+                csvFile.merge(parsed);
+                return;
+            }
+
+            // the first chunk screens the file before any work is spent on the rest of it
+            CsvFile first = pool.invoke(new ChunkTask(channel, chunks, 0, 1, offHeapRecords));
+            if (abortStatus != null) {
+                return;
+            }
+            first.merge(pool.invoke(new ChunkTask(channel, chunks, 1, chunks.size(), offHeapRecords)));
+            csvFile.merge(first);
+        } catch (UncheckedIOException e) {
+            // fork/join may rethrow a copy of the chunk's exception with the original as its cause
+            Throwable cause = e;
+            while (cause instanceof UncheckedIOException) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(e);
+        }
+    }
+
+    /***
+     * Splits [0, size) into {start, end} ranges of about the chunk size, moving each boundary forward to just past
+     * the next '\n' so no line is cut in two.
+     */
+    List<long[]> splitIntoChunks(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long targetSize = chunkSize > 0 ? chunkSize : chooseChunkSize(size);
+        List<long[]> chunks = new ArrayList<>();
+
+        long start = 0;
+        while (start < size) {
+            long end = start + targetSize >= size ? size : nextLineStart(channel, start + targetSize, size);
+            chunks.add(new long[]{start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = from;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /***
+     * Parses a range of chunks - forking halves until there is a single chunk left - and merges the results left to
+     * right.
+     */
+    private class ChunkTask extends RecursiveTask<CsvFile> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<long[]> chunks;
+        private final int from;
+        private final int to;
+        // the parts keep their people where the file does, so the merged result can take them over without a copy
+        private final boolean offHeapRecords;
+
+        ChunkTask(FileChannel channel, List<long[]> chunks, int from, int to, boolean offHeapRecords) {
+            this.channel = channel;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.offHeapRecords = offHeapRecords;
+        }
+
+        @Override
+        protected CsvFile compute() {
+            if (to - from <= 1) {
+                return from < to ? parseChunk(from) : newPart();
+            }
+
+            int middle = (from + to) >>> 1;
+            ChunkTask right = new ChunkTask(channel, chunks, middle, to, offHeapRecords);
+            right.fork();
+            CsvFile result = new ChunkTask(channel, chunks, from, middle, offHeapRecords).compute();
+            result.merge(right.join());
+            return result;
+        }
+
+        private CsvFile newPart() {
+            CsvFile part = new CsvFile(path.toString());
+            part.setOffHeapRecords(offHeapRecords);
+            return part;
+        }
+
+        private CsvFile parseChunk(int index) {
+            long start = chunks.get(index)[0];
+            long end = chunks.get(index)[1];
+            CsvFile part = newPart();
+
+            // only the very first chunk starts with the header line, so it is the one the rules are checked on
+            CsvLineParser parser = new CsvLineParser(part, retainPeople, index == 0, start);
+            if (index == 0) {
+                parser.setAbortRules(abortRules);
+            }
+            try {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                parser.feed(mapped, 0, mapped.limit());
+                parser.finish();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (index == 0) {
+                abortStatus = parser.getAbortStatus();
+            }
+            return part;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.crowdstrike.mossab.processor;
+
+/***
+ * The formats the per-file metrics can be written out in (see FileMetrics), for other tools to pick up.
+ */
+public enum MetricsFormat {
+    JSON("json"),
+    PROMETHEUS("prometheus");
+
+    private final String optionName;
+
+    MetricsFormat(String optionName) {
+        this.optionName = optionName;
+    }
+
+    public String getOptionName() {
+        return optionName;
+    }
+
+    /***
+     * @param optionName the name used on the command line, e.g. "prometheus"
+     * @throws IllegalArgumentException if no format has that name
+     */
+    public static MetricsFormat fromOptionName(String optionName) {
+        for (MetricsFormat format : values()) {
+            if (format.optionName.equals(optionName)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metrics format: " + optionName);
+    }
+}
@@ -0,0 +1,91 @@
+package com.crowdstrike.mossab.processor;
+
+/***
+ * A fixed-size histogram of non-negative long values (e.g. latencies in nanoseconds) that percentiles can be read off,
+ * without keeping every value. Values below 16 are counted exactly; above that, every power of two is split into 16
+ * buckets, so a percentile is off by at most about 6% - whatever the number of values, and for values up to
+ * Long.MAX_VALUE. The count, sum, minimum and maximum are exact.
+ */
+public class PercentileHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /***
+     * @param value a value of 0 or more - negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[bucketOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (1L << exponent) + ((long) (bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /***
+     * @param percentile between 0 and 100
+     * @return the value that the given percentage of the values are at or below (the middle of its bucket, kept within
+     * the minimum and maximum), or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                long lower = lowerBoundOf(bucket);
+                long upper = bucket + 1 < counts.length ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+                long middle = lower + (upper - lower) / 2;
+                return Math.max(min, Math.min(max, middle));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+}
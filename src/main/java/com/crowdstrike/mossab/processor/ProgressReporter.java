@@ -0,0 +1,114 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.AgeHistogram;
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.PartialSummary;
+
+import java.util.function.LongSupplier;
+
+/***
+ * Keeps running totals over the files as they complete (in whatever order that is), and prints a progress line every
+ * interval: files done, records aggregated, throughput so far and the running average and median age. On long runs
+ * this shows how far along the run is, and what the results look like so far, long before the final results are in.
+ * <p>
+ * The running summary is merged in completion order, so it is only used for the counts and ages it prints - the final
+ * results are merged in file order by the CsvProcessor.
+ */
+public class ProgressReporter {
+    private final int totalFiles;
+    private final long intervalNanos;
+    private final LongSupplier clock;
+    private final long startTime;
+    private final PartialSummary running = new PartialSummary();
+    private long nextReport;
+    private int filesDone;
+    private long records;
+    private int reports;
+
+    /***
+     * @param totalFiles the number of files, or -1 if not known up front
+     * @param intervalMillis how often a progress line is printed (negative to never print one)
+     */
+    public ProgressReporter(int totalFiles, long intervalMillis) {
+        this(totalFiles, intervalMillis, System::nanoTime);
+    }
+
+    /***
+     * @param clock the time in nanoseconds, as System.nanoTime() would give it
+     */
+    ProgressReporter(int totalFiles, long intervalMillis, LongSupplier clock) {
+        this.totalFiles = totalFiles;
+        this.intervalNanos = intervalMillis < 0 ? -1 : Math.max(1, intervalMillis) * 1_000_000;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+        this.nextReport = startTime + this.intervalNanos;
+    }
+
+    /***
+     * Adds a completed file to the running totals.
+     */
+    public void fileDone(CsvFile csvFile) {
+        filesDone++;
+        records += csvFile.getSummary().getCount() + csvFile.getMalformedCount();
+        running.merge(csvFile.getSummary());
+    }
+
+    /***
+     * @return how long until the next progress line is due (0 if it is overdue), or Long.MAX_VALUE if none are printed
+     */
+    public long millisUntilNextReport() {
+        if (intervalNanos < 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (nextReport - clock.getAsLong()) / 1_000_000);
+    }
+
+    /***
+     * Prints a progress line if one is due.
+     */
+    public void reportIfDue() {
+        long now = clock.getAsLong();
+        if (intervalNanos < 0 || now < nextReport) {
+            return;
+        }
+        // a long stall doesn't cause a burst of catch-up lines - the next one is an interval from now
+        nextReport = now + intervalNanos;
+        System.out.println(progressLine(now));
+        reports++;
+    }
+
+    String progressLine(long now) {
+        double seconds = Math.max(1, now - startTime) / 1e9;
+        StringBuilder line = new StringBuilder()
+                .append("[progress] ").append(filesDone).append(totalFiles < 0 ? "" : "/" + totalFiles).append(" files, ")
+                .append(records).append(" records")
+                .append(String.format(", %.1f files/s, %.0f records/s", filesDone / seconds, records / seconds));
+        if (!running.isEmpty()) {
+            AgeHistogram histogram = running.getHistogram();
+            line.append(String.format(" - average age so far %.2f, median %.2f", histogram.getAverage(), histogram.getMedian()));
+        }
+        return line.toString();
+    }
+
+    public int getFilesDone() {
+        return filesDone;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /***
+     * @return how many progress lines were printed
+     */
+    public int getReports() {
+        return reports;
+    }
+
+    /***
+     * @return the summary of the files done so far
+     */
+    public PartialSummary getRunningSummary() {
+        return running;
+    }
+}
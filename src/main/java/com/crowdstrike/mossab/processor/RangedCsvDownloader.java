@@ -0,0 +1,381 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.fetch.FetchResponse;
+import com.crowdstrike.mossab.fetch.HttpBackend;
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/***
+ * Downloads one very large remote CSV as several byte ranges at once, and parses each range as it arrives - so a
+ * multi-GB file is no longer limited to one connection and one thread.
+ * <p>
+ * Ranges are cut at arbitrary byte offsets, so rows cross range boundaries. Each range is split into:
+ * <ul>
+ *     <li>a head: everything up to and including its first '\n' (the rest of a row from the previous range)</li>
+ *     <li>a middle: whole rows, parsed on the range's own thread while downloading</li>
+ *     <li>a tail: everything after its last '\n' (the start of a row that continues in the next range)</li>
+ * </ul>
+ * Once all ranges are in, each tail is joined to the next range's head and the rows that were cut in two are parsed.
+ * Results are merged in file order, so the outcome is the same as reading the file in one stream.
+ * <p>
+ * A range whose connection fails is downloaded again on its own, as the retry policy allows. A range answered with
+ * a Content-Range other than the one asked for (the file changed, or the server is broken) fails the whole download.
+ * <p>
+ * With EarlyAbortRules set, the first range is checked for the header and the malformed ratio as it is parsed, and
+ * the download stops there if it breaks one (see getAbortStatus()).
+ */
+public class RangedCsvDownloader {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String url;
+    private final HttpBackend httpBackend;
+    private final ExecutorService executor;
+    private final int rangeCount;
+    private final boolean retainPeople;
+    private final RetryPolicy retryPolicy;
+    private EarlyAbortRules abortRules;
+    private CsvFileStatus abortStatus;
+
+    public RangedCsvDownloader(String url, HttpBackend httpBackend, ExecutorService executor, int rangeCount, boolean retainPeople,
+                               RetryPolicy retryPolicy) {
+        this.url = url;
+        this.httpBackend = httpBackend;
+        this.executor = executor;
+        this.rangeCount = rangeCount;
+        this.retainPeople = retainPeople;
+        this.retryPolicy = retryPolicy;
+    }
+
+    /***
+     * Turns on checking the header and malformed ratio rules on the first range - see the class doc.
+     */
+    public void setAbortRules(EarlyAbortRules abortRules) {
+        this.abortRules = abortRules;
+    }
+
+    /***
+     * @return the status for the broken rule if the download was aborted (and nothing was added to the CsvFile),
+     * otherwise null
+     */
+    public CsvFileStatus getAbortStatus() {
+        return abortStatus;
+    }
+
+    /***
+     * Downloads and parses the whole file into the CsvFile (people, malformed lines and summary - not the status).
+     * @param contentLength the size of the file in bytes
+     * @param deadline the job deadline - ranges stop downloading (and are not retried) once it has passed
+     * @return false if the server answered a range request with something other than 206 Partial Content, in which
+     * case nothing has been added to the CsvFile - true otherwise, including when an abort rule was broken
+     * @throws IOException if any range failed to download, or came back as a different range than the one asked for
+     */
+    public boolean download(CsvFile csvFile, long contentLength, Deadline deadline) throws IOException {
+        int ranges = (int) Math.max(1, Math.min(rangeCount, contentLength));
+        long rangeSize = (contentLength + ranges - 1) / ranges;
+
+        List<Future<RangePart>> futures = new ArrayList<>();
+        for (long start = 0; start < contentLength; start += rangeSize) {
+            long first = start;
+            long last = Math.min(contentLength, start + rangeSize) - 1;
+            futures.add(executor.submit(() -> fetchRange(first, last, contentLength, deadline, csvFile.isOffHeapRecords())));
+        }
+
+        List<RangePart> parts = new ArrayList<>();
+        try {
+            for (Future<RangePart> future : futures) {
+                RangePart part = future.get();
+                if (part == null) {
+                    cancelAll(futures);
+                    return false;
+                }
+                // only the first range is screened, and it is waited for first, so the rest are still coming in
+                if (part.abortStatus != null) {
+                    cancelAll(futures);
+                    abortStatus = part.abortStatus;
+                    return true;
+                }
+                parts.add(part);
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading ranges of " + url, e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to download a range of " + url, e.getCause());
+        }
+
+        assemble(csvFile, parts);
+        return true;
+    }
+
+    private static void cancelAll(List<Future<RangePart>> futures) {
+        for (Future<RangePart> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /***
+     * Fetches and splits the bytes [first, last] of the file, starting the range over if the connection fails.
+     * @return the split range, or null if the server did not honour the range request
+     */
+    private RangePart fetchRange(long first, long last, long contentLength, Deadline deadline, boolean offHeapRecords) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return fetchRangeOnce(first, last, contentLength, deadline, offHeapRecords);
+            } catch (IOException e) {
+                // the wrong bytes won't become the right ones by asking again
+                if (e instanceof RangeMismatchException || !retryPolicy.isRetryable(e) || !retryPolicy.hasAttemptsLeft(attempt) || !retryPolicy.backOff(attempt, -1, deadline)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private RangePart fetchRangeOnce(long first, long last, long contentLength, Deadline deadline, boolean offHeapRecords) throws IOException {
+        FetchResponse response = httpBackend.get(url, Collections.singletonMap("Range", "bytes=" + first + "-" + last));
+        if (response.getStatusCode() != 206 || response.getBody() == null) {
+            response.close();
+            return null;
+        }
+        String contentRange = response.getHeader("Content-Range");
+        if (!isContentRange(contentRange, first, last, contentLength)) {
+            response.close();
+            throw new RangeMismatchException("Asked for bytes " + first + "-" + last + "/" + contentLength + " of " + url
+                    + " but got Content-Range: " + contentRange);
+        }
+
+        RangePart part = new RangePart(first, offHeapRecords, first == 0 ? abortRules : null);
+        long received = 0;
+        try (InputStream body = deadline.guard(response.getBody(), url)) {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                received += read;
+                part.accept(buffer, read);
+                // closing the body early drops the connection
+                if (part.abortStatus != null) {
+                    return part;
+                }
+            }
+        }
+
+        if (received != last - first + 1) {
+            throw new IOException("Expected " + (last - first + 1) + " bytes for range " + first + "-" + last + " of " + url + " but got " + received);
+        }
+        return part;
+    }
+
+    /***
+     * @param contentRange the Content-Range header of a 206 response, e.g. "bytes 0-99/1000"
+     * @return whether it is exactly the bytes [first, last] of a file of contentLength bytes - a total of "*" (unknown)
+     * is accepted
+     */
+    static boolean isContentRange(String contentRange, long first, long last, long contentLength) {
+        if (contentRange == null) {
+            return false;
+        }
+        String value = contentRange.trim();
+        if (!value.regionMatches(true, 0, "bytes ", 0, "bytes ".length())) {
+            return false;
+        }
+        value = value.substring("bytes ".length()).trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            String total = value.substring(slash + 1).trim();
+            return Long.parseLong(value.substring(0, dash).trim()) == first
+                    && Long.parseLong(value.substring(dash + 1, slash).trim()) == last
+                    && ("*".equals(total) || Long.parseLong(total) == contentLength);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /***
+     * Stitches the heads and tails of the ranges into whole rows and merges everything into the CsvFile in order -
+     * unless the header turns out to be missing, in which case nothing is merged.
+     */
+    private void assemble(CsvFile csvFile, List<RangePart> parts) {
+        ByteArrayOutputStream carry = new ByteArrayOutputStream();
+        // where the carried bytes start in the file
+        long carryOffset = 0;
+        boolean beforeHeader = true;
+
+        for (RangePart part : parts) {
+            if (carry.size() == 0) {
+                carryOffset = part.first;
+            }
+            // a range without any '\n' is entirely the middle of one long row, so it just keeps extending the carry
+            carry.write(part.head.toByteArray(), 0, part.head.size());
+            if (!part.hasNewline) {
+                continue;
+            }
+
+            // the first '\n' in the file ends the header - which the first range checked already, unless it had no '\n'
+            if (beforeHeader && abortRules != null) {
+                abortStatus = checkHeader(carry.toByteArray());
+                if (abortStatus != null) {
+                    return;
+                }
+            }
+            csvFile.merge(parseRows(carry.toByteArray(), beforeHeader, carryOffset, csvFile.isOffHeapRecords()));
+            beforeHeader = false;
+            carry.reset();
+
+            csvFile.merge(part.middle);
+            carry.write(part.tail.toByteArray(), 0, part.tail.size());
+            carryOffset = part.tailOffset;
+        }
+
+        if (carry.size() > 0) {
+            if (beforeHeader && abortRules != null) {
+                abortStatus = checkHeader(carry.toByteArray());
+                if (abortStatus != null) {
+                    return;
+                }
+            }
+            csvFile.merge(parseRows(carry.toByteArray(), beforeHeader, carryOffset, csvFile.isOffHeapRecords()));
+        }
+    }
+
+    /***
+     * @param rows bytes starting with the header line
+     * @return the status for the broken rule if the header is not the expected one (and it is required), otherwise null
+     */
+    private CsvFileStatus checkHeader(byte[] rows) {
+        CsvLineParser header = new CsvLineParser(new CsvFile(url), false, true);
+        header.setAbortRules(abortRules);
+        header.feed(rows, 0, rows.length);
+        header.finish();
+        return header.getAbortStatus();
+    }
+
+    private CsvFile parseRows(byte[] rows, boolean skipHeader, long offset, boolean offHeapRecords) {
+        CsvFile rowsFile = new CsvFile(url);
+        rowsFile.setOffHeapRecords(offHeapRecords);
+        CsvLineParser parser = new CsvLineParser(rowsFile, retainPeople, skipHeader, offset);
+        parser.feed(rows, 0, rows.length);
+        parser.finish();
+        return rowsFile;
+    }
+
+    /***
+     * One downloaded range: the head and tail fragments, and the whole rows in between (parsed as they arrive).
+     */
+    private class RangePart {
+        private final long first;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        private final CsvFile middle;
+        // created at the first '\n', once it's known where in the file the middle starts
+        private CsvLineParser middleParser;
+        private boolean hasNewline;
+        // where the bytes accepted so far end, and where the current tail starts, in the file
+        private long position;
+        private long tailOffset;
+        // only set for the first range, which holds the header and the first lines
+        private final EarlyAbortRules abortRules;
+        private CsvFileStatus abortStatus;
+
+        // the middle keeps its people where the file does, so they can be taken over without a copy
+        RangePart(long first, boolean offHeapRecords, EarlyAbortRules abortRules) {
+            this.first = first;
+            this.position = first;
+            this.middle = new CsvFile(url);
+            this.middle.setOffHeapRecords(offHeapRecords);
+            this.abortRules = abortRules;
+        }
+
+        void accept(byte[] buffer, int length) {
+            long base = position;
+            position += length;
+
+            int from = 0;
+            if (!hasNewline) {
+                int newline = indexOfNewline(buffer, 0, length);
+                if (newline < 0) {
+                    head.write(buffer, 0, length);
+                    return;
+                }
+                head.write(buffer, 0, newline + 1);
+                hasNewline = true;
+                from = newline + 1;
+                middleParser = new CsvLineParser(middle, retainPeople, false, base + from);
+                if (abortRules != null) {
+                    // the head of the first range is the header line, the middle starts with the first lines
+                    abortStatus = checkHeader(head.toByteArray());
+                    if (abortStatus != null) {
+                        return;
+                    }
+                    middleParser.setAbortRules(abortRules);
+                }
+            }
+
+            // only whole rows go to the parser - whatever follows the last '\n' is held back as the (current) tail
+            int lastNewline = lastIndexOfNewline(buffer, from, length);
+            if (lastNewline < 0) {
+                if (tail.size() == 0) {
+                    tailOffset = base + from;
+                }
+                tail.write(buffer, from, length - from);
+                return;
+            }
+
+            if (tail.size() > 0) {
+                byte[] pending = tail.toByteArray();
+                middleParser.feed(pending, 0, pending.length);
+                tail.reset();
+            }
+            middleParser.feed(buffer, from, lastNewline + 1 - from);
+            tail.write(buffer, lastNewline + 1, length - lastNewline - 1);
+            tailOffset = base + lastNewline + 1;
+            abortStatus = middleParser.getAbortStatus();
+        }
+    }
+
+    /***
+     * A range came back as different bytes than the ones asked for.
+     */
+    private static class RangeMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static int indexOfNewline(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOfNewline(byte[] buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,152 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.fetch.HttpBackend;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Everything the CsvReaders of one CsvProcessor run share: the options and the early abort rules made from them, the
+ * http backend (and with it any pooled connections), the threads used to download ranges of very large files, the
+ * result cache, the retry policy and request hedger, the byte counts and the job deadline. Closed once the run is over.
+ */
+public class ReaderContext {
+    private final CsvProcessorOptions options;
+    private final HttpBackend httpBackend;
+    private final ExecutorService rangeExecutor;
+    private final EarlyAbortRules abortRules;
+    private final TransferStats transferStats;
+    private final ResultCache resultCache;
+    private final RetryPolicy retryPolicy;
+    private final RequestHedger hedger;
+    private final ExecutorService hedgeExecutor;
+    private final Deadline jobDeadline;
+    // created by the first run that adapts its concurrency, and then kept for every run sharing the context
+    private AdaptiveLimiter adaptiveLimiter;
+
+    public ReaderContext(CsvProcessorOptions options) {
+        this.options = options;
+        // the job's clock starts with the run
+        this.jobDeadline = Deadline.after(options.getJobDeadlineMillis());
+        this.httpBackend = options.getHttpBackend().create(options.getConnectTimeoutMillis(), options.getReadTimeoutMillis(),
+                jobDeadline::remainingMillis);
+        this.abortRules = new EarlyAbortRules(options);
+        this.transferStats = new TransferStats();
+        this.resultCache = openResultCache(options);
+        this.retryPolicy = new RetryPolicy(options.getMaxAttempts(), options.getRetryBaseDelayMillis(), options.getRetryMaxDelayMillis());
+
+        // hedged requests are sent from their own threads while the reader's thread waits for the first answer
+        this.hedgeExecutor = options.getHedgePercentile() < 0 ? null : Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "csv-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hedger = new RequestHedger(options.getHedgePercentile(), hedgeExecutor);
+
+        // only needed at all if ranged downloads are turned on
+        AtomicInteger threadCount = new AtomicInteger();
+        this.rangeExecutor = options.getRangedThreshold() < 0 ? null : Executors.newFixedThreadPool(options.getRangeConnections(), task -> {
+            Thread thread = new Thread(task, "csv-range-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ResultCache openResultCache(CsvProcessorOptions options) {
+        if (options.getCacheDirectory() == null) {
+            return null;
+        }
+
+        try {
+            return new ResultCache(Paths.get(options.getCacheDirectory()), options.getCacheMaxBytes());
+        } catch (IOException | RuntimeException e) { // includes an invalid path
+            // the run still works without a cache, it just downloads everything
+            System.out.println("Could not open the result cache at " + options.getCacheDirectory() + " - running without it.");
+            return null;
+        }
+    }
+
+    public CsvProcessorOptions getOptions() {
+        return options;
+    }
+
+    public HttpBackend getHttpBackend() {
+        return httpBackend;
+    }
+
+    /***
+     * @return the executor for ranged downloads, or null if they are turned off
+     */
+    public ExecutorService getRangeExecutor() {
+        return rangeExecutor;
+    }
+
+    public EarlyAbortRules getAbortRules() {
+        return abortRules;
+    }
+
+    /***
+     * @return the byte counts of all readers - still readable once the context is closed
+     */
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /***
+     * @return the on-disk result cache, or null if results are not cached
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /***
+     * @return sends the GETs of all readers, hedging slow ones if turned on - its counts are still readable once the
+     * context is closed
+     */
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    /***
+     * @return the deadline of the whole run - readers stop reading once it has passed
+     */
+    public Deadline getJobDeadline() {
+        return jobDeadline;
+    }
+
+    /***
+     * @param maxLimit the most remote files the limiter may allow in flight - only used the first time
+     * @return the limiter adapting the number of remote files in flight, the same one for every run sharing the context
+     */
+    public synchronized AdaptiveLimiter getAdaptiveLimiter(int maxLimit) {
+        if (adaptiveLimiter == null) {
+            adaptiveLimiter = new AdaptiveLimiter(maxLimit);
+        }
+        return adaptiveLimiter;
+    }
+
+    /***
+     * Drops every http request still in flight (see HttpBackend.abort()), so that the readers of a run that is out of
+     * time fail straight away instead of reading on.
+     */
+    public void abortInFlight() {
+        httpBackend.abort();
+    }
+
+    public void close() {
+        httpBackend.close();
+        if (rangeExecutor != null) {
+            rangeExecutor.shutdown();
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdown();
+        }
+    }
+}
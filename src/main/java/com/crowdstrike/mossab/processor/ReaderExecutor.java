@@ -0,0 +1,24 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+
+import java.util.concurrent.CompletableFuture;
+
+/***
+ * Runs CsvReaders for the CsvProcessor. Implementations decide which threads fetch and parse each file, and how many
+ * may do so at once.
+ */
+public interface ReaderExecutor {
+    /***
+     * Schedules the fetch and parse of the reader's file.
+     * @return a future completing with the parsed CsvFile
+     */
+    CompletableFuture<CsvFile> submit(CsvReader reader);
+
+    void shutdown();
+
+    /***
+     * Prints the thread/concurrency metrics for this executor, as part of CsvProcessor.printMetrics().
+     */
+    void printMetrics();
+}
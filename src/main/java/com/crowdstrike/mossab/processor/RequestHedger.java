@@ -0,0 +1,179 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.fetch.FetchResponse;
+import com.crowdstrike.mossab.fetch.HttpBackend;
+import com.crowdstrike.mossab.model.CsvFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Sends GETs, and "hedges" the slow ones: if a response hasn't started arriving after a latency percentile of the
+ * requests completed so far (e.g. slower than 95% of them), a duplicate request is sent and whichever answers first is
+ * used. The other one is closed when it arrives. This trades a few extra requests for not letting one slow server or
+ * unlucky connection hold up the whole run.
+ * <p>
+ * Latency here is the time until the status and headers arrive. The percentile is taken over a window of the most
+ * recent requests, and no request is hedged until the window has MIN_SAMPLES in it. Sorting the window on every request
+ * would cost more than the lookup is worth, so the percentile is only worked out again every RECOMPUTE_INTERVAL
+ * latencies, and requests read the last one without taking a lock.
+ */
+public class RequestHedger {
+    static final int MIN_SAMPLES = 20;
+    static final int RECOMPUTE_INTERVAL = 16;
+    private static final int WINDOW_SIZE = 512;
+
+    private final double percentile;
+    private final ExecutorService executor;
+
+    // the most recent latencies in nanoseconds, as a ring buffer
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int latencyCount;
+    private int nextLatency;
+    // the latencies recorded since the threshold was last worked out, and a scratch copy of the window to sort
+    private int sinceRecompute;
+    private final long[] sorted = new long[WINDOW_SIZE];
+    // the latency percentile of the window when it was last worked out, -1 until there are MIN_SAMPLES
+    private volatile long threshold = -1;
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+
+    /***
+     * @param percentile the latency percentile (0-100) after which a request is hedged, or negative to never hedge
+     * @param executor runs the requests while the calling thread waits for the first answer - only used when hedging
+     */
+    public RequestHedger(double percentile, ExecutorService executor) {
+        this.percentile = percentile;
+        this.executor = executor;
+    }
+
+    public boolean isEnabled() {
+        return percentile >= 0 && executor != null;
+    }
+
+    /***
+     * Sends the GET, plus a duplicate if it is slow to answer.
+     * @param csvFile the file the request is for - marked as hedged if a duplicate is sent
+     * @throws IOException if the request (or, when hedged, both requests) failed
+     */
+    public FetchResponse get(HttpBackend httpBackend, String url, Map<String, String> requestHeaders, CsvFile csvFile) throws IOException {
+        long threshold = isEnabled() ? thresholdNanos() : -1;
+        if (threshold < 0) {
+            long start = System.nanoTime();
+            FetchResponse response = httpBackend.get(url, requestHeaders);
+            recordLatency(System.nanoTime() - start);
+            return response;
+        }
+
+        CompletableFuture<FetchResponse> primary = send(httpBackend, url, requestHeaders);
+        try {
+            return primary.get(threshold, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // slower than it should be - race a second request against it
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            closeWhenDone(primary);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        }
+
+        hedges.increment();
+        csvFile.setHedged(true);
+        CompletableFuture<FetchResponse> hedge = send(httpBackend, url, requestHeaders);
+
+        CompletableFuture<FetchResponse> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<FetchResponse> request : Arrays.asList(primary, hedge)) {
+            request.whenComplete((response, failure) -> {
+                if (failure != null) {
+                    // only a failure of both requests is a failure
+                    if (failures.incrementAndGet() == 2) {
+                        winner.completeExceptionally(failure);
+                    }
+                } else if (!winner.complete(response)) {
+                    response.close();
+                } else if (request == hedge) {
+                    hedgeWins.increment();
+                }
+            });
+        }
+
+        try {
+            return winner.get();
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        } catch (InterruptedException e) {
+            closeWhenDone(winner);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + url, e);
+        }
+    }
+
+    private CompletableFuture<FetchResponse> send(HttpBackend httpBackend, String url, Map<String, String> requestHeaders) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                FetchResponse response = httpBackend.get(url, requestHeaders);
+                recordLatency(System.nanoTime() - start);
+                return response;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private static void closeWhenDone(CompletableFuture<FetchResponse> request) {
+        request.thenAccept(FetchResponse::close);
+    }
+
+    synchronized void recordLatency(long nanos) {
+        latencies[nextLatency] = nanos;
+        nextLatency = (nextLatency + 1) % WINDOW_SIZE;
+        latencyCount = Math.min(latencyCount + 1, WINDOW_SIZE);
+
+        // the first threshold as soon as there are enough samples, then every RECOMPUTE_INTERVAL latencies
+        sinceRecompute++;
+        if (latencyCount >= MIN_SAMPLES && (threshold < 0 || sinceRecompute >= RECOMPUTE_INTERVAL)) {
+            System.arraycopy(latencies, 0, sorted, 0, latencyCount);
+            Arrays.sort(sorted, 0, latencyCount);
+            int rank = (int) Math.ceil(percentile / 100.0 * latencyCount) - 1;
+            threshold = sorted[Math.max(0, Math.min(latencyCount - 1, rank))];
+            sinceRecompute = 0;
+        }
+    }
+
+    /***
+     * @return the latency percentile of the recent requests in nanoseconds (as of the last recompute), or -1 if there
+     * are too few to go by
+     */
+    long thresholdNanos() {
+        return threshold;
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+}
@@ -0,0 +1,290 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.MalformedLineStats;
+import com.crowdstrike.mossab.model.PartialSummary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/***
+ * An on-disk cache of per-file results, so that re-running over the same URLs doesn't download and parse files that
+ * haven't changed. For each http(s) URL it keeps the response's ETag/Last-Modified validators together with the
+ * file's status, summary and malformed line stats. The next run sends those validators as If-None-Match /
+ * If-Modified-Since, and on a 304 Not Modified the cached result is used instead of the body.
+ * <p>
+ * Each URL is one small file in the cache directory, named after a hash of the URL. Once the files add up to more than
+ * the maximum size, the least recently used ones are deleted - recency survives between runs as the files' modified
+ * times. A cached result holds the summary, not the people, so a file restored from the cache has no people list.
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x43535652; // "CSVR"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".result";
+
+    private final Path directory;
+    private final long maxBytes;
+    // entry file name -> size, from least to most recently used
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /***
+     * Opens (or creates) the cache directory and indexes the entries already in it.
+     * @param maxBytes the size the entries may add up to before the least recently used ones are evicted
+     */
+    public ResultCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+        }
+        entries.sort(Comparator.comparing(ResultCache::lastModifiedTime));
+        for (Path entry : entries) {
+            long size = Files.size(entry);
+            index.put(entry.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+    private static FileTime lastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    public synchronized boolean contains(String url) {
+        return index.containsKey(entryName(url));
+    }
+
+    /***
+     * Looks up the URL, marking its entry as just used - it is either reused or replaced with a fresh result.
+     * @return the cached result for the URL, or null if there is none (or it could not be read)
+     */
+    public Entry lookup(String url) {
+        String name = entryName(url);
+        synchronized (this) {
+            if (index.get(name) == null) {
+                return null;
+            }
+        }
+
+        Path file = directory.resolve(name);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a cache entry of this version: " + file);
+            }
+            Entry entry = new Entry(in.readUTF(), readNullable(in), readNullable(in), CsvFileStatus.valueOf(in.readUTF()),
+                    PartialSummary.readFrom(in), MalformedLineStats.readFrom(in));
+            // a hash collision would be astronomically unlikely, but costs nothing to rule out
+            if (!url.equals(entry.url)) {
+                return null;
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return entry;
+        } catch (IOException | IllegalArgumentException e) {
+            // corrupt or from an older version - it will just be replaced
+            remove(name);
+            return null;
+        }
+    }
+
+    /***
+     * Caches the result of a fully parsed http(s) file, if the response had validators to revalidate it with later.
+     * Failing to write the entry only means the file is downloaded again next time.
+     */
+    public void store(CsvFile csvFile) {
+        if (csvFile.getEtag() == null && csvFile.getLastModified() == null) {
+            return;
+        }
+
+        String name = entryName(csvFile.getUrl());
+        Path file = directory.resolve(name);
+        try {
+            // written to a temporary file and moved into place, so a concurrent lookup never sees half an entry
+            Path temporary = Files.createTempFile(directory, name, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(csvFile.getUrl());
+                writeNullable(out, csvFile.getEtag());
+                writeNullable(out, csvFile.getLastModified());
+                out.writeUTF(csvFile.getStatus().name());
+                csvFile.getSummary().writeTo(out);
+                csvFile.getMalformedLines().writeTo(out);
+            } catch (IOException e) {
+                Files.deleteIfExists(temporary);
+                throw e;
+            }
+            moveIntoPlace(temporary, file);
+
+            long size = Files.size(file);
+            synchronized (this) {
+                Long previous = index.put(name, size);
+                totalBytes += size - (previous == null ? 0 : previous);
+                evict();
+            }
+        } catch (IOException e) {
+            // not cached - no harm done
+        }
+    }
+
+    private static void moveIntoPlace(Path temporary, Path file) throws IOException {
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /***
+     * Deletes the least recently used entries until the cache fits in its maximum size again.
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> entries = index.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.hasNext()) {
+            Map.Entry<String, Long> eldest = entries.next();
+            entries.remove();
+            totalBytes -= eldest.getValue();
+            evictions.increment();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                // it will be found and evicted again on the next run
+            }
+        }
+    }
+
+    private void remove(String name) {
+        synchronized (this) {
+            Long size = index.remove(name);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException e) {
+            // will be overwritten when the URL is next cached
+        }
+    }
+
+    private static String entryName(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /***
+     * A cached result, along with the validators to revalidate it with.
+     */
+    public static class Entry {
+        private final String url;
+        private final String etag;
+        private final String lastModified;
+        private final CsvFileStatus status;
+        private final PartialSummary summary;
+        private final MalformedLineStats malformedLines;
+
+        Entry(String url, String etag, String lastModified, CsvFileStatus status, PartialSummary summary,
+              MalformedLineStats malformedLines) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.status = status;
+            this.summary = summary;
+            this.malformedLines = malformedLines;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /***
+         * Fills in the CsvFile as if the file had just been downloaded and parsed again.
+         */
+        public void restoreInto(CsvFile csvFile) {
+            csvFile.getSummary().merge(summary);
+            csvFile.getMalformedLines().merge(malformedLines);
+            csvFile.setEtag(etag);
+            csvFile.setLastModified(lastModified);
+            csvFile.setStatus(status);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.crowdstrike.mossab.processor;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.ZipException;
+
+/***
+ * Decides which failed requests are worth another attempt, and how long to wait before making it.
+ * <p>
+ * Retried are 5xx responses, 429 Too Many Requests, and I/O errors such as connection resets - all things that can go
+ * away by themselves. An unknown host, a malformed URL or a corrupt compressed body will fail the same way every time,
+ * so those are not retried, and neither is a transfer that ran past its deadline. Waits grow exponentially with "full
+ * jitter" (a random wait between 0 and the exponential delay), so that many files failing at once don't all retry at
+ * the same moment. A Retry-After header from the server is honoured, up to the maximum delay.
+ */
+public class RetryPolicy {
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public boolean isRetryable(int statusCode) {
+        return statusCode == TOO_MANY_REQUESTS || (statusCode >= 500 && statusCode <= 599);
+    }
+
+    public boolean isRetryable(IOException e) {
+        return !(e instanceof UnknownHostException || e instanceof MalformedURLException || e instanceof ZipException
+                || e instanceof SSLHandshakeException || e instanceof DeadlineExceededException);
+    }
+
+    public boolean hasAttemptsLeft(int attemptsMade) {
+        return attemptsMade < maxAttempts;
+    }
+
+    /***
+     * @param attemptsMade how many attempts have failed so far (1 after the first)
+     * @param retryAfterMillis how long the server asked to wait, or a negative number if it didn't say
+     * @return how long to wait before the next attempt
+     */
+    long delayMillis(int attemptsMade, long retryAfterMillis) {
+        // base * 2^(attempts - 1), without overflowing for silly attempt counts
+        long exponential = baseDelayMillis << Math.min(attemptsMade - 1, 20);
+        long jittered = ThreadLocalRandom.current().nextLong(Math.min(maxDelayMillis, exponential) + 1);
+        return Math.min(maxDelayMillis, Math.max(jittered, retryAfterMillis));
+    }
+
+    /***
+     * Waits before the next attempt.
+     * @param deadline the deadline of the job - if the wait would run past it, there is no point in another attempt
+     * @return false if the next attempt should not be made: the thread was interrupted while waiting, or the deadline
+     * would pass first
+     */
+    public boolean backOff(int attemptsMade, long retryAfterMillis, Deadline deadline) {
+        long delay = delayMillis(attemptsMade, retryAfterMillis);
+        if (delay >= deadline.remainingMillis()) {
+            return false;
+        }
+
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /***
+     * @param retryAfter a Retry-After header: either a number of seconds or an http date
+     * @return the wait it asks for in milliseconds, or -1 if there is no (valid) header
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return -1;
+        }
+
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // not seconds, so it should be a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
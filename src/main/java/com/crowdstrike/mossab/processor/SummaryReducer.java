@@ -0,0 +1,55 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.PartialSummary;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/***
+ * Merges a list of per-file PartialSummary objects as a fork/join tree reduction. The list is split in halves until a
+ * range is small enough to merge sequentially, and the halves are then merged left into right. Because the merge is
+ * associative and the left-to-right order is kept, the result is identical to merging the summaries one by one.
+ * <p>
+ * The summaries in the list are never modified - every range merges into a fresh PartialSummary.
+ */
+public class SummaryReducer extends RecursiveTask<PartialSummary> {
+    private static final long serialVersionUID = 1L;
+
+    // below this many summaries, forking costs more than it saves
+    static final int SEQUENTIAL_THRESHOLD = 32;
+
+    private final List<PartialSummary> summaries;
+    private final int from;
+    private final int to;
+
+    public SummaryReducer(List<PartialSummary> summaries) {
+        this(summaries, 0, summaries.size());
+    }
+
+    private SummaryReducer(List<PartialSummary> summaries, int from, int to) {
+        this.summaries = summaries;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected PartialSummary compute() {
+        if (to - from <= SEQUENTIAL_THRESHOLD) {
+            PartialSummary result = new PartialSummary();
+            for (int i = from; i < to; i++) {
+                result.merge(summaries.get(i));
+            }
+            return result;
+        }
+
+        int middle = (from + to) >>> 1;
+        SummaryReducer left = new SummaryReducer(summaries, from, middle);
+        SummaryReducer right = new SummaryReducer(summaries, middle, to);
+
+        // the right half runs on another worker while this one carries on with the left half
+        right.fork();
+        PartialSummary result = left.compute();
+        result.merge(right.join());
+        return result;
+    }
+}
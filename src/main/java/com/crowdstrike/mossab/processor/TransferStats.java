@@ -0,0 +1,96 @@
+package com.crowdstrike.mossab.processor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Counts the bytes read by all readers of a run, both as they were transferred (over the network or off disk) and
+ * once decompressed, so the metrics can show what compression saved. For uncompressed input the two are the same.
+ */
+public class TransferStats {
+    private final LongAdder transferredBytes = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedFiles = new LongAdder();
+
+    /***
+     * @return the input, counting every byte read from it as transferred
+     */
+    InputStream countTransferred(InputStream input) {
+        return new CountingInputStream(input, transferredBytes);
+    }
+
+    /***
+     * @param fileBytes also counts the bytes read, e.g. for just the one file
+     * @return the input, counting every byte read from it as transferred
+     */
+    InputStream countTransferred(InputStream input, LongAdder fileBytes) {
+        return new CountingInputStream(countTransferred(input), fileBytes);
+    }
+
+    /***
+     * @return the (decompressed) input, counting every byte read from it as uncompressed
+     */
+    InputStream countUncompressed(InputStream input) {
+        return new CountingInputStream(input, uncompressedBytes);
+    }
+
+    void addCompressedFile() {
+        compressedFiles.increment();
+    }
+
+    /***
+     * For input that is read without going through a stream, e.g. memory-mapped files.
+     */
+    void addUncompressed(long bytes) {
+        transferredBytes.add(bytes);
+        uncompressedBytes.add(bytes);
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes.sum();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getCompressedFiles() {
+        return compressedFiles.sum();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final LongAdder count;
+
+        CountingInputStream(InputStream input, LongAdder count) {
+            super(input);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.add(skipped);
+            return skipped;
+        }
+    }
+}
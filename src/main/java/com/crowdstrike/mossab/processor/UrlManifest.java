@@ -0,0 +1,82 @@
+package com.crowdstrike.mossab.processor;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/***
+ * A list of URLs (or local files) read from a file or stdin, one per line, for runs with more URLs than fit on a
+ * command line. Lines are only read as the next URL is asked for, so the whole list is never held in memory - a
+ * CsvProcessor only takes the next URL once it has room for another file.
+ * <p>
+ * Blank lines and lines starting with "#" are skipped, and surrounding whitespace is trimmed.
+ */
+public class UrlManifest implements Iterator<String>, Closeable {
+    private final BufferedReader reader;
+    private String next;
+    private boolean finished;
+    private long lines;
+
+    public UrlManifest(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /***
+     * @param path the manifest file, or "-" to read the manifest from stdin
+     */
+    public static UrlManifest open(String path) throws IOException {
+        if ("-".equals(path)) {
+            return new UrlManifest(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        return new UrlManifest(Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    next = line;
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read line " + (lines + 1) + " of the URL manifest", e);
+        }
+        finished = true;
+        return false;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String url = next;
+        next = null;
+        return url;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Runs each CsvReader on its own virtual thread (Java 21+). A virtual thread blocked on getResponseCode() or
+ * readLine() gives its carrier (platform) thread back, so tens of thousands of slow URLs can be in flight without
+ * paying for a platform thread stack each. A semaphore caps how many connections are open at once.
+ * <p>
+ * The build itself targets an older release, so virtual threads are looked up reflectively - see isSupported().
+ */
+public class VirtualThreadExecutor implements ReaderExecutor {
+    private final ExecutorService executor;
+    private final Semaphore connections;
+    private final int maxConnections;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    public VirtualThreadExecutor(int maxConnections) {
+        this.executor = newVirtualThreadPerTaskExecutor();
+        this.maxConnections = maxConnections;
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    /***
+     * @return true if the running JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<CsvFile> submit(CsvReader reader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+
+            try {
+                peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return reader.call();
+            } finally {
+                inFlight.decrementAndGet();
+                connections.release();
+            }
+        }, executor);
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void printMetrics() {
+        System.out.println("- Execution mode: one virtual thread per file, at most " + maxConnections + " concurrent connections");
+        System.out.println("- Peak # of concurrent fetches: " + peakInFlight.get());
+        System.out.println("- # of carrier threads: " + getCarrierThreadCount());
+    }
+
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /***
+     * @return the number of carrier threads the virtual threads are scheduled on: the parallelism of the JDK's virtual
+     * thread scheduler, set with -Djdk.virtualThreadScheduler.parallelism and one per core by default
+     */
+    public int getCarrierThreadCount() {
+        String parallelism = System.getProperty("jdk.virtualThreadScheduler.parallelism");
+        if (parallelism != null) {
+            try {
+                return Integer.parseInt(parallelism.trim());
+            } catch (NumberFormatException e) {
+                // the JDK doesn't take it either, and falls back to the default
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,182 @@
+package com.crowdstrike.mossab.distributed;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.processor.CsvProcessor;
+import com.crowdstrike.mossab.processor.CsvProcessorOptions;
+import com.crowdstrike.mossab.processor.LocalCsvServer;
+import com.crowdstrike.mossab.processor.ReaderContext;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoordinatorTest {
+    private static final String[] LOCAL_CSVS = {"./src/data/file1.csv", "./src/data/file2.csv", "./src/data/file3.csv",
+            "./src/data/file4.csv", "./src/data/file5.csv", "./src/data/file6_bad.csv", "./src/data/file9_bad.csv"};
+
+    @Test
+    public void testShardResult_shouldReadBackWhatWasWritten() throws IOException {
+        List<String> urls = new ArrayList<>();
+        Collections.addAll(urls, LOCAL_CSVS);
+        CsvProcessor processor = new CsvProcessor(urls);
+        processor.process();
+        ShardResult result = ShardResult.of(processor);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        result.writeTo(new DataOutputStream(bytes));
+        ShardResult read = ShardResult.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(read.getFileCount(), 7);
+        assertEquals(read.getReadFiles(), 7);
+        assertEquals(read.getSummary().getCount(), processor.getSummary().getCount());
+        assertEquals(read.getSummary().getMalformedCount(), processor.getSummary().getMalformedCount());
+        assertEquals(read.getSummary().getHistogram().getMedianPerson().toString(), processor.getMedianPerson().toString());
+        assertEquals(read.getRejectedFiles().size(), 1);
+        assertEquals(read.getRejectedFiles().get(0).getIndex(), 5);
+        assertEquals(read.getRejectedFiles().get(0).getStatus(), CsvFileStatus.EMPTY);
+        // a few KB for the whole shard, whatever the number of people in it
+        assertTrue(bytes.size() < 4096);
+    }
+
+    @Test
+    public void testWorkerShards_shouldShareAContextAndSurviveFailures() throws IOException {
+        List<String> urls = new ArrayList<>();
+        Collections.addAll(urls, LOCAL_CSVS);
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setProgressIntervalMillis(1000);
+
+        // the worker's own changes are made to a copy
+        ReaderContext context = new ReaderContext(Worker.workerOptions(options));
+        assertFalse(options.isStreaming());
+        assertEquals(options.getProgressIntervalMillis(), 1000);
+
+        try {
+            ShardResult first = Worker.read(urls, context);
+            ShardResult second = Worker.read(urls, context);
+            assertEquals(second.getSummary().getCount(), first.getSummary().getCount());
+            assertEquals(second.getRejectedFiles().size(), 1);
+
+            // a shard the processor can't read at all comes back with every file rejected, and the next one is read
+            List<String> unreadable = new AbstractList<String>() {
+                @Override
+                public Iterator<String> iterator() {
+                    throw new IllegalStateException("unreadable");
+                }
+
+                @Override
+                public String get(int index) {
+                    return "./src/data/file" + index + ".csv";
+                }
+
+                @Override
+                public int size() {
+                    return 2;
+                }
+            };
+            ShardResult failed = Worker.read(unreadable, context);
+            assertEquals(failed.getFileCount(), 2);
+            assertEquals(failed.getSummary().getCount(), 0);
+            assertEquals(failed.getRejectedFiles().size(), 2);
+            assertEquals(failed.getRejectedFiles().get(1).getStatus(), CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+            assertEquals(Worker.read(urls, context).getSummary().getCount(), first.getSummary().getCount());
+        } finally {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testWorkers_shouldMatchSingleProcess() throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Collections.addAll(urls, LOCAL_CSVS);
+        }
+
+        CsvProcessor single = new CsvProcessor(urls);
+        single.process();
+
+        Coordinator coordinator = new Coordinator(urls.iterator(), 2, 4, new ArrayList<>(), new CsvProcessorOptions());
+        coordinator.run();
+
+        assertSameResults(coordinator, single);
+        assertEquals(coordinator.getWorkerDeaths(), 0);
+        assertEquals(coordinator.getLocalShards(), 0);
+        assertEquals(coordinator.getWorkerProcesses().size(), 2);
+    }
+
+    @Test
+    public void testDeadWorkers_shouldHaveTheirShardsReassigned() throws Exception {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> served = new ArrayList<>();
+            for (String file : LOCAL_CSVS) {
+                served.add(server.serveFile(file));
+            }
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                urls.addAll(served);
+            }
+            CsvProcessor single = new CsvProcessor(urls);
+            single.process();
+            int requestsBefore = server.getRequests("/file1.csv");
+
+            // the first shard hangs on its first file, so the workers can be killed while it is being read
+            server.delayFirst("/file1.csv", 1, 5000);
+
+            Coordinator coordinator = new Coordinator(urls.iterator(), 2, 5, new ArrayList<>(), new CsvProcessorOptions());
+            CompletableFuture<Void> run = CompletableFuture.runAsync(() -> {
+                try {
+                    coordinator.run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+            while (server.getRequests("/file1.csv") == requestsBefore && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            for (Process worker : coordinator.getWorkerProcesses()) {
+                worker.destroyForcibly();
+            }
+            run.get(60, TimeUnit.SECONDS);
+
+            assertTrue(coordinator.getWorkerDeaths() >= 1);
+            assertTrue(coordinator.getReassignedShards() >= 1);
+            assertSameResults(coordinator, single);
+        }
+    }
+
+    private static void assertSameResults(Coordinator coordinator, CsvProcessor single) {
+        assertEquals(coordinator.getFileCount(), single.getFiles().size());
+        assertEquals(coordinator.getSummary().getCount(), single.getSummary().getCount());
+        assertEquals(coordinator.getSummary().getMalformedCount(), single.getSummary().getMalformedCount());
+        assertEquals(coordinator.getMedianAge(), single.getMedianAge(), 0.0);
+        assertEquals(coordinator.getAverageAge(), single.getAverageAge(), 0.0);
+        assertEquals(coordinator.getMedianPerson().toString(), single.getMedianPerson().toString());
+
+        List<Long> rejected = new ArrayList<>();
+        for (int i = 0; i < single.getFiles().size(); i++) {
+            CsvFile file = single.getFiles().get(i);
+            if (file.getStatus() != CsvFileStatus.PROCESSED_VALID && file.getStatus() != CsvFileStatus.PROCESSED_WITH_INVALID_INPUT) {
+                rejected.add(i + 1L);
+            }
+        }
+        List<Long> coordinatorRejected = new ArrayList<>();
+        for (Coordinator.RejectedFile file : coordinator.getRejectedFiles()) {
+            coordinatorRejected.add(file.getNumber());
+        }
+        assertEquals(coordinatorRejected, rejected);
+    }
+}
@@ -0,0 +1,165 @@
+package com.crowdstrike.mossab.model;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class PersonStoreTest {
+    private static final String[] FIRST_NAMES = {"Homer", "Marge", "Bart", "Lisa", "Maggie", "Zoë", "Björk", "李"};
+    private static final String[] LAST_NAMES = {"Simpson", "Flanders", "Szyślak", "Nahasapeemapetilon", "王"};
+
+    @Test
+    public void testPeople_shouldReadBackWhatWasAdded() {
+        for (boolean offHeap : new boolean[]{false, true}) {
+            PersonStore store = new PersonStore(offHeap);
+            List<Person> added = randomPeople(new SplittableRandom(1), 5000);
+            for (Person person : added) {
+                store.add(person);
+            }
+
+            assertEquals(store.size(), added.size());
+            assertEquals(store.isOffHeap(), offHeap);
+            assertEquals(store.asList().toString(), added.toString());
+            // each distinct name is kept once, however many people have it
+            assertEquals(store.getFirstNames().size(), FIRST_NAMES.length);
+            assertEquals(store.getLastNames().size(), LAST_NAMES.length);
+        }
+    }
+
+    @Test
+    public void testAddFromBytes_shouldShareIdsWithAddedPeople() {
+        PersonStore store = new PersonStore(false);
+        byte[] line = " Zoë , Szyślak ".getBytes(StandardCharsets.UTF_8);
+        store.add(line, 1, 5, 8, line.length - 1, 42);
+        store.add(new Person("Zoë", "Szyślak", 43));
+
+        assertEquals(store.getPerson(0).toString(), new Person("Zoë", "Szyślak", 42).toString());
+        assertEquals(store.getFirstNameId(1), store.getFirstNameId(0));
+        assertEquals(store.getLastNameId(1), store.getLastNameId(0));
+    }
+
+    @Test
+    public void testAddAll_shouldAppendInOrder() {
+        List<Person> first = randomPeople(new SplittableRandom(2), 300);
+        List<Person> second = randomPeople(new SplittableRandom(3), 700);
+        PersonStore store = new PersonStore(true);
+        PersonStore other = new PersonStore(false);
+        first.forEach(store::add);
+        second.forEach(other::add);
+        store.addAll(other);
+
+        List<Person> expected = new ArrayList<>(first);
+        expected.addAll(second);
+        assertEquals(store.asList().toString(), expected.toString());
+    }
+
+    @Test
+    public void testCsvFileMerge_shouldTakeOverTheFirstPartsPeople() {
+        CsvFile part = new CsvFile("part");
+        part.getRecords().add(new Person("Homer", "Simpson", 39));
+        CsvFile nextPart = new CsvFile("part");
+        nextPart.getRecords().add(new Person("Marge", "Simpson", 36));
+
+        CsvFile whole = new CsvFile("whole");
+        whole.merge(part);
+        whole.merge(nextPart);
+        assertSame(whole.getRecords(), part.getRecords());
+        assertEquals(whole.getPeople().toString(), "[Homer Simpson, 39, Marge Simpson, 36]");
+
+        // people kept somewhere else than this file keeps them are copied over
+        CsvFile offHeap = new CsvFile("off-heap");
+        offHeap.setOffHeapRecords(true);
+        offHeap.merge(nextPart);
+        assertNotSame(offHeap.getRecords(), nextPart.getRecords());
+        assertTrue(offHeap.getRecords().isOffHeap());
+        assertEquals(offHeap.getPeople().toString(), "[Marge Simpson, 36]");
+    }
+
+    @Test
+    public void testManyPeople_shouldTakeFarLessThanPersonObjects() {
+        PersonStore store = new PersonStore(false);
+        for (Person person : randomPeople(new SplittableRandom(4), 100_000)) {
+            store.add(person);
+        }
+        // 12 bytes a person plus spare capacity, against some 80-100 bytes for a Person and its two Strings
+        assertTrue(store.estimatedBytes() / store.size() < 20);
+    }
+
+    @Test
+    public void testQueries_shouldMatchSorting() {
+        SplittableRandom random = new SplittableRandom(5);
+        List<PersonStore> stores = new ArrayList<>();
+        List<Person> everyone = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            PersonStore store = new PersonStore(i % 2 == 1);
+            for (Person person : randomPeople(random, 1000 + i)) {
+                store.add(person);
+                everyone.add(person);
+            }
+            stores.add(store);
+        }
+        RecordQueries queries = new RecordQueries(stores);
+
+        int[] sorted = everyone.stream().mapToInt(Person::getAge).sorted().toArray();
+        int n = sorted.length;
+        assertEquals(queries.size(), n);
+        assertEquals(queries.getMedianAge(), (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0, 0.0);
+        for (double percentile : new double[]{0, 1, 25, 50, 90, 99, 100}) {
+            int rank = Math.max((int) Math.ceil(percentile / 100 * n), 1) - 1;
+            assertEquals(queries.getPercentileAge(percentile), sorted[rank]);
+        }
+        assertEquals(queries.getAgeAtRank(n - 1), sorted[n - 1]);
+
+        List<Person> byAge = new ArrayList<>(everyone);
+        byAge.sort(Comparator.comparingInt(Person::getAge).reversed());
+        assertEquals(queries.getOldest(25).toString(), byAge.subList(0, 25).toString());
+        assertEquals(queries.getOldest(n + 10).size(), n);
+
+        Person firstOfAge = everyone.stream().filter(person -> person.getAge() == sorted[n / 3]).findFirst().get();
+        assertEquals(queries.findPersonOfAge(sorted[n / 3]).toString(), firstOfAge.toString());
+        assertNull(queries.findPersonOfAge(1000));
+    }
+
+    @Test
+    public void testSelect_shouldHandleOddCountsAndRepeats() {
+        int[] ages = {7, 7, 7, 3, 7, 7, 1};
+        assertEquals(RecordQueries.select(ages.clone(), 0), 1);
+        assertEquals(RecordQueries.select(ages.clone(), 2), 7);
+        assertEquals(new RecordQueries(storesOf(ages)).getMedianAge(), 7.0, 0.0);
+        assertEquals(new RecordQueries(new ArrayList<>()).getMedianAge(), 0.0, 0.0);
+
+        int[] sorted = ages.clone();
+        Arrays.sort(sorted);
+        int[] selected = ages.clone();
+        RecordQueries.select(selected, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(selected[i] <= sorted[3]);
+        }
+    }
+
+    private static List<PersonStore> storesOf(int[] ages) {
+        PersonStore store = new PersonStore(false);
+        for (int age : ages) {
+            store.add(new Person("Homer", "Simpson", age));
+        }
+        List<PersonStore> stores = new ArrayList<>();
+        stores.add(store);
+        return stores;
+    }
+
+    private static List<Person> randomPeople(SplittableRandom random, int count) {
+        List<Person> people = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            people.add(new Person(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+                    LAST_NAMES[random.nextInt(LAST_NAMES.length)], random.nextInt(100)));
+        }
+        return people;
+    }
+}
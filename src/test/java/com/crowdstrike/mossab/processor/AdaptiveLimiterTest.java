@@ -0,0 +1,109 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveLimiterTest {
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    public void testLimit_shouldGrowWhileUsedAndHealthy() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, clock::get);
+        assertEquals(limiter.getLimit(), AdaptiveLimiter.INITIAL_LIMIT);
+
+        // steady completions (same rate, same latency) while the limit is reached
+        for (int i = 0; i < 500; i++) {
+            clock.addAndGet(MILLIS);
+            limiter.onSample(10 * MILLIS, false, true);
+        }
+        assertEquals(limiter.getLimit(), 20);
+
+        // and never beyond the maximum
+        assertEquals(limiter.getChanges().get(limiter.getChanges().size() - 1)[1], 20);
+    }
+
+    @Test
+    public void testLimit_shouldNotGrowWhenUnused() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, clock::get);
+        for (int i = 0; i < 100; i++) {
+            clock.addAndGet(MILLIS);
+            limiter.onSample(10 * MILLIS, false, false);
+        }
+        assertEquals(limiter.getLimit(), AdaptiveLimiter.INITIAL_LIMIT);
+    }
+
+    @Test
+    public void testLimit_shouldHalveOnceWhenServersPushBack() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = grownTo16(clock);
+
+        limiter.onSample(10 * MILLIS, true, true);
+        assertEquals(limiter.getLimit(), 8);
+
+        // the errors of files that were already in flight don't halve it again straight away
+        limiter.onSample(10 * MILLIS, true, true);
+        limiter.onSample(10 * MILLIS, true, true);
+        assertEquals(limiter.getLimit(), 8);
+
+        // but errors that keep coming do
+        for (int i = 0; i < 8; i++) {
+            limiter.onSample(10 * MILLIS, true, true);
+        }
+        assertEquals(limiter.getLimit(), 4);
+    }
+
+    @Test
+    public void testLimit_shouldBackOffWhenLatencyInflates() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = grownTo16(clock);
+
+        // responses suddenly take 10 times as long - requests are queueing up somewhere
+        for (int i = 0; i < 5; i++) {
+            clock.addAndGet(MILLIS);
+            limiter.onSample(100 * MILLIS, false, true);
+        }
+        assertTrue(limiter.getLimit() < 16);
+        assertTrue(limiter.getLimit() >= 8);
+    }
+
+    @Test
+    public void testLimit_shouldUndoRaiseThatLoweredThroughput() {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, clock::get);
+
+        // a first window at 1 completion per ms
+        for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT; i++) {
+            clock.addAndGet(MILLIS);
+            limiter.onSample(10 * MILLIS, false, false);
+        }
+        // then the limit is raised, and completions slow to 1 per 2 ms
+        for (int i = 0; i < AdaptiveLimiter.INITIAL_LIMIT; i++) {
+            clock.addAndGet(2 * MILLIS);
+            limiter.onSample(10 * MILLIS, false, true);
+        }
+        assertEquals(limiter.getLimit(), AdaptiveLimiter.INITIAL_LIMIT);
+
+        // had it helped, the raise would have stuck
+        AdaptiveLimiter helped = new AdaptiveLimiter(20, clock::get);
+        for (int i = 0; i < 2 * AdaptiveLimiter.INITIAL_LIMIT + 1; i++) {
+            clock.addAndGet(MILLIS);
+            helped.onSample(10 * MILLIS, false, true);
+        }
+        assertEquals(helped.getLimit(), AdaptiveLimiter.INITIAL_LIMIT + 1);
+    }
+
+    private static AdaptiveLimiter grownTo16(AtomicLong clock) {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16, clock::get);
+        for (int i = 0; i < 500; i++) {
+            clock.addAndGet(MILLIS);
+            limiter.onSample(10 * MILLIS, false, true);
+        }
+        assertEquals(limiter.getLimit(), 16);
+        return limiter;
+    }
+}
@@ -0,0 +1,192 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.MalformedLine;
+import com.crowdstrike.mossab.model.MalformedLineStats;
+import com.crowdstrike.mossab.model.MalformedReason;
+import com.crowdstrike.mossab.model.Person;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+public class CsvLineParserTest {
+    private static final String EDGE_CASES = "fname, lname, age\r\n"
+            + "Homer, Simpson, 39\r\n"
+            + "  Marge ,Simpson,+39  \n"
+            + "Lisa, Simpson, 8,,\r"
+            + "Bart, Simpson, 10, \n"
+            + "Maggie, Simpson\n"
+            + "\n"
+            + ",,,\n"
+            + ", , 1\n"
+            + "Abe, Simpson, old\n"
+            + "Mona, Simpson, -1\n"
+            + "Jacqueline, Bouvier, 99999999999\n"
+            + "Zoë, Ünicode, 45\n"
+            + "Ned, Flanders, 60";
+
+    @Test
+    public void testEdgeCases_shouldMatchSplitAndParseInt() {
+        CsvFile csvFile = parse(EDGE_CASES.getBytes(StandardCharsets.UTF_8), 64 * 1024);
+
+        assertEquals(csvFile.getPeople().size(), 6);
+        checkPerson(csvFile.getPeople().get(0), "Homer", "Simpson", 39);
+        checkPerson(csvFile.getPeople().get(1), "Marge", "Simpson", 39);
+        checkPerson(csvFile.getPeople().get(2), "Lisa", "Simpson", 8);
+        checkPerson(csvFile.getPeople().get(3), "", "", 1);
+        checkPerson(csvFile.getPeople().get(4), "Zoë", "Ünicode", 45);
+        checkPerson(csvFile.getPeople().get(5), "Ned", "Flanders", 60);
+
+        // the extra (non-empty) field, too few fields, blank line, no fields, non-numeric, negative and overflowing ages
+        MalformedLineStats malformedLines = csvFile.getMalformedLines();
+        assertEquals(csvFile.getMalformedCount(), 7);
+        assertEquals(malformedLines.getCount(MalformedReason.WRONG_FIELD_COUNT), 4);
+        assertEquals(malformedLines.getCount(MalformedReason.NON_NUMERIC_AGE), 2);
+        assertEquals(malformedLines.getCount(MalformedReason.OUT_OF_RANGE_AGE), 1);
+        assertEquals(malformedLines.getCount(MalformedReason.ENCODING_ERROR), 0);
+
+        // only the first few are sampled
+        assertEquals(csvFile.getMalformedData().size(), MalformedLineStats.MAX_SAMPLES);
+        assertEquals(csvFile.getMalformedData().get(0), "Bart, Simpson, 10, ");
+        assertEquals(csvFile.getMalformedData().get(1), "Maggie, Simpson");
+        assertEquals(csvFile.getMalformedData().get(2), "");
+        assertEquals(malformedLines.getSamples().get(0).getByteOffset(), EDGE_CASES.indexOf("Bart"));
+        assertEquals(malformedLines.getSamples().get(1).getByteOffset(), EDGE_CASES.indexOf("Maggie"));
+        assertEquals(malformedLines.getSamples().get(2).getByteOffset(), EDGE_CASES.indexOf("\n\n") + 1);
+        assertEquals(csvFile.getSummary().getMalformedCount(), 7);
+        assertEquals(csvFile.getSummary().getCount(), 6);
+    }
+
+    @Test
+    public void testEveryChunkSize_shouldGiveTheSameResult() {
+        byte[] bytes = EDGE_CASES.getBytes(StandardCharsets.UTF_8);
+        CsvFile expected = parse(bytes, bytes.length);
+
+        // lines, "\r\n" pairs and multi-byte characters all end up split across chunks at some chunk size
+        for (int chunkSize = 1; chunkSize < bytes.length; chunkSize++) {
+            CsvFile csvFile = parse(bytes, chunkSize);
+
+            assertEquals(csvFile.getPeople().size(), expected.getPeople().size());
+            for (int i = 0; i < expected.getPeople().size(); i++) {
+                assertEquals(csvFile.getPeople().get(i).toString(), expected.getPeople().get(i).toString());
+            }
+            assertEquals(csvFile.getMalformedData(), expected.getMalformedData());
+            for (int i = 0; i < expected.getMalformedLines().getSamples().size(); i++) {
+                assertEquals(csvFile.getMalformedLines().getSamples().get(i).getByteOffset(), expected.getMalformedLines().getSamples().get(i).getByteOffset());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidUtf8_shouldBeRejectedAsEncodingError() {
+        byte[] binary = {'B', 'a', 'd', ',', ' ', (byte) 0xC3, (byte) 0x28, ',', ' ', '3', '0', '\n'};
+        byte[] header = "fname, lname, age\nZoë, Ünicode, 45\n".getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[header.length + binary.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(binary, 0, bytes, header.length, binary.length);
+
+        CsvFile csvFile = parse(bytes, bytes.length);
+
+        assertEquals(csvFile.getPeople().size(), 1);
+        assertEquals(csvFile.getMalformedLines().getCount(MalformedReason.ENCODING_ERROR), 1);
+        MalformedLine sample = csvFile.getMalformedLines().getSamples().get(0);
+        assertEquals(sample.getReason(), MalformedReason.ENCODING_ERROR);
+        assertEquals(sample.getByteOffset(), header.length);
+    }
+
+    @Test
+    public void testHugeUnterminatedLine_shouldBeRejectedWithoutBufferingIt() {
+        // a 1MB "line" (e.g. a binary blob), fed in small chunks so it all goes through the carry
+        StringBuilder csv = new StringBuilder("fname, lname, age\nHomer, Simpson, 39\n");
+        for (int i = 0; i < 1024 * 1024; i++) {
+            csv.append('x');
+        }
+        csv.append("\nNed, Flanders, 60\n");
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        CsvFile csvFile = parse(bytes, 4096);
+
+        assertEquals(csvFile.getPeople().size(), 2);
+        assertEquals(csvFile.getMalformedLines().getCount(MalformedReason.LINE_TOO_LONG), 1);
+        MalformedLine sample = csvFile.getMalformedLines().getSamples().get(0);
+        assertEquals(sample.getByteOffset(), "fname, lname, age\nHomer, Simpson, 39\n".length());
+        assertEquals(sample.getText().length(), MalformedLineStats.MAX_SAMPLE_LENGTH);
+    }
+
+    @Test
+    public void testIsValidUtf8_shouldMatchDecoder() {
+        byte[][] inputs = {
+                "plain ascii".getBytes(StandardCharsets.UTF_8),
+                "Zoë, Ünicode, 日本, \uD83D\uDE00".getBytes(StandardCharsets.UTF_8),
+                {(byte) 0x80},
+                {(byte) 0xC0, (byte) 0xAF},
+                {(byte) 0xE0, (byte) 0x80, (byte) 0xAF},
+                {(byte) 0xED, (byte) 0xA0, (byte) 0x80},
+                {(byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+                {(byte) 0xE6, (byte) 0x97},
+                {'a', (byte) 0xFF, 'b'},
+        };
+        for (byte[] input : inputs) {
+            boolean expected;
+            try {
+                StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(input));
+                expected = true;
+            } catch (CharacterCodingException e) {
+                expected = false;
+            }
+            assertEquals(expected, CsvLineParser.isValidUtf8(input, 0, input.length));
+        }
+    }
+
+    @Test
+    public void testFile9Bad_shouldRejectRowsWithExtraFields() throws IOException {
+        CsvFile csvFile = new CsvFile("./src/data/file9_bad.csv");
+        new CsvLineParser(csvFile, false, true).parse(new ByteArrayInputStream(Files.readAllBytes(Paths.get("./src/data/file9_bad.csv"))));
+
+        // not retained, only summarised
+        assertEquals(csvFile.getPeople().size(), 0);
+        assertEquals(csvFile.getSummary().getCount(), 45);
+        assertEquals(csvFile.getMalformedData().size(), 3);
+        assertEquals(csvFile.getMalformedData().get(0), "Melanie, POWELL, Faith, CHAVEZ, 49");
+    }
+
+    @Test
+    public void testParseAge_shouldMatchParseInt() {
+        String[] fields = {"0", " 42 ", "+7", "-3", "2147483647", "-2147483648", "2147483648", "", " ", "-", "4 2", "1e3",
+                "00000000030", "000", "+0000000000042", "-00000000002147483648", "00000000002147483648"};
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            int expected;
+            try {
+                expected = Integer.parseInt(field.trim());
+            } catch (NumberFormatException e) {
+                expected = CsvLineParser.NOT_A_NUMBER;
+            }
+            assertEquals(field, expected, CsvLineParser.parseAge(bytes, 0, bytes.length));
+        }
+    }
+
+    private CsvFile parse(byte[] bytes, int chunkSize) {
+        CsvFile csvFile = new CsvFile("test");
+        CsvLineParser parser = new CsvLineParser(csvFile, true, true);
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            parser.feed(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+        }
+        parser.finish();
+        return csvFile;
+    }
+
+    private void checkPerson(Person person, String firstName, String lastName, int age) {
+        assertEquals(person.getFirstName(), firstName);
+        assertEquals(person.getLastName(), lastName);
+        assertEquals(person.getAge(), age);
+    }
+}
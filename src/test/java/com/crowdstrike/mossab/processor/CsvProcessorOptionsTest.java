@@ -0,0 +1,45 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CsvProcessorOptionsTest {
+
+    @Test
+    public void testSetters_shouldRejectValuesThatCantWork() {
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        Runnable[] invalid = {
+                () -> options.setIoThreads(0),
+                () -> options.setParseThreads(0),
+                () -> options.setHandoffCapacity(0),
+                () -> options.setMaxConnections(0),
+                () -> options.setRangeConnections(0),
+                () -> options.setPerHostConnections(0),
+                () -> options.setMaxInFlight(0),
+                () -> options.setMaxAttempts(0),
+                () -> options.setCheckpointBatchSize(0),
+                () -> options.setMalformedRatioLines(0),
+                () -> options.setReadTimeoutMillis(-1),
+                () -> options.setHedgePercentile(101),
+                () -> options.setMaxMalformedRatio(1.5),
+        };
+        for (Runnable setter : invalid) {
+            try {
+                setter.run();
+                fail("expected an IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                assertNotNull(e.getMessage());
+            }
+        }
+
+        // the defaults are untouched, and "negative for no limit" still works
+        assertEquals(options.getIoThreads(), 16);
+        options.setPerHostConnections(-1);
+        options.setMaxInFlight(-1);
+        options.setHedgePercentile(-1);
+        options.setReadTimeoutMillis(0);
+        assertEquals(options.getPerHostConnections(), -1);
+        assertEquals(options.getReadTimeoutMillis(), 0);
+    }
+}
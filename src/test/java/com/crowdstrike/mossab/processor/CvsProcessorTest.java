@@ -1,15 +1,40 @@
 package com.crowdstrike.mossab.processor;
 
+import com.crowdstrike.mossab.fetch.FetchResponse;
+import com.crowdstrike.mossab.fetch.HttpBackend;
+import com.crowdstrike.mossab.fetch.HttpBackendType;
 import com.crowdstrike.mossab.model.CsvFile;
 import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.FilePhase;
+import com.crowdstrike.mossab.model.GroupStats;
 import com.crowdstrike.mossab.model.Person;
+import com.crowdstrike.mossab.model.RecordQueries;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class CvsProcessorTest {
 
@@ -120,6 +145,364 @@ public class CvsProcessorTest {
         assertEquals(file7.getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
     }
 
+    @Test
+    public void testSevenLocalCsvsStreaming_shouldMatchNonStreaming() {
+        List<String> urls = localCsvUrls();
+
+        CsvProcessor processor = new CsvProcessor(urls);
+        processor.process();
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setStreaming(true);
+        CsvProcessor streamingProcessor = new CsvProcessor(urls, options);
+        streamingProcessor.process();
+
+        // same numbers either way, but the streaming run does not hold on to any people
+        assertEquals(processor.getMedianAge(), 31.00, 0.01);
+        assertEquals(processor.getAverageAge(), 33.80, 0.01);
+        assertEquals(streamingProcessor.getMedianAge(), processor.getMedianAge(), 0.0);
+        assertEquals(streamingProcessor.getAverageAge(), processor.getAverageAge(), 0.0);
+        assertNotNull(streamingProcessor.getMedianPerson());
+        assertEquals(streamingProcessor.getMedianPerson().toString(), processor.getMedianPerson().toString());
+
+        for (int i = 0; i < urls.size(); i++) {
+            CsvFile file = processor.getFiles().get(i);
+            CsvFile streamingFile = streamingProcessor.getFiles().get(i);
+
+            assertEquals(streamingFile.getPeople().size(), 0);
+            assertEquals(streamingFile.getSummary().getCount(), file.getPeople().size());
+            assertEquals(streamingFile.getStatus(), file.getStatus());
+        }
+        assertEquals(streamingProcessor.getRecordQueries().size(), 0);
+    }
+
+    @Test
+    public void testOffHeapRecordQueries_shouldMatchHistogram() {
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setOffHeapRecords(true);
+        CsvProcessor processor = new CsvProcessor(localCsvUrls(), options);
+        processor.process();
+
+        RecordQueries queries = processor.getRecordQueries();
+        assertEquals(queries.size(), processor.getSummary().getCount());
+        assertEquals(queries.getMedianAge(), processor.getMedianAge(), 0.0);
+        assertEquals(queries.findPersonOfAge(processor.getMedianPerson().getAge()).getAge(), processor.getMedianPerson().getAge());
+        for (CsvFile file : processor.getFiles()) {
+            if (file.hasRecords()) {
+                assertTrue(file.getRecords().isOffHeap());
+            }
+        }
+
+        List<Person> oldest = queries.getOldest(3);
+        assertEquals(oldest.size(), 3);
+        assertTrue(oldest.get(0).getAge() >= oldest.get(2).getAge());
+        assertEquals(oldest.get(0).getAge(), queries.getPercentileAge(100));
+    }
+
+    @Test
+    public void testGroups_shouldAddUpToTheWholeRun() {
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setGroupBy(GroupBy.LAST_NAME);
+        options.setTopGroups(3);
+        CsvProcessor processor = new CsvProcessor(localCsvUrls(), options);
+        processor.process();
+
+        for (GroupBy groupBy : GroupBy.values()) {
+            List<GroupStats> groups = processor.getGroups(groupBy);
+            assertEquals(groups.stream().mapToLong(GroupStats::getCount).sum(), processor.getSummary().getCount());
+            assertEquals(groups.stream().mapToLong(GroupStats::getSum).sum(), processor.getSummary().getSum());
+        }
+        List<GroupStats> sources = processor.getGroups(GroupBy.SOURCE);
+        assertEquals(sources.get(0).getKey(), localCsvUrls().get(0));
+        assertEquals(sources.get(0).getMedian(), processor.getFiles().get(0).getSummary().getHistogram().getMedian(), 0.0);
+
+        String printed = printedGroups(processor);
+        assertTrue(printed.contains("GROUPS BY LAST NAME"));
+        assertEquals(printed.split("\t- ").length - 1, 3);
+    }
+
+    @Test
+    public void testGroupsWithoutKeptPeople_shouldSaySo() throws IOException {
+        CsvProcessor plain = new CsvProcessor(localCsvUrls());
+        plain.process();
+
+        // streamed out files are still grouped by source, from the summaries merged as they went
+        CsvProcessorOptions streamed = new CsvProcessorOptions();
+        streamed.setGroupBy(GroupBy.LAST_NAME);
+        streamed.setStreamFileSummaries(true);
+        CsvProcessor streamedProcessor = new CsvProcessor(localCsvUrls(), streamed);
+        streamedProcessor.process();
+        assertEquals(streamedProcessor.getFiles().size(), 0);
+        assertEquals(streamedProcessor.getGroups(GroupBy.SOURCE).stream().mapToLong(GroupStats::getCount).sum(), plain.getSummary().getCount());
+        assertTrue(printedGroups(streamedProcessor).contains("needs the files kept"));
+
+        // files restored from the journal have their summaries, but no names
+        Path journal = Files.createTempDirectory("checkpoint").resolve("run.journal");
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setCheckpointFile(journal.toString());
+        new CsvProcessor(localCsvUrls(), options).process();
+        options.setResume(true);
+        options.setGroupBy(GroupBy.LAST_NAME);
+        CsvProcessor resumed = new CsvProcessor(localCsvUrls(), options);
+        resumed.process();
+
+        assertEquals(resumed.getFilesWithoutRecords(), GroupAggregator.bySource(plain.getFiles()).size());
+        assertEquals(resumed.getGroups(GroupBy.LAST_NAME).size(), 0);
+        assertEquals(resumed.getGroups(GroupBy.SOURCE).stream().mapToLong(GroupStats::getCount).sum(), plain.getSummary().getCount());
+        assertTrue(printedGroups(resumed).contains("PARTIAL RESULT: " + plain.getSummary().getCount() + " people"));
+    }
+
+    private static String printedGroups(CsvProcessor processor) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true, StandardCharsets.UTF_8));
+        try {
+            processor.printGroups();
+        } finally {
+            System.setOut(out);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testManyLocalCsvs_shouldMergeSummariesInParallel() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            urls.addAll(localCsvUrls());
+        }
+        // enough files that the summaries are merged as a fork/join tree rather than one by one
+        assertTrue(urls.size() >= CsvProcessor.PARALLEL_REDUCTION_THRESHOLD);
+
+        CsvProcessor processor = new CsvProcessor(urls);
+        processor.process();
+
+        CsvProcessor singleProcessor = new CsvProcessor(localCsvUrls());
+        singleProcessor.process();
+
+        // repeating the same files 10 times shifts neither the median nor the average
+        assertEquals(processor.getFiles().size(), 70);
+        assertEquals(processor.getMedianAge(), singleProcessor.getMedianAge(), 0.0);
+        assertEquals(processor.getAverageAge(), singleProcessor.getAverageAge(), 0.0);
+        assertEquals(processor.getMedianPerson().toString(), singleProcessor.getMedianPerson().toString());
+        assertEquals(processor.getSummary().getCount(), 10 * singleProcessor.getSummary().getCount());
+        assertEquals(processor.getSummary().getMalformedCount(), 30);
+        assertEquals(processor.getSummary().getMinAge(), singleProcessor.getSummary().getMinAge());
+        assertEquals(processor.getSummary().getMaxAge(), singleProcessor.getSummary().getMaxAge());
+    }
+
+    @Test
+    public void testManyLocalCsvsWithSmallPipeline_shouldKeepThreadCountBounded() {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            urls.addAll(localCsvUrls());
+        }
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setIoThreads(3);
+        options.setParseThreads(2);
+        options.setHandoffCapacity(1);
+        CsvProcessor processor = new CsvProcessor(urls, options);
+        processor.process();
+
+        // 70 files, but never more threads than the stages were sized for
+        assertTrue(processor.getExecutorService().getLargestPoolSize() <= 3);
+        assertTrue(processor.getPipeline().getParseExecutor().getLargestPoolSize() <= 2);
+        assertEquals(processor.getFiles().size(), 70);
+        assertEquals(processor.getMedianAge(), 31.00, 0.01);
+        assertEquals(processor.getAverageAge(), 33.80, 0.01);
+
+        // files come back in the order their URLs were given
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(processor.getFiles().get(i).getUrl(), urls.get(i));
+        }
+    }
+
+    /***
+     * Virtual threads only exist from Java 21 onwards, so their tests are skipped on older JVMs - except under the jdk21
+     * profile, which runs the tests on 21+ and makes sure they aren't skipped.
+     */
+    private static void assumeVirtualThreads() {
+        if (Boolean.getBoolean("virtualThreads.required")) {
+            assertTrue("the jdk21 profile needs a Java 21+ JVM", VirtualThreadExecutor.isSupported());
+        }
+        assumeTrue(VirtualThreadExecutor.isSupported());
+    }
+
+    @Test
+    public void testSevenLocalCsvsOnVirtualThreads_shouldWork() {
+        assumeVirtualThreads();
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setVirtualThreads(true);
+        options.setMaxConnections(2);
+        CsvProcessor processor = new CsvProcessor(localCsvUrls(), options);
+        processor.process();
+
+        VirtualThreadExecutor executor = (VirtualThreadExecutor) processor.getReaderExecutor();
+        assertTrue(executor.getPeakInFlight() <= 2);
+        assertEquals(executor.getCarrierThreadCount(), Integer.getInteger("jdk.virtualThreadScheduler.parallelism",
+                Runtime.getRuntime().availableProcessors()).intValue());
+        assertEquals(processor.getMedianAge(), 31.00, 0.01);
+        assertEquals(processor.getAverageAge(), 33.80, 0.01);
+    }
+
+    @Test
+    public void testSlowUrlsOnVirtualThreads_shouldAllBeInFlightAtOnce() throws IOException {
+        assumeVirtualThreads();
+
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            byte[] body = Files.readAllBytes(Paths.get("./src/data/file1.csv"));
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                urls.add(server.serve("/slow" + i + ".csv", body));
+                server.delayFirst("/slow" + i + ".csv", 1, 500);
+            }
+
+            // far more files in flight than there would be I/O threads, with nothing but virtual threads waiting on them
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setVirtualThreads(true);
+            options.setMaxConnections(64);
+            options.setPerHostConnections(-1);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            long start = System.nanoTime();
+            processor.process();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            VirtualThreadExecutor executor = (VirtualThreadExecutor) processor.getReaderExecutor();
+            assertTrue(executor.getPeakInFlight() > options.getIoThreads());
+            assertTrue(elapsedMillis < 5000);
+            assertEquals(processor.getFiles().size(), 64);
+            assertEquals(processor.getSummary().getCount(), 64L * processor.getFiles().get(0).getSummary().getCount());
+        }
+    }
+
+    @Test
+    public void testLocalHttpServerWithEachBackend_shouldMatchLocalFiles() throws IOException {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+            urls.add(server.url("/missing.csv"));
+
+            for (HttpBackendType backend : HttpBackendType.values()) {
+                CsvProcessorOptions options = new CsvProcessorOptions();
+                options.setHttpBackend(backend);
+                CsvProcessor processor = new CsvProcessor(urls, options);
+                processor.process();
+
+                assertEquals(processor.getMedianAge(), 31.00, 0.01);
+                assertEquals(processor.getAverageAge(), 33.80, 0.01);
+                assertEquals(processor.getFiles().get(0).getResponseCode().intValue(), 200);
+                assertEquals(processor.getFiles().get(2).getSummary().getCount(), 10000);
+                assertEquals(processor.getFiles().get(6).getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+
+                CsvFile missing = processor.getFiles().get(7);
+                assertEquals(missing.getResponseCode().intValue(), 404);
+                assertEquals(missing.getStatus(), CsvFileStatus.BAD_RETURN_CODE);
+            }
+        }
+    }
+
+    @Test
+    public void testRangedDownloads_shouldMatchSingleStreamDownloads() throws IOException {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+
+            CsvProcessor streamedProcessor = new CsvProcessor(urls);
+            streamedProcessor.process();
+
+            // many small ranges, so lots of rows (and "\r\n" pairs) are cut at range boundaries
+            for (HttpBackendType backend : HttpBackendType.values()) {
+                CsvProcessorOptions options = new CsvProcessorOptions();
+                options.setHttpBackend(backend);
+                options.setRangedThreshold(0);
+                options.setRangeConnections(7);
+                CsvProcessor processor = new CsvProcessor(urls, options);
+                processor.process();
+
+                assertEquals(processor.getMedianAge(), 31.00, 0.01);
+                assertEquals(processor.getAverageAge(), 33.80, 0.01);
+                assertEquals(processor.getMedianPerson().toString(), streamedProcessor.getMedianPerson().toString());
+                for (int i = 0; i < urls.size(); i++) {
+                    CsvFile file = processor.getFiles().get(i);
+                    CsvFile streamedFile = streamedProcessor.getFiles().get(i);
+
+                    assertEquals(file.getStatus(), streamedFile.getStatus());
+                    assertEquals(file.getResponseCode(), streamedFile.getResponseCode());
+                    assertEquals(file.getMalformedData(), streamedFile.getMalformedData());
+                    assertEquals(file.getMalformedCount(), streamedFile.getMalformedCount());
+                    for (int j = 0; j < file.getMalformedLines().getSamples().size(); j++) {
+                        assertEquals(file.getMalformedLines().getSamples().get(j).getByteOffset(), streamedFile.getMalformedLines().getSamples().get(j).getByteOffset());
+                    }
+                    assertEquals(file.getPeople().size(), streamedFile.getPeople().size());
+                    for (int j = 0; j < file.getPeople().size(); j++) {
+                        assertEquals(file.getPeople().get(j).toString(), streamedFile.getPeople().get(j).toString());
+                    }
+                }
+            }
+            assertTrue(server.getRangeRequests() > 0);
+
+            // without range support, the same files are read as a single stream each
+            server.setRangeSupport(false);
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setRangedThreshold(0);
+            CsvProcessor fallbackProcessor = new CsvProcessor(urls, options);
+            fallbackProcessor.process();
+
+            assertEquals(fallbackProcessor.getMedianAge(), 31.00, 0.01);
+            assertEquals(fallbackProcessor.getAverageAge(), 33.80, 0.01);
+            assertEquals(fallbackProcessor.getFiles().get(6).getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+        }
+    }
+
+    @Test
+    public void testRangedDownloads_shouldCheckTheRangesAndAbortRules() throws IOException {
+        StringBuilder mostlyMalformed = new StringBuilder("fname, lname, age\n");
+        for (int i = 0; i < 5000; i++) {
+            mostlyMalformed.append(i % 10 == 0 ? "Homer, Simpson, 39\n" : "<div>not a person</div>\n");
+        }
+
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            urls.add(server.serve("/no-header.csv", "Homer, Simpson, 39\nMarge, Simpson, 36\n".getBytes(StandardCharsets.UTF_8)));
+            urls.add(server.serve("/mostly-malformed.csv", mostlyMalformed.toString().getBytes(StandardCharsets.UTF_8)));
+            urls.add(server.serveFile("./src/data/file9_bad.csv"));
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setRangedThreshold(0);
+            options.setRangeConnections(4);
+            options.setRequireHeader(true);
+            options.setMaxMalformedRatio(0.5);
+            options.setMalformedRatioLines(100);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            processor.process();
+
+            assertTrue(server.getRangeRequests() > 0);
+            assertEquals(processor.getFiles().get(0).getStatus(), CsvFileStatus.ABORTED_MISSING_HEADER);
+            assertEquals(processor.getFiles().get(1).getStatus(), CsvFileStatus.ABORTED_TOO_MANY_MALFORMED_LINES);
+            assertEquals(processor.getFiles().get(2).getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+            assertEquals(processor.getSummary().getCount(), 45);
+
+            // a range that isn't the one asked for fails the file, rather than being parsed as if it were
+            server.setMisreportRanges(true);
+            CsvProcessor mismatchProcessor = new CsvProcessor(urls.subList(2, 3), options);
+            mismatchProcessor.process();
+            assertEquals(mismatchProcessor.getFiles().get(0).getStatus(), CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+            assertTrue(mismatchProcessor.getSummary().isEmpty());
+        }
+
+        assertTrue(RangedCsvDownloader.isContentRange("bytes 0-99/1000", 0, 99, 1000));
+        assertTrue(RangedCsvDownloader.isContentRange("bytes 100-199/*", 100, 199, 1000));
+        assertFalse(RangedCsvDownloader.isContentRange("bytes 0-999/1000", 0, 99, 1000));
+        assertFalse(RangedCsvDownloader.isContentRange("bytes 0-99/1001", 0, 99, 1000));
+        assertFalse(RangedCsvDownloader.isContentRange(null, 0, 99, 1000));
+        assertFalse(RangedCsvDownloader.isContentRange("bytes nonsense", 0, 99, 1000));
+    }
+
     @Test
     public void testNullUrl_shouldNotWork() {
         List<String> urls = new ArrayList<>();
@@ -198,6 +581,696 @@ public class CvsProcessorTest {
         assertEquals(processor.getFiles().get(0).getStatus(), CsvFileStatus.BAD_RETURN_CODE);
     }
 
+    @Test
+    public void testGarbageResponses_shouldBeAbortedEarly() throws IOException {
+        StringBuilder mostlyMalformed = new StringBuilder("fname, lname, age\n");
+        for (int i = 0; i < 5000; i++) {
+            mostlyMalformed.append(i % 10 == 0 ? "Homer, Simpson, 39\n" : "<div>not a person</div>\n");
+        }
+
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            urls.add(server.serve("/error.html", "<html><body>Oops</body></html>".getBytes(StandardCharsets.UTF_8), "text/html"));
+            urls.add(server.serve("/no-header.csv", "Homer, Simpson, 39\n".getBytes(StandardCharsets.UTF_8)));
+            urls.add(server.serve("/mostly-malformed.csv", mostlyMalformed.toString().getBytes(StandardCharsets.UTF_8)));
+            urls.add(server.serveFile("./src/data/file3.csv"));
+            urls.add("./src/data/file6_bad.csv");
+            urls.add("./src/data/file9_bad.csv");
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setRequireHeader(true);
+            options.setRequireCsvContentType(true);
+            options.setMaxBodySize(150 * 1024);
+            options.setMaxMalformedRatio(0.5);
+            options.setMalformedRatioLines(100);
+
+            // once through the fetch/parse pipeline (screened while downloading), and once streamed on one thread each
+            for (boolean pipeline : new boolean[]{true, false}) {
+                List<CsvFile> files = new ArrayList<>();
+                if (pipeline) {
+                    CsvProcessor processor = new CsvProcessor(urls, options);
+                    processor.process();
+                    files = processor.getFiles();
+
+                    // the aborted files add nothing - only file9_bad is left
+                    assertEquals(processor.getSummary().getCount(), 45);
+                } else {
+                    ReaderContext context = new ReaderContext(options);
+                    for (String url : urls) {
+                        files.add(new CsvReader(url, context).call());
+                    }
+                    context.close();
+                }
+
+                assertEquals(files.get(0).getStatus(), CsvFileStatus.ABORTED_WRONG_CONTENT_TYPE);
+                assertEquals(files.get(1).getStatus(), CsvFileStatus.ABORTED_MISSING_HEADER);
+                assertEquals(files.get(2).getStatus(), CsvFileStatus.ABORTED_TOO_MANY_MALFORMED_LINES);
+                assertEquals(files.get(3).getStatus(), CsvFileStatus.ABORTED_TOO_LARGE);
+                assertEquals(files.get(4).getStatus(), CsvFileStatus.ABORTED_MISSING_HEADER);
+                // 3 malformed lines out of 48 is fine
+                assertEquals(files.get(5).getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+                for (int i = 0; i < 5; i++) {
+                    assertEquals(files.get(i).getPeople().size(), 0);
+                    assertTrue(files.get(i).getSummary().isEmpty());
+                }
+            }
+
+            // without any rules, the same files are read to the end as before
+            CsvProcessor processor = new CsvProcessor(urls);
+            processor.process();
+            assertEquals(processor.getFiles().get(0).getStatus(), CsvFileStatus.EMPTY);
+            assertEquals(processor.getFiles().get(2).getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+            assertEquals(processor.getFiles().get(2).getMalformedCount(), 4500);
+            assertEquals(processor.getFiles().get(3).getStatus(), CsvFileStatus.PROCESSED_VALID);
+        }
+    }
+
+    @Test
+    public void testMaxBodySizeWithoutContentLength_shouldAbortWhileReading() {
+        // local files have no Content-Length to go by, so the limit is hit while reading
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setMaxBodySize(1024);
+
+        ReaderContext context = new ReaderContext(options);
+        assertEquals(new CsvReader("./src/data/file1.csv", context).call().getStatus(), CsvFileStatus.ABORTED_TOO_LARGE);
+        assertEquals(new CsvReader("./src/data/file6_bad.csv", context).call().getStatus(), CsvFileStatus.EMPTY);
+        context.close();
+    }
+
+    @Test
+    public void testCompressedInputs_shouldMatchPlainInputs() throws IOException {
+        Path directory = Files.createTempDirectory("compressed-csvs");
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            byte[] file3 = Files.readAllBytes(Paths.get("./src/data/file3.csv"));
+            byte[] file9 = Files.readAllBytes(Paths.get("./src/data/file9_bad.csv"));
+
+            // a raw deflate stream, without the zlib wrapper
+            ByteArrayOutputStream rawDeflate = new ByteArrayOutputStream();
+            try (DeflaterOutputStream output = new DeflaterOutputStream(rawDeflate, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+                output.write(file9);
+            }
+            ByteArrayOutputStream zip = new ByteArrayOutputStream();
+            try (ZipOutputStream output = new ZipOutputStream(zip)) {
+                output.putNextEntry(new ZipEntry("file9_bad.csv"));
+                output.write(file9);
+            }
+
+            List<String> plainUrls = new ArrayList<>();
+            List<String> compressedUrls = new ArrayList<>();
+
+            // local compressed files, picked by extension
+            plainUrls.add("./src/data/file3.csv");
+            compressedUrls.add(Files.write(directory.resolve("file3.csv.gz"), LocalCsvServer.compress(file3, "gzip")).toString());
+            plainUrls.add("./src/data/file9_bad.csv");
+            compressedUrls.add(Files.write(directory.resolve("file9_bad.csv.zip"), zip.toByteArray()).toString());
+            plainUrls.add("./src/data/file9_bad.csv");
+            compressedUrls.add(Files.write(directory.resolve("file9_bad.csv.deflate"), rawDeflate.toByteArray()).toString());
+
+            // http: a .gz file served as is, and bodies compressed on the fly as the client asks for
+            plainUrls.add("./src/data/file9_bad.csv");
+            compressedUrls.add(server.serve("/file9_bad.csv.gz", LocalCsvServer.compress(file9, "gzip"), "application/gzip"));
+            plainUrls.add("./src/data/file3.csv");
+            compressedUrls.add(server.serveFile("./src/data/file3.csv"));
+            server.setContentEncoding("gzip");
+
+            CsvProcessor plainProcessor = new CsvProcessor(plainUrls);
+            plainProcessor.process();
+            CsvProcessor processor = new CsvProcessor(compressedUrls);
+            processor.process();
+
+            assertEquals(processor.getMedianAge(), plainProcessor.getMedianAge(), 0.0);
+            assertEquals(processor.getAverageAge(), plainProcessor.getAverageAge(), 0.0);
+            for (int i = 0; i < plainUrls.size(); i++) {
+                CsvFile file = processor.getFiles().get(i);
+                CsvFile plainFile = plainProcessor.getFiles().get(i);
+                assertEquals(file.getStatus(), plainFile.getStatus());
+                assertEquals(file.getSummary().getCount(), plainFile.getSummary().getCount());
+                assertEquals(file.getMalformedData(), plainFile.getMalformedData());
+            }
+
+            TransferStats transferStats = processor.getTransferStats();
+            assertEquals(transferStats.getCompressedFiles(), 5);
+            assertEquals(transferStats.getUncompressedBytes(), 2 * file3.length + 3 * file9.length);
+            assertTrue(transferStats.getTransferredBytes() < transferStats.getUncompressedBytes() / 2);
+
+            // the same server with deflate, and a client that doesn't ask for compression at all
+            server.setContentEncoding("deflate");
+            List<String> urls = new ArrayList<>();
+            urls.add(server.url("/file3.csv"));
+            CsvProcessor deflateProcessor = new CsvProcessor(urls);
+            deflateProcessor.process();
+            assertEquals(deflateProcessor.getFiles().get(0).getSummary().getCount(), 10000);
+            assertEquals(deflateProcessor.getTransferStats().getCompressedFiles(), 1);
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setCompression(false);
+            CsvProcessor uncompressedProcessor = new CsvProcessor(urls, options);
+            uncompressedProcessor.process();
+            assertEquals(uncompressedProcessor.getFiles().get(0).getSummary().getCount(), 10000);
+            assertEquals(uncompressedProcessor.getTransferStats().getCompressedFiles(), 0);
+            assertEquals(uncompressedProcessor.getTransferStats().getTransferredBytes(), file3.length);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testUnsupportedCompression_shouldFailWithIoException() throws IOException {
+        Path file = Files.createTempFile("file1", ".csv.zst");
+        try {
+            Files.write(file, new byte[]{0x28, (byte) 0xB5, 0x2F, (byte) 0xFD});
+            assertEquals(new CsvReader(file.toString()).call().getStatus(), CsvFileStatus.IO_EXCEPTION_RETRIEVING_FILE);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testResultCache_shouldSkipUnchangedFilesOnReRun() throws IOException {
+        Path cacheDirectory = Files.createTempDirectory("result-cache");
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setCacheDirectory(cacheDirectory.toString());
+
+            // first run: nothing cached yet, everything is downloaded
+            CsvProcessor firstRun = new CsvProcessor(urls, options);
+            firstRun.process();
+            assertEquals(firstRun.getResultCache().getHits(), 0);
+            assertEquals(firstRun.getResultCache().getMisses(), urls.size());
+            assertEquals(server.getBodiesSent(), urls.size());
+
+            // second run: every file is revalidated and reused, none is downloaded again
+            CsvProcessor secondRun = new CsvProcessor(urls, options);
+            secondRun.process();
+            assertEquals(secondRun.getResultCache().getHits(), urls.size());
+            assertEquals(secondRun.getResultCache().getMisses(), 0);
+            assertEquals(server.getBodiesSent(), urls.size());
+            assertEquals(server.getNotModified(), urls.size());
+
+            assertEquals(secondRun.getMedianAge(), 31.00, 0.01);
+            assertEquals(secondRun.getAverageAge(), 33.80, 0.01);
+            assertEquals(secondRun.getMedianPerson().toString(), firstRun.getMedianPerson().toString());
+            for (int i = 0; i < urls.size(); i++) {
+                CsvFile file = secondRun.getFiles().get(i);
+                CsvFile firstFile = firstRun.getFiles().get(i);
+                assertEquals(file.getStatus(), firstFile.getStatus());
+                assertEquals((int) file.getResponseCode(), 304);
+                assertEquals(file.getSummary().getCount(), firstFile.getSummary().getCount());
+                assertEquals(file.getMalformedCount(), firstFile.getMalformedCount());
+                assertEquals(file.getMalformedData(), firstFile.getMalformedData());
+            }
+
+            // a changed file is downloaded again
+            server.serve("/file1.csv", Files.readAllBytes(Paths.get("./src/data/file2.csv")));
+            CsvProcessor thirdRun = new CsvProcessor(urls, options);
+            thirdRun.process();
+            assertEquals(thirdRun.getResultCache().getHits(), urls.size() - 1);
+            assertEquals(thirdRun.getResultCache().getMisses(), 1);
+            assertEquals((int) thirdRun.getFiles().get(0).getResponseCode(), 200);
+        } finally {
+            deleteDirectory(cacheDirectory);
+        }
+    }
+
+    @Test
+    public void testRetryableFailures_shouldBeRetriedWithBackoff() throws IOException {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+            urls.add(server.serve("/always_down.csv", Files.readAllBytes(Paths.get("./src/data/file1.csv"))));
+            urls.add(server.url("/missing.csv"));
+
+            server.failFirst("/file1.csv", 2, 503, null);
+            server.failFirst("/file2.csv", 1, 429, "0");
+            server.failFirst("/always_down.csv", 10, 500, null);
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setRetryBaseDelayMillis(1);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            processor.process();
+
+            // the retried files end up exactly as if nothing had gone wrong
+            assertEquals(processor.getMedianAge(), 31.00, 0.01);
+            assertEquals(processor.getAverageAge(), 33.80, 0.01);
+
+            List<CsvFile> files = processor.getFiles();
+            assertEquals(files.get(0).getAttempts(), 3);
+            assertEquals(files.get(0).getStatus(), CsvFileStatus.PROCESSED_VALID);
+            assertEquals(files.get(1).getAttempts(), 2);
+            assertEquals(files.get(1).getStatus(), CsvFileStatus.PROCESSED_VALID);
+            assertEquals(files.get(2).getAttempts(), 1);
+
+            // a server that stays down is given up on after the maximum number of attempts
+            assertEquals(files.get(7).getAttempts(), 3);
+            assertEquals(files.get(7).getStatus(), CsvFileStatus.BAD_RETURN_CODE);
+            assertEquals((int) files.get(7).getResponseCode(), 500);
+            assertEquals(server.getRequests("/always_down.csv"), 3);
+
+            // a 404 won't fix itself, so it is not retried
+            assertEquals(files.get(8).getAttempts(), 1);
+            assertEquals(files.get(8).getStatus(), CsvFileStatus.BAD_RETURN_CODE);
+            assertEquals(server.getRequests("/missing.csv"), 1);
+        }
+    }
+
+    @Test
+    public void testSlowRequest_shouldBeHedged() throws IOException {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            byte[] body = Files.readAllBytes(Paths.get("./src/data/file1.csv"));
+
+            // enough quick requests to know what "slow" is, then one that takes far longer the first time it's asked for
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < RequestHedger.MIN_SAMPLES + 5; i++) {
+                urls.add(server.serve("/quick" + i + ".csv", body));
+            }
+            urls.add(server.serve("/slow.csv", body));
+            server.delayFirst("/slow.csv", 1, 5000);
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setIoThreads(1);
+            options.setHedgePercentile(100);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            long start = System.nanoTime();
+            processor.process();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            CsvFile slow = processor.getFiles().get(urls.size() - 1);
+            assertTrue(slow.isHedged());
+            assertEquals(slow.getAttempts(), 1);
+            assertEquals(slow.getStatus(), CsvFileStatus.PROCESSED_VALID);
+            assertEquals(slow.getSummary().getCount(), processor.getFiles().get(0).getSummary().getCount());
+            assertEquals(server.getRequests("/slow.csv"), 2);
+
+            // the duplicate answered first, so the run did not wait out the delay
+            assertTrue(processor.getHedger().getHedgeWins() >= 1);
+            assertTrue(elapsedMillis < 5000);
+        }
+    }
+
+    @Test
+    public void testStalledTransfers_shouldTimeOut() throws IOException {
+        for (HttpBackendType backend : HttpBackendType.values()) {
+            try (LocalCsvServer server = new LocalCsvServer()) {
+                byte[] body = Files.readAllBytes(Paths.get("./src/data/file3.csv"));
+                List<String> urls = new ArrayList<>();
+                urls.add(server.serve("/stalls_once.csv", body));
+                urls.add(server.serve("/stalls_twice.csv", body));
+                urls.add(server.serve("/slow.csv", body));
+                server.stallFirst("/stalls_once.csv", 1, 5000);
+                server.stallFirst("/stalls_twice.csv", 2, 5000);
+                server.stallFirst("/slow.csv", 1, 1000);
+
+                CsvProcessorOptions options = new CsvProcessorOptions();
+                options.setHttpBackend(backend);
+                options.setMaxAttempts(2);
+                options.setRetryBaseDelayMillis(1);
+                options.setReadTimeoutMillis(1500);
+                options.setTransferTimeoutMillis(600);
+                CsvProcessor processor = new CsvProcessor(urls, options);
+                processor.process();
+
+                // a read timeout is retried like any other dropped connection
+                CsvFile stallsOnce = processor.getFiles().get(0);
+                assertEquals(stallsOnce.getStatus(), CsvFileStatus.PROCESSED_VALID);
+                assertEquals(stallsOnce.getAttempts(), 2);
+                assertEquals(stallsOnce.getSummary().getCount(), 10000);
+
+                CsvFile stallsTwice = processor.getFiles().get(1);
+                assertEquals(stallsTwice.getStatus(), CsvFileStatus.TIMED_OUT);
+                assertEquals(stallsTwice.getAttempts(), 2);
+                assertEquals(stallsTwice.getSummary().getCount(), 0);
+
+                // never stalled for a whole read timeout, but took longer than the whole transfer may - not retried
+                CsvFile slow = processor.getFiles().get(2);
+                assertEquals(slow.getStatus(), CsvFileStatus.TIMED_OUT);
+                assertEquals(slow.getAttempts(), 1);
+
+                assertEquals(processor.getTimedOutFiles(), 2);
+                assertEquals(processor.getSummary().getCount(), 10000);
+            }
+        }
+    }
+
+    @Test
+    public void testLargeBodies_shouldBeParsedPastTheFetchBuffer() throws IOException {
+        // well past what the fetch stage buffers, so the parse stage reads the rest of the body off the connection
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("fname, lname, age\n".getBytes(StandardCharsets.UTF_8));
+        byte[] line = "Ann, LEE, 30\n".getBytes(StandardCharsets.UTF_8);
+        int people = CsvReader.MAX_BUFFERED_BODY / line.length + 100_000;
+        for (int i = 0; i < people; i++) {
+            body.write(line);
+        }
+
+        for (HttpBackendType backend : HttpBackendType.values()) {
+            try (LocalCsvServer server = new LocalCsvServer()) {
+                String url = server.serve("/large.csv", body.toByteArray());
+                CsvProcessorOptions options = new CsvProcessorOptions();
+                options.setHttpBackend(backend);
+                options.setStreaming(true);
+                options.setCompression(false);
+                CsvProcessor processor = new CsvProcessor(Collections.singletonList(url), options);
+                processor.process();
+
+                assertEquals(processor.getFiles().get(0).getStatus(), CsvFileStatus.PROCESSED_VALID);
+                assertEquals(processor.getSummary().getCount(), people);
+                assertEquals(processor.getAverageAge(), 30.0, 0.01);
+            }
+        }
+    }
+
+    @Test
+    public void testJobDeadline_shouldReportPartialResults() throws IOException {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+            urls.add(server.serve("/hangs.csv", Files.readAllBytes(Paths.get("./src/data/file1.csv"))));
+            server.stallFirst("/hangs.csv", 1, 60_000);
+
+            // no read timeout at all - only the job deadline stops the hanging file
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setReadTimeoutMillis(0);
+            options.setJobDeadlineMillis(1000);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            long start = System.nanoTime();
+            processor.process();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertTrue(elapsedMillis < 10_000);
+            assertEquals(processor.getFiles().size(), urls.size());
+            assertEquals(processor.getFiles().get(7).getStatus(), CsvFileStatus.TIMED_OUT);
+            assertEquals(processor.getTimedOutFiles(), 1);
+
+            // the results are those of the files that were read, and say how much of the whole they are
+            assertEquals(processor.getMedianAge(), 31.00, 0.01);
+            assertEquals(processor.getAverageAge(), 33.80, 0.01);
+            assertEquals(processor.getRecordCoverage(), 7.0 / 8, 0.001);
+        }
+    }
+
+    @Test
+    public void testJobDeadline_shouldFailReadsThatAreBlocked() throws Exception {
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            String url = server.serve("/hangs.csv", Files.readAllBytes(Paths.get("./src/data/file1.csv")));
+            for (HttpBackendType type : HttpBackendType.values()) {
+                server.stallFirst("/hangs.csv", 1, 60_000);
+                // no read timeout, so only the deadline - through abort() or the capped timeouts - can stop the read
+                Deadline deadline = Deadline.after(1000);
+                HttpBackend backend = type.create(10_000, 0, deadline::remainingMillis);
+                FetchResponse response = backend.get(url);
+                CompletableFuture<Boolean> failed = CompletableFuture.supplyAsync(() -> {
+                    try (InputStream body = response.getBody()) {
+                        while (body.read(new byte[8192]) != -1) {
+                            // the second half of the body never comes
+                        }
+                        return false;
+                    } catch (IOException e) {
+                        return true;
+                    }
+                });
+                Thread.sleep(deadline.remainingMillis());
+                backend.abort();
+
+                assertTrue(type.toString(), failed.get(5, TimeUnit.SECONDS));
+                try {
+                    backend.get(url);
+                    fail(type + " should not send requests once aborted");
+                } catch (IOException e) {
+                    // expected
+                }
+                backend.close();
+            }
+        }
+    }
+
+    @Test
+    public void testSlowFirstFile_shouldNotHoldUpTheRest() throws IOException {
+        CsvProcessor baseline = new CsvProcessor(localCsvUrls());
+        baseline.process();
+
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            urls.add(server.serveFile("./src/data/file1.csv"));
+            server.delayFirst("/file1.csv", 1, 1500);
+            urls.addAll(localCsvUrls().subList(1, localCsvUrls().size()));
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setProgressIntervalMillis(100);
+            CsvProcessor processor = new CsvProcessor(urls, options);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(output, true));
+            try {
+                processor.process();
+            } finally {
+                System.setOut(stdout);
+            }
+
+            // the other files were taken (and shown) while the first one was still on its way
+            assertTrue(output.toString().contains("[progress] " + (urls.size() - 1) + "/" + urls.size() + " files"));
+            assertTrue(processor.getProgress().getReports() > 0);
+            assertEquals(processor.getProgress().getFilesDone(), urls.size());
+
+            // files are still listed in URL order, and merged in that order - the same results as when read in order
+            assertEquals(processor.getFiles().get(0).getUrl(), urls.get(0));
+            assertEquals(processor.getFiles().get(0).getStatus(), CsvFileStatus.PROCESSED_VALID);
+            assertEquals(processor.getMedianAge(), baseline.getMedianAge(), 0.01);
+            assertEquals(processor.getAverageAge(), baseline.getAverageAge(), 0.01);
+            assertEquals(processor.getMedianPerson().toString(), baseline.getMedianPerson().toString());
+            assertEquals(processor.getProgress().getRunningSummary().getCount(), processor.getSummary().getCount());
+        }
+    }
+
+    @Test
+    public void testManifestWithStreamedSummaries_shouldNotKeepFiles() {
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            for (String url : localCsvUrls()) {
+                manifest.append(url).append('\n');
+            }
+        }
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setStreamFileSummaries(true);
+        options.setMaxInFlight(4);
+        CsvProcessor processor = new CsvProcessor(new UrlManifest(new StringReader(manifest.toString())), options);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            processor.process();
+            processor.printFileSummaries();
+        } finally {
+            System.setOut(stdout);
+        }
+
+        CsvProcessor singleProcessor = new CsvProcessor(localCsvUrls());
+        singleProcessor.process();
+
+        // every file was summarised (once, as it was read) without any of them being kept
+        assertEquals(processor.getAdmissionWindow(), 4 * CsvProcessor.ADMISSION_WINDOW_FACTOR);
+        assertTrue(processor.getFiles().isEmpty());
+        assertEquals(processor.getFileCount(), 210);
+        assertTrue(output.toString().contains(" File #210:"));
+        assertFalse(output.toString().contains(" File #211:"));
+        assertEquals(output.toString().split("FILE SUMMARIES").length, 2);
+
+        assertEquals(processor.getMedianAge(), singleProcessor.getMedianAge(), 0.0);
+        assertEquals(processor.getAverageAge(), singleProcessor.getAverageAge(), 0.0);
+        assertEquals(processor.getMedianPerson().toString(), singleProcessor.getMedianPerson().toString());
+        assertEquals(processor.getSummary().getCount(), 30 * singleProcessor.getSummary().getCount());
+    }
+
+    @Test
+    public void testSyntheticPartitionsWithFaults_shouldMatchGeneratedResults() throws IOException {
+        List<SyntheticCsvServer> servers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2; i++) {
+                SyntheticCsvServer server = LoadHarness.configure(new SyntheticCsvServer(7), 200, 2);
+                server.setStallMillis(2000);
+                server.setDripPauseMillis(1);
+                servers.add(server);
+            }
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setReadTimeoutMillis(500);
+            options.setMaxAttempts(2);
+            options.setRetryBaseDelayMillis(10);
+            LoadHarness.Report report = new LoadHarness(300, servers).run(options);
+            report.print();
+
+            // every partition that survives its fault is counted exactly once, and nothing else is
+            assertTrue(report.isCorrect());
+            assertTrue(report.getExpectedFiles() < 300);
+            assertEquals(report.getProcessor().getFiles().size(), 300);
+            for (int i = 0; i < 300; i++) {
+                CsvFile file = report.getProcessor().getFiles().get(i);
+                SyntheticCsvServer.Fault fault = servers.get(0).faultOf(i);
+                boolean read = file.getStatus() == CsvFileStatus.PROCESSED_VALID || file.getStatus() == CsvFileStatus.PROCESSED_WITH_INVALID_INPUT;
+                assertEquals(fault + " " + file.getStatus(), read, fault.isIncluded());
+                if (fault == SyntheticCsvServer.Fault.STALL) {
+                    assertEquals(file.getStatus(), CsvFileStatus.TIMED_OUT);
+                }
+                if (fault == SyntheticCsvServer.Fault.GARBAGE) {
+                    assertEquals(file.getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+                }
+            }
+            assertTrue(report.getPeakThreads() > 0);
+            assertTrue(report.getPeakHeapBytes() > 0);
+        } finally {
+            for (SyntheticCsvServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsFile_shouldHavePhaseTimingsInEitherFormat() throws IOException {
+        Path directory = Files.createTempDirectory("metrics");
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (String file : localCsvUrls()) {
+                urls.add(server.serveFile(file));
+            }
+            // one slow response, which should show as the slowest time to first byte
+            server.delayFirst("/file1.csv", 1, 300);
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setMetricsFile(directory.resolve("metrics.json").toString());
+            CsvProcessor processor = new CsvProcessor(urls, options);
+            processor.process();
+
+            for (int i = 0; i < urls.size(); i++) {
+                CsvFile file = processor.getFiles().get(i);
+                assertTrue(file.getPhaseNanos(FilePhase.QUEUE_WAIT) >= 0);
+                assertTrue(file.getPhaseNanos(FilePhase.FIRST_BYTE) > 0);
+                assertTrue(file.getPhaseNanos(FilePhase.PARSE) >= 0);
+                assertTrue(file.getPhaseNanos(FilePhase.TOTAL) >= file.getPhaseNanos(FilePhase.FIRST_BYTE));
+                assertEquals(file.getTransferredBytes(), Files.size(Paths.get(localCsvUrls().get(i))));
+            }
+            assertTrue(processor.getFiles().get(0).getPhaseNanos(FilePhase.FIRST_BYTE) >= 300_000_000L);
+
+            FileMetrics metrics = processor.getFileMetrics();
+            assertEquals(metrics.getPhase(FilePhase.TOTAL).getCount(), urls.size());
+            assertTrue(metrics.getPhase(FilePhase.FIRST_BYTE).getMax() >= 300_000_000L);
+            assertTrue(metrics.getPhase(FilePhase.FIRST_BYTE).getPercentile(50) < 300_000_000L);
+            assertEquals(metrics.getTransferredBytes().getSum(), processor.getTransferStats().getTransferredBytes());
+
+            String json = new String(Files.readAllBytes(directory.resolve("metrics.json")), StandardCharsets.UTF_8);
+            assertTrue(json.contains("\"phases_ms\""));
+            assertTrue(json.contains("\"first_byte\": {\"count\": " + urls.size() + ", \"p50\": "));
+            assertTrue(json.contains("\"processed_with_invalid_input\": "));
+
+            options.setMetricsFile(directory.resolve("metrics.prom").toString());
+            options.setMetricsFormat(MetricsFormat.PROMETHEUS);
+            new CsvProcessor(urls, options).process();
+
+            String prometheus = new String(Files.readAllBytes(directory.resolve("metrics.prom")), StandardCharsets.UTF_8);
+            assertTrue(prometheus.contains("# TYPE csv_file_phase_seconds summary\n"));
+            assertTrue(prometheus.contains("csv_file_phase_seconds{phase=\"parse\",quantile=\"0.5\"} "));
+            assertTrue(prometheus.contains("csv_file_phase_seconds_count{phase=\"total\"} " + urls.size() + "\n"));
+            assertTrue(prometheus.contains("csv_file_transferred_bytes_sum "));
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testInterruptedRunResumed_shouldMatchUninterruptedRun() throws IOException {
+        Path directory = Files.createTempDirectory("checkpoint");
+        try (LocalCsvServer server = new LocalCsvServer()) {
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                for (String file : localCsvUrls()) {
+                    urls.add(server.serve("/" + i + "/" + Paths.get(file).getFileName(), Files.readAllBytes(Paths.get(file))));
+                }
+            }
+            CsvProcessor uninterrupted = new CsvProcessor(urls);
+            uninterrupted.process();
+
+            Path journal = directory.resolve("run.journal");
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setCheckpointFile(journal.toString());
+            options.setCheckpointBatchSize(4);
+            CsvProcessor firstRun = new CsvProcessor(urls, options);
+            firstRun.process();
+            assertEquals(firstRun.getRestoredFiles(), 0);
+
+            // a run that died part way: the journal ends with half a record
+            byte[] whole = Files.readAllBytes(journal);
+            Files.write(journal, Arrays.copyOf(whole, whole.length / 2));
+            int bodiesBefore = server.getBodiesSent();
+
+            options.setResume(true);
+            CsvProcessor resumed = new CsvProcessor(urls, options);
+            resumed.process();
+
+            long restored = resumed.getRestoredFiles();
+            assertTrue(restored > 0 && restored < urls.size());
+            // only the files missing from the journal were downloaded again
+            assertEquals(server.getBodiesSent() - bodiesBefore, urls.size() - restored);
+            assertSameResults(resumed, uninterrupted);
+
+            // the journal is whole again, so resuming once more reads nothing
+            CsvProcessor resumedAgain = new CsvProcessor(urls, options);
+            resumedAgain.process();
+            assertEquals(resumedAgain.getRestoredFiles(), urls.size());
+            assertEquals(server.getBodiesSent() - bodiesBefore, urls.size() - restored);
+            assertSameResults(resumedAgain, uninterrupted);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void assertSameResults(CsvProcessor processor, CsvProcessor expected) {
+        assertEquals(processor.getMedianAge(), expected.getMedianAge(), 0.0);
+        assertEquals(processor.getAverageAge(), expected.getAverageAge(), 0.0);
+        assertEquals(processor.getMedianPerson().toString(), expected.getMedianPerson().toString());
+        assertEquals(processor.getSummary().getCount(), expected.getSummary().getCount());
+        assertEquals(processor.getSummary().getMalformedCount(), expected.getSummary().getMalformedCount());
+        assertEquals(processor.getFiles().size(), expected.getFiles().size());
+        for (int i = 0; i < expected.getFiles().size(); i++) {
+            CsvFile file = processor.getFiles().get(i);
+            CsvFile expectedFile = expected.getFiles().get(i);
+            assertEquals(file.getUrl(), expectedFile.getUrl());
+            assertEquals(file.getStatus(), expectedFile.getStatus());
+            assertEquals(file.getSummary().getCount(), expectedFile.getSummary().getCount());
+            assertEquals(file.getMalformedData(), expectedFile.getMalformedData());
+        }
+    }
+
+    private void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public List<String> localCsvUrls() {
+        List<String> urls = new ArrayList<>();
+        urls.add("./src/data/file1.csv");
+        urls.add("./src/data/file2.csv");
+        urls.add("./src/data/file3.csv");
+        urls.add("./src/data/file4.csv");
+        urls.add("./src/data/file5.csv");
+        urls.add("./src/data/file6_bad.csv");
+        urls.add("./src/data/file9_bad.csv");
+        return urls;
+    }
+
     public void checkEmptyProcessor(CsvProcessor processor, List<String> urls) {
         assertEquals(processor.getFiles().size(), 1);
         assertEquals(processor.getExecutorService().getLargestPoolSize(), 1); // 1 thread should have been used
@@ -0,0 +1,87 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.GroupStats;
+import com.crowdstrike.mossab.model.Person;
+import com.crowdstrike.mossab.model.PersonStore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class GroupAggregatorTest {
+
+    @Test
+    public void testByLastName_shouldMatchGroupingEveryone() {
+        SplittableRandom random = new SplittableRandom(1);
+        List<PersonStore> stores = new ArrayList<>();
+        Map<String, List<Integer>> expected = new HashMap<>();
+        // one store big enough to be split into several chunks, and stores with overlapping but differently numbered names
+        int[] sizes = {GroupAggregator.CHUNK_ROWS * 2 + 17, 5000, 0, 1};
+        for (int i = 0; i < sizes.length; i++) {
+            PersonStore store = new PersonStore(i % 2 == 1);
+            for (int row = 0; row < sizes[i]; row++) {
+                // skewed, so there are big groups and groups of one
+                String lastName = "Name" + (int) Math.pow(random.nextInt(60), 2 + i);
+                int age = random.nextInt(151);
+                store.add(new Person("Homer", lastName, age));
+                expected.computeIfAbsent(lastName, name -> new ArrayList<>()).add(age);
+            }
+            stores.add(store);
+        }
+
+        List<GroupStats> groups = new GroupAggregator(4).byLastName(stores);
+
+        assertEquals(groups.size(), expected.size());
+        for (GroupStats group : groups) {
+            List<Integer> ages = expected.get(group.getKey());
+            ages.sort(null);
+            int n = ages.size();
+            long sum = ages.stream().mapToLong(Integer::longValue).sum();
+            double median = n % 2 == 1 ? ages.get(n / 2) : (ages.get(n / 2 - 1) + ages.get(n / 2)) / 2.0;
+
+            assertEquals(group.getCount(), n);
+            assertEquals(group.getSum(), sum);
+            assertEquals(group.getMedian(), median, 0.0);
+        }
+    }
+
+    @Test
+    public void testByFirstName_shouldGroupAcrossStores() {
+        PersonStore first = new PersonStore(false);
+        first.add(new Person("Lisa", "Simpson", 8));
+        first.add(new Person("Homer", "Simpson", 39));
+        PersonStore second = new PersonStore(true);
+        second.add(new Person("Homer", "Flanders", 41));
+        second.add(new Person("Homer", "Szyslak", 40));
+        List<PersonStore> stores = new ArrayList<>();
+        stores.add(first);
+        stores.add(second);
+
+        List<GroupStats> top = GroupAggregator.top(new GroupAggregator(2).byFirstName(stores), 5);
+
+        assertEquals(top.size(), 2);
+        assertEquals(top.get(0).toString(), "Homer: 3 people, average age 40.00, median age 40.00");
+        assertEquals(top.get(1).toString(), "Lisa: 1 people, average age 8.00, median age 8.00");
+        assertEquals(new GroupAggregator(2).byLastName(new ArrayList<>()).size(), 0);
+    }
+
+    @Test
+    public void testTop_shouldBeLargestFirstThenByKey() {
+        List<GroupStats> groups = new ArrayList<>();
+        groups.add(new GroupStats("b", 2, 20, 10));
+        groups.add(new GroupStats("c", 5, 50, 10));
+        groups.add(new GroupStats("a", 2, 20, 10));
+
+        List<GroupStats> top = GroupAggregator.top(groups, 2);
+
+        assertEquals(top.size(), 2);
+        assertEquals(top.get(0).getKey(), "c");
+        assertEquals(top.get(1).getKey(), "a");
+        assertEquals(GroupAggregator.top(groups, 10).size(), 3);
+    }
+}
@@ -0,0 +1,151 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class HostSchedulerTest {
+
+    @Test
+    public void testHostOf_shouldGroupByHostAndPort() {
+        assertEquals(HostScheduler.hostOf("http://Example.com/a.csv"), "example.com:80");
+        assertEquals(HostScheduler.hostOf("https://example.com/a.csv"), "example.com:443");
+        assertEquals(HostScheduler.hostOf("http://127.0.0.1:8080/a.csv"), "127.0.0.1:8080");
+        assertEquals(HostScheduler.hostOf("./src/data/file1.csv"), HostScheduler.LOCAL_FILES);
+        assertEquals(HostScheduler.hostOf(null), HostScheduler.LOCAL_FILES);
+        assertEquals(HostScheduler.hostOf("http://bad host/a.csv"), HostScheduler.LOCAL_FILES);
+    }
+
+    @Test
+    public void testCaps_shouldBeKeptAndHostsShouldTakeTurns() {
+        ManualExecutor executor = new ManualExecutor();
+        HostScheduler scheduler = new HostScheduler(executor, 2, 3, null, Runnable::run);
+
+        List<String> urls = Arrays.asList("http://a/1.csv", "http://a/2.csv", "http://a/3.csv", "http://a/4.csv",
+                "http://a/5.csv", "http://b/1.csv", "http://b/2.csv", "./local.csv");
+        List<CompletableFuture<CsvFile>> results = new ArrayList<>();
+        for (String url : urls) {
+            results.add(scheduler.submit(new CsvReader(url)));
+        }
+
+        // host a is capped at 2, so the last slot goes to host b rather than to a's third file
+        assertEquals(executor.getStarted(), Arrays.asList("http://a/1.csv", "http://a/2.csv", "http://b/1.csv"));
+
+        // each freed slot goes to the next host in turn that has room: a, then b, then the local files
+        executor.finish("http://a/1.csv");
+        assertEquals(executor.getStarted().get(3), "http://a/3.csv");
+        executor.finish("http://b/1.csv");
+        assertEquals(executor.getStarted().get(4), "http://b/2.csv");
+        executor.finish("http://a/2.csv");
+        assertEquals(executor.getStarted().get(5), "./local.csv");
+        assertEquals(executor.getStarted().size(), 6);
+
+        // host b is done, so host a gets the slots - but still no more than 2 at once
+        executor.finish("http://b/2.csv");
+        executor.finish("./local.csv");
+        assertEquals(executor.getStarted().size(), 7);
+        executor.finish("http://a/3.csv");
+        executor.finish("http://a/4.csv");
+        executor.finish("http://a/5.csv");
+
+        for (CompletableFuture<CsvFile> result : results) {
+            assertTrue(result.isDone());
+        }
+        Map<String, HostScheduler.HostQueue> hosts = scheduler.getHosts();
+        assertEquals(hosts.get("a:80").getCompleted(), 5);
+        assertEquals(hosts.get("a:80").getPeakInFlight(), 2);
+        assertEquals(hosts.get("b:80").getCompleted(), 2);
+        assertEquals(hosts.get(HostScheduler.LOCAL_FILES).getCompleted(), 1);
+    }
+
+    @Test
+    public void testShutdown_shouldCancelWaitingReaders() {
+        ManualExecutor executor = new ManualExecutor();
+        HostScheduler scheduler = new HostScheduler(executor, 1, 1, null, Runnable::run);
+        CompletableFuture<CsvFile> running = scheduler.submit(new CsvReader("http://a/1.csv"));
+        CompletableFuture<CsvFile> waiting = scheduler.submit(new CsvReader("http://a/2.csv"));
+
+        scheduler.shutdown();
+        assertTrue(waiting.isCancelled());
+        assertFalse(running.isDone());
+
+        // a reader finishing after the shutdown does not start anything else
+        executor.finish("http://a/1.csv");
+        assertTrue(running.isDone());
+        assertEquals(executor.getStarted().size(), 1);
+    }
+
+    @Test
+    public void testRejectedReaders_shouldGiveTheirSlotsBack() {
+        ManualExecutor executor = new ManualExecutor();
+        HostScheduler scheduler = new HostScheduler(executor, 1, 100, new AdaptiveLimiter(100), Runnable::run);
+
+        // more rejected readers from one host than either the host's cap or the adaptive limit would let in flight
+        executor.setRejecting(true);
+        List<CompletableFuture<CsvFile>> rejected = new ArrayList<>();
+        for (int i = 0; i <= AdaptiveLimiter.INITIAL_LIMIT; i++) {
+            rejected.add(scheduler.submit(new CsvReader("http://a/" + i + ".csv")));
+        }
+        for (CompletableFuture<CsvFile> result : rejected) {
+            assertTrue(result.isCancelled());
+        }
+
+        executor.setRejecting(false);
+        CompletableFuture<CsvFile> result = scheduler.submit(new CsvReader("http://a/last.csv"));
+        assertEquals(executor.getStarted(), Arrays.asList("http://a/last.csv"));
+        executor.finish("http://a/last.csv");
+        assertTrue(result.isDone());
+    }
+
+    /***
+     * Starts nothing by itself - each reader "runs" until the test finishes it.
+     */
+    private static class ManualExecutor implements ReaderExecutor {
+        private final Map<String, CompletableFuture<CsvFile>> running = new LinkedHashMap<>();
+        private final List<String> started = new ArrayList<>();
+        private boolean rejecting;
+
+        @Override
+        public CompletableFuture<CsvFile> submit(CsvReader reader) {
+            if (rejecting) {
+                throw new RejectedExecutionException("rejecting");
+            }
+            CompletableFuture<CsvFile> future = new CompletableFuture<>();
+            running.put(reader.getUrl(), future);
+            started.add(reader.getUrl());
+            return future;
+        }
+
+        void finish(String url) {
+            CsvFile csvFile = new CsvFile(url);
+            csvFile.setStatus(CsvFileStatus.EMPTY);
+            running.remove(url).complete(csvFile);
+        }
+
+        void setRejecting(boolean rejecting) {
+            this.rejecting = rejecting;
+        }
+
+        List<String> getStarted() {
+            return started;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public void printMetrics() {
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.PartialSummary;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * Runs a CsvProcessor against SyntheticCsvServers, to see how a run with thousands of URLs (and big, slow or broken
+ * files) behaves before it happens for real. Reports the wall time, the peak thread count and heap use, and whether the
+ * median and average match the ones expected from the generated data.
+ * <p>
+ * Used by the tests at a small scale; at a large one it can be run on its own, after mvn test-compile:
+ * <pre>
+ * java -cp target/classes:target/test-classes com.crowdstrike.mossab.processor.LoadHarness [URLS] [ROWS] [SERVERS] [LATENCY_MS]
+ * </pre>
+ */
+public class LoadHarness {
+    private final int partitions;
+    private final List<SyntheticCsvServer> servers;
+
+    /***
+     * @param partitions the number of URLs, spread over the servers in turn
+     * @param servers the servers to read from - every one of them has to be configured the same way, with the same seed
+     */
+    public LoadHarness(int partitions, List<SyntheticCsvServer> servers) {
+        this.partitions = partitions;
+        this.servers = servers;
+    }
+
+    public Report run(CsvProcessorOptions options) {
+        List<String> urls = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            urls.add(servers.get(i % servers.size()).url(i));
+        }
+
+        // the expected results are those of the partitions that make it through their faults, merged in the same order
+        PartialSummary expected = new PartialSummary();
+        int expectedFiles = 0;
+        SyntheticCsvServer generator = servers.get(0);
+        for (int i = 0; i < partitions; i++) {
+            if (generator.faultOf(i).isIncluded()) {
+                expected.merge(generator.expectedSummary(i));
+                expectedFiles++;
+            }
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        CsvProcessor processor = new CsvProcessor(urls, options);
+        long start = System.nanoTime();
+        processor.process();
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // the pools peak at different moments, so their sum is an upper bound
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        return new Report(processor, expected, expectedFiles, wallMillis, threads.getPeakThreadCount(), peakHeap);
+    }
+
+    public static class Report {
+        private final CsvProcessor processor;
+        private final PartialSummary expected;
+        private final int expectedFiles;
+        private final long wallMillis;
+        private final int peakThreads;
+        private final long peakHeapBytes;
+
+        Report(CsvProcessor processor, PartialSummary expected, int expectedFiles, long wallMillis, int peakThreads, long peakHeapBytes) {
+            this.processor = processor;
+            this.expected = expected;
+            this.expectedFiles = expectedFiles;
+            this.wallMillis = wallMillis;
+            this.peakThreads = peakThreads;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public double getExpectedMedian() {
+            return expected.getHistogram().getMedian();
+        }
+
+        public double getExpectedAverage() {
+            return expected.getHistogram().getAverage();
+        }
+
+        public long getExpectedCount() {
+            return expected.getCount();
+        }
+
+        public int getExpectedFiles() {
+            return expectedFiles;
+        }
+
+        /***
+         * @return whether the run came to the same people count, median and average as the generated data has
+         */
+        public boolean isCorrect() {
+            return processor.getSummary().getCount() == expected.getCount()
+                    && processor.getMedianAge() == getExpectedMedian()
+                    && Math.abs(processor.getAverageAge() - getExpectedAverage()) < 1e-9;
+        }
+
+        public CsvProcessor getProcessor() {
+            return processor;
+        }
+
+        public long getWallMillis() {
+            return wallMillis;
+        }
+
+        public int getPeakThreads() {
+            return peakThreads;
+        }
+
+        public long getPeakHeapBytes() {
+            return peakHeapBytes;
+        }
+
+        public void print() {
+            System.out.println("- URLs: " + processor.getFileCount() + " (" + expectedFiles + " expected to be read, "
+                    + processor.getTimedOutFiles() + " timed out)");
+            System.out.println("- Wall time: " + wallMillis + " ms");
+            System.out.println("- Peak threads: " + peakThreads);
+            System.out.println("- Peak heap: " + peakHeapBytes / (1024 * 1024) + " MB");
+            System.out.printf("- Median: %.2f (expected %.2f), average: %.4f (expected %.4f), people: %d (expected %d)%n",
+                    processor.getMedianAge(), getExpectedMedian(), processor.getAverageAge(), getExpectedAverage(),
+                    processor.getSummary().getCount(), expected.getCount());
+            System.out.println("- Correct: " + (isCorrect() ? "yes" : "NO"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int urls = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int serverCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        double latency = args.length > 3 ? Double.parseDouble(args[3]) : 20;
+
+        List<SyntheticCsvServer> servers = new ArrayList<>();
+        try {
+            for (int i = 0; i < serverCount; i++) {
+                servers.add(configure(new SyntheticCsvServer(42), rows, latency));
+            }
+
+            CsvProcessorOptions options = new CsvProcessorOptions();
+            options.setReadTimeoutMillis(2000);
+            options.setRetryBaseDelayMillis(50);
+            options.setProgressIntervalMillis(5000);
+            new LoadHarness(urls, servers).run(options).print();
+        } finally {
+            for (SyntheticCsvServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    /***
+     * Sets up the server with a few percent of every fault.
+     */
+    static SyntheticCsvServer configure(SyntheticCsvServer server, int rows, double latencyMillis) {
+        server.setRows(rows);
+        server.setLatency(latencyMillis, 0.5);
+        server.setFaultRate(SyntheticCsvServer.Fault.NOT_FOUND, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.SERVER_ERROR, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.TOO_MANY_REQUESTS, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.TRUNCATED, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.STALL, 0.01);
+        server.setFaultRate(SyntheticCsvServer.Fault.GARBAGE, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.WRONG_HEADER, 0.02);
+        server.setFaultRate(SyntheticCsvServer.Fault.SLOW_DRIP, 0.01);
+        return server;
+    }
+}
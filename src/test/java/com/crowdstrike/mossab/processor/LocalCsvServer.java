@@ -0,0 +1,275 @@
+package com.crowdstrike.mossab.processor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/***
+ * A stand-in http server for tests, so that http(s) reading can be tested without depending on an outside host.
+ * Serves whatever bodies were registered with serve(), and a 404 for anything else. HEAD and single byte-range GETs
+ * are supported unless turned off with setRangeSupport(false). With setContentEncoding(), full bodies are compressed
+ * for clients that accept the encoding. Every body has an ETag, and a GET with a matching If-None-Match gets a 304.
+ * Faults can be injected per path: failFirst() answers the first GETs with an error status, delayFirst() holds
+ * the first GETs back before answering, and stallFirst() stops sending half way through the body for a while.
+ */
+public class LocalCsvServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+    private final Map<String, String> contentTypes = new ConcurrentHashMap<>();
+    private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> gets = new ConcurrentHashMap<>();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger bodiesSent = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private volatile boolean rangeSupport = true;
+    private volatile boolean misreportRanges;
+    private volatile String contentEncoding;
+
+    public LocalCsvServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    /***
+     * @return the URL the body will be served at
+     */
+    public String serve(String path, byte[] body) {
+        return serve(path, body, "text/csv");
+    }
+
+    /***
+     * @return the URL the body will be served at, with the given Content-Type
+     */
+    public String serve(String path, byte[] body, String contentType) {
+        bodies.put(path, body);
+        contentTypes.put(path, contentType);
+        return url(path);
+    }
+
+    /***
+     * Serves a local file (e.g. one of src/data) under /its-file-name.
+     * @return the URL the file will be served at
+     */
+    public String serveFile(String file) throws IOException {
+        return serve("/" + Paths.get(file).getFileName(), Files.readAllBytes(Paths.get(file)));
+    }
+
+    /***
+     * Answers the next GETs of the path with an error status instead of the body.
+     * @param retryAfter the Retry-After header to send with the errors, or null for none
+     */
+    public void failFirst(String path, int requests, int statusCode, String retryAfter) {
+        faults.put(path, new Fault(requests, statusCode, retryAfter, 0, 0));
+    }
+
+    /***
+     * Waits before answering the next GETs of the path, as an overloaded server would.
+     */
+    public void delayFirst(String path, int requests, long delayMillis) {
+        faults.put(path, new Fault(requests, 0, null, delayMillis, 0));
+    }
+
+    /***
+     * Sends the first half of the body of the next GETs of the path, then waits before sending the rest - as a server
+     * or network that stalls mid-transfer would.
+     */
+    public void stallFirst(String path, int requests, long stallMillis) {
+        faults.put(path, new Fault(requests, 0, null, 0, stallMillis));
+    }
+
+    /***
+     * @return how many GETs were made for the path, including failed ones
+     */
+    public int getRequests(String path) {
+        AtomicInteger count = gets.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    public void setRangeSupport(boolean rangeSupport) {
+        this.rangeSupport = rangeSupport;
+    }
+
+    /***
+     * @param misreportRanges whether partial responses report a different total size, as if the file had changed
+     */
+    public void setMisreportRanges(boolean misreportRanges) {
+        this.misreportRanges = misreportRanges;
+    }
+
+    /***
+     * @param contentEncoding "gzip" or "deflate" to compress responses for clients that accept it, or null not to
+     */
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /***
+     * @return how many GETs with a Range header were answered with 206 Partial Content
+     */
+    public int getRangeRequests() {
+        return rangeRequests.get();
+    }
+
+    /***
+     * @return how many GETs were answered with a (full or partial) body
+     */
+    public int getBodiesSent() {
+        return bodiesSent.get();
+    }
+
+    /***
+     * @return how many GETs were answered with 304 Not Modified
+     */
+    public int getNotModified() {
+        return notModified.get();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        long stallMillis = 0;
+        if ("GET".equals(exchange.getRequestMethod())) {
+            gets.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+
+            Fault fault = faults.get(path);
+            if (fault != null && fault.remaining.getAndDecrement() > 0) {
+                if (fault.delayMillis > 0) {
+                    sleep(fault.delayMillis);
+                } else if (fault.stallMillis > 0) {
+                    stallMillis = fault.stallMillis;
+                } else {
+                    if (fault.retryAfter != null) {
+                        exchange.getResponseHeaders().add("Retry-After", fault.retryAfter);
+                    }
+                    exchange.sendResponseHeaders(fault.statusCode, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+        }
+
+        byte[] body = bodies.get(path);
+        if (body == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", contentTypes.get(exchange.getRequestURI().getPath()));
+        if (rangeSupport) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        }
+
+        // changes whenever the body does
+        String etag = "\"" + Integer.toHexString(Arrays.hashCode(body)) + "-" + body.length + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().add("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        bodiesSent.incrementAndGet();
+
+        int from = 0;
+        int to = body.length - 1;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (rangeSupport && range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            to = Math.min(to, Integer.parseInt(bounds[1]));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + (body.length + (misreportRanges ? 1 : 0)));
+            rangeRequests.incrementAndGet();
+        }
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (contentEncoding != null && range == null && acceptEncoding != null && acceptEncoding.contains(contentEncoding)) {
+            byte[] compressed = compress(body, contentEncoding);
+            exchange.getResponseHeaders().add("Content-Encoding", contentEncoding);
+            exchange.sendResponseHeaders(200, compressed.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(compressed);
+            }
+            return;
+        }
+
+        exchange.sendResponseHeaders(range != null && rangeSupport ? 206 : 200, to - from + 1);
+        try (OutputStream output = exchange.getResponseBody()) {
+            if (stallMillis > 0) {
+                int half = (to - from + 1) / 2;
+                output.write(body, from, half);
+                output.flush();
+                sleep(stallMillis);
+                from += half;
+            }
+            output.write(body, from, to - from + 1);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static byte[] compress(byte[] body, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = "gzip".equals(encoding) ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            output.write(body);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static class Fault {
+        private final AtomicInteger remaining;
+        private final int statusCode;
+        private final String retryAfter;
+        private final long delayMillis;
+        private final long stallMillis;
+
+        Fault(int requests, int statusCode, String retryAfter, long delayMillis, long stallMillis) {
+            this.remaining = new AtomicInteger(requests);
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+            this.delayMillis = delayMillis;
+            this.stallMillis = stallMillis;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
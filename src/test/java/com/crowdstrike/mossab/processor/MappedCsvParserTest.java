@@ -0,0 +1,143 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import com.crowdstrike.mossab.model.MalformedLine;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MappedCsvParserTest {
+
+    @Test
+    public void testSmallChunks_shouldMatchStreamingParse() throws IOException {
+        for (String file : new String[]{"./src/data/file3.csv", "./src/data/file9_bad.csv"}) {
+            Path path = Paths.get(file);
+
+            CsvFile expected = new CsvFile(file);
+            try (InputStream input = Files.newInputStream(path)) {
+                new CsvLineParser(expected, true, true).parse(input);
+            }
+
+            // tiny chunks, so every file is split into many pieces that are parsed in parallel and merged back
+            for (long chunkSize : new long[]{1, 7, 100, 4096}) {
+                CsvFile csvFile = new CsvFile(file);
+                new MappedCsvParser(path, true, chunkSize).parse(csvFile);
+
+                assertEquals(csvFile.getPeople().size(), expected.getPeople().size());
+                for (int i = 0; i < expected.getPeople().size(); i++) {
+                    assertEquals(csvFile.getPeople().get(i).toString(), expected.getPeople().get(i).toString());
+                }
+                assertEquals(csvFile.getMalformedData(), expected.getMalformedData());
+                assertEquals(malformedOffsets(csvFile), malformedOffsets(expected));
+                assertEquals(csvFile.getSummary().getHistogram().getMedian(), expected.getSummary().getHistogram().getMedian(), 0.0);
+                assertEquals(String.valueOf(csvFile.getSummary().getHistogram().getMedianPerson()), String.valueOf(expected.getSummary().getHistogram().getMedianPerson()));
+            }
+        }
+    }
+
+    @Test
+    public void testMappedLocalCsvs_shouldMatchStreamedLocalCsvs() {
+        List<String> urls = new ArrayList<>();
+        urls.add("./src/data/file1.csv");
+        urls.add("./src/data/file3.csv");
+        urls.add("./src/data/file6_bad.csv");
+        urls.add("./src/data/file9_bad.csv");
+        urls.add("./src/data/missing.csv");
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setMmapThreshold(0);
+        CsvProcessor processor = new CsvProcessor(urls, options);
+        processor.process();
+
+        CsvProcessor streamedProcessor = new CsvProcessor(urls);
+        streamedProcessor.process();
+
+        assertEquals(processor.getMedianAge(), streamedProcessor.getMedianAge(), 0.0);
+        assertEquals(processor.getAverageAge(), streamedProcessor.getAverageAge(), 0.0);
+        for (int i = 0; i < urls.size(); i++) {
+            assertEquals(processor.getFiles().get(i).getStatus(), streamedProcessor.getFiles().get(i).getStatus());
+            assertEquals(processor.getFiles().get(i).getPeople().size(), streamedProcessor.getFiles().get(i).getPeople().size());
+        }
+    }
+
+    @Test
+    public void testAbortRules_shouldStopMappedFilesOnTheFirstChunk() throws IOException {
+        StringBuilder mostlyMalformed = new StringBuilder("fname, lname, age\n");
+        for (int i = 0; i < 5000; i++) {
+            mostlyMalformed.append(i % 10 == 0 ? "Homer, Simpson, 39\n" : "<div>not a person</div>\n");
+        }
+        Path malformedPath = Files.createTempFile("mostly-malformed", ".csv");
+        Files.write(malformedPath, mostlyMalformed.toString().getBytes(StandardCharsets.UTF_8));
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setRequireHeader(true);
+        options.setMaxMalformedRatio(0.5);
+        options.setMalformedRatioLines(100);
+        EarlyAbortRules rules = new EarlyAbortRules(options);
+        try {
+            String[] files = {malformedPath.toString(), "./src/data/file6_bad.csv", "./src/data/file9_bad.csv"};
+            CsvFileStatus[] expected = {CsvFileStatus.ABORTED_TOO_MANY_MALFORMED_LINES, CsvFileStatus.ABORTED_MISSING_HEADER, null};
+            for (int i = 0; i < files.length; i++) {
+                // small chunks, so there are chunks after the first one that must not be parsed
+                MappedCsvParser parser = new MappedCsvParser(Paths.get(files[i]), true, 1000);
+                parser.setAbortRules(rules);
+                CsvFile csvFile = new CsvFile(files[i]);
+                parser.parse(csvFile);
+
+                assertEquals(parser.getAbortStatus(), expected[i]);
+                assertEquals(csvFile.getSummary().isEmpty(), expected[i] != null);
+            }
+
+            options.setMaxBodySize(100);
+            MappedCsvParser parser = new MappedCsvParser(Paths.get("./src/data/file3.csv"), true, 1000);
+            parser.setAbortRules(new EarlyAbortRules(options));
+            CsvFile tooLarge = new CsvFile("./src/data/file3.csv");
+            parser.parse(tooLarge);
+            assertEquals(parser.getAbortStatus(), CsvFileStatus.ABORTED_TOO_LARGE);
+            assertEquals(tooLarge.getPeople().size(), 0);
+        } finally {
+            Files.delete(malformedPath);
+        }
+    }
+
+    @Test
+    public void testAbortRules_shouldStopSingleChunkFiles() throws IOException {
+        Path path = Files.createTempFile("single-chunk", ".csv");
+        Files.write(path, "fname, lname, age\na, b, 30\nx\ny\nz\nw\n".getBytes(StandardCharsets.UTF_8));
+
+        CsvProcessorOptions options = new CsvProcessorOptions();
+        options.setMaxMalformedRatio(0.5);
+        options.setMalformedRatioLines(5);
+        try {
+            MappedCsvParser parser = new MappedCsvParser(path, true);
+            parser.setAbortRules(new EarlyAbortRules(options));
+            CsvFile csvFile = new CsvFile(path.toString());
+            parser.parse(csvFile);
+
+            // the one person read before the file was given up on is not added either
+            assertEquals(parser.getAbortStatus(), CsvFileStatus.ABORTED_TOO_MANY_MALFORMED_LINES);
+            assertEquals(csvFile.getSummary().getCount(), 0);
+            assertEquals(csvFile.getPeople().size(), 0);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private List<Long> malformedOffsets(CsvFile csvFile) {
+        List<Long> offsets = new ArrayList<>();
+        for (MalformedLine line : csvFile.getMalformedLines().getSamples()) {
+            offsets.add(line.getByteOffset());
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,72 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.*;
+
+public class PercentileHistogramTest {
+
+    @Test
+    public void testSmallValues_shouldBeExact() {
+        PercentileHistogram histogram = new PercentileHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(histogram.getPercentile(50), 5);
+        assertEquals(histogram.getPercentile(90), 9);
+        assertEquals(histogram.getPercentile(100), 10);
+        assertEquals(histogram.getCount(), 10);
+        assertEquals(histogram.getSum(), 55);
+        assertEquals(histogram.getMin(), 1);
+        assertEquals(histogram.getMax(), 10);
+        assertEquals(histogram.getMean(), 5.5, 0.0);
+    }
+
+    @Test
+    public void testSpreadOutValues_shouldBeWithinTheBucketError() {
+        PercentileHistogram histogram = new PercentileHistogram();
+        SplittableRandom random = new SplittableRandom(1);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // latencies from microseconds to seconds, in nanoseconds
+            values[i] = (long) Math.exp(random.nextDouble(7, 21));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            assertEquals(histogram.getPercentile(percentile), exact, exact * 0.0625);
+        }
+        assertEquals(histogram.getMax(), values[values.length - 1]);
+        assertEquals(histogram.getMin(), values[0]);
+    }
+
+    @Test
+    public void testBuckets_shouldCoverEveryValueOnce() {
+        assertEquals(PercentileHistogram.bucketOf(0), 0);
+        assertEquals(PercentileHistogram.bucketOf(Long.MAX_VALUE), PercentileHistogram.bucketOf(Long.MAX_VALUE - 1));
+        for (long value : new long[]{15, 16, 17, 31, 32, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int bucket = PercentileHistogram.bucketOf(value);
+            assertTrue(PercentileHistogram.lowerBoundOf(bucket) <= value);
+            assertTrue(PercentileHistogram.bucketOf(PercentileHistogram.lowerBoundOf(bucket)) == bucket);
+        }
+    }
+
+    @Test
+    public void testEmpty_shouldBeZero() {
+        PercentileHistogram histogram = new PercentileHistogram();
+        histogram.record(-5);
+        assertEquals(histogram.getMin(), 0);
+
+        PercentileHistogram empty = new PercentileHistogram();
+        assertEquals(empty.getPercentile(50), 0);
+        assertEquals(empty.getMin(), 0);
+        assertEquals(empty.getMax(), 0);
+        assertEquals(empty.getMean(), 0.0, 0.0);
+    }
+}
@@ -0,0 +1,29 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestHedgerTest {
+
+    @Test
+    public void testThreshold_shouldOnlyBeRecomputedEveryInterval() {
+        RequestHedger hedger = new RequestHedger(50, null);
+        for (int i = 1; i < RequestHedger.MIN_SAMPLES; i++) {
+            hedger.recordLatency(i);
+        }
+        assertEquals(hedger.thresholdNanos(), -1);
+
+        // the first threshold comes as soon as there are enough samples
+        hedger.recordLatency(RequestHedger.MIN_SAMPLES);
+        assertEquals(hedger.thresholdNanos(), RequestHedger.MIN_SAMPLES / 2);
+
+        // much slower requests only move it once another interval's worth has been recorded
+        for (int i = 1; i < RequestHedger.RECOMPUTE_INTERVAL; i++) {
+            hedger.recordLatency(1000);
+        }
+        assertEquals(hedger.thresholdNanos(), RequestHedger.MIN_SAMPLES / 2);
+        hedger.recordLatency(1000);
+        assertEquals(hedger.thresholdNanos(), 18);
+    }
+}
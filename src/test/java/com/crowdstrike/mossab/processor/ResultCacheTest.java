@@ -0,0 +1,111 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.CsvFile;
+import com.crowdstrike.mossab.model.CsvFileStatus;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    @Test
+    public void testStoreAndLookup_shouldRestoreTheSameResult() throws IOException {
+        Path directory = Files.createTempDirectory("result-cache");
+        try {
+            CsvFile parsed = parsedFile("./src/data/file9_bad.csv", "http://example.com/file9_bad.csv");
+            new ResultCache(directory, 1024 * 1024).store(parsed);
+
+            // a new cache over the same directory, as on the next run
+            ResultCache cache = new ResultCache(directory, 1024 * 1024);
+            assertNull(cache.lookup("http://example.com/other.csv"));
+            ResultCache.Entry entry = cache.lookup("http://example.com/file9_bad.csv");
+            assertNotNull(entry);
+            assertEquals(entry.getEtag(), "\"v1\"");
+
+            CsvFile restored = new CsvFile("http://example.com/file9_bad.csv");
+            entry.restoreInto(restored);
+            assertEquals(restored.getStatus(), CsvFileStatus.PROCESSED_WITH_INVALID_INPUT);
+            assertEquals(restored.getSummary().getCount(), parsed.getSummary().getCount());
+            assertEquals(restored.getSummary().getSum(), parsed.getSummary().getSum());
+            assertEquals(restored.getSummary().getMinAge(), parsed.getSummary().getMinAge());
+            assertEquals(restored.getSummary().getMaxAge(), parsed.getSummary().getMaxAge());
+            assertEquals(restored.getSummary().getMalformedCount(), 3);
+            assertEquals(String.valueOf(restored.getSummary().getHistogram().getMedianPerson()),
+                    String.valueOf(parsed.getSummary().getHistogram().getMedianPerson()));
+            assertEquals(restored.getMalformedData(), parsed.getMalformedData());
+            assertEquals(restored.getMalformedLines().getSamples().get(1).getByteOffset(),
+                    parsed.getMalformedLines().getSamples().get(1).getByteOffset());
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testMaxSize_shouldEvictLeastRecentlyUsed() throws IOException {
+        Path directory = Files.createTempDirectory("result-cache");
+        try {
+            CsvFile parsed = parsedFile("./src/data/file1.csv", "http://example.com/0.csv");
+            ResultCache sizing = new ResultCache(directory.resolve("sizing"), Long.MAX_VALUE);
+            sizing.store(parsed);
+            long entrySize = sizing.getTotalBytes();
+            deleteDirectory(directory.resolve("sizing"));
+
+            // room for 3 entries
+            ResultCache cache = new ResultCache(directory, 3 * entrySize + entrySize / 2);
+            for (int i = 0; i < 3; i++) {
+                cache.store(withUrl(parsed, "http://example.com/" + i + ".csv"));
+            }
+            // using 0 makes 1 the least recently used
+            assertNotNull(cache.lookup("http://example.com/0.csv"));
+            cache.store(withUrl(parsed, "http://example.com/3.csv"));
+
+            assertEquals(cache.getEvictions(), 1);
+            assertTrue(cache.getTotalBytes() <= 3 * entrySize + entrySize / 2);
+            assertNotNull(cache.lookup("http://example.com/0.csv"));
+            assertNull(cache.lookup("http://example.com/1.csv"));
+            assertNotNull(cache.lookup("http://example.com/2.csv"));
+            assertNotNull(cache.lookup("http://example.com/3.csv"));
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(files.count(), 3);
+            }
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private CsvFile parsedFile(String file, String url) throws IOException {
+        CsvFile csvFile = new CsvFile(url);
+        try (FileInputStream input = new FileInputStream(file)) {
+            new CsvLineParser(csvFile, false, true).parse(input);
+        }
+        csvFile.setStatus(csvFile.getMalformedCount() > 0 ? CsvFileStatus.PROCESSED_WITH_INVALID_INPUT : CsvFileStatus.PROCESSED_VALID);
+        csvFile.setEtag("\"v1\"");
+        return csvFile;
+    }
+
+    private CsvFile withUrl(CsvFile parsed, String url) {
+        CsvFile csvFile = new CsvFile(url);
+        csvFile.merge(parsed);
+        csvFile.setStatus(parsed.getStatus());
+        csvFile.setEtag(parsed.getEtag());
+        return csvFile;
+    }
+
+    private void deleteDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,68 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testRetryableFailures_shouldBeTransientOnes() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 10_000);
+
+        assertTrue(policy.isRetryable(500));
+        assertTrue(policy.isRetryable(503));
+        assertTrue(policy.isRetryable(429));
+        assertFalse(policy.isRetryable(200));
+        assertFalse(policy.isRetryable(404));
+
+        assertTrue(policy.isRetryable(new SocketException("Connection reset")));
+        assertTrue(policy.isRetryable(new IOException("Premature EOF")));
+        assertFalse(policy.isRetryable(new UnknownHostException("nowhere")));
+        assertFalse(policy.isRetryable(new MalformedURLException("nonsense")));
+
+        assertTrue(policy.hasAttemptsLeft(2));
+        assertFalse(policy.hasAttemptsLeft(3));
+    }
+
+    @Test
+    public void testDelays_shouldBeJitteredAndCapped() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            // full jitter: anywhere between nothing and the exponential delay
+            assertTrue(policy.delayMillis(1, -1) <= 100);
+            assertTrue(policy.delayMillis(3, -1) <= 400);
+            assertTrue(policy.delayMillis(8, -1) <= 1000);
+            assertTrue(policy.delayMillis(1, -1) >= 0);
+
+            // the server asking for a wait is honoured, up to the cap
+            assertTrue(policy.delayMillis(1, 500) >= 500);
+            assertEquals(policy.delayMillis(1, 60_000), 1000);
+        }
+    }
+
+    @Test
+    public void testRetryAfter_shouldParseSecondsAndDates() {
+        assertEquals(RetryPolicy.parseRetryAfter("120"), 120_000);
+        assertEquals(RetryPolicy.parseRetryAfter(" 0 "), 0);
+        assertEquals(RetryPolicy.parseRetryAfter(null), -1);
+        assertEquals(RetryPolicy.parseRetryAfter(""), -1);
+        assertEquals(RetryPolicy.parseRetryAfter("soon"), -1);
+
+        String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        long wait = RetryPolicy.parseRetryAfter(inAMinute);
+        assertTrue(wait > 55_000 && wait <= 60_000);
+
+        String past = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).minusSeconds(60));
+        assertEquals(RetryPolicy.parseRetryAfter(past), 0);
+    }
+}
@@ -0,0 +1,319 @@
+package com.crowdstrike.mossab.processor;
+
+import com.crowdstrike.mossab.model.PartialSummary;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * An http server for load tests that makes up its CSVs as it serves them, so that thousands of URLs and files of
+ * millions of rows can be read without any of them existing (or being held in memory). /partition-N.csv is partition N
+ * of the data set: a header and the configured number of people, generated from the seed and N - the same partition
+ * always has the same people, so the expected results can be worked out without the server (see expectedSummary()).
+ * <p>
+ * Every request waits a random latency first (log-normally distributed around the configured median), and partitions
+ * can be given faults, each at a configured rate:
+ * <ul>
+ *     <li>NOT_FOUND, SERVER_ERROR: every GET is answered with a 404 or a 500</li>
+ *     <li>TOO_MANY_REQUESTS: the first GET is answered with a 429, later ones with the partition</li>
+ *     <li>TRUNCATED: the connection is closed half way through the body</li>
+ *     <li>STALL: half the body is sent, then nothing for the stall time</li>
+ *     <li>GARBAGE: lines of random non-text bytes are mixed in with the people</li>
+ *     <li>WRONG_HEADER: the header is not "fname, lname, age"</li>
+ *     <li>SLOW_DRIP: the body is sent a small chunk at a time, with a pause after each</li>
+ * </ul>
+ * Which partitions get which fault is decided by the seed too.
+ */
+public class SyntheticCsvServer implements AutoCloseable {
+    private static final String[] FIRST_NAMES = {"David", "Jack", "Claire", "Melanie", "Phillip", "Mikayla", "Faith", "Omar"};
+    private static final String[] LAST_NAMES = {"MERCADO", "HAHN", "WOLFE", "POWELL", "GILES", "SERRANO", "CHAVEZ", "NGUYEN"};
+    private static final int DRIP_CHUNK = 512;
+
+    public enum Fault {
+        NONE(true),
+        NOT_FOUND(false),
+        SERVER_ERROR(false),
+        TOO_MANY_REQUESTS(true),
+        TRUNCATED(false),
+        STALL(false),
+        GARBAGE(true),
+        WRONG_HEADER(true),
+        SLOW_DRIP(true);
+
+        private final boolean included;
+
+        Fault(boolean included) {
+            this.included = included;
+        }
+
+        /***
+         * @return whether the partition's people end up in the results despite the fault (with the default options)
+         */
+        public boolean isIncluded() {
+            return included;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long seed;
+    private final Map<Fault, Double> faultRates = new EnumMap<>(Fault.class);
+    private final Map<Integer, AtomicInteger> gets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private volatile int rows = 1000;
+    private volatile double medianLatencyMillis;
+    private volatile double latencySigma = 0.5;
+    private volatile long stallMillis = 5000;
+    private volatile long dripPauseMillis = 5;
+
+    public SyntheticCsvServer(long seed) throws IOException {
+        this.seed = seed;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    /***
+     * @param rows the number of people in each partition
+     */
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    /***
+     * @param medianMillis half the requests wait less than this before being answered, half longer (0 for no wait)
+     * @param sigma how spread out the waits are - the standard deviation of their logarithm
+     */
+    public void setLatency(double medianMillis, double sigma) {
+        this.medianLatencyMillis = medianMillis;
+        this.latencySigma = sigma;
+    }
+
+    /***
+     * @param rate the share (0-1) of the partitions that get the fault
+     */
+    public void setFaultRate(Fault fault, double rate) {
+        faultRates.put(fault, rate);
+    }
+
+    public void setStallMillis(long stallMillis) {
+        this.stallMillis = stallMillis;
+    }
+
+    public void setDripPauseMillis(long dripPauseMillis) {
+        this.dripPauseMillis = dripPauseMillis;
+    }
+
+    public String url(int partition) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/partition-" + partition + ".csv";
+    }
+
+    /***
+     * @return the fault partition N is served with - the same for every request and every server with the same seed
+     */
+    public Fault faultOf(int partition) {
+        double draw = new SplittableRandom(seed * 31 + partition).nextDouble();
+        double cumulative = 0;
+        for (Map.Entry<Fault, Double> rate : faultRates.entrySet()) {
+            cumulative += rate.getValue();
+            if (draw < cumulative) {
+                return rate.getKey();
+            }
+        }
+        return Fault.NONE;
+    }
+
+    /***
+     * @return the summary of the people in partition N, worked out without serving it
+     */
+    public PartialSummary expectedSummary(int partition) {
+        PartialSummary summary = new PartialSummary();
+        SplittableRandom people = peopleOf(partition);
+        for (int i = 0; i < rows; i++) {
+            people.nextInt(FIRST_NAMES.length);
+            people.nextInt(LAST_NAMES.length);
+            summary.add(people.nextInt(1, 100));
+        }
+        return summary;
+    }
+
+    /***
+     * @return the most requests that were being answered at once
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    /***
+     * @return how many GETs were made for partition N, including failed ones
+     */
+    public int getRequests(int partition) {
+        AtomicInteger count = gets.get(partition);
+        return count == null ? 0 : count.get();
+    }
+
+    private SplittableRandom peopleOf(int partition) {
+        return new SplittableRandom(seed ^ (partition * 0x9E3779B97F4A7C15L));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            serve(exchange);
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int partition;
+        try {
+            partition = Integer.parseInt(path.substring("/partition-".length(), path.length() - ".csv".length()));
+        } catch (RuntimeException e) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        int requests = gets.computeIfAbsent(partition, key -> new AtomicInteger()).incrementAndGet();
+        sleep(latencyMillis());
+
+        Fault fault = faultOf(partition);
+        if (fault == Fault.NOT_FOUND || fault == Fault.SERVER_ERROR || (fault == Fault.TOO_MANY_REQUESTS && requests == 1)) {
+            exchange.sendResponseHeaders(fault == Fault.NOT_FOUND ? 404 : fault == Fault.SERVER_ERROR ? 500 : 429, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "text/csv");
+        if (fault == Fault.TRUNCATED || fault == Fault.STALL) {
+            // the whole body is promised, but only half of it comes (at least not in time)
+            byte[] body = generate(partition, fault);
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body, 0, body.length / 2);
+            output.flush();
+            if (fault == Fault.STALL) {
+                sleep(stallMillis);
+                output.write(body, body.length / 2, body.length - body.length / 2);
+            }
+            return;
+        }
+
+        // chunked, so that partitions of any size are generated as they are sent
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream output = fault == Fault.SLOW_DRIP ? new DripOutputStream(exchange.getResponseBody())
+                : new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024)) {
+            write(partition, fault, output);
+        }
+    }
+
+    private byte[] generate(int partition, Fault fault) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        write(partition, fault, body);
+        return body.toByteArray();
+    }
+
+    private void write(int partition, Fault fault, OutputStream output) throws IOException {
+        SplittableRandom people = peopleOf(partition);
+        // garbage comes from its own generator, so the people are the same as without it
+        SplittableRandom garbage = new SplittableRandom(partition);
+        StringBuilder line = new StringBuilder(64);
+
+        output.write((fault == Fault.WRONG_HEADER ? "first_name;last_name;years\n" : "fname, lname, age\n").getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < rows; i++) {
+            line.setLength(0);
+            line.append(FIRST_NAMES[people.nextInt(FIRST_NAMES.length)]).append(", ")
+                    .append(LAST_NAMES[people.nextInt(LAST_NAMES.length)]).append(", ")
+                    .append(people.nextInt(1, 100)).append('\n');
+            output.write(line.toString().getBytes(StandardCharsets.UTF_8));
+
+            if (fault == Fault.GARBAGE && garbage.nextInt(10) == 0) {
+                // bytes that are never a comma or a line break, so each garbage line is exactly one malformed line
+                byte[] bytes = new byte[garbage.nextInt(1, 40)];
+                for (int j = 0; j < bytes.length; j++) {
+                    bytes[j] = (byte) garbage.nextInt(0x80, 0x100);
+                }
+                output.write(bytes);
+                output.write('\n');
+            }
+        }
+    }
+
+    private long latencyMillis() {
+        if (medianLatencyMillis <= 0) {
+            return 0;
+        }
+        return Math.round(medianLatencyMillis * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * Sends what is written a small chunk at a time, pausing after each.
+     */
+    private class DripOutputStream extends OutputStream {
+        private final OutputStream output;
+        private final byte[] chunk = new byte[DRIP_CHUNK];
+        private int length;
+
+        DripOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            chunk[length++] = (byte) b;
+            if (length == chunk.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                output.write(chunk, 0, length);
+                output.flush();
+                length = 0;
+                sleep(dripPauseMillis);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            output.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,36 @@
+package com.crowdstrike.mossab.processor;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+
+public class UrlManifestTest {
+
+    @Test
+    public void testManifest_shouldSkipBlankLinesAndComments() {
+        UrlManifest manifest = new UrlManifest(new StringReader(
+                "# people exports\n./src/data/file1.csv\n\n   http://example.com/people.csv  \r\n#./src/data/file2.csv\n./src/data/file3.csv"));
+
+        List<String> urls = new ArrayList<>();
+        manifest.forEachRemaining(urls::add);
+
+        assertEquals(urls.size(), 3);
+        assertEquals(urls.get(0), "./src/data/file1.csv");
+        assertEquals(urls.get(1), "http://example.com/people.csv");
+        assertEquals(urls.get(2), "./src/data/file3.csv");
+        assertFalse(manifest.hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testEmptyManifest_shouldHaveNoUrls() {
+        UrlManifest manifest = new UrlManifest(new StringReader("\n# nothing here\n"));
+
+        assertFalse(manifest.hasNext());
+        manifest.next();
+    }
+}